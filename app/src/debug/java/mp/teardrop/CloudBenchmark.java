@@ -0,0 +1,205 @@
+package mp.teardrop;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+
+/**
+ * Measures the cloud import and streaming paths against a
+ * {@link LocalCloudServer}, at 10, 100 and 1,000 songs. Debug builds only.
+ *
+ * For each size, a folder of generated songs is imported, imported again
+ * with its hash and tags cached, and then has the streaming link of every
+ * song refreshed, as PlaybackService does before playing an expired one.
+ * The round trips, bytes and wall time of each are written to the log.
+ *
+ * Run with:
+ * <pre>
+ * adb shell am startservice -n mp.teardrop/.CloudBenchmark \
+ *     --ei latency 100 --ei bandwidth 1000000 --ef error_rate 0.01 \
+ *     --ez not_modified true --ei threads 4
+ * </pre>
+ * All extras are optional.
+ */
+public class CloudBenchmark extends IntentService {
+	private static final int[] SIZES = { 10, 100, 1000 };
+	/**
+	 * Number of songs in each generated album folder.
+	 */
+	private static final int ALBUM_SIZE = 10;
+	/**
+	 * Size of the audio, or rather filler, after the tags of a generated
+	 * song.
+	 */
+	private static final int SONG_BYTES = 16384;
+
+	public CloudBenchmark()
+	{
+		super("CloudBenchmark");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent)
+	{
+		File root = new File(getCacheDir(), "cloud_benchmark");
+		LocalCloudServer server = new LocalCloudServer(root);
+		server.latency = intent.getIntExtra("latency", 0);
+		server.bandwidth = intent.getIntExtra("bandwidth", 0);
+		server.errorRate = intent.getFloatExtra("error_rate", 0);
+		server.notModified = intent.getBooleanExtra("not_modified", true);
+		int threads = intent.getIntExtra("threads", DropboxMetadataPipeline.getThreads(PlaybackService.getSettings(this)));
+
+		Log.i("OrchidMP", "Cloud benchmark: latency " + server.latency + " ms, bandwidth "
+			+ server.bandwidth + " B/s, error rate " + server.errorRate + ", 304 "
+			+ server.notModified + ", " + threads + " threads");
+
+		try {
+			server.start();
+		} catch (IOException e) {
+			Log.e("OrchidMP", "Unable to start the cloud stand-in", e);
+			return;
+		}
+
+		CloudSongStore store = CloudSongStore.getInstance(this);
+		try {
+			for (int size : SIZES) {
+				String folder = "/benchmark-" + size;
+				try {
+					generate(new File(root, folder), size);
+					store.removeUnder(folder);
+					run(server, store, folder, threads);
+				} catch (IOException e) {
+					Log.e("OrchidMP", "Unable to generate " + folder, e);
+				} catch (DropboxException e) {
+					Log.e("OrchidMP", "Benchmark of " + folder + " failed", e);
+				} finally {
+					store.removeUnder(folder);
+				}
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Import <code>folder</code>, import it again, and refresh the links of
+	 * its songs, logging the cost of each.
+	 */
+	private static void run(LocalCloudServer server, CloudSongStore store, String folder, int threads) throws DropboxException
+	{
+		// first import: walk the folder and fetch every song
+		server.resetCounters();
+		long start = SystemClock.elapsedRealtime();
+		Entry dir = server.metadata(folder, 0, null, true);
+		DropboxMetadataPipeline pipeline = new DropboxMetadataPipeline(server, store, threads, null);
+		List<CloudSongMetadata> songs = pipeline.load(dir, null);
+		store.putAll(pipeline.getFresh());
+		report(server, folder, "import", songs.size(), start);
+
+		// re-import: the folder hash and the tags are cached, as in CloudImport
+		server.resetCounters();
+		start = SystemClock.elapsedRealtime();
+		Entry changed = server.metadata(folder, 0, dir.hash, true);
+		pipeline = new DropboxMetadataPipeline(server, store, threads, null);
+		List<CloudSongMetadata> again;
+		if (changed == null)
+			again = pipeline.load(null, store.getPathsUnder(folder));
+		else
+			again = pipeline.load(changed, null);
+		store.putAll(pipeline.getFresh());
+		report(server, folder, "re-import", again.size(), start);
+
+		// link refresh: one media call per song, as in PlaybackService
+		server.resetCounters();
+		start = SystemClock.elapsedRealtime();
+		int refreshed = 0;
+		for (CloudSongMetadata song : songs) {
+			try {
+				CloudClient.Link link = server.media(song.dbPath);
+				store.updateLink(song.dbPath, link.url, link.expires);
+				++refreshed;
+			} catch (DropboxException e) {
+				// counted as not refreshed
+			}
+		}
+		report(server, folder, "refresh", refreshed, start);
+	}
+
+	private static void report(LocalCloudServer server, String folder, String step, int songs, long start)
+	{
+		long time = SystemClock.elapsedRealtime() - start;
+		Log.i("OrchidMP", String.format("%-16s %-10s %5d songs %6d round trips %10d bytes %7d ms",
+			folder, step, songs, server.getRoundTrips(), server.getBytes(), time));
+	}
+
+	/**
+	 * Create <code>count</code> songs in album folders under
+	 * <code>dir</code>, unless they are there already.
+	 */
+	private static void generate(File dir, int count) throws IOException
+	{
+		for (int i = 0; i != count; ++i) {
+			int album = i / ALBUM_SIZE;
+			int track = i % ALBUM_SIZE + 1;
+			File file = new File(dir, String.format("album-%03d/track-%02d.mp3", album, track));
+			if (file.exists())
+				continue;
+			file.getParentFile().mkdirs();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				writeSong(out, "Track " + track, "Artist " + album % 7, "Album " + album, track);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Write an ID3v2.3 tag with the given fields, followed by filler.
+	 */
+	private static void writeSong(OutputStream out, String title, String artist, String album, int track) throws IOException
+	{
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		writeTextFrame(frames, "TIT2", title);
+		writeTextFrame(frames, "TPE1", artist);
+		writeTextFrame(frames, "TALB", album);
+		writeTextFrame(frames, "TRCK", String.valueOf(track));
+		int size = frames.size();
+
+		out.write(new byte[] { 'I', 'D', '3', 3, 0, 0 });
+		// sync-safe size
+		out.write((size >> 21) & 0x7f);
+		out.write((size >> 14) & 0x7f);
+		out.write((size >> 7) & 0x7f);
+		out.write(size & 0x7f);
+		frames.writeTo(out);
+		out.write(new byte[SONG_BYTES]);
+	}
+
+	private static void writeTextFrame(OutputStream out, String id, String text) throws IOException
+	{
+		byte[] data = text.getBytes("UTF-8");
+		int size = data.length + 1;
+		out.write(id.getBytes("US-ASCII"));
+		out.write(size >>> 24);
+		out.write((size >> 16) & 0xff);
+		out.write((size >> 8) & 0xff);
+		out.write(size & 0xff);
+		out.write(new byte[] { 0, 0 });
+		// UTF-8
+		out.write(3);
+		out.write(data);
+	}
+}
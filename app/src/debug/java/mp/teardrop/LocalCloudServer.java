@@ -0,0 +1,418 @@
+package mp.teardrop;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.net.Uri;
+
+import com.dropbox.client2.DropboxAPI.DeltaEntry;
+import com.dropbox.client2.DropboxAPI.DeltaPage;
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+
+/**
+ * A stand-in for Dropbox that serves a local directory, for measuring and
+ * debugging the cloud code without the real service.
+ *
+ * API calls are answered in process, after the configured latency. Media
+ * links point to a small HTTP server on the loopback interface that serves
+ * the file bytes, with the same latency and at the configured bandwidth,
+ * and understands the byte ranges MediaPlayer asks for.
+ *
+ * Every API call and every HTTP request counts as a round trip; the bytes
+ * are the file bytes written to HTTP clients. The settings may be changed
+ * at any time.
+ */
+class LocalCloudServer implements CloudClient {
+	/**
+	 * How long media links are valid, in milliseconds, like on Dropbox.
+	 */
+	private static final long LINK_LIFETIME = 4 * 60 * 60 * 1000;
+	/**
+	 * Size of the chunks file bytes are written in.
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	private final File mRoot;
+	private final Random mRandom = new Random();
+	private final AtomicInteger mRoundTrips = new AtomicInteger();
+	private final AtomicLong mBytes = new AtomicLong();
+	private ServerSocket mSocket;
+	private ExecutorService mExecutor;
+	/**
+	 * Time added to every round trip, in milliseconds.
+	 */
+	volatile int latency;
+	/**
+	 * Rate file bytes are served at, in bytes per second, or 0 for as fast
+	 * as possible.
+	 */
+	volatile int bandwidth;
+	/**
+	 * True to answer a metadata call with an up-to-date hash as Dropbox
+	 * does, with 304 Not Modified; false to always send the listing.
+	 */
+	volatile boolean notModified = true;
+	/**
+	 * Fraction of round trips that fail, between 0 and 1.
+	 */
+	volatile float errorRate;
+
+	/**
+	 * @param root The directory served as the root of the Dropbox.
+	 */
+	LocalCloudServer(File root)
+	{
+		mRoot = root;
+	}
+
+	/**
+	 * Start serving file bytes.
+	 */
+	void start() throws IOException
+	{
+		mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mExecutor = Executors.newCachedThreadPool();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		});
+	}
+
+	/**
+	 * Stop serving and close all connections.
+	 */
+	void stop()
+	{
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+		}
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of round trips since the last reset.
+	 */
+	int getRoundTrips()
+	{
+		return mRoundTrips.get();
+	}
+
+	/**
+	 * Returns the number of file bytes served since the last reset. Bytes a
+	 * client did not read before disconnecting may be counted too, as far
+	 * as they fit in the socket buffers.
+	 */
+	long getBytes()
+	{
+		return mBytes.get();
+	}
+
+	void resetCounters()
+	{
+		mRoundTrips.set(0);
+		mBytes.set(0);
+	}
+
+	/**
+	 * Count a round trip and wait out its latency.
+	 *
+	 * @return False if the round trip should fail.
+	 */
+	private boolean roundTrip()
+	{
+		mRoundTrips.incrementAndGet();
+		int latency = this.latency;
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		float errorRate = this.errorRate;
+		synchronized (mRandom) {
+			return errorRate <= 0 || mRandom.nextFloat() >= errorRate;
+		}
+	}
+
+	/**
+	 * Returns the local file at the Dropbox path <code>path</code>, or null
+	 * if the path tries to leave the root.
+	 */
+	private File resolve(String path)
+	{
+		for (String segment : path.split("/")) {
+			if (segment.equals(".."))
+				return null;
+		}
+		return new File(mRoot, path);
+	}
+
+	private static String childPath(String parent, String name)
+	{
+		return parent.endsWith("/") ? parent + name : parent + '/' + name;
+	}
+
+	/**
+	 * Returns the files in <code>dir</code>, sorted so that listings are
+	 * stable.
+	 */
+	private static File[] listFiles(File dir)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Describe a file, without its contents.
+	 */
+	private static Entry toEntry(String path, File file)
+	{
+		Entry entry = new Entry();
+		entry.path = path;
+		entry.isDir = file.isDirectory();
+		entry.bytes = file.isDirectory() ? 0 : file.length();
+		entry.rev = Long.toHexString(file.lastModified()) + Long.toHexString(entry.bytes);
+		return entry;
+	}
+
+	/**
+	 * Returns a hash of the names and revisions in a folder, which changes
+	 * whenever a file is added, removed or changed.
+	 */
+	private static String hashOf(File dir)
+	{
+		StringBuilder builder = new StringBuilder();
+		for (File file : listFiles(dir)) {
+			builder.append(file.getName()).append('\0');
+			builder.append(file.lastModified()).append('\0');
+			builder.append(file.length()).append('\0');
+		}
+		return Integer.toHexString(builder.toString().hashCode());
+	}
+
+	@Override
+	public Entry metadata(String path, int fileLimit, String hash, boolean list) throws DropboxException
+	{
+		if (!roundTrip())
+			throw new DropboxException("Injected error listing " + path);
+		File file = resolve(path);
+		if (file == null || !file.exists())
+			throw new DropboxException("Not found: " + path);
+
+		Entry entry = toEntry(path, file);
+		if (!file.isDirectory())
+			return entry;
+
+		entry.hash = hashOf(file);
+		if (notModified && entry.hash.equals(hash))
+			return null;
+		if (list) {
+			entry.contents = new ArrayList<Entry>();
+			for (File child : listFiles(file))
+				entry.contents.add(toEntry(childPath(path, child.getName()), child));
+		}
+		return entry;
+	}
+
+	@Override
+	public Link media(String path) throws DropboxException
+	{
+		if (!roundTrip())
+			throw new DropboxException("Injected error linking " + path);
+		File file = resolve(path);
+		if (file == null || !file.isFile())
+			throw new DropboxException("Not found: " + path);
+
+		String url = "http://127.0.0.1:" + mSocket.getLocalPort() + Uri.encode(path, "/");
+		return new Link(url, new Date(System.currentTimeMillis() + LINK_LIFETIME));
+	}
+
+	/**
+	 * Returns the whole tree when <code>cursor</code> is null. The files
+	 * are not watched, so there are never any changes after that.
+	 */
+	@Override
+	public DeltaPage<Entry> delta(String cursor) throws DropboxException
+	{
+		if (!roundTrip())
+			throw new DropboxException("Injected error in delta");
+
+		List<DeltaEntry<Entry>> entries = new ArrayList<DeltaEntry<Entry>>();
+		if (cursor == null)
+			addTree("/", mRoot, entries);
+		return new DeltaPage<Entry>(cursor == null, entries, "1", false);
+	}
+
+	private static void addTree(String path, File dir, List<DeltaEntry<Entry>> entries)
+	{
+		for (File file : listFiles(dir)) {
+			String childPath = childPath(path, file.getName());
+			entries.add(new DeltaEntry<Entry>(childPath.toLowerCase(), toEntry(childPath, file)));
+			if (file.isDirectory())
+				addTree(childPath, file, entries);
+		}
+	}
+
+	/**
+	 * Accept HTTP connections until stopped.
+	 */
+	private void accept()
+	{
+		while (true) {
+			final Socket socket;
+			try {
+				socket = mSocket.accept();
+			} catch (IOException e) {
+				// stopped
+				return;
+			}
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					try {
+						serve(socket);
+					} catch (IOException e) {
+						// the client went away
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Answer one HTTP request for file bytes, then close the connection.
+	 */
+	private void serve(Socket socket) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+		String request = in.readLine();
+		if (request == null)
+			return;
+		long rangeStart = 0;
+		long rangeEnd = -1;
+		boolean range = false;
+		String header;
+		while ((header = in.readLine()) != null && header.length() != 0) {
+			if (header.regionMatches(true, 0, "Range: bytes=", 0, 13)) {
+				String[] bounds = header.substring(13).trim().split("-", 2);
+				try {
+					rangeStart = Long.parseLong(bounds[0]);
+					if (bounds.length == 2 && bounds[1].length() != 0)
+						rangeEnd = Long.parseLong(bounds[1]);
+					range = true;
+				} catch (NumberFormatException e) {
+					// serve the whole file
+				}
+			}
+		}
+
+		OutputStream out = socket.getOutputStream();
+		String[] parts = request.split(" ");
+		if (!roundTrip()) {
+			writeHead(out, "500 Internal Server Error", 0, null);
+			return;
+		}
+		File file = parts.length < 2 ? null : resolve(Uri.decode(parts[1]));
+		if (!"GET".equals(parts[0]) || file == null || !file.isFile()) {
+			writeHead(out, "404 Not Found", 0, null);
+			return;
+		}
+
+		long length = file.length();
+		if (rangeEnd < 0 || rangeEnd >= length)
+			rangeEnd = length - 1;
+		if (rangeStart > rangeEnd) {
+			writeHead(out, "416 Requested Range Not Satisfiable", 0, "Content-Range: bytes */" + length);
+			return;
+		}
+		long count = rangeEnd - rangeStart + 1;
+		if (range)
+			writeHead(out, "206 Partial Content", count, "Content-Range: bytes " + rangeStart + '-' + rangeEnd + '/' + length);
+		else
+			writeHead(out, "200 OK", count, null);
+
+		RandomAccessFile data = new RandomAccessFile(file, "r");
+		try {
+			data.seek(rangeStart);
+			byte[] buffer = new byte[CHUNK_SIZE];
+			long started = System.currentTimeMillis();
+			long sent = 0;
+			while (sent != count) {
+				int read = data.read(buffer, 0, (int)Math.min(buffer.length, count - sent));
+				if (read == -1)
+					break;
+				out.write(buffer, 0, read);
+				sent += read;
+				mBytes.addAndGet(read);
+				throttle(started, sent);
+			}
+			out.flush();
+		} finally {
+			data.close();
+		}
+	}
+
+	/**
+	 * Wait until sending <code>sent</code> bytes since <code>started</code>
+	 * is within the bandwidth.
+	 */
+	private void throttle(long started, long sent)
+	{
+		int bandwidth = this.bandwidth;
+		if (bandwidth <= 0)
+			return;
+		long due = started + sent * 1000 / bandwidth;
+		long wait = due - System.currentTimeMillis();
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void writeHead(OutputStream out, String status, long length, String extra) throws IOException
+	{
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append("\r\n");
+		head.append("Content-Type: audio/mpeg\r\n");
+		head.append("Accept-Ranges: bytes\r\n");
+		head.append("Content-Length: ").append(length).append("\r\n");
+		if (extra != null)
+			head.append(extra).append("\r\n");
+		head.append("Connection: close\r\n\r\n");
+		out.write(head.toString().getBytes("US-ASCII"));
+	}
+}
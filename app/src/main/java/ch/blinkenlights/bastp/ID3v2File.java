@@ -104,6 +104,7 @@ public class ID3v2File extends Common {
 		lu.put("TIT2", "TITLE");
 		lu.put("TALB", "ALBUM");
 		lu.put("TPE1", "ARTIST");
+		lu.put("TRCK", "TRACKNUMBER");
 		
 		if(lu.containsKey(k)) {
 			/* A normal, known key: translate into Ogg-Frame name */
@@ -17,16 +17,22 @@
  
 package mp.teardrop;
 
+import android.content.Context;
 import android.util.LruCache;
 import ch.blinkenlights.bastp.Bastp;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Vector;
 
 public class BastpUtil {
 	private RGLruCache rgCache;
+	private MusicDatabase database;
 	
-	public BastpUtil() {
-		rgCache = new RGLruCache(16); /* Cache up to 16 entries */
+	public BastpUtil(Context context) {
+		database = MusicDatabase.getInstance(context);
+		CacheRegistry registry = CacheRegistry.getInstance(context);
+		rgCache = new RGLruCache(registry.scale(16)); /* Cache up to 16 entries, more on big heaps */
+		registry.register("replaygain", CacheRegistry.PRIORITY_METADATA, rgCache);
 	}
 	
 	
@@ -36,7 +42,9 @@ public class BastpUtil {
 		float[] cached = rgCache.get(path);
 
 		if(cached == null) {
-			cached = getReplayGainValuesFromFile(path);
+			cached = getReplayGainValuesFromDatabase(path);
+			if(cached == null)
+				cached = getReplayGainValuesFromFile(path);
 			rgCache.put(path, cached);
 		}
 		return cached;
@@ -44,6 +52,19 @@ public class BastpUtil {
 	
 	
 	
+	/** Return the track,album replay gain values MusicScanner stored for
+	 *  the file, or null if it did not or the file changed since
+	 */
+	private float[] getReplayGainValuesFromDatabase(String path) {
+		MusicDatabase.Track track = database.getTrack(path);
+		if(track == null)
+			return null;
+		File file = new File(path);
+		if(!track.isCurrent(file.lastModified(), file.length()))
+			return null;
+		return new float[] { track.rgTrack == null ? 0f : track.rgTrack, track.rgAlbum == null ? 0f : track.rgAlbum };
+	}
+	
 	/** Parse given file and return track,album replay gain values
 	 */
 	private float[] getReplayGainValuesFromFile(String path) {
@@ -0,0 +1,73 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * A few RGB_565 bitmaps kept for reuse, so that drawing a new image of the
+ * same size as an old one does not allocate. Only bitmaps nothing else
+ * draws anymore may be put in.
+ *
+ * Thread-safe.
+ */
+final class BitmapPool {
+	private final int mMaxCount;
+	/**
+	 * The bitmaps, least recently put first.
+	 */
+	private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+
+	/**
+	 * @param maxCount The most bitmaps kept.
+	 */
+	BitmapPool(int maxCount)
+	{
+		mMaxCount = maxCount;
+	}
+
+	/**
+	 * Returns a black bitmap of the given size, from the pool if there is
+	 * one of that size or new otherwise.
+	 */
+	Bitmap get(int width, int height)
+	{
+		Bitmap bitmap = null;
+		synchronized (this) {
+			for (int i = mBitmaps.size(); --i != -1; ) {
+				Bitmap pooled = mBitmaps.get(i);
+				if (pooled.getWidth() == width && pooled.getHeight() == height) {
+					bitmap = mBitmaps.remove(i);
+					break;
+				}
+			}
+		}
+
+		if (bitmap == null)
+			return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		bitmap.eraseColor(Color.BLACK);
+		return bitmap;
+	}
+
+	/**
+	 * Keep <code>bitmap</code> for reuse, dropping the oldest bitmap if the
+	 * pool is full.
+	 */
+	synchronized void put(Bitmap bitmap)
+	{
+		if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.RGB_565)
+			return;
+		if (mBitmaps.size() == mMaxCount)
+			mBitmaps.remove(0);
+		mBitmaps.add(bitmap);
+	}
+
+	/**
+	 * Drop all pooled bitmaps.
+	 */
+	synchronized void clear()
+	{
+		mBitmaps.clear();
+	}
+}
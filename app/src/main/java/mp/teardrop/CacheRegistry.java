@@ -0,0 +1,250 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Process-wide registry of the in-memory caches.
+ *
+ * Sizes caches for the device, from the heap size the system gives the app
+ * and whether it is a low-RAM device, and trims them when the system asks
+ * for memory back. Each cache has a priority; the cheapest to rebuild are
+ * given up first, so that e.g. rendered cover views are dropped long before
+ * the Dropbox listings that take a round trip to get back.
+ *
+ * Also keeps the hit, miss and eviction counts of the caches, see
+ * {@link CacheRegistry#getStats()}.
+ */
+public final class CacheRegistry implements ComponentCallbacks2 {
+	/**
+	 * Images rendered from other cached data, e.g. by CoverView.
+	 */
+	public static final int PRIORITY_RENDERED = 0;
+	/**
+	 * Data decoded from local files, e.g. covers.
+	 */
+	public static final int PRIORITY_DECODED = 1;
+	/**
+	 * Small data that is slow to get back, e.g. tags or Dropbox listings.
+	 */
+	public static final int PRIORITY_METADATA = 2;
+	/**
+	 * Heap size, in MiB, the cache sizes in the code were picked for.
+	 */
+	private static final int BASE_MEMORY_CLASS = 48;
+
+	/**
+	 * Shrinks a cache when memory is low.
+	 */
+	public interface Trimmer {
+		/**
+		 * Shrink the cache. May be called on any thread.
+		 *
+		 * @param clear True to empty the cache, false to drop about half of
+		 * it.
+		 */
+		void trim(boolean clear);
+	}
+
+	private static final class Registration {
+		final String name;
+		final int priority;
+		final LruCache<?, ?> cache;
+		final Trimmer trimmer;
+
+		Registration(String name, int priority, LruCache<?, ?> cache, Trimmer trimmer)
+		{
+			this.name = name;
+			this.priority = priority;
+			this.cache = cache;
+			this.trimmer = trimmer;
+		}
+	}
+
+	private static CacheRegistry sInstance;
+
+	private final int mMemoryClass;
+	private final boolean mLowRam;
+	private final ArrayList<Registration> mCaches = new ArrayList<Registration>();
+
+	private CacheRegistry(Context context)
+	{
+		ActivityManager manager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+		mMemoryClass = manager.getMemoryClass();
+		mLowRam = isLowRamDevice(manager);
+		context.registerComponentCallbacks(this);
+	}
+
+	private static boolean isLowRamDevice(ActivityManager manager)
+	{
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && manager.isLowRamDevice();
+	}
+
+	/**
+	 * Returns the process-wide registry.
+	 */
+	public static synchronized CacheRegistry getInstance(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new CacheRegistry(context.getApplicationContext());
+		return sInstance;
+	}
+
+	/**
+	 * Returns true on devices the system considers low on RAM.
+	 */
+	public boolean isLowRam()
+	{
+		return mLowRam;
+	}
+
+	/**
+	 * Scale a cache size picked for a {@value #BASE_MEMORY_CLASS} MiB heap to
+	 * the heap of this device: from half to four times the size, and never
+	 * more than half on a low-RAM device.
+	 *
+	 * @param size The size for the base heap, in any unit.
+	 */
+	public int scale(int size)
+	{
+		long scaled = (long)size * mMemoryClass / BASE_MEMORY_CLASS;
+		scaled = Math.max(size / 2, Math.min(scaled, (long)size * 4));
+		if (mLowRam)
+			scaled = Math.min(scaled, size / 2);
+		return Math.max(1, (int)scaled);
+	}
+
+	/**
+	 * Register a cache that is trimmed directly. Replaces any cache
+	 * registered under the same name.
+	 *
+	 * @param name The name of the cache in the statistics.
+	 * @param priority One of PRIORITY_*; lower priorities are trimmed first.
+	 */
+	public void register(String name, int priority, LruCache<?, ?> cache)
+	{
+		register(name, priority, cache, null);
+	}
+
+	/**
+	 * Register a cache that is trimmed through <code>trimmer</code>, e.g.
+	 * because it may only be changed on a certain thread. Replaces any cache
+	 * registered under the same name.
+	 *
+	 * @param name The name of the cache in the statistics.
+	 * @param priority One of PRIORITY_*; lower priorities are trimmed first.
+	 * @param cache The cache, for the statistics.
+	 * @param trimmer Shrinks the cache, or null to trim it directly.
+	 */
+	public synchronized void register(String name, int priority, LruCache<?, ?> cache, Trimmer trimmer)
+	{
+		for (int i = mCaches.size(); --i != -1; ) {
+			if (mCaches.get(i).name.equals(name))
+				mCaches.remove(i);
+		}
+		mCaches.add(new Registration(name, priority, cache, trimmer));
+	}
+
+	/**
+	 * Stop managing <code>cache</code>, if it is registered.
+	 */
+	public synchronized void unregister(LruCache<?, ?> cache)
+	{
+		for (int i = mCaches.size(); --i != -1; ) {
+			if (mCaches.get(i).cache == cache)
+				mCaches.remove(i);
+		}
+	}
+
+	/**
+	 * Empty <code>cache</code>, or drop about half of it. Before Jelly Bean
+	 * MR1, a cache can only be emptied.
+	 */
+	public static void trim(LruCache<?, ?> cache, boolean clear)
+	{
+		if (clear || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)
+			cache.evictAll();
+		else
+			cache.trimToSize(cache.size() / 2);
+	}
+
+	/**
+	 * Returns how hard to trim for the given trim level: caches with a lower
+	 * priority than the result are emptied, and those with the same priority
+	 * are halved.
+	 */
+	private static int getSeverity(int level)
+	{
+		if (level >= TRIM_MEMORY_COMPLETE)
+			return PRIORITY_METADATA + 1;
+		if (level >= TRIM_MEMORY_MODERATE)
+			return PRIORITY_METADATA;
+		if (level >= TRIM_MEMORY_UI_HIDDEN)
+			return PRIORITY_DECODED;
+		if (level >= TRIM_MEMORY_RUNNING_CRITICAL)
+			return PRIORITY_METADATA;
+		if (level >= TRIM_MEMORY_RUNNING_LOW)
+			return PRIORITY_DECODED;
+		return PRIORITY_RENDERED;
+	}
+
+	@Override
+	public void onTrimMemory(int level)
+	{
+		int severity = getSeverity(level);
+		ArrayList<Registration> caches;
+		synchronized (this) {
+			caches = new ArrayList<Registration>(mCaches);
+		}
+
+		for (int priority = PRIORITY_RENDERED; priority <= severity && priority <= PRIORITY_METADATA; ++priority) {
+			for (Registration registration : caches) {
+				if (registration.priority != priority)
+					continue;
+				boolean clear = priority < severity;
+				if (registration.trimmer == null)
+					trim(registration.cache, clear);
+				else
+					registration.trimmer.trim(clear);
+			}
+		}
+
+		Log.d("OrchidMP", "Trimmed caches for level " + level + '\n' + getStats());
+	}
+
+	@Override
+	public void onLowMemory()
+	{
+		onTrimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig)
+	{
+	}
+
+	/**
+	 * Returns the size, hits, misses and evictions of each registered cache,
+	 * one per line.
+	 */
+	public synchronized String getStats()
+	{
+		StringBuilder stats = new StringBuilder();
+		stats.append("Heap ").append(mMemoryClass).append(" MiB");
+		if (mLowRam)
+			stats.append(", low RAM");
+		for (Registration registration : mCaches) {
+			LruCache<?, ?> cache = registration.cache;
+			stats.append('\n').append(String.format("%s: %d/%d, %d hits, %d misses, %d evictions",
+				registration.name, cache.size(), cache.maxSize(), cache.hitCount(), cache.missCount(), cache.evictionCount()));
+		}
+		return stats.toString();
+	}
+}
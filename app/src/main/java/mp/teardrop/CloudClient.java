@@ -0,0 +1,61 @@
+package mp.teardrop;
+
+import java.util.Date;
+
+import com.dropbox.client2.DropboxAPI.DeltaPage;
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+
+/**
+ * The calls the cloud code makes to Dropbox.
+ *
+ * Everything that talks to Dropbox goes through this rather than through
+ * DropboxAPI, so that a stand-in serving local files can be put in its
+ * place to measure or debug the import and streaming paths. The real one
+ * is {@link DropboxClient}.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface CloudClient {
+	/**
+	 * A streaming link to a file.
+	 */
+	final class Link {
+		/**
+		 * The URL to stream the file from.
+		 */
+		public final String url;
+		/**
+		 * When the link stops working.
+		 */
+		public final Date expires;
+
+		public Link(String url, Date expires)
+		{
+			this.url = url;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Returns the metadata of the file or folder at <code>path</code>.
+	 *
+	 * @param fileLimit The most entries to list, or 0 for the default.
+	 * @param hash The hash of the folder as last seen, or null.
+	 * @param list True to list the contents of a folder.
+	 * @return The metadata, or null if <code>hash</code> was given and the
+	 * folder has not changed since.
+	 */
+	Entry metadata(String path, int fileLimit, String hash, boolean list) throws DropboxException;
+
+	/**
+	 * Returns a streaming link to the file at <code>path</code>.
+	 */
+	Link media(String path) throws DropboxException;
+
+	/**
+	 * Returns the changes to the whole tree since <code>cursor</code>, or
+	 * everything if it is null.
+	 */
+	DeltaPage<Entry> delta(String cursor) throws DropboxException;
+}
@@ -0,0 +1,536 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+
+/**
+ * Imports a Dropbox file or folder into the queue: finds its songs, loads
+ * their metadata and hands them to PlaybackService.
+ *
+ * Owned by PlaybackService, so an import carries on when the activity that
+ * started it is rotated or closed. Progress is checkpointed in
+ * {@link CloudSongStore}: each song is stored as soon as it is loaded, and
+ * the list of songs is saved once they have all been found. If an import is
+ * interrupted, importing the same path again picks up where it stopped.
+ *
+ * Songs reach the queue as soon as they and the songs before them are
+ * ready, in the batches of {@link ImportBatch}.
+ *
+ * The attached UI, if any, hears about progress at most a few times a
+ * second, on the main thread.
+ */
+public class CloudImport implements Handler.Callback {
+	/**
+	 * Receives progress updates on the main thread.
+	 */
+	public interface Callback {
+		/**
+		 * An import is running.
+		 *
+		 * @param done The number of songs loaded so far.
+		 * @param found The number of songs found so far.
+		 */
+		void onImportProgress(int done, int found);
+
+		/**
+		 * No import is running any more.
+		 */
+		void onImportFinished();
+	}
+
+	/**
+	 * Minimum time between progress updates, in milliseconds.
+	 */
+	private static final long PROGRESS_INTERVAL = 250;
+	/**
+	 * Run the import in obj. Sent to the import thread.
+	 */
+	private static final int MSG_IMPORT = 0;
+	/**
+	 * Report the progress of the current import. Sent to the main thread.
+	 */
+	private static final int MSG_PROGRESS = 1;
+	/**
+	 * Report that the import in obj has finished. Sent to the main thread.
+	 */
+	private static final int MSG_FINISHED = 2;
+	/**
+	 * Show the message in obj, for the Toast duration in arg1. Sent to the
+	 * main thread.
+	 */
+	private static final int MSG_TOAST = 3;
+
+	/**
+	 * One import.
+	 */
+	private final class Job extends ImportBatch<CloudSongMetadata> implements DropboxMetadataPipeline.Listener {
+		final String path;
+		final int mode;
+		final DropboxMetadataPipeline pipeline;
+		volatile boolean cancelled;
+		volatile int done;
+		volatile int found;
+		/**
+		 * Songs the pipeline had loaded before they were all found, by
+		 * pipeline index.
+		 */
+		final BitSet loaded = new BitSet();
+		/**
+		 * True once the checkpoint lists the songs.
+		 */
+		boolean listed;
+		/**
+		 * Position in the checkpoint of each pipeline index, or null if they
+		 * are the same.
+		 */
+		int[] positions;
+		/**
+		 * Songs taken from the checkpoint, by checkpoint position, when
+		 * resuming. They are added to the queue in between the songs the
+		 * pipeline loads.
+		 */
+		CloudSongMetadata[] stored;
+		/**
+		 * The checkpoint position of the next song to add to the queue.
+		 */
+		int next;
+		/**
+		 * Songs taken from the checkpoint without loading them again.
+		 */
+		int skipped;
+		/**
+		 * Why the import failed, or null.
+		 */
+		String message;
+		/**
+		 * True if every song was loaded, so the checkpoint can go.
+		 */
+		boolean complete;
+		/**
+		 * True if the import carries on from a checkpoint.
+		 */
+		boolean resumed;
+
+		Job(String path, int mode)
+		{
+			this.path = path;
+			this.mode = mode;
+			int threads = DropboxMetadataPipeline.getThreads(PlaybackService.getSettings(mService));
+			pipeline = new DropboxMetadataPipeline(LibraryActivity.mCloud, mStore, threads, this);
+		}
+
+		@Override
+		boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		@Override
+		void addFirst(ArrayList<CloudSongMetadata> songs)
+		{
+			mService.addCloudSongs(songs, mode);
+		}
+
+		@Override
+		void append(ArrayList<CloudSongMetadata> songs)
+		{
+			mService.appendCloudSongs(songs);
+		}
+
+		@Override
+		public synchronized void onSongsFound(List<String> paths)
+		{
+			if (listed)
+				return;
+			mStore.setImportSongs(paths, loaded);
+			listed = true;
+		}
+
+		@Override
+		public void onSongLoaded(int index, CloudSongMetadata song, boolean fresh)
+		{
+			if (fresh) {
+				mStore.putAll(Collections.singletonList(song));
+				SearchIndex.getInstance().putCloudSong(song.dbPath, song.title, song.artist, song.album);
+			}
+			synchronized (this) {
+				int position = positions == null ? index : positions[index];
+				if (listed)
+					mStore.setImportSongDone(position);
+				else
+					loaded.set(index);
+			}
+		}
+
+		@Override
+		public void onSongReady(int index, CloudSongMetadata song)
+		{
+			if (positions == null) {
+				add(song);
+			} else {
+				int position = positions[index];
+				addStored(this, position);
+				add(song);
+				next = position + 1;
+			}
+		}
+
+		@Override
+		public void onProgress(int done, int found)
+		{
+			this.done = skipped + done;
+			this.found = skipped + found;
+			if (!mUiHandler.hasMessages(MSG_PROGRESS))
+				mUiHandler.sendEmptyMessageDelayed(MSG_PROGRESS, PROGRESS_INTERVAL);
+		}
+	}
+
+	private final PlaybackService mService;
+	private final CloudSongStore mStore;
+	/**
+	 * Handler on the main thread.
+	 */
+	private final Handler mUiHandler;
+	/**
+	 * Handler on the import thread.
+	 */
+	private final Handler mHandler;
+	/**
+	 * The import that is running or about to, or null.
+	 */
+	private Job mJob;
+	/**
+	 * The attached UI, or null. Only used on the main thread.
+	 */
+	private Callback mCallback;
+
+	CloudImport(PlaybackService service)
+	{
+		mService = service;
+		mStore = CloudSongStore.getInstance(service);
+		mUiHandler = new Handler(Looper.getMainLooper(), this);
+		HandlerThread thread = new HandlerThread("CloudImport", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper(), this);
+	}
+
+	/**
+	 * Attach a UI to report progress to, replacing any other, or detach it
+	 * with null. The callback is told the current state right away. Must be
+	 * called on the main thread.
+	 */
+	public void setCallback(Callback callback)
+	{
+		mCallback = callback;
+		if (callback != null)
+			reportProgress();
+	}
+
+	/**
+	 * Returns the attached UI, or null.
+	 */
+	public Callback getCallback()
+	{
+		return mCallback;
+	}
+
+	/**
+	 * Import the file or folder at <code>path</code>, cancelling any other
+	 * import. Must be called on the main thread.
+	 *
+	 * @param mode How to add the songs to the timeline: {@link SongTimeline}.MODE_PLAY or {@link SongTimeline}.MODE_ENQUEUE.
+	 */
+	public void start(String path, int mode)
+	{
+		Job job = new Job(path, mode);
+		synchronized (this) {
+			cancelJob();
+			mJob = job;
+		}
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_IMPORT, job));
+		reportProgress();
+	}
+
+	/**
+	 * Stop the current import, if any. Its checkpoint is kept. May be
+	 * called from any thread.
+	 */
+	public void cancel()
+	{
+		Job job;
+		synchronized (this) {
+			job = mJob;
+			cancelJob();
+		}
+		if (job != null)
+			mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_FINISHED, job));
+	}
+
+	private void cancelJob()
+	{
+		if (mJob != null) {
+			mJob.cancelled = true;
+			mJob.pipeline.cancel();
+			mJob = null;
+		}
+	}
+
+	/**
+	 * Stop the current import and the import thread, when the service
+	 * shuts down.
+	 */
+	void shutdown()
+	{
+		cancel();
+		mHandler.getLooper().quit();
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_IMPORT: {
+			Job job = (Job)message.obj;
+			boolean finished = false;
+			if (!job.cancelled) {
+				try {
+					finished = run(job);
+				} catch (DropboxException e) {
+					Log.w("OrchidMP", "Unable to import " + job.path, e);
+				}
+			}
+			finish(job, finished);
+			break;
+		}
+		case MSG_PROGRESS:
+			reportProgress();
+			break;
+		case MSG_FINISHED: {
+			Job job = (Job)message.obj;
+			synchronized (this) {
+				// a newer import may be running already
+				if (mJob != null && mJob != job)
+					break;
+			}
+			if (mCallback != null)
+				mCallback.onImportFinished();
+			break;
+		}
+		case MSG_TOAST:
+			Toast.makeText(mService, (String)message.obj, message.arg1).show();
+			break;
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Tell the attached UI about the current import. Runs on the main
+	 * thread.
+	 */
+	private void reportProgress()
+	{
+		if (mCallback == null)
+			return;
+		Job job;
+		synchronized (this) {
+			job = mJob;
+		}
+		if (job == null)
+			mCallback.onImportFinished();
+		else
+			mCallback.onImportProgress(job.done, job.found);
+	}
+
+	/**
+	 * Queue the songs taken from the checkpoint that come before
+	 * <code>position</code>. Runs on the import thread.
+	 */
+	private void addStored(Job job, int position)
+	{
+		for (; job.next < position; ++job.next) {
+			CloudSongMetadata song = job.stored[job.next];
+			if (song != null)
+				job.add(song);
+		}
+	}
+
+	/**
+	 * Add the last songs of an import to the service and tell the user how
+	 * many there were, or explain why there are none. Runs on the import
+	 * thread.
+	 *
+	 * @param finished True if the import got to the end.
+	 */
+	private void finish(Job job, boolean finished)
+	{
+		synchronized (this) {
+			if (mJob == job)
+				mJob = null;
+		}
+		if (!job.cancelled) {
+			job.flush();
+			if (!finished || job.getAdded() == 0) {
+				//TODO: hardcoded string
+				String message = job.message == null ? "An error occurred. Please try again." : job.message;
+				mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_TOAST, Toast.LENGTH_LONG, 0, message));
+			} else {
+				int text = job.mode == SongTimeline.MODE_PLAY ? R.plurals.playing : R.plurals.enqueued;
+				String message = mService.getResources().getQuantityString(text, job.getAdded(), job.getAdded());
+				mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_TOAST, Toast.LENGTH_SHORT, 0, message));
+			}
+			// keep the checkpoint if some songs are missing, so a retry only
+			// loads those; but only for one retry, since the checkpoint's
+			// song list does not follow changes to the folder and a song
+			// that keeps failing would otherwise pin it for good
+			if (job.resumed || finished && job.complete)
+				mStore.clearImport();
+		}
+		mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_FINISHED, job));
+	}
+
+	/**
+	 * Find and load the songs of an import, resuming from the checkpoint if
+	 * it is for the same path, and queue them as they are ready. Runs on
+	 * the import thread.
+	 *
+	 * @return True if every song was found, false if there are none or the
+	 * import was cancelled.
+	 */
+	private boolean run(Job job) throws DropboxException
+	{
+		CloudSongStore.Checkpoint checkpoint = mStore.getImportCheckpoint();
+		if (checkpoint != null && checkpoint.songs != null && checkpoint.path.equalsIgnoreCase(job.path)) {
+			job.resumed = true;
+			return resume(job, checkpoint);
+		}
+		mStore.startImport(job.path);
+
+		CloudClient api = LibraryActivity.mCloud;
+		SharedPreferences dirCachePrefs = mService
+				.getSharedPreferences(LibraryActivity.PREFS_CLOUD_DIR_HASHES, 0);
+
+		Entry theFile = null; //will stay null if we have everything cached
+		ArrayList<String> songPaths = null;
+		Entry dir = null;
+
+		DropboxSync sync = DropboxSync.getInstance(mService);
+		if (sync.isReady()) {
+			//the synced tree is current to within one delta request, so there is no need
+			// to walk the folder or ask for each song's revision
+			sync.syncIfStale(api);
+			songPaths = mStore.getSongFilesAt(job.path);
+			if (songPaths.isEmpty()) {
+				songPaths = null;
+			} else {
+				job.pipeline.useStoredRevisions();
+			}
+		}
+
+		if (songPaths == null) {
+			String localHash = dirCachePrefs.getString(job.path, null);
+
+			//null if unchanged since localHash (good!) - further code will then retrieve
+			// everything from cache
+			theFile = api.metadata(job.path, 0, localHash, true);
+
+			if (theFile != null && theFile.isDir) { //search online, recursively, for song files in the dir
+				dir = theFile;
+			} else if (theFile != null) { //just handle this one song
+				if (!DropboxMetadataPipeline.isSong(theFile.path)) {
+					//TODO: hardcoded string
+					job.message = "Only mp3 files can be streamed for now. More coming soon!";
+					return false;
+				}
+				songPaths = new ArrayList<String>();
+				songPaths.add(theFile.path);
+			} else { //we have everything cached! add the paths to songPaths so that
+				// songs whose revision changed get their tags re-downloaded
+				songPaths = mStore.getPathsUnder(job.path);
+			}
+		}
+
+		/* walk the tree and download metadata (ID3 tags etc.) for each song - unless
+		up-to-date, locally cached data is available */
+
+		ArrayList<CloudSongMetadata> cloudSongs = job.pipeline.load(dir, songPaths);
+		if (cloudSongs == null) {
+			return false; //cancelled
+		}
+
+		if (cloudSongs.isEmpty()) {
+			//TODO: hardcoded string
+			job.message = "No mp3 files to play in this directory.";
+			return false;
+		}
+
+		//theFile is null iff we had everything cached; if some songs failed, keep the old
+		// hash so that they are retried next time
+		job.complete = job.pipeline.isComplete();
+		if (theFile != null && theFile.isDir && job.complete) {
+			SharedPreferences.Editor dirCachePrefsEditor = dirCachePrefs.edit();
+			dirCachePrefsEditor.putString(theFile.path, theFile.hash);
+			dirCachePrefsEditor.commit();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Finish an import from its checkpoint: songs already stored are taken
+	 * as they are, the rest are loaded. Runs on the import thread.
+	 */
+	private boolean resume(Job job, CloudSongStore.Checkpoint checkpoint) throws DropboxException
+	{
+		int count = checkpoint.songs.size();
+		CloudSongMetadata[] stored = new CloudSongMetadata[count];
+		ArrayList<String> remaining = new ArrayList<String>();
+		int[] positions = new int[count];
+		for (int i = 0; i != count; ++i) {
+			if (checkpoint.done.get(i)) {
+				stored[i] = mStore.get(checkpoint.songs.get(i));
+				if (stored[i] != null)
+					continue;
+			}
+			positions[remaining.size()] = i;
+			remaining.add(checkpoint.songs.get(i));
+		}
+
+		synchronized (job) {
+			job.listed = true;
+			job.positions = positions;
+			job.stored = stored;
+			job.skipped = count - remaining.size();
+		}
+
+		// songs before the first one to load can be queued right away
+		addStored(job, remaining.isEmpty() ? count : positions[0]);
+
+		if (remaining.isEmpty()) {
+			job.complete = true;
+		} else {
+			if (job.pipeline.load(null, remaining) == null)
+				return false; //cancelled
+			job.complete = job.pipeline.isComplete();
+		}
+
+		addStored(job, count);
+		return true;
+	}
+}
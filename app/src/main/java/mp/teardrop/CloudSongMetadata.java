@@ -7,8 +7,6 @@ import org.json.JSONObject;
 
 import android.util.Log;
 
-import com.dropbox.client2.DropboxAPI.DropboxLink;
-
 public class CloudSongMetadata {
 	float rgAlbum; //TODO: change these into Float objects and use nulls when no data available
 	float rgTrack;
@@ -26,7 +24,7 @@ public class CloudSongMetadata {
 	 * @param duration Length of the song in milliseconds.
 	 */
 	public CloudSongMetadata(
-			DropboxLink streamingLink, String dbPath,
+			CloudClient.Link streamingLink, String dbPath,
 			String revision, float rgAlbum, float rgTrack,
 			String title, String artist, String album, long duration, int trackNumber) {
 		
@@ -0,0 +1,647 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.dropbox.client2.DropboxAPI.DeltaEntry;
+import com.dropbox.client2.DropboxAPI.Entry;
+
+/**
+ * The metadata of cloud songs that have been prepared for streaming, by
+ * Dropbox path.
+ *
+ * Paths are also stored case-folded and indexed, since Dropbox paths are
+ * case-insensitive, so that the songs under a folder can be found with a
+ * range scan. Each song is one row; storing a song only writes that row.
+ *
+ * The tags of a song are valid for as long as its revision matches. The
+ * streaming link stored with them is a separate, short-lived resource: it
+ * may have expired and is refreshed on its own, without touching the tags.
+ *
+ * The store also keeps the file tree of the whole Dropbox as reported by
+ * {@link DropboxSync}, together with the delta cursor it is current to, so
+ * that folders can be listed and played without asking Dropbox.
+ *
+ * Finally, it holds the checkpoint of the {@link CloudImport} in progress.
+ *
+ * May be used from any thread: there is one instance, see
+ * {@link #getInstance(Context)}, and SQLite serializes the use of its
+ * connection.
+ */
+public class CloudSongStore extends SQLiteOpenHelper {
+	private static final int DATABASE_VERSION = 3;
+	private static final String DATABASE_NAME = "cloudsongs.db";
+	private static final String TABLE_SONGS = "songs";
+	private static final String DATABASE_CREATE = "CREATE TABLE " + TABLE_SONGS + " ("
+		+ "db_path TEXT PRIMARY KEY, "
+		+ "folded_path TEXT NOT NULL, "
+		+ "url TEXT, "
+		+ "expires INTEGER, "
+		+ "revision TEXT, "
+		+ "rg_album REAL, "
+		+ "rg_track REAL, "
+		+ "title TEXT, "
+		+ "artist TEXT, "
+		+ "album TEXT, "
+		+ "duration INTEGER, "
+		+ "track_number INTEGER);";
+	private static final String INDEX_FOLDED_CREATE = "CREATE INDEX idx_folded ON " + TABLE_SONGS
+		+ " (folded_path);";
+	private static final String TABLE_FILES = "files";
+	private static final String FILES_CREATE = "CREATE TABLE " + TABLE_FILES + " ("
+		+ "folded_path TEXT PRIMARY KEY, "
+		+ "folded_parent TEXT NOT NULL, "
+		+ "path TEXT NOT NULL, "
+		+ "is_dir INTEGER NOT NULL, "
+		+ "revision TEXT);";
+	private static final String INDEX_PARENT_CREATE = "CREATE INDEX idx_parent ON " + TABLE_FILES
+		+ " (folded_parent);";
+	/**
+	 * A single row: the delta cursor the files table is current to, and
+	 * whether there was nothing more to fetch at that cursor.
+	 */
+	private static final String TABLE_SYNC = "sync";
+	private static final String SYNC_CREATE = "CREATE TABLE " + TABLE_SYNC + " ("
+		+ "cursor TEXT, "
+		+ "complete INTEGER NOT NULL);";
+	/**
+	 * A single row: the path being imported, and whether its songs have
+	 * all been found and listed in import_songs.
+	 */
+	private static final String TABLE_IMPORT = "import_job";
+	private static final String IMPORT_CREATE = "CREATE TABLE " + TABLE_IMPORT + " ("
+		+ "path TEXT NOT NULL, "
+		+ "walked INTEGER NOT NULL);";
+	/**
+	 * The songs of the import in progress, in queue order, and whether each
+	 * has been loaded and stored yet.
+	 */
+	private static final String TABLE_IMPORT_SONGS = "import_songs";
+	private static final String IMPORT_SONGS_CREATE = "CREATE TABLE " + TABLE_IMPORT_SONGS + " ("
+		+ "position INTEGER PRIMARY KEY, "
+		+ "path TEXT NOT NULL, "
+		+ "done INTEGER NOT NULL);";
+	private static final String[] COLUMNS = {
+		"db_path", "url", "expires", "revision", "rg_album", "rg_track",
+		"title", "artist", "album", "duration", "track_number" };
+
+	private static CloudSongStore sInstance;
+
+	/**
+	 * Where an interrupted import stopped.
+	 */
+	public static final class Checkpoint {
+		/**
+		 * The path being imported.
+		 */
+		public final String path;
+		/**
+		 * The songs to import, in order, or null if they were not all
+		 * found yet.
+		 */
+		public final List<String> songs;
+		/**
+		 * The positions in songs that have been loaded and stored.
+		 */
+		public final BitSet done;
+
+		Checkpoint(String path, List<String> songs, BitSet done)
+		{
+			this.path = path;
+			this.songs = songs;
+			this.done = done;
+		}
+	}
+
+	private final Context mContext;
+
+	private CloudSongStore(Context context)
+	{
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		mContext = context;
+	}
+
+	/**
+	 * Returns the process-wide store.
+	 */
+	public static synchronized CloudSongStore getInstance(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new CloudSongStore(context.getApplicationContext());
+		return sInstance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db)
+	{
+		db.execSQL(DATABASE_CREATE);
+		db.execSQL(INDEX_FOLDED_CREATE);
+		db.execSQL(FILES_CREATE);
+		db.execSQL(INDEX_PARENT_CREATE);
+		db.execSQL(SYNC_CREATE);
+		db.execSQL(IMPORT_CREATE);
+		db.execSQL(IMPORT_SONGS_CREATE);
+		importPreferences(db);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+		if (oldVersion < 2) {
+			db.execSQL(FILES_CREATE);
+			db.execSQL(INDEX_PARENT_CREATE);
+			db.execSQL(SYNC_CREATE);
+		}
+		if (oldVersion < 3) {
+			db.execSQL(IMPORT_CREATE);
+			db.execSQL(IMPORT_SONGS_CREATE);
+		}
+	}
+
+	/**
+	 * Move the songs cached as JSON in SharedPreferences by earlier
+	 * versions into the new table, then drop the preferences.
+	 */
+	private void importPreferences(SQLiteDatabase db)
+	{
+		SharedPreferences prefs = mContext.getSharedPreferences(LibraryActivity.PREFS_CLOUD_SONG_CACHE, 0);
+		Map<String, ?> all = prefs.getAll();
+		if (all.isEmpty())
+			return;
+
+		for (Map.Entry<String, ?> entry : all.entrySet()) {
+			if (!(entry.getValue() instanceof String))
+				continue;
+			CloudSongMetadata song = CloudSongMetadata.fromJsonString((String)entry.getValue());
+			if (song == null)
+				continue;
+			// keys are Dropbox paths; older entries don't store dbPath themselves
+			song.dbPath = entry.getKey();
+			db.insertWithOnConflict(TABLE_SONGS, null, toValues(song), SQLiteDatabase.CONFLICT_REPLACE);
+		}
+		prefs.edit().clear().commit();
+	}
+
+	/**
+	 * Returns the case-folded form of a path, as stored in folded_path.
+	 * Trailing slashes are dropped, except for the root.
+	 */
+	private static String fold(String path)
+	{
+		String folded = path.toLowerCase();
+		while (folded.length() > 1 && folded.endsWith("/"))
+			folded = folded.substring(0, folded.length() - 1);
+		return folded;
+	}
+
+	/**
+	 * Returns the folded path of the folder containing the given folded
+	 * path.
+	 */
+	private static String parentOf(String folded)
+	{
+		int slash = folded.lastIndexOf('/');
+		return slash <= 0 ? "/" : folded.substring(0, slash);
+	}
+
+	private static ContentValues toValues(CloudSongMetadata song)
+	{
+		ContentValues values = new ContentValues(12);
+		values.put("db_path", song.dbPath);
+		values.put("folded_path", fold(song.dbPath));
+		values.put("url", song.path);
+		values.put("expires", song.expires == null ? null : song.expires.getTime());
+		values.put("revision", song.revision);
+		values.put("rg_album", song.rgAlbum);
+		values.put("rg_track", song.rgTrack);
+		values.put("title", song.title);
+		values.put("artist", song.artist);
+		values.put("album", song.album);
+		values.put("duration", song.duration);
+		values.put("track_number", song.trackNumber);
+		return values;
+	}
+
+	/**
+	 * Build a song from a cursor positioned on a row with {@link #COLUMNS}.
+	 */
+	private static CloudSongMetadata fromCursor(Cursor cursor)
+	{
+		CloudSongMetadata song = new CloudSongMetadata(null, cursor.getString(0),
+			cursor.getString(3), cursor.getFloat(4), cursor.getFloat(5),
+			cursor.getString(6), cursor.getString(7), cursor.getString(8),
+			cursor.getLong(9), cursor.getInt(10));
+		song.path = cursor.getString(1);
+		song.expires = cursor.isNull(2) ? null : new Date(cursor.getLong(2));
+		return song;
+	}
+
+	/**
+	 * Returns the stored metadata of the song at <code>dbPath</code>, or
+	 * null if there is none.
+	 */
+	public CloudSongMetadata get(String dbPath)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_SONGS, COLUMNS, "db_path=?",
+			new String[] { dbPath }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? fromCursor(cursor) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the paths of all stored songs under the folder
+	 * <code>folder</code>, in any subfolder, ignoring case.
+	 */
+	public ArrayList<String> getPathsUnder(String folder)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_SONGS, new String[] { "db_path" },
+			"folded_path>=? AND folded_path<?", MediaUtils.rangeUnder(fold(folder)), null, null, null);
+		ArrayList<String> paths = new ArrayList<String>(cursor.getCount());
+		try {
+			while (cursor.moveToNext())
+				paths.add(cursor.getString(0));
+		} finally {
+			cursor.close();
+		}
+		return paths;
+	}
+
+	/**
+	 * Returns a cursor over the path, title, artist and album of every
+	 * stored song. The caller must close it.
+	 */
+	public Cursor queryTags()
+	{
+		return getReadableDatabase().query(TABLE_SONGS,
+			new String[] { "db_path", "title", "artist", "album" }, null, null, null, null, null);
+	}
+
+	/**
+	 * Store a new streaming link for the song at <code>dbPath</code>, if
+	 * the song is stored.
+	 */
+	public void updateLink(String dbPath, String url, Date expires)
+	{
+		ContentValues values = new ContentValues(2);
+		values.put("url", url);
+		values.put("expires", expires == null ? null : expires.getTime());
+		getWritableDatabase().update(TABLE_SONGS, values, "db_path=?", new String[] { dbPath });
+	}
+
+	/**
+	 * Store the given songs, replacing the rows with the same paths, in one
+	 * transaction.
+	 */
+	public void putAll(List<CloudSongMetadata> songs)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (CloudSongMetadata song : songs)
+				db.insertWithOnConflict(TABLE_SONGS, null, toValues(song), SQLiteDatabase.CONFLICT_REPLACE);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Forget the stored songs under the folder <code>folder</code>, in any
+	 * subfolder, ignoring case.
+	 */
+	public void removeUnder(String folder)
+	{
+		getWritableDatabase().delete(TABLE_SONGS, "folded_path>=? AND folded_path<?",
+			MediaUtils.rangeUnder(fold(folder)));
+	}
+
+	/**
+	 * Returns the delta cursor the file tree is current to, or null if
+	 * it has never been synced.
+	 */
+	public String getSyncCursor()
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_SYNC, new String[] { "cursor" },
+			null, null, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns true if the file tree has been synced completely at least
+	 * once, so it can be used instead of listing folders on Dropbox.
+	 */
+	public boolean isSynced()
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_SYNC, new String[] { "complete" },
+			null, null, null, null, null);
+		try {
+			return cursor.moveToFirst() && cursor.getInt(0) != 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Apply one page of changes from Dropbox's delta call to the file tree
+	 * and store the cursor it leads to, in one transaction.
+	 *
+	 * @param reset True if the tree must be cleared first.
+	 * @param entries The changes, in order.
+	 * @param syncCursor The cursor returned with the page.
+	 * @param complete False if Dropbox has more changes past this page.
+	 * @param fetchNew True to report songs that were not stored before as
+	 * changed, false to only report stored songs whose revision changed.
+	 * @param changed Receives the paths of songs that need their tags
+	 * fetched.
+	 * @param removed Receives the paths of stored songs that were deleted.
+	 */
+	public void applyDelta(boolean reset, List<DeltaEntry<Entry>> entries, String syncCursor,
+		boolean complete, boolean fetchNew, List<String> changed, List<String> removed)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			if (reset)
+				db.delete(TABLE_FILES, null, null);
+
+			for (DeltaEntry<Entry> entry : entries) {
+				String folded = fold(entry.lcPath);
+				Entry file = entry.metadata;
+				if (file == null || !file.isDir) {
+					// a deleted path takes everything under it along, and so
+					// does a file replacing a folder
+					String[] range = MediaUtils.rangeUnder(folded);
+					db.delete(TABLE_FILES, "folded_path>=? AND folded_path<?", range);
+					removeSongs(db, "folded_path>=? AND folded_path<?", range, removed);
+				}
+				if (file == null) {
+					String[] self = { folded };
+					db.delete(TABLE_FILES, "folded_path=?", self);
+					removeSongs(db, "folded_path=?", self, removed);
+					continue;
+				}
+
+				ContentValues values = new ContentValues(5);
+				values.put("folded_path", folded);
+				values.put("folded_parent", parentOf(folded));
+				values.put("path", file.path);
+				values.put("is_dir", file.isDir ? 1 : 0);
+				values.put("revision", file.rev);
+				db.insertWithOnConflict(TABLE_FILES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+				if (!file.isDir && DropboxMetadataPipeline.isSong(folded)) {
+					Cursor cursor = db.query(TABLE_SONGS, new String[] { "revision" }, "folded_path=?",
+						new String[] { folded }, null, null, null);
+					boolean stale = cursor.moveToFirst()
+						? file.rev == null || !file.rev.equals(cursor.getString(0)) : fetchNew;
+					cursor.close();
+					if (stale)
+						changed.add(file.path);
+				}
+			}
+
+			db.delete(TABLE_SYNC, null, null);
+			ContentValues values = new ContentValues(2);
+			values.put("cursor", syncCursor);
+			values.put("complete", complete ? 1 : 0);
+			db.insert(TABLE_SYNC, null, values);
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Delete the songs matching a selection, adding their paths to
+	 * <code>removed</code>.
+	 */
+	private static void removeSongs(SQLiteDatabase db, String selection, String[] args, List<String> removed)
+	{
+		Cursor cursor = db.query(TABLE_SONGS, new String[] { "db_path" }, selection, args, null, null, null);
+		try {
+			while (cursor.moveToNext())
+				removed.add(cursor.getString(0));
+		} finally {
+			cursor.close();
+		}
+		db.delete(TABLE_SONGS, selection, args);
+	}
+
+	/**
+	 * Returns the revision of the file at <code>path</code> in the synced
+	 * tree, or null if it is not there.
+	 */
+	public String getRevision(String path)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_FILES, new String[] { "revision" },
+			"folded_path=?", new String[] { fold(path) }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the paths of the songs in the synced tree at or under
+	 * <code>path</code>, sorted by path.
+	 */
+	public ArrayList<String> getSongFilesAt(String path)
+	{
+		String folded = fold(path);
+		String[] range = MediaUtils.rangeUnder(folded);
+		Cursor cursor = getReadableDatabase().query(TABLE_FILES, new String[] { "path" },
+			"is_dir=0 AND (folded_path=? OR (folded_path>=? AND folded_path<?))",
+			new String[] { folded, range[0], range[1] }, null, null, "folded_path");
+		ArrayList<String> paths = new ArrayList<String>(cursor.getCount());
+		try {
+			while (cursor.moveToNext()) {
+				String songPath = cursor.getString(0);
+				if (DropboxMetadataPipeline.isSong(songPath))
+					paths.add(songPath);
+			}
+		} finally {
+			cursor.close();
+		}
+		return paths;
+	}
+
+	/**
+	 * Returns the files and folders directly in <code>folder</code> in the
+	 * synced tree, or null if the folder is not there.
+	 */
+	public ArrayList<Entry> getChildren(String folder)
+	{
+		String folded = fold(folder);
+		SQLiteDatabase db = getReadableDatabase();
+		if (!"/".equals(folded)) {
+			Cursor cursor = db.query(TABLE_FILES, new String[] { "is_dir" }, "folded_path=?",
+				new String[] { folded }, null, null, null);
+			boolean isDir = cursor.moveToFirst() && cursor.getInt(0) != 0;
+			cursor.close();
+			if (!isDir)
+				return null;
+		}
+
+		Cursor cursor = db.query(TABLE_FILES, new String[] { "path", "is_dir", "revision" },
+			"folded_parent=?", new String[] { folded }, null, null, null);
+		ArrayList<Entry> entries = new ArrayList<Entry>(cursor.getCount());
+		try {
+			while (cursor.moveToNext()) {
+				Entry entry = new Entry();
+				entry.path = cursor.getString(0);
+				entry.isDir = cursor.getInt(1) != 0;
+				entry.rev = cursor.getString(2);
+				entries.add(entry);
+			}
+		} finally {
+			cursor.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Forget the synced file tree and its cursor, e.g. after unlinking
+	 * from Dropbox.
+	 */
+	public void clearFiles()
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_FILES, null, null);
+			db.delete(TABLE_SYNC, null, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Returns the checkpoint of the last import that did not finish, or
+	 * null if there is none.
+	 */
+	public Checkpoint getImportCheckpoint()
+	{
+		SQLiteDatabase db = getReadableDatabase();
+		Cursor cursor = db.query(TABLE_IMPORT, new String[] { "path", "walked" }, null, null, null, null, null);
+		String path;
+		boolean walked;
+		try {
+			if (!cursor.moveToFirst())
+				return null;
+			path = cursor.getString(0);
+			walked = cursor.getInt(1) != 0;
+		} finally {
+			cursor.close();
+		}
+		if (!walked)
+			return new Checkpoint(path, null, new BitSet());
+
+		cursor = db.query(TABLE_IMPORT_SONGS, new String[] { "path", "done" }, null, null, null, null, "position");
+		ArrayList<String> songs = new ArrayList<String>(cursor.getCount());
+		BitSet done = new BitSet();
+		try {
+			while (cursor.moveToNext()) {
+				if (cursor.getInt(1) != 0)
+					done.set(songs.size());
+				songs.add(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return new Checkpoint(path, songs, done);
+	}
+
+	/**
+	 * Start a new checkpoint for an import of <code>path</code>, replacing
+	 * any other.
+	 */
+	public void startImport(String path)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_IMPORT, null, null);
+			db.delete(TABLE_IMPORT_SONGS, null, null);
+			ContentValues values = new ContentValues(2);
+			values.put("path", path);
+			values.put("walked", 0);
+			db.insert(TABLE_IMPORT, null, values);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Record the songs the current import found, in order, and which of
+	 * them are done already.
+	 */
+	public void setImportSongs(List<String> songs, BitSet done)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_IMPORT_SONGS, null, null);
+			ContentValues values = new ContentValues(3);
+			for (int i = 0, n = songs.size(); i != n; ++i) {
+				values.put("position", i);
+				values.put("path", songs.get(i));
+				values.put("done", done.get(i) ? 1 : 0);
+				db.insert(TABLE_IMPORT_SONGS, null, values);
+			}
+			values.clear();
+			values.put("walked", 1);
+			db.update(TABLE_IMPORT, values, null, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Mark the song at <code>position</code> in the current import as
+	 * loaded and stored.
+	 */
+	public void setImportSongDone(int position)
+	{
+		ContentValues values = new ContentValues(1);
+		values.put("done", 1);
+		getWritableDatabase().update(TABLE_IMPORT_SONGS, values, "position=" + position, null);
+	}
+
+	/**
+	 * Drop the checkpoint, once the import has finished.
+	 */
+	public void clearImport()
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_IMPORT, null, null);
+			db.delete(TABLE_IMPORT_SONGS, null, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+}
@@ -120,24 +120,36 @@ public final class CoverBitmap {
 	 * @param song Title and other data are taken from here for info modes.
 	 * @param width Maximum width of image
 	 * @param height Maximum height of image
+	 * @param pool Where to take the image from, or null to allocate it.
 	 * @return The image, or null if the song was null, or width or height
 	 * were less than 1
 	 */
-	public static Bitmap createBitmap(Context context, int style, Bitmap coverArt, Song song, int width, int height)
+	public static Bitmap createBitmap(Context context, int style, Bitmap coverArt, Song song, int width, int height, BitmapPool pool)
 	{
 		switch (style) {
 		case STYLE_OVERLAPPING_BOX:
-			return createOverlappingBitmap(context, coverArt, song, width, height);
+			return createOverlappingBitmap(context, coverArt, song, width, height, pool);
 		case STYLE_INFO_BELOW:
-			return createSeparatedBitmap(context, coverArt, song, width, height);
+			return createSeparatedBitmap(context, coverArt, song, width, height, pool);
 		case STYLE_NO_INFO:
-			return createScaledBitmap(coverArt, width, height);
+			return createScaledBitmap(coverArt, width, height, pool);
 		default:
 			throw new IllegalArgumentException("Invalid bitmap type given: " + style);
 		}
 	}
 
-	private static Bitmap createOverlappingBitmap(Context context, Bitmap cover, Song song, int width, int height)
+	/**
+	 * Returns a black bitmap of the given size, from <code>pool</code> if
+	 * it is not null.
+	 */
+	private static Bitmap obtainBitmap(BitmapPool pool, int width, int height)
+	{
+		if (pool == null)
+			return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		return pool.get(width, height);
+	}
+
+	private static Bitmap createOverlappingBitmap(Context context, Bitmap cover, Song song, int width, int height, BitmapPool pool)
 	{
 		if (TEXT_SIZE == -1)
 			loadTextSizes(context);
@@ -181,7 +193,7 @@ public final class CoverBitmap {
 		int bitmapWidth = Math.max(coverWidth, boxWidth);
 		int bitmapHeight = Math.max(coverHeight, boxHeight);
 
-		Bitmap bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.RGB_565);
+		Bitmap bitmap = obtainBitmap(pool, bitmapWidth, bitmapHeight);
 		Canvas canvas = new Canvas(bitmap);
 
 		if (cover != null) {
@@ -217,7 +229,7 @@ public final class CoverBitmap {
 		return bitmap;
 	}
 
-	private static Bitmap createSeparatedBitmap(Context context, Bitmap cover, Song song, int width, int height)
+	private static Bitmap createSeparatedBitmap(Context context, Bitmap cover, Song song, int width, int height, BitmapPool pool)
 	{
 		if (TEXT_SIZE == -1)
 			loadTextSizes(context);
@@ -267,7 +279,7 @@ public final class CoverBitmap {
 		int bitmapWidth = horizontal ? coverWidth + boxWidth : Math.max(coverWidth, boxWidth);
 		int bitmapHeight = horizontal ? Math.max(coverHeight, boxHeight) : coverHeight + boxHeight;
 
-		Bitmap bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.RGB_565);
+		Bitmap bitmap = obtainBitmap(pool, bitmapWidth, bitmapHeight);
 		Canvas canvas = new Canvas(bitmap);
 
 		if (cover != null) {
@@ -313,16 +325,22 @@ public final class CoverBitmap {
 	 * @param source The bitmap to be scaled
 	 * @param width Maximum width of image
 	 * @param height Maximum height of image
+	 * @param pool Where to take the result from, or null to allocate it.
 	 * @return The scaled bitmap.
 	 */
-	private static Bitmap createScaledBitmap(Bitmap source, int width, int height)
+	private static Bitmap createScaledBitmap(Bitmap source, int width, int height, BitmapPool pool)
 	{
 		int sourceWidth = source.getWidth();
 		int sourceHeight = source.getHeight();
 		float scale = Math.min((float)width / sourceWidth, (float)height / sourceHeight);
 		sourceWidth *= scale;
 		sourceHeight *= scale;
-		return Bitmap.createScaledBitmap(source, sourceWidth, sourceHeight, false);
+		if (pool == null)
+			return Bitmap.createScaledBitmap(source, sourceWidth, sourceHeight, false);
+
+		Bitmap bitmap = pool.get(sourceWidth, sourceHeight);
+		new Canvas(bitmap).drawBitmap(source, null, new Rect(0, 0, sourceWidth, sourceHeight), null);
+		return bitmap;
 	}
 
 	/**
@@ -32,6 +32,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.view.MotionEvent;
 import android.view.VelocityTracker;
 import android.view.View;
@@ -41,8 +42,65 @@ import android.widget.Scroller;
 /**
  * Displays a flingable/draggable View of cover art/song info images
  * generated by CoverBitmap.
+ *
+ * Images are rendered on the worker thread and kept in a small LRU cache,
+ * together with those of the songs two places away, so that after a swipe
+ * the new neighbours are usually ready. Images that drop out of the cache
+ * are drawn over for later ones of the same size instead of being left to
+ * the garbage collector.
  */
-public final class CoverView extends View implements Handler.Callback {
+public final class CoverView extends View implements Handler.Callback, CacheRegistry.Trimmer {
+	/**
+	 * Number of rendered images kept: the three shown, the two rendered
+	 * ahead and a couple to scroll back to.
+	 */
+	private static final int CACHE_SIZE = 7;
+	/**
+	 * Number of rendered images kept on low-RAM devices, which do not
+	 * render ahead: just the three shown.
+	 */
+	private static final int CACHE_SIZE_LOW_RAM = 3;
+	/**
+	 * Number of images kept for reuse after leaving the cache.
+	 */
+	private static final int POOL_SIZE = 2;
+
+	/**
+	 * Identifies a rendered image.
+	 */
+	private static final class CoverKey {
+		final Song song;
+		final int style;
+		final int width;
+		final int height;
+
+		CoverKey(Song song, int style, int width, int height)
+		{
+			this.song = song;
+			this.style = style;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof CoverKey))
+				return false;
+			CoverKey other = (CoverKey)obj;
+			return song == other.song && style == other.style && width == other.width && height == other.height;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = System.identityHashCode(song);
+			hash = 31 * hash + style;
+			hash = 31 * hash + width;
+			return 31 * hash + height;
+		}
+	}
+
 	/**
 	 * The system-provided snap velocity, used as a threshold for detecting
 	 * flings.
@@ -95,16 +153,30 @@ public final class CoverView extends View implements Handler.Callback {
 	private Song[] mSongs = new Song[3];
 	/**
 	 * The covers for the current songs: 0 = previous, 1 = current, and 2 = next.
+	 * Read by release() on the worker thread, so a new array is filled
+	 * before it is assigned.
 	 */
-	private Bitmap[] mBitmaps = new Bitmap[3];
+	private volatile Bitmap[] mBitmaps = new Bitmap[3];
 	/**
 	 * The bitmaps to be drawn. Usually the same as mBitmaps, unless scrolling.
 	 */
-	private Bitmap[] mActiveBitmaps = mBitmaps;
+	private volatile Bitmap[] mActiveBitmaps = mBitmaps;
 	/**
 	 * Cover art to use when a song has no cover art in no info display styles.
 	 */
 	private Bitmap mDefaultCover;
+	/**
+	 * Images no longer shown or cached, to draw new images into.
+	 */
+	private final BitmapPool mPool = new BitmapPool(POOL_SIZE);
+	/**
+	 * Recently rendered images. Only used on the worker thread.
+	 */
+	private final LruCache<CoverKey, Bitmap> mCache;
+	/**
+	 * True to render the songs after the shown ones ahead of time.
+	 */
+	private final boolean mRenderAhead;
 	/**
 	 * Computes scroll animations.
 	 */
@@ -160,6 +232,16 @@ public final class CoverView extends View implements Handler.Callback {
 
 		mScroller = new Scroller(context);
 
+		mRenderAhead = !CacheRegistry.getInstance(context).isLowRam();
+		mCache = new LruCache<CoverKey, Bitmap>(mRenderAhead ? CACHE_SIZE : CACHE_SIZE_LOW_RAM) {
+			@Override
+			protected void entryRemoved(boolean evicted, CoverKey key, Bitmap oldValue, Bitmap newValue)
+			{
+				if (oldValue != newValue)
+					release(oldValue);
+			}
+		};
+
 		if (sSnapVelocity == -1) {
 			sSnapVelocity = ViewConfiguration.get(context).getScaledMinimumFlingVelocity();
 			sDensity = context.getResources().getDisplayMetrics().density;
@@ -361,10 +443,30 @@ public final class CoverView extends View implements Handler.Callback {
 	private void generateBitmap(int i)
 	{
 		Song song = mSongs[i];
+		if (song == null)
+			return;
+
+		mBitmaps[i] = getBitmap(song);
+
+		postInvalidate();
+	}
 
+	/**
+	 * Returns the image for the given song, rendering it if it is not
+	 * cached. Runs on the worker thread.
+	 */
+	private Bitmap getBitmap(Song song)
+	{
 		int style = mCoverStyle;
+		int width = getWidth();
+		int height = getHeight();
+		CoverKey key = new CoverKey(song, style, width, height);
+		Bitmap bitmap = mCache.get(key);
+		if (bitmap != null)
+			return bitmap;
+
 		Context context = getContext();
-		Bitmap cover = song == null ? null : song.getCover(context);
+		Bitmap cover = song.getCover(context);
 
 		if (cover == null && style == CoverBitmap.STYLE_NO_INFO) {
 			Bitmap def = mDefaultCover;
@@ -372,12 +474,33 @@ public final class CoverView extends View implements Handler.Callback {
 				//mDefaultCover = def = CoverBitmap.generateDefaultCover(getWidth(), getHeight());
 				mDefaultCover = def = BitmapFactory.decodeResource(getContext().getResources(), R.drawable.fallback_cover);
 			}
-			mBitmaps[i] = def;
+			bitmap = def;
 		} else {
-			mBitmaps[i] = CoverBitmap.createBitmap(context, style, cover, song, getWidth(), getHeight());
+			bitmap = CoverBitmap.createBitmap(context, style, cover, song, width, height, mPool);
 		}
 
-		postInvalidate();
+		if (bitmap != null)
+			mCache.put(key, bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Hand an image that left the cache to the pool, unless it is still
+	 * shown or is the shared default cover. Runs on the worker thread.
+	 */
+	private void release(Bitmap bitmap)
+	{
+		if (bitmap == mDefaultCover)
+			return;
+		for (Bitmap shown : mBitmaps) {
+			if (shown == bitmap)
+				return;
+		}
+		for (Bitmap shown : mActiveBitmaps) {
+			if (shown == bitmap)
+				return;
+		}
+		mPool.put(bitmap);
 	}
 
 	/**
@@ -409,16 +532,12 @@ public final class CoverView extends View implements Handler.Callback {
 		}
 
 		mHandler.removeMessages(MSG_GENERATE_BITMAP);
+		mHandler.removeMessages(MSG_PRERENDER);
 
 		Song[] songs = mSongs;
 		Bitmap[] bitmaps = mBitmaps;
 		Song[] newSongs = { service.getSong(-1), service.getSong(0), service.getSong(1) };
 		Bitmap[] newBitmaps = new Bitmap[3];
-		mSongs = newSongs;
-		mBitmaps = newBitmaps;
-		if (!mScrolling)
-			mActiveBitmaps = newBitmaps;
-
 		for (int i = 0; i != 3; ++i) {
 			if (newSongs[i] == null)
 				continue;
@@ -429,10 +548,25 @@ public final class CoverView extends View implements Handler.Callback {
 					break;
 				}
 			}
+		}
 
-			if (newBitmaps[i] == null) {
+		// publish only once filled, so that release() on the worker thread
+		// never sees a kept bitmap missing and pools it while it is shown
+		mSongs = newSongs;
+		mBitmaps = newBitmaps;
+		if (!mScrolling)
+			mActiveBitmaps = newBitmaps;
+
+		for (int i = 0; i != 3; ++i) {
+			if (newSongs[i] != null && newBitmaps[i] == null)
 				mHandler.sendMessage(mHandler.obtainMessage(MSG_GENERATE_BITMAP, i, 0));
-			}
+		}
+
+		// render the songs after those in the background, so they are ready
+		// when the user swipes
+		if (mRenderAhead) {
+			Song[] ahead = { service.peekSong(2), service.peekSong(-2) };
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_PRERENDER, ahead));
 		}
 
 		resetScroll();
@@ -444,6 +578,11 @@ public final class CoverView extends View implements Handler.Callback {
 	 * arg1 should be the index of the song.
 	 */
 	private static final int MSG_GENERATE_BITMAP = 0;
+	/**
+	 * Render the images of the songs in obj, a Song array that may contain
+	 * nulls, into the cache.
+	 */
+	private static final int MSG_PRERENDER = 1;
 	/**
 	 * Perform a long click.
 	 *
@@ -457,6 +596,11 @@ public final class CoverView extends View implements Handler.Callback {
 	 * finished.
 	 */
 	private static final int MSG_SCROLL = 3;
+	/**
+	 * Shrink the cache and the pool. Empty them if arg1 is 1, otherwise
+	 * drop about half of the cache.
+	 */
+	private static final int MSG_TRIM = 4;
 
 	@Override
 	public boolean handleMessage(Message message)
@@ -465,6 +609,14 @@ public final class CoverView extends View implements Handler.Callback {
 		case MSG_GENERATE_BITMAP:
 			generateBitmap(message.arg1);
 			break;
+		case MSG_PRERENDER:
+			if (getWidth() == 0 || getHeight() == 0)
+				break;
+			for (Song song : (Song[])message.obj) {
+				if (song != null)
+					getBitmap(song);
+			}
+			break;
 		case MSG_LONG_CLICK:
 			if (Math.abs(mStartX - mLastMotionX) + Math.abs(mStartY - mLastMotionY) < 10) {
 				mIgnoreNextUp = true;
@@ -481,6 +633,10 @@ public final class CoverView extends View implements Handler.Callback {
 				mActiveBitmaps = mBitmaps;
 			}
 			break;
+		case MSG_TRIM:
+			CacheRegistry.trim(mCache, message.arg1 == 1);
+			mPool.clear();
+			break;
 		default:
 			return false;
 		}
@@ -488,6 +644,33 @@ public final class CoverView extends View implements Handler.Callback {
 		return true;
 	}
 
+	@Override
+	protected void onAttachedToWindow()
+	{
+		super.onAttachedToWindow();
+		// each view has a cache of its own, so register each under its own name
+		String name = "cover view " + Integer.toHexString(System.identityHashCode(this));
+		CacheRegistry.getInstance(getContext()).register(name, CacheRegistry.PRIORITY_RENDERED, mCache, this);
+	}
+
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		super.onDetachedFromWindow();
+		CacheRegistry.getInstance(getContext()).unregister(mCache);
+	}
+
+	/**
+	 * Shrink the cache on the worker thread, where it is used.
+	 */
+	@Override
+	public void trim(boolean clear)
+	{
+		Handler handler = mHandler;
+		if (handler != null)
+			handler.sendMessage(handler.obtainMessage(MSG_TRIM, clear ? 1 : 0, 0));
+	}
+
 	@Override
 	protected void onMeasure(int widthSpec, int heightSpec)
 	{
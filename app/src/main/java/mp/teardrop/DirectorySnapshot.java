@@ -0,0 +1,139 @@
+package mp.teardrop;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * The contents of a directory at one point in time, sorted folders first
+ * and then by name, with the type of every entry looked up once.
+ *
+ * Taking a snapshot costs one stat per entry; nothing after that touches
+ * the filesystem, so a snapshot can be sorted, filtered and bound to rows
+ * as often as needed.
+ */
+final class DirectorySnapshot {
+	public static final int TYPE_FOLDER = 0;
+	public static final int TYPE_AUDIO = 1;
+	public static final int TYPE_OTHER = 2;
+
+	/**
+	 * Extensions, lower case, of the files treated as audio.
+	 */
+	private static final HashSet<String> AUDIO_EXTENSIONS = new HashSet<String>(Arrays.asList(
+		"mp3", "flac", "ogg", "oga", "opus", "m4a", "mp4", "aac", "wav", "wma", "mka", "3gp"));
+
+	/**
+	 * One file or folder in a snapshot.
+	 */
+	public static final class Entry {
+		public final File file;
+		public final String name;
+		/**
+		 * One of TYPE_*.
+		 */
+		public final int type;
+
+		Entry(File file, String name, int type)
+		{
+			this.file = file;
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Sorts folders before files first, then sorts alphabetically by name.
+	 */
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b)
+		{
+			boolean aIsFolder = a.type == TYPE_FOLDER;
+			boolean bIsFolder = b.type == TYPE_FOLDER;
+			if (bIsFolder == aIsFolder) {
+				return a.name.compareToIgnoreCase(b.name);
+			} else if (bIsFolder) {
+				return 1;
+			}
+			return -1;
+		}
+	};
+
+	public final File dir;
+	/**
+	 * The entries, without dot files, in display order.
+	 */
+	public final Entry[] entries;
+
+	private DirectorySnapshot(File dir, Entry[] entries)
+	{
+		this.dir = dir;
+		this.entries = entries;
+	}
+
+	/**
+	 * List <code>dir</code>. Dot files are left out.
+	 *
+	 * @return The snapshot, or null if the directory could not be read.
+	 */
+	public static DirectorySnapshot take(File dir)
+	{
+		String[] names = dir.list();
+		if (names == null)
+			return null;
+
+		ArrayList<Entry> entries = new ArrayList<Entry>(names.length);
+		for (String name : names) {
+			if (name.charAt(0) == '.')
+				continue;
+			File file = new File(dir, name);
+			int type;
+			if (file.isDirectory())
+				type = TYPE_FOLDER;
+			else if (isAudio(name))
+				type = TYPE_AUDIO;
+			else
+				type = TYPE_OTHER;
+			entries.add(new Entry(file, name, type));
+		}
+
+		Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+		Arrays.sort(sorted, ORDER);
+		return new DirectorySnapshot(dir, sorted);
+	}
+
+	/**
+	 * Returns true if a file with the given name should be treated as audio,
+	 * judging by its extension.
+	 */
+	public static boolean isAudio(String name)
+	{
+		int dot = name.lastIndexOf('.');
+		if (dot == -1)
+			return false;
+		return AUDIO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Returns the entries whose names match the search terms, in the same
+	 * order.
+	 *
+	 * @param filter Terms as returned by {@link SearchIndex#parseTerms(String)},
+	 * or null for all entries.
+	 */
+	public Entry[] filter(String[] filter)
+	{
+		if (filter == null)
+			return entries;
+		ArrayList<Entry> matching = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (SearchIndex.matches(entry.name, filter))
+				matching.add(entry);
+		}
+		return matching.toArray(new Entry[matching.size()]);
+	}
+}
@@ -2,12 +2,14 @@ package mp.teardrop;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
+import android.os.CancellationSignal;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -28,7 +30,18 @@ public class DropboxAdapter extends BaseAdapter implements LibraryAdapter {
     private Drawable mMiscFileIcon;
 
     boolean mLinkedWithDropbox;
-    private ArrayList<Entry> mDropboxFiles;
+    /**
+     * The entries of the current directory, as committed.
+     */
+    private List<Entry> mAllFiles;
+    /**
+     * The entries shown: those of mAllFiles that match mFilter.
+     */
+    private List<Entry> mDropboxFiles;
+    /**
+     * Terms from {@link SearchIndex#parseTerms(String)}, or null.
+     */
+    private String[] mFilter;
 
 
     /**
@@ -103,10 +116,35 @@ public class DropboxAdapter extends BaseAdapter implements LibraryAdapter {
     }
 
 
+    /**
+     * View type of regular file rows.
+     */
+    private static final int VIEW_TYPE_FILE = 0;
+    /**
+     * View type of the "link with Dropbox" row.
+     */
+    private static final int VIEW_TYPE_LINK = 1;
+
+
+    @Override
+    public int getViewTypeCount() {
+        return 2;
+    }
+
+
+    @Override
+    public int getItemViewType(int pos) {
+        return mLinkedWithDropbox ? VIEW_TYPE_FILE : VIEW_TYPE_LINK;
+    }
+
+
     @Override
     public View getView(int pos, View convertView, ViewGroup parent) {
         if (!mLinkedWithDropbox) {
-            View view = mInflater.inflate(R.layout.library_row_link_with_dropbox, null);
+            if (convertView != null) {
+                return convertView;
+            }
+            View view = mInflater.inflate(R.layout.library_row_link_with_dropbox, parent, false);
             TextView textView = (TextView) view.findViewById(R.id.text);
             textView.setText(R.string.link_with_dropbox);
             return view;
@@ -115,11 +153,19 @@ public class DropboxAdapter extends BaseAdapter implements LibraryAdapter {
             View view;
             ViewHolder holder;
 
-            // always create a new view to get rid of touch feedback from the old one
-            view = mInflater.inflate(R.layout.library_row_orchid, null);
-            holder = new ViewHolder();
-            holder.text = (TextView) view.findViewById(R.id.text);
-            view.setTag(holder);
+            if (convertView == null) {
+                view = mInflater.inflate(R.layout.library_row_orchid, parent, false);
+                holder = new ViewHolder();
+                holder.text = (TextView) view.findViewById(R.id.text);
+                view.setTag(holder);
+            } else {
+                view = convertView;
+                holder = (ViewHolder) view.getTag();
+                // clear touch feedback left over from the row's previous use
+                holder.text.setPressed(false);
+                holder.text.jumpDrawablesToCurrentState();
+            }
+            holder.text.setAlpha(1.0f);
 
             if (mLimiter == null) {
                 pos++; //skip the link to the parent dir
@@ -188,15 +234,36 @@ public class DropboxAdapter extends BaseAdapter implements LibraryAdapter {
     }
 
 
+    /**
+     * Filters the listing already loaded; Dropbox is not queried again.
+     */
     @Override
     public void setFilter(String filter) {
-        // TODO Auto-generated method stub
+        mFilter = SearchIndex.parseTerms(filter);
+        applyFilter();
+        notifyDataSetChanged();
+    }
+
+
+    private void applyFilter() {
+        String[] terms = mFilter;
+        if (terms == null || mAllFiles == null) {
+            mDropboxFiles = mAllFiles;
+            return;
+        }
 
+        ArrayList<Entry> matches = new ArrayList<Entry>();
+        for (Entry entry : mAllFiles) {
+            if (SearchIndex.matches(entry.fileName(), terms)) {
+                matches.add(entry);
+            }
+        }
+        mDropboxFiles = matches;
     }
 
 
     @Override
-    public Object query() {
+    public Object query(CancellationSignal signal) {
         // TODO Auto-generated method stub
         return null;
     }
@@ -208,7 +275,8 @@ public class DropboxAdapter extends BaseAdapter implements LibraryAdapter {
         if (data == null) {
             return;
         }
-        mDropboxFiles = (ArrayList<Entry>) data;
+        mAllFiles = (List<Entry>) data;
+        applyFilter();
         notifyDataSetInvalidated();
     }
 
@@ -221,6 +289,7 @@ public class DropboxAdapter extends BaseAdapter implements LibraryAdapter {
 
     void resetAfterDropboxUnlinked() {
         mLinkedWithDropbox = false;
+        mAllFiles = null;
         mDropboxFiles = null;
         notifyDataSetInvalidated();
     }
@@ -0,0 +1,45 @@
+package mp.teardrop;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.DropboxAPI.DeltaPage;
+import com.dropbox.client2.DropboxAPI.DropboxLink;
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxServerException;
+
+/**
+ * The {@link CloudClient} that talks to Dropbox.
+ */
+public class DropboxClient implements CloudClient {
+	private final DropboxAPI<?> mApi;
+
+	public DropboxClient(DropboxAPI<?> api)
+	{
+		mApi = api;
+	}
+
+	@Override
+	public Entry metadata(String path, int fileLimit, String hash, boolean list) throws DropboxException
+	{
+		try {
+			return mApi.metadata(path, fileLimit, hash, list, null);
+		} catch (DropboxServerException e) {
+			if (hash != null && e.error == DropboxServerException._304_NOT_MODIFIED)
+				return null;
+			throw e;
+		}
+	}
+
+	@Override
+	public Link media(String path) throws DropboxException
+	{
+		DropboxLink link = mApi.media(path, true);
+		return new Link(link.url, link.expires);
+	}
+
+	@Override
+	public DeltaPage<Entry> delta(String cursor) throws DropboxException
+	{
+		return mApi.delta(cursor);
+	}
+}
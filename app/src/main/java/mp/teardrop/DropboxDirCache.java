@@ -0,0 +1,377 @@
+package mp.teardrop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+
+/**
+ * Process-wide cache of Dropbox directory listings.
+ *
+ * Listings are kept in memory for the most recently used directories and
+ * on disk, one file per directory, together with the folder hash Dropbox
+ * returned for them. A cached listing can be shown right away and then
+ * revalidated by passing the hash back: if the folder has not changed,
+ * Dropbox answers 304 and nothing is transferred.
+ *
+ * Subfolders the user is likely to open next can be prefetched on a
+ * low-priority thread.
+ */
+public class DropboxDirCache implements Handler.Callback {
+	/**
+	 * Format version of the listing files.
+	 */
+	private static final int FILE_VERSION = 1;
+	/**
+	 * Number of listings kept in memory on a typical heap.
+	 */
+	private static final int MEMORY_SIZE = 32;
+	/**
+	 * Number of subfolders prefetched after a folder is shown.
+	 */
+	private static final int PREFETCH_COUNT = 4;
+	/**
+	 * Fetch and store the listing of the directory in obj, if it is not
+	 * cached yet.
+	 */
+	private static final int MSG_PREFETCH = 0;
+
+	/**
+	 * Sorts folders first, then by name.
+	 */
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry lhs, Entry rhs) {
+			if (lhs.isDir && !rhs.isDir) {
+				return -1;
+			} else if (!lhs.isDir && rhs.isDir) {
+				return 1;
+			} else {
+				return lhs.fileName().compareToIgnoreCase(rhs.fileName());
+			}
+		}
+	};
+
+	private static DropboxDirCache sInstance;
+
+	/**
+	 * The contents of one directory as last seen on Dropbox.
+	 */
+	public static final class Listing {
+		/**
+		 * The path of the directory.
+		 */
+		public final String path;
+		/**
+		 * The folder hash Dropbox returned along with the contents, or
+		 * null.
+		 */
+		public final String hash;
+		/**
+		 * The contents, folders first and then by name. Must not be
+		 * modified.
+		 */
+		public final List<Entry> entries;
+
+		Listing(String path, String hash, List<Entry> entries)
+		{
+			this.path = path;
+			this.hash = hash;
+			this.entries = entries;
+		}
+
+		/**
+		 * Returns true if <code>other</code> lists the same entries, with
+		 * the same revisions.
+		 */
+		boolean sameEntries(Listing other)
+		{
+			if (other == null || other.entries.size() != entries.size())
+				return false;
+			for (int i = entries.size(); --i != -1; ) {
+				Entry a = entries.get(i);
+				Entry b = other.entries.get(i);
+				if (!a.path.equals(b.path) || a.isDir != b.isDir || !TextUtils.equals(a.rev, b.rev))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private final File mDir;
+	/**
+	 * Recently used listings by path.
+	 */
+	private final LruCache<String, Listing> mMemory;
+	/**
+	 * Handler on the prefetch thread; created on first use.
+	 */
+	private Handler mHandler;
+	/**
+	 * The API used for prefetching.
+	 */
+	private CloudClient mApi;
+
+	private DropboxDirCache(Context context)
+	{
+		mDir = new File(context.getCacheDir(), "dropbox_dirs");
+		CacheRegistry registry = CacheRegistry.getInstance(context);
+		mMemory = new LruCache<String, Listing>(registry.scale(MEMORY_SIZE));
+		registry.register("dropbox listings", CacheRegistry.PRIORITY_METADATA, mMemory);
+	}
+
+	/**
+	 * Returns the process-wide cache instance.
+	 */
+	public static synchronized DropboxDirCache getInstance(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new DropboxDirCache(context.getApplicationContext());
+		return sInstance;
+	}
+
+	/**
+	 * Returns the listing of <code>path</code> if it is in memory, without
+	 * touching the disk. May be called on the UI thread.
+	 */
+	public synchronized Listing peek(String path)
+	{
+		return mMemory.get(path);
+	}
+
+	/**
+	 * Returns the cached listing of <code>path</code> from memory or disk,
+	 * or null if there is none. Should be called on a worker thread.
+	 */
+	public Listing get(String path)
+	{
+		synchronized (this) {
+			Listing listing = mMemory.get(path);
+			if (listing != null)
+				return listing;
+		}
+
+		Listing listing = read(path);
+		if (listing != null) {
+			synchronized (this) {
+				mMemory.put(path, listing);
+			}
+		}
+		return listing;
+	}
+
+	/**
+	 * Returns a listing of the given entries, sorted.
+	 */
+	static Listing newListing(String path, String hash, List<Entry> contents)
+	{
+		ArrayList<Entry> entries = new ArrayList<Entry>(contents);
+		Collections.sort(entries, ENTRY_ORDER);
+		return new Listing(path, hash, Collections.unmodifiableList(entries));
+	}
+
+	/**
+	 * Fetch the listing of <code>path</code> from Dropbox, unless the
+	 * cached one is still current, and store it. Should be called on a
+	 * worker thread.
+	 *
+	 * @param api The API to use.
+	 * @param cached The cached listing of the same path, or null.
+	 * @return The cached listing if it did not change, or the new one.
+	 */
+	public Listing revalidate(CloudClient api, String path, Listing cached) throws DropboxException
+	{
+		Entry dir = api.metadata(path, 0, cached == null ? null : cached.hash, true);
+		if (dir == null)
+			return cached;
+
+		Listing listing = newListing(path, dir.hash, dir.contents == null ? new ArrayList<Entry>() : dir.contents);
+		synchronized (this) {
+			mMemory.put(path, listing);
+		}
+		write(listing);
+		return listing;
+	}
+
+	/**
+	 * Fetch the first few subfolders of <code>listing</code> in the
+	 * background, if they are not cached yet. Replaces any prefetching
+	 * that has not started yet.
+	 */
+	public synchronized void prefetch(CloudClient api, Listing listing)
+	{
+		if (mHandler == null) {
+			HandlerThread thread = new HandlerThread("DropboxDirCache", Process.THREAD_PRIORITY_LOWEST);
+			thread.start();
+			mHandler = new Handler(thread.getLooper(), this);
+		}
+		mApi = api;
+		mHandler.removeMessages(MSG_PREFETCH);
+
+		Map<String, Listing> cached = mMemory.snapshot();
+		int count = 0;
+		for (Entry entry : listing.entries) {
+			if (!entry.isDir)
+				// folders are sorted first
+				break;
+			if (cached.containsKey(entry.path))
+				continue;
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_PREFETCH, entry.path));
+			if (++count == PREFETCH_COUNT)
+				break;
+		}
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_PREFETCH: {
+			String path = (String)message.obj;
+			CloudClient api;
+			synchronized (this) {
+				api = mApi;
+			}
+			if (api == null || read(path) != null)
+				break;
+			try {
+				revalidate(api, path, null);
+			} catch (DropboxException e) {
+				Log.d("OrchidMP", "Prefetching " + path + " failed", e);
+			}
+			break;
+		}
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Forget everything, e.g. after unlinking from Dropbox.
+	 */
+	public synchronized void clear()
+	{
+		if (mHandler != null)
+			mHandler.removeMessages(MSG_PREFETCH);
+		mApi = null;
+		mMemory.evictAll();
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+	}
+
+	/**
+	 * Returns the file the listing of <code>path</code> is stored in. The
+	 * path is stored in the file too, to tell apart paths with the same
+	 * hash code.
+	 */
+	private File getFile(String path)
+	{
+		return new File(mDir, Integer.toHexString(path.toLowerCase().hashCode()));
+	}
+
+	private Listing read(String path)
+	{
+		File file = getFile(path);
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_VERSION || !path.equals(in.readUTF()))
+				return null;
+			String hash = in.readUTF();
+			if (hash.length() == 0)
+				hash = null;
+			int count = in.readInt();
+			ArrayList<Entry> entries = new ArrayList<Entry>(count);
+			for (int i = 0; i != count; ++i) {
+				Entry entry = new Entry();
+				entry.path = in.readUTF();
+				entry.isDir = in.readBoolean();
+				entry.rev = in.readUTF();
+				entries.add(entry);
+			}
+			return new Listing(path, hash, Collections.unmodifiableList(entries));
+		} catch (IOException e) {
+			Log.w("OrchidMP", "Unable to read cached listing of " + path, e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Store a listing. It is written to a temporary file first and then
+	 * renamed over the old one, so a reader never sees half a listing and
+	 * a failed write leaves the old listing in place. Writers of the same
+	 * path each use their own temporary file.
+	 */
+	private void write(Listing listing)
+	{
+		File file = getFile(listing.path);
+		File temp = null;
+		DataOutputStream out = null;
+		try {
+			mDir.mkdirs();
+			temp = File.createTempFile(file.getName(), ".tmp", mDir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(FILE_VERSION);
+			out.writeUTF(listing.path);
+			out.writeUTF(listing.hash == null ? "" : listing.hash);
+			out.writeInt(listing.entries.size());
+			for (Entry entry : listing.entries) {
+				out.writeUTF(entry.path);
+				out.writeBoolean(entry.isDir);
+				out.writeUTF(entry.rev == null ? "" : entry.rev);
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(file))
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			temp = null;
+		} catch (IOException e) {
+			Log.w("OrchidMP", "Unable to cache listing of " + listing.path, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			if (temp != null)
+				temp.delete();
+		}
+	}
+}
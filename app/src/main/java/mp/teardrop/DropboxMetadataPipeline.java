@@ -0,0 +1,613 @@
+package mp.teardrop;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+
+/**
+ * Fetches what is needed to stream the songs under a Dropbox folder: the
+ * folder tree, and for each song its revision, a streaming link and its tags.
+ *
+ * Every directory listing and every song is a job on a bounded pool of
+ * threads, so several round trips are in flight at once. Songs start loading
+ * as soon as the listing they are in arrives, while the rest of the tree is
+ * still being walked. Results are collected in the order the songs were
+ * found, which is the order a sequential walk would have produced, and
+ * passed on as soon as all songs before them are done.
+ *
+ * An instance is good for one call to {@link #load(Entry, List)}.
+ */
+class DropboxMetadataPipeline {
+	/**
+	 * Number of jobs run at once if the user has not changed it.
+	 */
+	static final int DEFAULT_THREADS = 4;
+	/**
+	 * How long a single network request may take, in milliseconds, once
+	 * its job has started.
+	 */
+	private static final int REQUEST_TIMEOUT = 20000;
+	/**
+	 * Number of requests a song job makes at most: metadata, streaming link
+	 * and tags. Songs whose tags are cached make one at most.
+	 */
+	private static final int SONG_REQUESTS = 3;
+
+	private static final String[] TAG_IDS_OF_INTEREST = {"TXXX", "TIT2", "TRCK", "TPE1", "TALB"};
+
+	/**
+	 * Receives progress updates.
+	 */
+	interface Listener {
+		/**
+		 * All songs have been found. Called on the thread running load(),
+		 * before it waits for the songs.
+		 *
+		 * @param paths The songs, in the order load() returns them.
+		 */
+		void onSongsFound(List<String> paths);
+
+		/**
+		 * A song has been loaded. Called on a pool thread, in no particular
+		 * order.
+		 *
+		 * @param index The position of the song in the order load()
+		 * returns them.
+		 * @param fresh True if the song was fetched from Dropbox rather than
+		 * the store.
+		 */
+		void onSongLoaded(int index, CloudSongMetadata song, boolean fresh);
+
+		/**
+		 * The next song in order is ready, or has been given up on. Called on
+		 * the thread running load(), in order, as soon as the songs before it
+		 * are done, even while other folders are still being listed.
+		 *
+		 * @param index The position of the song in the order load()
+		 * returns them.
+		 * @param song The song, or null if it could not be loaded.
+		 */
+		void onSongReady(int index, CloudSongMetadata song);
+
+		/**
+		 * Called on a pool thread after each song.
+		 *
+		 * @param done The number of songs loaded, or given up on, so far.
+		 * @param found The number of songs found so far.
+		 */
+		void onProgress(int done, int found);
+	}
+
+	/**
+	 * A job that remembers when it started running, so that a time limit
+	 * does not count the time it spent waiting in the queue.
+	 */
+	private static final class Job<T> extends FutureTask<T> {
+		volatile long started;
+
+		Job(Callable<T> callable)
+		{
+			super(callable);
+		}
+
+		@Override
+		public void run()
+		{
+			started = SystemClock.elapsedRealtime();
+			super.run();
+		}
+	}
+
+	/**
+	 * The outcome of a song job.
+	 */
+	private static final class SongResult {
+		final CloudSongMetadata song;
+		/**
+		 * True if the song was loaded from Dropbox rather than the cache.
+		 */
+		final boolean fresh;
+
+		SongResult(CloudSongMetadata song, boolean fresh)
+		{
+			this.song = song;
+			this.fresh = fresh;
+		}
+	}
+
+	private final CloudClient mApi;
+	private final CloudSongStore mStore;
+	private final Listener mListener;
+	private final ThreadPoolExecutor mExecutor;
+	/**
+	 * Every job submitted so far, to cancel them all at once.
+	 */
+	private final ArrayList<Job<?>> mJobs = new ArrayList<Job<?>>();
+	/**
+	 * Tag downloads in progress, to disconnect them on cancel.
+	 */
+	private final HashSet<HttpURLConnection> mConnections = new HashSet<HttpURLConnection>();
+	private final AtomicInteger mDone = new AtomicInteger();
+	private volatile int mFound;
+	private volatile boolean mCancelled;
+	/**
+	 * True to take revisions from the synced file tree, when it has them,
+	 * instead of asking Dropbox for each song.
+	 */
+	private volatile boolean mStoredRevisions;
+	private boolean mComplete;
+	/**
+	 * The songs load() fetched from Dropbox rather than the cache.
+	 */
+	private final ArrayList<CloudSongMetadata> mFresh = new ArrayList<CloudSongMetadata>();
+	/**
+	 * The songs collected so far by load(), in order.
+	 */
+	private ArrayList<CloudSongMetadata> mResult;
+	/**
+	 * The number of song jobs load() has collected, and how many of them
+	 * failed.
+	 */
+	private int mCollected;
+	private int mFailed;
+
+	/**
+	 * @param api The API to use.
+	 * @param store The stored song metadata. Only read here; the caller
+	 * stores the fresh results.
+	 * @param threads The maximum number of requests in flight.
+	 * @param listener Notified of progress, or null.
+	 */
+	DropboxMetadataPipeline(CloudClient api, CloudSongStore store, int threads, Listener listener)
+	{
+		mApi = api;
+		mStore = store;
+		mListener = listener;
+		mExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(final Runnable r)
+				{
+					return new Thread("DropboxMetadata #" + mCount.incrementAndGet()) {
+						@Override
+						public void run()
+						{
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					};
+				}
+			});
+	}
+
+	/**
+	 * Returns the number of threads set in the preferences.
+	 */
+	static int getThreads(SharedPreferences settings)
+	{
+		try {
+			int threads = Integer.parseInt(settings.getString(PrefKeys.CLOUD_IMPORT_THREADS, String.valueOf(DEFAULT_THREADS)));
+			return Math.max(1, threads);
+		} catch (NumberFormatException e) {
+			return DEFAULT_THREADS;
+		}
+	}
+
+	/**
+	 * Stop all work. load() returns null soon after. May be called from any
+	 * thread.
+	 */
+	void cancel()
+	{
+		mCancelled = true;
+		synchronized (this) {
+			for (Job<?> job : mJobs)
+				job.cancel(true);
+			for (HttpURLConnection connection : mConnections)
+				connection.disconnect();
+		}
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Take the revisions of songs from the file tree synced by
+	 * {@link DropboxSync} rather than asking Dropbox, saving a request per
+	 * song. Call before load().
+	 */
+	void useStoredRevisions()
+	{
+		mStoredRevisions = true;
+	}
+
+	/**
+	 * Returns true if load() got every song it found, so the folder hash
+	 * may be stored as up to date. False if some songs were skipped.
+	 */
+	boolean isComplete()
+	{
+		return mComplete;
+	}
+
+	/**
+	 * Returns the songs the last load() fetched from Dropbox rather than
+	 * the cache, for the caller to store.
+	 */
+	List<CloudSongMetadata> getFresh()
+	{
+		return mFresh;
+	}
+
+	/**
+	 * Load the given songs, followed by the songs under <code>dir</code>.
+	 * Blocks until everything is loaded. Songs that fail to load or take
+	 * too long are skipped; a directory that fails to list fails the whole
+	 * load, since the songs in it would otherwise silently go missing.
+	 *
+	 * @param dir A directory, with its contents, or null.
+	 * @param songPaths Paths of songs to load, or null.
+	 * @return The metadata of the songs, in order, or null if cancelled.
+	 * @throws DropboxException If a directory could not be listed.
+	 */
+	ArrayList<CloudSongMetadata> load(Entry dir, List<String> songPaths) throws DropboxException
+	{
+		mResult = new ArrayList<CloudSongMetadata>();
+		try {
+			ArrayList<Job<SongResult>> songs = new ArrayList<Job<SongResult>>();
+			ArrayList<String> paths = new ArrayList<String>();
+			LinkedList<Job<Entry>> listings = new LinkedList<Job<Entry>>();
+
+			if (songPaths != null) {
+				for (String path : songPaths)
+					addSong(path, songs, paths);
+			}
+			if (dir != null)
+				addContents(dir, songs, paths, listings);
+			while (!listings.isEmpty()) {
+				Entry next;
+				try {
+					next = await(listings.removeFirst(), REQUEST_TIMEOUT);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof DropboxException)
+						throw (DropboxException)e.getCause();
+					throw new DropboxException(e.getCause());
+				} catch (TimeoutException e) {
+					throw new DropboxException("Listing a folder timed out");
+				}
+				addContents(next, songs, paths, listings);
+				collect(songs, false);
+			}
+			if (mListener != null)
+				mListener.onSongsFound(paths);
+			collect(songs, true);
+
+			if (mCancelled)
+				return null;
+			mComplete = mFailed == 0;
+			return mResult;
+		} catch (InterruptedException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} finally {
+			mExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Collect the results of song jobs in order, as long as they are done,
+	 * or wait for all of them.
+	 */
+	private void collect(List<Job<SongResult>> songs, boolean wait) throws InterruptedException
+	{
+		while (mCollected != songs.size()) {
+			Job<SongResult> job = songs.get(mCollected);
+			if (!wait && !job.isDone())
+				return;
+
+			CloudSongMetadata song = null;
+			try {
+				SongResult result = await(job, REQUEST_TIMEOUT * SONG_REQUESTS);
+				song = result.song;
+				mResult.add(song);
+				if (result.fresh)
+					mFresh.add(song);
+			} catch (ExecutionException e) {
+				Log.w("OrchidMP", "Unable to load a cloud song", e.getCause());
+				++mFailed;
+			} catch (TimeoutException e) {
+				Log.w("OrchidMP", "Loading a cloud song timed out");
+				++mFailed;
+			}
+
+			int index = mCollected++;
+			if (mListener != null && !mCancelled)
+				mListener.onSongReady(index, song);
+		}
+	}
+
+	/**
+	 * Returns true if the file at <code>path</code> can be streamed.
+	 */
+	static boolean isSong(String path)
+	{
+		return path.toLowerCase().endsWith(".mp3"); //TODO: make this a comprehensive list of extensions
+	}
+
+	/**
+	 * Queue the songs and subdirectories of a listing.
+	 */
+	private void addContents(Entry dir, List<Job<SongResult>> songs, List<String> paths, List<Job<Entry>> listings)
+	{
+		if (dir.contents == null)
+			return;
+		for (Entry file : dir.contents) {
+			if (file.isDir) {
+				listings.add(submitListing(file.path));
+			} else if (isSong(file.path)) {
+				addSong(file.path, songs, paths);
+			}
+		}
+	}
+
+	/**
+	 * Queue a song, after those found before it.
+	 */
+	private void addSong(String path, List<Job<SongResult>> songs, List<String> paths)
+	{
+		songs.add(submitSong(path, songs.size()));
+		paths.add(path);
+	}
+
+	private <T> Job<T> submit(Callable<T> callable)
+	{
+		Job<T> job = new Job<T>(callable);
+		synchronized (this) {
+			if (mCancelled)
+				throw new CancellationException();
+			mJobs.add(job);
+		}
+		mExecutor.execute(job);
+		return job;
+	}
+
+	private Job<Entry> submitListing(final String path)
+	{
+		return submit(new Callable<Entry>() {
+			@Override
+			public Entry call() throws DropboxException
+			{
+				return mApi.metadata(path, 0, null, true);
+			}
+		});
+	}
+
+	private Job<SongResult> submitSong(final String path, final int index)
+	{
+		mFound++;
+		return submit(new Callable<SongResult>() {
+			@Override
+			public SongResult call() throws DropboxException, IOException
+			{
+				try {
+					SongResult result = loadSong(path);
+					if (mListener != null && !mCancelled)
+						mListener.onSongLoaded(index, result.song, result.fresh);
+					return result;
+				} finally {
+					if (mListener != null && !mCancelled)
+						mListener.onProgress(mDone.incrementAndGet(), mFound);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for a job to finish, allowing it <code>timeout</code>
+	 * milliseconds from when it started running. Cancels the job if it
+	 * takes longer.
+	 */
+	private static <T> T await(Job<T> job, long timeout) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		while (true) {
+			long started = job.started;
+			long left = started == 0 ? timeout : started + timeout - SystemClock.elapsedRealtime();
+			if (left <= 0) {
+				job.cancel(true);
+				throw new TimeoutException();
+			}
+			try {
+				return job.get(left, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// check again: the job may only just have started
+			}
+		}
+	}
+
+	/**
+	 * Load the metadata of one song from the cache, if it is still valid,
+	 * or from Dropbox. Runs on a pool thread.
+	 */
+	private SongResult loadSong(String songPath) throws DropboxException, IOException
+	{
+		String path = songPath;
+		String rev = mStoredRevisions ? mStore.getRevision(songPath) : null;
+		if (rev == null) {
+			Entry currentSong = mApi.metadata(songPath, 1, null, false);
+			path = currentSong.path;
+			rev = currentSong.rev;
+		}
+
+		/* tags stay valid for as long as the revision matches; if the streaming link has
+		expired, PlaybackService gets a new one just before the song is played */
+		CloudSongMetadata cachedMetadata = mStore.get(songPath);
+		if (cachedMetadata != null &&
+				cachedMetadata.revision != null &&
+				cachedMetadata.revision.equals(rev)) {
+			return new SongResult(cachedMetadata, false);
+		}
+
+		CloudClient.Link streamingLink = mApi.media(songPath);
+
+		CloudSongMetadata currentSongMeta =
+				new CloudSongMetadata(streamingLink, path, rev,
+						0, 0, path.substring(path.lastIndexOf('/') + 1), "?", "?", 0, 1);
+
+		/* download a part of the file to read tags (title, artist, etc.) and
+		ReplayGain info */
+		HttpURLConnection connection = (HttpURLConnection)new URL(streamingLink.url).openConnection();
+		connection.setConnectTimeout(REQUEST_TIMEOUT);
+		connection.setReadTimeout(REQUEST_TIMEOUT);
+		synchronized (this) {
+			if (mCancelled)
+				throw new IOException("Cancelled");
+			mConnections.add(connection);
+		}
+		try {
+			InputStream in = new BufferedInputStream(connection.getInputStream());
+			try {
+				readTags(in, currentSongMeta);
+			} finally {
+				in.close();
+			}
+		} finally {
+			synchronized (this) {
+				mConnections.remove(connection);
+			}
+			connection.disconnect();
+		}
+
+		return new SongResult(currentSongMeta, true);
+	}
+
+	/**
+	 * Read the ID3v2 tag at the start of <code>in</code>, if there is one,
+	 * into <code>currentSongMeta</code>.
+	 */
+	private static void readTags(InputStream in, CloudSongMetadata currentSongMeta) throws IOException
+	{
+		byte[] id3v2Header = new byte[10];
+		in.read(id3v2Header, 0, 10);
+
+		if (id3v2Header[0] == 0x49 && id3v2Header[1] == 0x44 &&
+				id3v2Header[2] == 0x33) { //the song actually has an id3v2 tag
+
+			//a signed int is fine, as a valid ID3 tag will never be as large as to
+			// require full 32 bits to represent its size
+			int id3v2TagSize =
+					id3v2Header[9] + id3v2Header[8] * 128 + id3v2Header[7] * 16384 +
+							id3v2Header[6] * 2097152;
+
+			if ((id3v2Header[5] & 64) != 0) { //extended header is present
+				in.skip(1337); //TODO: use actual size
+			}
+
+			//now read tag frames
+			long grandTotal = 0; //total bytes read or skipped
+
+			while (grandTotal < id3v2TagSize -
+					10) { //if 10 bytes or less remain, they can only be padding
+
+				byte[] frameHeader = new byte[10];
+				grandTotal += in.read(frameHeader, 0, 10);
+
+				if (frameHeader[0] == 0x0) {
+					break; //we've reached padding
+				}
+
+				String frameId = new String(frameHeader, 0, 4, "US-ASCII");
+
+				//a signed int will hold the result no problem due to the entire
+				// tag's total size limit
+				int frameSize = (0xFFFFFFFF & frameHeader[7]) |
+						((0xFFFFFFFF & frameHeader[6]) << 8) |
+						((0xFFFFFFFF & frameHeader[5]) << 16) |
+						((0xFFFFFFFF & frameHeader[4]) << 24);
+
+				if (Arrays.asList(TAG_IDS_OF_INTEREST)
+						.contains(frameId)) { //read the actual frame
+
+					//"TXXX", "TIT2", "TRCK", "TPE1", "TALB"
+
+					byte[] frameData = new byte[frameSize];
+					grandTotal += in.read(frameData, 0, frameSize);
+
+					if (frameId.equals("TXXX") &&
+							frameData[0] == 0) { //looks like Replay Gain data
+						String str = new String(frameData, "ISO-8859-1").toLowerCase();
+						int index = str.indexOf("replaygain_track_gain");
+						if (index != -1) {
+							int index2 = str.indexOf(" ", index + 1);
+							str = str.substring(
+									index + "replaygain_track_gain".length() + 1,
+									index2);
+							currentSongMeta.rgTrack = Float.parseFloat(str);
+						} else if ((index = str.indexOf("replaygain_album_gain")) !=
+								-1) {
+							int index2 = str.indexOf(" ", index + 1);
+							str = str.substring(
+									index + "replaygain_album_gain".length() + 1,
+									index2);
+							currentSongMeta.rgAlbum = Float.parseFloat(str);
+						}
+					} else if (frameId.equals("TIT2")) {
+						//TODO: handle all text encodings defined in ID3v2.3 and 2.4
+						// properly
+						currentSongMeta.title =
+								new String(frameData, 1, frameData.length - 1, "UTF-8");
+					} else if (frameId.equals("TRCK")) {
+						String str =
+								new String(frameData, 1, frameData.length - 1, "UTF-8");
+						int index;
+						if ((index = str.indexOf("/")) != -1) {
+							str = str.substring(0, index);
+						}
+						try {
+							currentSongMeta.trackNumber = Integer.parseInt(str.trim());
+						} catch (NumberFormatException e) {
+							currentSongMeta.trackNumber = 1;
+						}
+					} else if (frameId.equals("TPE1")) {
+						currentSongMeta.artist =
+								new String(frameData, 1, frameData.length - 1, "UTF-8");
+					} else if (frameId.equals("TALB")) {
+						currentSongMeta.album =
+								new String(frameData, 1, frameData.length - 1, "UTF-8");
+					}
+
+					//TODO: break if we have all the data we need
+
+				} else {
+					grandTotal += in.skip(frameSize);
+				}
+
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.dropbox.client2.DropboxAPI.DeltaPage;
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+
+/**
+ * Keeps the file tree in {@link CloudSongStore} in step with Dropbox using
+ * the delta API.
+ *
+ * The first sync pages through the whole account; after that each sync is
+ * a single request returning only what changed since the stored cursor.
+ * Once the tree has been synced completely, folders are listed and played
+ * from it instead of being walked on Dropbox.
+ *
+ * Tags are fetched in the background for songs whose revision changed, and
+ * for songs added after the first sync. Songs seen in the first sync get
+ * their tags when they are first played, as before.
+ */
+public class DropboxSync implements Handler.Callback {
+	/**
+	 * A sync older than this is refreshed before local data is used.
+	 */
+	private static final long MAX_AGE = 30000;
+	/**
+	 * Number of threads used to fetch tags in the background.
+	 */
+	private static final int FETCH_THREADS = 2;
+	/**
+	 * Sync with Dropbox.
+	 */
+	private static final int MSG_SYNC = 0;
+	/**
+	 * Fetch the tags of the songs in obj, an ArrayList of paths.
+	 */
+	private static final int MSG_FETCH = 1;
+	/**
+	 * Forget the synced tree.
+	 */
+	private static final int MSG_CLEAR = 2;
+
+	private static DropboxSync sInstance;
+
+	private final CloudSongStore mStore;
+	/**
+	 * Handler on the sync thread; created on first use.
+	 */
+	private Handler mHandler;
+	/**
+	 * The API to sync with.
+	 */
+	private CloudClient mApi;
+	/**
+	 * The tag fetch in progress, to cancel it.
+	 */
+	private DropboxMetadataPipeline mPipeline;
+	/**
+	 * When the last sync finished, in SystemClock.elapsedRealtime() time,
+	 * or 0 if none has finished in this process.
+	 */
+	private volatile long mLastSync;
+	/**
+	 * Cached result of mStore.isSynced(); null until checked.
+	 */
+	private volatile Boolean mReady;
+
+	private DropboxSync(Context context)
+	{
+		mStore = CloudSongStore.getInstance(context);
+	}
+
+	/**
+	 * Returns the process-wide instance.
+	 */
+	public static synchronized DropboxSync getInstance(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new DropboxSync(context.getApplicationContext());
+		return sInstance;
+	}
+
+	/**
+	 * Returns true if the file tree in the store has been synced completely
+	 * and can be used instead of listing folders on Dropbox. Should be
+	 * called on a worker thread.
+	 */
+	public boolean isReady()
+	{
+		Boolean ready = mReady;
+		if (ready == null) {
+			ready = mStore.isSynced();
+			mReady = ready;
+		}
+		return ready;
+	}
+
+	/**
+	 * Returns the contents of <code>path</code> in the synced tree, or null
+	 * if it is not a folder there. Should be called on a worker thread.
+	 */
+	public DropboxDirCache.Listing getListing(String path)
+	{
+		ArrayList<Entry> entries = mStore.getChildren(path);
+		return entries == null ? null : DropboxDirCache.newListing(path, null, entries);
+	}
+
+	/**
+	 * Sync in the background, unless a sync is already pending.
+	 */
+	public synchronized void requestSync(CloudClient api)
+	{
+		mApi = api;
+		Handler handler = getHandler();
+		if (!handler.hasMessages(MSG_SYNC))
+			handler.sendEmptyMessage(MSG_SYNC);
+	}
+
+	private synchronized Handler getHandler()
+	{
+		if (mHandler == null) {
+			HandlerThread thread = new HandlerThread("DropboxSync", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			mHandler = new Handler(thread.getLooper(), this);
+		}
+		return mHandler;
+	}
+
+	/**
+	 * Sync now if the last sync is older than a few seconds, so that the
+	 * store can be read as current. Should be called on a worker thread.
+	 *
+	 * @return False if the sync failed; the store is then as current as the
+	 * last successful sync.
+	 */
+	public boolean syncIfStale(CloudClient api)
+	{
+		long last = mLastSync;
+		if (last != 0 && SystemClock.elapsedRealtime() - last < MAX_AGE)
+			return true;
+		try {
+			sync(api);
+			return true;
+		} catch (DropboxException e) {
+			Log.w("OrchidMP", "Unable to sync with Dropbox", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Fetch all changes since the stored cursor and apply them. Only one
+	 * sync runs at a time.
+	 */
+	private void sync(CloudClient api) throws DropboxException
+	{
+		ArrayList<String> changed = new ArrayList<String>();
+		ArrayList<String> removed = new ArrayList<String>();
+
+		synchronized (mStore) {
+			String cursor = mStore.getSyncCursor();
+			// songs seen in the first sync are fetched when played
+			boolean fetchNew = cursor != null && isReady();
+			DeltaPage<Entry> page;
+			do {
+				page = api.delta(cursor);
+				if (page.reset)
+					fetchNew = false;
+				mStore.applyDelta(page.reset, page.entries, page.cursor, !page.hasMore, fetchNew, changed, removed);
+				cursor = page.cursor;
+			} while (page.hasMore);
+			mReady = true;
+			mLastSync = SystemClock.elapsedRealtime();
+		}
+
+		SearchIndex search = SearchIndex.getInstance();
+		for (String path : removed)
+			search.removeCloudSong(path);
+
+		if (!changed.isEmpty()) {
+			synchronized (this) {
+				if (mApi != null)
+					getHandler().sendMessage(getHandler().obtainMessage(MSG_FETCH, changed));
+			}
+		}
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		if (message.what == MSG_CLEAR) {
+			synchronized (mStore) {
+				mStore.clearFiles();
+				mReady = false;
+				mLastSync = 0;
+			}
+			return true;
+		}
+
+		CloudClient api;
+		synchronized (this) {
+			api = mApi;
+		}
+		if (api == null)
+			return true;
+
+		switch (message.what) {
+		case MSG_SYNC:
+			try {
+				sync(api);
+			} catch (DropboxException e) {
+				Log.w("OrchidMP", "Unable to sync with Dropbox", e);
+			}
+			break;
+		case MSG_FETCH: {
+			@SuppressWarnings("unchecked")
+			ArrayList<String> paths = (ArrayList<String>)message.obj;
+			DropboxMetadataPipeline pipeline = new DropboxMetadataPipeline(api, mStore, FETCH_THREADS, null);
+			pipeline.useStoredRevisions();
+			synchronized (this) {
+				mPipeline = pipeline;
+			}
+			try {
+				if (pipeline.load(null, paths) != null) {
+					mStore.putAll(pipeline.getFresh());
+					SearchIndex search = SearchIndex.getInstance();
+					for (CloudSongMetadata song : pipeline.getFresh())
+						search.putCloudSong(song.dbPath, song.title, song.artist, song.album);
+				}
+			} catch (DropboxException e) {
+				Log.w("OrchidMP", "Unable to fetch tags of changed songs", e);
+			}
+			synchronized (this) {
+				mPipeline = null;
+			}
+			break;
+		}
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stop syncing and forget the synced tree, e.g. after unlinking from
+	 * Dropbox. The tree is cleared in the background.
+	 */
+	public synchronized void clear()
+	{
+		mApi = null;
+		mReady = false;
+		mLastSync = 0;
+		Handler handler = getHandler();
+		handler.removeMessages(MSG_SYNC);
+		handler.removeMessages(MSG_FETCH);
+		handler.sendEmptyMessage(MSG_CLEAR);
+		if (mPipeline != null)
+			mPipeline.cancel();
+	}
+}
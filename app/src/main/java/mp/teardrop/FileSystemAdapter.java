@@ -23,15 +23,16 @@
 package mp.teardrop;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
+import android.os.CancellationSignal;
 import android.os.FileObserver;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -49,9 +50,12 @@ public class FileSystemAdapter
 	implements LibraryAdapter
 	         //, View.OnClickListener
 {
-	private static final Pattern SPACE_SPLIT = Pattern.compile("\\s+");
 	private static final Pattern FILE_SEPARATOR = Pattern.compile(File.separator);
 	static final int ID_LINK_TO_PARENT_DIR = -10;
+	/**
+	 * Number of directories whose snapshot is kept, and watched for changes.
+	 */
+	private static final int SNAPSHOT_COUNT = 8;
 
     private boolean mPermissionToReadStorageWasDenied = false;
 
@@ -68,9 +72,14 @@ public class FileSystemAdapter
 	 */
 	private Limiter mLimiter;
 	/**
-	 * The files and folders in the current directory.
+	 * The files and folders in the current directory that match mFilter.
+	 */
+	private DirectorySnapshot.Entry[] mFiles;
+	/**
+	 * The title {@link MusicDatabase} has for each of mFiles, or null where
+	 * it has none. Null if it has none for the whole directory.
 	 */
-	private File[] mFiles;
+	private String[] mTitles;
 	/**
 	 * The folder icon shown for folder rows.
 	 */
@@ -88,45 +97,21 @@ public class FileSystemAdapter
 	 */
 	String[] mFilter;
 	/**
-	 * Excludes dot files and files not matching mFilter.
-	 */
-	private final FilenameFilter mFileFilter = new FilenameFilter() {
-		@Override
-		public boolean accept(File dir, String filename)
-		{
-			if (filename.charAt(0) == '.')
-				return false;
-			if (mFilter != null) {
-				filename = filename.toLowerCase();
-				for (String term : mFilter) {
-					if (!filename.contains(term))
-						return false;
-				}
-			}
-			return true;
-		}
-	};
-	/**
-	 * Sorts folders before files first, then sorts alphabetically by name.
+	 * Observers of the recently shown directories by path, least recently
+	 * used first. Each holds the snapshot of its directory. Also the lock
+	 * for the observers' fields.
 	 */
-	private final Comparator<File> mFileComparator = new Comparator<File>() {
-		@Override
-		public int compare(File a, File b)
-		{
-			boolean aIsFolder = a.isDirectory();
-			boolean bIsFolder = b.isDirectory();
-			if (bIsFolder == aIsFolder) {
-				return a.getName().compareToIgnoreCase(b.getName());
-			} else if (bIsFolder) {
-				return 1;
+	private final LinkedHashMap<String, Observer> mObservers =
+		new LinkedHashMap<String, Observer>(SNAPSHOT_COUNT, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Observer> eldest)
+			{
+				if (size() <= SNAPSHOT_COUNT)
+					return false;
+				eldest.getValue().stopWatching();
+				return true;
 			}
-			return -1;
-		}
-	};
-	/**
-	 * The Observer instance for the current directory.
-	 */
-	private Observer mFileObserver;
+		};
 
 	/**
 	 * Create a FileSystemAdapter.
@@ -152,7 +137,7 @@ public class FileSystemAdapter
 	}
 
 	@Override
-	public Object query()
+	public Object query(CancellationSignal signal)
 	{
         if (!MediaUtils.hasPermissionToReadStorage(mActivity)) {
             MediaInfoHolder mih = new MediaInfoHolder();
@@ -160,16 +145,88 @@ public class FileSystemAdapter
             return mih;
         }
 
-		File file = mLimiter == null ? new File("/") : (File)mLimiter.data;
+		File dir = getDirectory();
+		DirectorySnapshot snapshot = getSnapshot(dir);
+		signal.throwIfCanceled();
+		if (snapshot == null)
+			return null;
+		DirectorySnapshot.Entry[] files = snapshot.filter(mFilter);
+		return new Listing(files, readTitles(dir, files));
+	}
 
-		if (mFileObserver == null) {
-			mFileObserver = new Observer(file.getPath());
+	/**
+	 * The result of a query: the files to show and their titles.
+	 */
+	private static final class Listing {
+		final DirectorySnapshot.Entry[] files;
+		final String[] titles;
+
+		Listing(DirectorySnapshot.Entry[] files, String[] titles)
+		{
+			this.files = files;
+			this.titles = titles;
 		}
+	}
 
-		File[] files = file.listFiles(mFileFilter);
-		if (files != null)
-			Arrays.sort(files, mFileComparator);
-		return files;
+	/**
+	 * Returns the titles of the audio files among <code>files</code> as
+	 * the music scanner stored them, so that the files themselves need not
+	 * be read, or null if none of them has been scanned.
+	 */
+	private String[] readTitles(File dir, DirectorySnapshot.Entry[] files)
+	{
+		HashMap<String, MusicDatabase.Track> tracks = MusicDatabase.getInstance(mActivity).getTracksIn(dir.getPath());
+		if (tracks.isEmpty())
+			return null;
+		String[] titles = new String[files.length];
+		for (int i = 0; i != files.length; ++i) {
+			if (files[i].type != DirectorySnapshot.TYPE_AUDIO)
+				continue;
+			MusicDatabase.Track track = tracks.get(files[i].file.getPath());
+			if (track != null)
+				titles[i] = track.title;
+		}
+		return titles;
+	}
+
+	/**
+	 * Returns the directory currently shown.
+	 */
+	private File getDirectory()
+	{
+		Limiter limiter = mLimiter;
+		return limiter == null ? new File("/") : (File)limiter.data;
+	}
+
+	/**
+	 * Returns the snapshot of <code>dir</code>, taking it if there is no
+	 * current one, or null if the directory cannot be read. The directory is
+	 * watched from then on, so the snapshot can be reused until it changes.
+	 */
+	private DirectorySnapshot getSnapshot(File dir)
+	{
+		String path = dir.getPath();
+		Observer observer;
+		int changes;
+		synchronized (mObservers) {
+			observer = mObservers.get(path);
+			if (observer == null) {
+				// watch before listing, so no change is missed
+				observer = new Observer(path);
+				mObservers.put(path, observer);
+			}
+			if (observer.mSnapshot != null)
+				return observer.mSnapshot;
+			changes = observer.mChanges;
+		}
+
+		DirectorySnapshot snapshot = DirectorySnapshot.take(dir);
+		synchronized (mObservers) {
+			// a change during the listing may have been missed
+			if (observer.mChanges == changes)
+				observer.mSnapshot = snapshot;
+		}
+		return snapshot;
 	}
 
 	@Override
@@ -178,9 +235,12 @@ public class FileSystemAdapter
         if(queryResultIndicatesNoPermission(data)) {
             mPermissionToReadStorageWasDenied = true;
             mFiles = null;
+            mTitles = null;
         } else {
             mPermissionToReadStorageWasDenied = false;
-            mFiles = (File[]) data;
+            Listing listing = (Listing) data;
+            mFiles = listing == null ? null : listing.files;
+            mTitles = listing == null ? null : listing.titles;
         }
 		notifyDataSetInvalidated();
 	}
@@ -199,6 +259,7 @@ public class FileSystemAdapter
 	public void clear()
 	{
 		mFiles = null;
+		mTitles = null;
 		notifyDataSetInvalidated();
 	}
 
@@ -224,7 +285,7 @@ public class FileSystemAdapter
 	@Override
 	public Object getItem(int pos)
 	{
-		return mFiles[pos];
+		return mFiles[pos].file;
 	}
 
 	@Override
@@ -238,22 +299,51 @@ public class FileSystemAdapter
 		public TextView text;
 	}
 
+	/**
+	 * View type of regular file rows.
+	 */
+	private static final int VIEW_TYPE_FILE = 0;
+	/**
+	 * View type of the row asking for storage permission.
+	 */
+	private static final int VIEW_TYPE_NO_PERMISSION = 1;
+
+	@Override
+	public int getViewTypeCount()
+	{
+		return 2;
+	}
+
+	@Override
+	public int getItemViewType(int pos)
+	{
+		return mPermissionToReadStorageWasDenied ? VIEW_TYPE_NO_PERMISSION : VIEW_TYPE_FILE;
+	}
+
 	@Override
 	public View getView(int pos, View convertView, ViewGroup parent)
 	{
 
         if(mPermissionToReadStorageWasDenied) {
-            return getNoPermissionView();
+            return convertView != null ? convertView : getNoPermissionView();
         }
 		
 		View view;
 		ViewHolder holder;
 
-		// always create a new view to get rid of touch feedback from the old one
-		view = mInflater.inflate(R.layout.library_row_orchid, null);
-		holder = new ViewHolder();
-		holder.text = (TextView)view.findViewById(R.id.text);
-		view.setTag(holder);
+		if (convertView == null) {
+			view = mInflater.inflate(R.layout.library_row_orchid, parent, false);
+			holder = new ViewHolder();
+			holder.text = (TextView)view.findViewById(R.id.text);
+			view.setTag(holder);
+		} else {
+			view = convertView;
+			holder = (ViewHolder)view.getTag();
+			// clear touch feedback left over from the row's previous use
+			holder.text.setPressed(false);
+			holder.text.jumpDrawablesToCurrentState();
+		}
+		holder.text.setAlpha(1.0f);
 		
 		if(getLimiter() == null) pos++; //skip the link to the parent dir
 
@@ -264,13 +354,13 @@ public class FileSystemAdapter
 			holder.id = ID_LINK_TO_PARENT_DIR;
 			
 		} else { //represent a file in the current directory
-			File file = mFiles[pos - 1];
-			String fileName = file.getName();
+			DirectorySnapshot.Entry entry = mFiles[pos - 1];
 			holder.id = pos - 1;
-			holder.text.setText(fileName);
-			if(file.isDirectory()) {
+			String title = mTitles == null ? null : mTitles[pos - 1];
+			holder.text.setText(title == null ? entry.name : title);
+			if(entry.type == DirectorySnapshot.TYPE_FOLDER) {
 				holder.text.setCompoundDrawablesWithIntrinsicBounds(mFolderIcon, null, null, null);
-			} else if(fileName.endsWith(".mp3") || fileName.endsWith(".flac")) { //TODO: make this a comprehensive list of extensions
+			} else if(entry.type == DirectorySnapshot.TYPE_AUDIO) {
 				holder.text.setCompoundDrawablesWithIntrinsicBounds(mAudioFileIcon, null, null, null);
 			} else {
 				holder.text.setCompoundDrawablesWithIntrinsicBounds(mMiscFileIcon, null, null, null);
@@ -291,18 +381,12 @@ public class FileSystemAdapter
 	@Override
 	public void setFilter(String filter)
 	{
-		if (filter == null)
-			mFilter = null;
-		else
-			mFilter = SPACE_SPLIT.split(filter.toLowerCase());
+		mFilter = SearchIndex.parseTerms(filter);
 	}
 
 	@Override
 	public void setLimiter(Limiter limiter)
 	{
-		if (mFileObserver != null)
-			mFileObserver.stopWatching();
-		mFileObserver = null;
 		mLimiter = limiter;
 	}
 
@@ -328,7 +412,7 @@ public class FileSystemAdapter
 	@Override
 	public Limiter buildLimiter(int type, long id, String preGeneratedName)
 	{
-		return buildLimiter(mFiles[(int)id]);
+		return buildLimiter(mFiles[(int)id].file);
 	}
 
 	@Override
@@ -338,19 +422,39 @@ public class FileSystemAdapter
 	}
 
 	/**
-	 * FileObserver that reloads the files in this adapter.
+	 * FileObserver that drops the snapshot of its directory when the
+	 * directory changes, and reloads the files in this adapter if it is the
+	 * one shown.
 	 */
 	private class Observer extends FileObserver {
+		private final String mPath;
+		/**
+		 * The current snapshot of the directory, or null if there is none.
+		 * Guarded by mObservers.
+		 */
+		DirectorySnapshot mSnapshot;
+		/**
+		 * Number of changes seen. Guarded by mObservers.
+		 */
+		int mChanges;
+
 		public Observer(String path)
 		{
-			super(path, FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM);
+			super(path, FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM
+				| FileObserver.DELETE_SELF | FileObserver.MOVE_SELF);
+			mPath = path;
 			startWatching();
 		}
 
 		@Override
 		public void onEvent(int event, String path)
 		{
-			mActivity.mPagerAdapter.postRequestRequery(FileSystemAdapter.this);
+			synchronized (mObservers) {
+				mSnapshot = null;
+				++mChanges;
+			}
+			if (mPath.equals(getDirectory().getPath()))
+				mActivity.mPagerAdapter.postRequestRequery(FileSystemAdapter.this);
 		}
 	}
 
@@ -372,12 +476,13 @@ public class FileSystemAdapter
 			return intent;
 		}
 		
-		File file = mFiles[holder.id];
+		DirectorySnapshot.Entry entry = mFiles[holder.id];
+		File file = entry.file;
 
 		intent.putExtra(LibraryAdapter.DATA_TYPE, MediaUtils.TYPE_FILE);
 		intent.putExtra(LibraryAdapter.DATA_ID, (long)holder.id);
 		intent.putExtra(LibraryAdapter.DATA_TITLE, holder.text.getText().toString());
-		intent.putExtra(LibraryAdapter.DATA_EXPANDABLE, file.isDirectory());
+		intent.putExtra(LibraryAdapter.DATA_EXPANDABLE, entry.type == DirectorySnapshot.TYPE_FOLDER);
 
 		String path;
 		try {
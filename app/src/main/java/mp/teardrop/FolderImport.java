@@ -0,0 +1,372 @@
+package mp.teardrop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.widget.Toast;
+
+/**
+ * Imports a local file or folder into the queue, straight from the
+ * filesystem: the tree is walked in the order the file browser shows it
+ * and the tags of its audio files are read with bastp on a few threads.
+ * Nothing is looked up in MediaStore, so files the media scanner has not
+ * indexed yet are found too.
+ *
+ * Songs reach the queue a folder at a time, sorted by track number, as
+ * soon as the folder and every folder before it have been read, in the
+ * batches of {@link ImportBatch}.
+ *
+ * Owned by PlaybackService.
+ */
+public class FolderImport implements Handler.Callback {
+	/**
+	 * Most threads reading tags at once.
+	 */
+	private static final int MAX_THREADS = 4;
+	/**
+	 * Run the import in obj. Sent to the import thread.
+	 */
+	private static final int MSG_IMPORT = 0;
+	/**
+	 * Show the message in obj. Sent to the main thread.
+	 */
+	private static final int MSG_TOAST = 1;
+
+	/**
+	 * Sorts the songs of a folder by track number. Songs without one go
+	 * last, in file name order.
+	 */
+	private static final Comparator<Song> TRACK_ORDER = new Comparator<Song>() {
+		@Override
+		public int compare(Song a, Song b)
+		{
+			int aTrack = a.trackNumber > 0 ? a.trackNumber : Integer.MAX_VALUE;
+			int bTrack = b.trackNumber > 0 ? b.trackNumber : Integer.MAX_VALUE;
+			return aTrack < bTrack ? -1 : (aTrack == bTrack ? 0 : 1);
+		}
+	};
+
+	/**
+	 * One import.
+	 */
+	private final class Job extends ImportBatch<Song> {
+		final String path;
+		final int mode;
+		volatile boolean cancelled;
+		/**
+		 * The tag reads of the folders walked so far whose songs have not
+		 * been queued yet, one list per folder, in walk order.
+		 */
+		final ArrayDeque<List<Future<Song>>> folders = new ArrayDeque<List<Future<Song>>>();
+		/**
+		 * Canonical paths of the folders walked, to get out of symlink
+		 * loops.
+		 */
+		final HashSet<String> visited = new HashSet<String>();
+
+		Job(String path, int mode)
+		{
+			this.path = path;
+			this.mode = mode;
+		}
+
+		@Override
+		boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		@Override
+		void addFirst(ArrayList<Song> songs)
+		{
+			mService.addFileSongs(songs, mode);
+		}
+
+		@Override
+		void append(ArrayList<Song> songs)
+		{
+			mService.appendFileSongs(songs);
+		}
+	}
+
+	private final PlaybackService mService;
+	private final MusicDatabase mDatabase;
+	/**
+	 * Handler on the main thread.
+	 */
+	private final Handler mUiHandler;
+	/**
+	 * Handler on the import thread.
+	 */
+	private final Handler mHandler;
+	/**
+	 * Reads tags.
+	 */
+	private final ExecutorService mExecutor;
+	/**
+	 * The import that is running or about to, or null.
+	 */
+	private Job mJob;
+
+	FolderImport(PlaybackService service)
+	{
+		mService = service;
+		mDatabase = MusicDatabase.getInstance(service);
+		mUiHandler = new Handler(Looper.getMainLooper(), this);
+		HandlerThread thread = new HandlerThread("FolderImport", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper(), this);
+		int threads = Math.min(MAX_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+		mExecutor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Import the file or folder at <code>path</code>, cancelling any other
+	 * folder import.
+	 *
+	 * @param mode How to add the songs to the timeline, one of
+	 * {@link SongTimeline}.MODE_*.
+	 */
+	public void start(String path, int mode)
+	{
+		Job job = new Job(path, mode);
+		synchronized (this) {
+			cancelJob();
+			mJob = job;
+		}
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_IMPORT, job));
+	}
+
+	/**
+	 * Stop the current import, if any. May be called from any thread.
+	 */
+	public synchronized void cancel()
+	{
+		cancelJob();
+	}
+
+	private void cancelJob()
+	{
+		if (mJob != null) {
+			mJob.cancelled = true;
+			mJob = null;
+		}
+	}
+
+	/**
+	 * Stop the current import and the import threads, when the service
+	 * shuts down.
+	 */
+	void shutdown()
+	{
+		cancel();
+		mHandler.getLooper().quit();
+		mExecutor.shutdownNow();
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_IMPORT: {
+			Job job = (Job)message.obj;
+			if (!job.cancelled)
+				run(job);
+			finish(job);
+			break;
+		}
+		case MSG_TOAST:
+			Toast.makeText(mService, (String)message.obj, Toast.LENGTH_SHORT).show();
+			break;
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Walk the import's file or folder, reading the tags of its songs and
+	 * queueing them as they are ready. Runs on the import thread.
+	 */
+	private void run(Job job)
+	{
+		File root = new File(job.path);
+		if (root.isDirectory()) {
+			walk(job, root);
+		} else if (DirectorySnapshot.isAudio(root.getName())) {
+			job.folders.add(Collections.singletonList(read(root)));
+		}
+		drain(job, true);
+	}
+
+	/**
+	 * Start reading the songs of <code>dir</code> and then walk its
+	 * subfolders, queueing each folder's songs once they and the songs
+	 * before them are read. Runs on the import thread.
+	 */
+	private void walk(Job job, File dir)
+	{
+		try {
+			if (!job.visited.add(dir.getCanonicalPath()))
+				return;
+		} catch (IOException e) {
+			return;
+		}
+
+		DirectorySnapshot snapshot = DirectorySnapshot.take(dir);
+		if (snapshot == null)
+			return;
+
+		ArrayList<Future<Song>> reads = new ArrayList<Future<Song>>();
+		for (DirectorySnapshot.Entry entry : snapshot.entries) {
+			if (entry.type == DirectorySnapshot.TYPE_AUDIO)
+				reads.add(read(entry.file));
+		}
+		if (!reads.isEmpty())
+			job.folders.add(reads);
+		drain(job, false);
+
+		for (DirectorySnapshot.Entry entry : snapshot.entries) {
+			if (job.cancelled)
+				return;
+			if (entry.type == DirectorySnapshot.TYPE_FOLDER)
+				walk(job, entry.file);
+		}
+	}
+
+	/**
+	 * Read the tags of <code>file</code> on the tag threads.
+	 */
+	private Future<Song> read(final File file)
+	{
+		return mExecutor.submit(new Callable<Song>() {
+			@Override
+			public Song call()
+			{
+				return readSong(file);
+			}
+		});
+	}
+
+	/**
+	 * Queue the songs of the folders whose tags have all been read, in walk
+	 * order, stopping at the first folder that is not ready. Runs on the
+	 * import thread.
+	 *
+	 * @param wait True to wait for every folder.
+	 */
+	private void drain(Job job, boolean wait)
+	{
+		while (!job.folders.isEmpty()) {
+			if (job.cancelled) {
+				for (List<Future<Song>> folder : job.folders) {
+					for (Future<Song> read : folder)
+						read.cancel(false);
+				}
+				job.folders.clear();
+				return;
+			}
+
+			List<Future<Song>> folder = job.folders.peek();
+			if (!wait) {
+				for (Future<Song> read : folder) {
+					if (!read.isDone())
+						return;
+				}
+			}
+			job.folders.poll();
+
+			ArrayList<Song> songs = new ArrayList<Song>(folder.size());
+			for (Future<Song> read : folder) {
+				try {
+					songs.add(read.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					// skip the song
+				}
+			}
+			Collections.sort(songs, TRACK_ORDER);
+			for (Song song : songs)
+				job.add(song);
+		}
+	}
+
+	/**
+	 * Add the last songs of an import to the service and tell the user how
+	 * many there were. Runs on the import thread.
+	 */
+	private void finish(Job job)
+	{
+		synchronized (this) {
+			if (mJob == job)
+				mJob = null;
+		}
+		if (job.cancelled)
+			return;
+		job.flush();
+		int text;
+		switch (job.mode) {
+		case SongTimeline.MODE_PLAY:
+		case SongTimeline.MODE_PLAY_POS_FIRST:
+		case SongTimeline.MODE_PLAY_ID_FIRST:
+			text = R.plurals.playing;
+			break;
+		default:
+			text = R.plurals.enqueued;
+			break;
+		}
+		String message = mService.getResources().getQuantityString(text, job.getAdded(), job.getAdded());
+		mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_TOAST, message));
+	}
+
+	/**
+	 * Returns a Song for the audio file <code>file</code>, from
+	 * MusicDatabase if the file has not changed since it was scanned and
+	 * with the tags bastp finds in it otherwise. Missing tags are filled in
+	 * from the file and folder names. Runs on a tag thread.
+	 */
+	private Song readSong(File file)
+	{
+		MusicDatabase.Track track = mDatabase.getTrack(file.getPath());
+		if (track == null || !track.isCurrent(file.lastModified(), file.length()))
+			track = MusicScanner.readTags(file);
+
+		String title = track.title;
+		if (title == null) {
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			title = dot > 0 ? name.substring(0, dot) : name;
+		}
+		String album = track.album;
+		if (album == null)
+			album = file.getParentFile().getName();
+		String artist = track.artist;
+		if (artist == null)
+			artist = mService.getString(R.string.unknown);
+
+		Song song = new Song(false, file.getPath(), title, album, artist, track.trackNumber);
+		// spares PlaybackService reading the file again before playing it
+		song.rgTrack = track.rgTrack;
+		song.rgAlbum = track.rgAlbum;
+		return song;
+	}
+}
@@ -155,7 +155,7 @@ public class FullPlaybackActivity extends PlaybackActivity
 		registerForContextMenu(mEndButton);
 		
 		mListView = (ListView) findViewById(R.id.integrated_list);
-		listAdapter = new ShowQueueAdapter(this, R.layout.showqueue_row);
+		listAdapter = new ShowQueueAdapter(this, R.layout.showqueue_row, mListView);
 		mListView.setAdapter(listAdapter);
 		mListView.setOnItemClickListener(new OnItemClickListener() {
 			@Override
@@ -185,7 +185,8 @@ public class FullPlaybackActivity extends PlaybackActivity
 		super.onResume();
 		mPaused = false;
 		updateElapsedTime();
-		refreshSongQueueList();
+		listAdapter.attach(PlaybackService.get(this));
+		scrollToCurrentSong();
 	}
 
 	@Override
@@ -193,6 +194,7 @@ public class FullPlaybackActivity extends PlaybackActivity
 	{
 		super.onPause();
 		mPaused = true;
+		listAdapter.detach();
 	}
 
 	@Override
@@ -237,7 +239,7 @@ public class FullPlaybackActivity extends PlaybackActivity
 		mCurrentSong = song;
 		updateElapsedTime();
 		hideLoadingMessage();
-		refreshSongQueueList();
+		scrollToCurrentSong();
 	}
 	
 	@Override
@@ -303,6 +305,7 @@ public class FullPlaybackActivity extends PlaybackActivity
 	{
 		super.onCreateOptionsMenu(menu);
 		menu.add(0, MENU_CLEAR_QUEUE, 0, R.string.clear_queue).setIcon(R.drawable.ic_menu_close_clear_cancel);
+		menu.add(0, MENU_UNDO_QUEUE, 0, R.string.undo_queue_change);
 		//menu.add(0, MENU_ENQUEUE_ALBUM, 0, R.string.enqueue_current_album).setIcon(R.drawable.ic_menu_add);
 		//menu.add(0, MENU_ENQUEUE_ARTIST, 0, R.string.enqueue_current_artist).setIcon(R.drawable.ic_menu_add);
 		//menu.add(0, MENU_ENQUEUE_GENRE, 0, R.string.enqueue_current_genre).setIcon(R.drawable.ic_menu_add);
@@ -310,6 +313,14 @@ public class FullPlaybackActivity extends PlaybackActivity
 		return true;
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu)
+	{
+		super.onPrepareOptionsMenu(menu);
+		menu.findItem(MENU_UNDO_QUEUE).setEnabled(PlaybackService.get(this).canUndoQueueChange());
+		return true;
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item)
 	{
@@ -330,6 +341,9 @@ public class FullPlaybackActivity extends PlaybackActivity
 		case MENU_CLEAR_QUEUE:
 			PlaybackService.get(this).clearQueue(this);
 			break;
+		case MENU_UNDO_QUEUE:
+			PlaybackService.get(this).undoQueueChange();
+			break;
 		default:
 			return super.onOptionsItemSelected(item);
 		}
@@ -598,19 +612,12 @@ public class FullPlaybackActivity extends PlaybackActivity
 		}
 	}
 	
-	private void refreshSongQueueList() {
-		int i, stotal, spos;
-		PlaybackService service = PlaybackService.get(this);
-		
-		stotal = service.getTimelineLength();   /* Total number of songs in queue */
-		spos   = service.getTimelinePosition(); /* Current position in queue      */
-		
-		listAdapter.clear();                    /* Flush all existing entries...  */
-		listAdapter.highlightRow(spos);         /* and highlight current position */
-		
-		for(i=0 ; i<stotal; i++) {
-			listAdapter.add(service.getSongByQueuePosition(i));
-		}
+	private void scrollToCurrentSong() {
+		/* The adapter follows the timeline on its own; we only need to keep
+		 * the current song in view. The adapter may still be catching up
+		 * with the timeline, so clamp to what the list knows about. */
+		int spos = Math.min(PlaybackService.get(this).getTimelinePosition(), listAdapter.getCount() - 1);
+		if(spos < 0) return;
 		
 		/* scroll to current song if needed
 		 * smoothScrollToPosition is a bit bugged (see Stack Overflow 14479078),
@@ -627,11 +634,10 @@ public class FullPlaybackActivity extends PlaybackActivity
 
 	@Override
 	public void timelineChanged() {
-		refreshSongQueueList();
+		//not needed, the queue list receives its own change events
 	}
 
 	public void timelineShuffled() {
-		refreshSongQueueList();
 		setState(PlaybackService.get(this).setFinishAction(SongTimeline.FINISH_STOP));
 		Toast.makeText(this, R.string.queue_shuffled, Toast.LENGTH_SHORT).show();
 	}
@@ -0,0 +1,96 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+
+/**
+ * Gathers the ready songs of an import and hands them to PlaybackService
+ * in batches: the first song right away, so that playback can start, and
+ * the rest a few at a time, so that the timeline changes a few times a
+ * second at most rather than once per song.
+ *
+ * Not thread-safe; an import adds its songs from one thread at a time.
+ *
+ * @param <T> The type the service takes the songs of the import as.
+ */
+abstract class ImportBatch<T> {
+	/**
+	 * Number of ready songs that are added to the queue at once.
+	 */
+	private static final int BATCH_SIZE = 25;
+	/**
+	 * Longest a ready song waits for others to be added with, in
+	 * milliseconds.
+	 */
+	private static final long BATCH_INTERVAL = 500;
+
+	/**
+	 * Ready songs not yet added to the queue.
+	 */
+	private ArrayList<T> mBatch = new ArrayList<T>();
+	/**
+	 * Number of songs added to the queue so far.
+	 */
+	private int mAdded;
+	/**
+	 * When the last batch was added, in SystemClock.elapsedRealtime()
+	 * time.
+	 */
+	private long mLastBatch;
+
+	/**
+	 * Returns true if the import was cancelled, so nothing more is added.
+	 */
+	abstract boolean isCancelled();
+
+	/**
+	 * Add the first batch of the import, according to its mode.
+	 */
+	abstract void addFirst(ArrayList<T> songs);
+
+	/**
+	 * Add a later batch of the import at the end of the queue.
+	 */
+	abstract void append(ArrayList<T> songs);
+
+	/**
+	 * Queue a ready song, and add the songs waiting if it is the first song
+	 * or enough of them have gathered.
+	 *
+	 * @param song The song, or null to only add the songs waiting if they
+	 * are due.
+	 */
+	void add(T song)
+	{
+		if (song != null)
+			mBatch.add(song);
+		if (mAdded == 0 || mBatch.size() >= BATCH_SIZE
+				|| SystemClock.elapsedRealtime() - mLastBatch >= BATCH_INTERVAL)
+			flush();
+	}
+
+	/**
+	 * Add the songs waiting, unless the import was cancelled.
+	 */
+	void flush()
+	{
+		if (mBatch.isEmpty() || isCancelled())
+			return;
+		if (mAdded == 0)
+			addFirst(mBatch);
+		else
+			append(mBatch);
+		mAdded += mBatch.size();
+		mBatch = new ArrayList<T>();
+		mLastBatch = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Returns the number of songs added to the queue so far.
+	 */
+	int getAdded()
+	{
+		return mAdded;
+	}
+}
@@ -22,19 +22,7 @@
 
 package mp.teardrop;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.List;
-import java.util.Set;
 
 import android.Manifest;
 import android.app.AlertDialog;
@@ -58,6 +46,7 @@ import android.support.v4.view.PagerTabStrip;
 import android.support.v4.view.ViewPager;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.KeyEvent;
@@ -74,18 +63,16 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.dropbox.client2.DropboxAPI;
-import com.dropbox.client2.DropboxAPI.DropboxLink;
-import com.dropbox.client2.DropboxAPI.Entry;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.dropbox.client2.exception.DropboxException;
-import com.dropbox.client2.exception.DropboxServerException;
 import com.dropbox.client2.session.AppKeyPair;
 
 /**
  * The library activity where songs to play can be selected from the library.
  */
 public class LibraryActivity extends PlaybackActivity
-        implements TextWatcher, DialogInterface.OnClickListener, DialogInterface.OnDismissListener {
+        implements TextWatcher, DialogInterface.OnClickListener, DialogInterface.OnDismissListener,
+        CloudImport.Callback {
 
     /**
      * Action for row click: play the row.
@@ -185,9 +172,9 @@ public class LibraryActivity extends PlaybackActivity
      */
     private boolean mSomethingToPlay;
 
-    //used when retrieving metadata from Dropbox
-    private static final String[] TAG_IDS_OF_INTEREST = {"TXXX", "TIT2", "TRCK", "TPE1", "TALB"};
-
+    /**
+     * Where cloud song metadata was kept before {@link CloudSongStore}; only read to move it over.
+     */
     static final String PREFS_CLOUD_SONG_CACHE = "daocCloudsongNinja";
     static final String PREFS_CLOUD_DIR_HASHES = "daocCloudsongDirNinja";
 
@@ -198,12 +185,18 @@ public class LibraryActivity extends PlaybackActivity
     final static String ACCESS_SECRET_NAME = "ACCESS_SECRET";
 
     static DropboxAPI<AndroidAuthSession> mApi;
+    /**
+     * What the cloud code talks to Dropbox through: mApi, or a stand-in.
+     */
+    static CloudClient mCloud;
 
 
     private void linkOrUnlink() {
         if (mApi.getSession().isLinked()) {
             mApi.getSession().unlink();
             clearKeys();
+            DropboxDirCache.getInstance(this).clear();
+            DropboxSync.getInstance(this).clear();
             updateUi(false);
         } else {
             mApi.getSession().startOAuth2Authentication(this);
@@ -277,386 +270,155 @@ public class LibraryActivity extends PlaybackActivity
         if (loggedIn) {
             lockDropboxFileBrowser();
             mPagerAdapter.mDropboxAdapter.mLinkedWithDropbox = true;
+            DropboxSync.getInstance(this).requestSync(mCloud);
             requeryDropbox(null);
         } else {
             mPagerAdapter.mDropboxAdapter.resetAfterDropboxUnlinked();
             unlockDropboxFileBrowser();
-            //TODO: cancel any Dropbox async tasks?
+            if (mDropboxLs != null) {
+                mDropboxLs.cancel(false);
+                mDropboxLs = null;
+            }
+            if (PlaybackService.hasInstance()) {
+                PlaybackService.get(this).getCloudImport().cancel();
+            }
         }
     }
 
 
-    void requeryDropbox(Limiter limiter) {
-        new DropboxLs(limiter).execute();
-    }
-
-
     /**
-     * Used to retrieve and display the contents of the directory specified by the limiter passed
-     * to the constructor.
+     * The listing task for the directory being shown, so that a slower task for a directory the
+     * user has already left does not overwrite it.
      */
-    private class DropboxLs extends AsyncTask<Object, Object, List<Entry>> {
-
-        private Limiter mLimiter;
+    private DropboxLs mDropboxLs;
 
 
-        /**
-         * Specifies the directory whose contents are to be retrieved.
-         * Will default to the root directory if null is passed.
-         */
-        public DropboxLs(Limiter limiter) {
-            mLimiter = limiter;
+    void requeryDropbox(Limiter limiter) {
+        if (mDropboxLs != null) {
+            mDropboxLs.cancel(false);
         }
 
-
-        @Override
-        protected List<Entry> doInBackground(Object... params) { //TODO: error handling!!!
-            Entry someFiles = null;
-            try {
-                someFiles = LibraryActivity.this.mApi
-                        .metadata((mLimiter == null ? "/" : (String) mLimiter.data), 0, null, true,
-                                null);
-            } catch (DropboxException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-            List<Entry> sortingBuffer = someFiles.contents;
-            Collections.sort(someFiles.contents, new Comparator<Entry>() {
-                @Override
-                public int compare(Entry lhs, Entry rhs) {
-                    if (lhs.isDir && !rhs.isDir) {
-                        return -1;
-                    } else if (!lhs.isDir && rhs.isDir) {
-                        return 1;
-                    } else {
-                        return lhs.fileName().compareToIgnoreCase(rhs.fileName());
-                    }
-                }
-            });
-            return sortingBuffer;
+        // a listing still in memory is shown at once and revalidated in the background
+        String path = limiter == null ? "/" : (String) limiter.data;
+        DropboxDirCache.Listing cached = DropboxDirCache.getInstance(this).peek(path);
+        if (cached != null) {
+            showDropboxListing(limiter, cached);
         }
 
+        mDropboxLs = new DropboxLs(limiter, cached);
+        mDropboxLs.execute();
+    }
 
-        @Override
-        protected void onPostExecute(List<Entry> result) {
-            mPagerAdapter.mDropboxAdapter.setLimiter(mLimiter);
-            mPagerAdapter.mDropboxAdapter.commitQuery(result);
-            updateLimiterViews();
-            unlockDropboxFileBrowser();
-        }
 
+    private void showDropboxListing(Limiter limiter, DropboxDirCache.Listing listing) {
+        mPagerAdapter.mDropboxAdapter.setLimiter(limiter);
+        mPagerAdapter.mDropboxAdapter.commitQuery(listing.entries);
+        updateLimiterViews();
+        unlockDropboxFileBrowser();
     }
 
 
-    private class DropboxPrepareMetadata
-            extends AsyncTask<Void, Integer, ArrayList<CloudSongMetadata>> {
+    /**
+     * Used to retrieve and display the contents of the directory specified by the limiter passed
+     * to the constructor. A cached listing is displayed first, if there is one, and replaced only
+     * if Dropbox reports that the directory has changed.
+     */
+    private class DropboxLs extends AsyncTask<Object, DropboxDirCache.Listing, DropboxDirCache.Listing> {
 
+        private Limiter mLimiter;
         private String mPath;
-        private int mMode;
-        private int totalSongs;
-        private String mToastMessage = null;
+        private DropboxDirCache.Listing mShown;
 
 
-        public DropboxPrepareMetadata(String path, int mode) {
-            mPath = path;
-            mMode = mode;
-        }
-
-
-        @Override
-        protected void onPreExecute() {
-            ((TextView) LibraryActivity.this.findViewById(R.id.progress_pane_text))
-                    .setText(R.string.preparing_cloud_songs);
-
-            LibraryActivity.this.findViewById(R.id.progress_pane).setVisibility(View.VISIBLE);
+        /**
+         * Specifies the directory whose contents are to be retrieved.
+         * Will default to the root directory if null is passed.
+         *
+         * @param shown The listing already on screen, or null.
+         */
+        public DropboxLs(Limiter limiter, DropboxDirCache.Listing shown) {
+            mLimiter = limiter;
+            mPath = limiter == null ? "/" : (String) limiter.data;
+            mShown = shown;
         }
 
 
         @Override
-        protected ArrayList<CloudSongMetadata> doInBackground(Void... v) {
-            try {
-
-                SharedPreferences dirCachePrefs = LibraryActivity.this
-                        .getSharedPreferences(LibraryActivity.PREFS_CLOUD_DIR_HASHES, 0);
-                SharedPreferences songCachePrefs = LibraryActivity.this
-                        .getSharedPreferences(LibraryActivity.PREFS_CLOUD_SONG_CACHE, 0);
-
-                String localHash = dirCachePrefs.getString(mPath, null);
-
-                Entry theFile = null; //will stay null if we have everything cached
-
-                try {
-                    theFile = LibraryActivity.this.mApi.metadata(mPath, 0, localHash, true, null);
-                } catch (DropboxServerException e1) {
-                    /*
-                     * if 304 (good!), just leave theFile as null - further code will then
-                     * retrieve everything from cache
-					 * if not 304, some serious error occurred
-					 */
-                    if (e1.error != DropboxServerException._304_NOT_MODIFIED) {
-                        return null;
-                    }
-                }
-
-                ArrayList<String> songPaths = new ArrayList<String>();
-
-
-                if (theFile != null &&
-                        theFile.isDir) { //search online, recursively, for song files in the dir
-
-                    ArrayList<String> pathsToCheck = new ArrayList<String>();
-                    pathsToCheck.add(theFile.path);
-                    while (!pathsToCheck.isEmpty()) {
-                        Entry someDir = LibraryActivity.this.mApi
-                                .metadata(pathsToCheck.remove(0), 0, null, true, null);
-                        for (int i = 0; i != someDir.contents.size(); i++) {
-                            Entry someFile = someDir.contents.get(i);
-                            if (someFile.isDir) {
-                                pathsToCheck.add(someFile.path);
-                            } else if (someFile.fileName().toLowerCase().endsWith(
-                                    ".mp3")) { //TODO: make this a comprehensive list of extensions
-                                songPaths.add(someFile.path);
-                            }
-                        }
-                    }
-
-                } else if (theFile != null) { //just handle this one song
-                    if (!theFile.path.toLowerCase().endsWith(".mp3")) {
-                        //TODO: hardcoded string
-                        mToastMessage = "Only mp3 files can be streamed for now. More coming soon!";
-                        return null;
-                    }
-                    songPaths.add(theFile.path);
-                } else { //we have everything cached! add the paths to songPaths to re-download
-                    // data anyway if streaming links have expired
-
-                    Set<String> cachedFilePaths = songCachePrefs.getAll().keySet();
-
-                    for (String cachedFilePath : cachedFilePaths) {
-                        if (cachedFilePath.toLowerCase().startsWith(mPath.toLowerCase())) {
-                            songPaths.add(cachedFilePath);
-                        }
-                    }
-
-                }
-
-                if (songPaths.isEmpty()) {
-                    //TODO: get rid of "an error occurred" toast that currently follows this,
-                    // also, hardcoded string
-                    mToastMessage = "No mp3 files to play in this directory.";
-                    return null;
-                }
-
-                totalSongs = songPaths.size();
-
-				/* now download metadata (ID3 tags etc.) for each song - unless up-to-date,
-                locally cached data is available */
-
-                ArrayList<CloudSongMetadata> cloudSongs = new ArrayList<CloudSongMetadata>();
-                SharedPreferences.Editor songCachePrefsEditor = songCachePrefs.edit();
-
-                int currentSongNumber = 0;
-                for (String songPath : songPaths) {
-
-                    currentSongNumber++;
-                    publishProgress(currentSongNumber);
-
-                    Entry currentSong =
-                            LibraryActivity.this.mApi.metadata(songPath, 1, null, false, null);
-
-                    String jsonString = songCachePrefs.getString(songPath, null);
-                    if (jsonString != null) {
-                        CloudSongMetadata cachedMetadata =
-                                CloudSongMetadata.fromJsonString(jsonString);
-
-                        /*TODO: don't re-download the entire metadata if
-                          only the streaming link needs a refresh */
-
-                        if (cachedMetadata != null &&
-                                cachedMetadata.expires != null &&
-                                cachedMetadata.expires.after(new Date()) &&
-                                cachedMetadata.revision != null &&
-                                cachedMetadata.revision.equals(currentSong.rev)) {
-
-                            cloudSongs.add(cachedMetadata);
-                            continue;
-
-                        }
-                    }
-
-
-                    DropboxLink streamingLink = LibraryActivity.this.mApi.media(songPath, true);
-
-                    CloudSongMetadata currentSongMeta =
-                            new CloudSongMetadata(streamingLink, currentSong.path, currentSong.rev,
-                                    0, 0, currentSong.fileName(), "?", "?", 0, 1);
-
-					/* download a part of the file to read tags (title, artist, etc.) and
-                    ReplayGain info */
-                    URL url = null;
-                    url = new URL(streamingLink.url);
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-                    BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
-
-                    byte[] id3v2Header = new byte[10];
-                    in.read(id3v2Header, 0, 10);
-
-                    if (id3v2Header[0] == 0x49 && id3v2Header[1] == 0x44 &&
-                            id3v2Header[2] == 0x33) { //the song actually has an id3v2 tag
-
-                        //a signed int is fine, as a valid ID3 tag will never be as large as to
-                        // require full 32 bits to represent its size
-                        int id3v2TagSize =
-                                id3v2Header[9] + id3v2Header[8] * 128 + id3v2Header[7] * 16384 +
-                                        id3v2Header[6] * 2097152;
-
-                        if ((id3v2Header[5] & 64) != 0) { //extended header is present
-                            in.skip(1337); //TODO: use actual size
-                        }
-
-                        //now read tag frames
-                        long grandTotal = 0; //total bytes read or skipped
-
-                        while (grandTotal < id3v2TagSize -
-                                10) { //if 10 bytes or less remain, they can only be padding
-
-                            byte[] frameHeader = new byte[10];
-                            grandTotal += in.read(frameHeader, 0, 10);
-
-                            if (frameHeader[0] == 0x0) {
-                                break; //we've reached padding
-                            }
-
-                            String frameId = new String(frameHeader, 0, 4, "US-ASCII");
-
-                            //a signed int will hold the result no problem due to the entire
-                            // tag's total size limit
-                            int frameSize = (0xFFFFFFFF & frameHeader[7]) |
-                                    ((0xFFFFFFFF & frameHeader[6]) << 8) |
-                                    ((0xFFFFFFFF & frameHeader[5]) << 16) |
-                                    ((0xFFFFFFFF & frameHeader[4]) << 24);
-
-                            if (Arrays.asList(LibraryActivity.TAG_IDS_OF_INTEREST)
-                                    .contains(frameId)) { //read the actual frame
-
-                                //"TXXX", "TIT2", "TRCK", "TPE1", "TALB"
-
-                                byte[] frameData = new byte[frameSize];
-                                grandTotal += in.read(frameData, 0, frameSize);
-
-                                if (frameId.equals("TXXX") &&
-                                        frameData[0] == 0) { //looks like Replay Gain data
-                                    String str = new String(frameData, "ISO-8859-1").toLowerCase();
-                                    int index = str.indexOf("replaygain_track_gain");
-                                    if (index != -1) {
-                                        int index2 = str.indexOf(" ", index + 1);
-                                        str = str.substring(
-                                                index + "replaygain_track_gain".length() + 1,
-                                                index2);
-                                        currentSongMeta.rgTrack = Float.parseFloat(str);
-                                    } else if ((index = str.indexOf("replaygain_album_gain")) !=
-                                            -1) {
-                                        int index2 = str.indexOf(" ", index + 1);
-                                        str = str.substring(
-                                                index + "replaygain_album_gain".length() + 1,
-                                                index2);
-                                        currentSongMeta.rgAlbum = Float.parseFloat(str);
-                                    }
-                                } else if (frameId.equals("TIT2")) {
-                                    //TODO: handle all text encodings defined in ID3v2.3 and 2.4
-                                    // properly
-                                    currentSongMeta.title =
-                                            new String(frameData, 1, frameData.length - 1, "UTF-8");
-                                } else if (frameId.equals("TRCK")) {
-                                    String str =
-                                            new String(frameData, 1, frameData.length - 1, "UTF-8");
-                                    int index;
-                                    if ((index = str.indexOf("/")) != -1) {
-                                        str = str.substring(0, index);
-                                    }
-                                    try {
-                                        currentSongMeta.trackNumber = Integer.parseInt(str.trim());
-                                    } catch (NumberFormatException e) {
-                                        currentSongMeta.trackNumber = 1;
-                                    }
-                                } else if (frameId.equals("TPE1")) {
-                                    currentSongMeta.artist =
-                                            new String(frameData, 1, frameData.length - 1, "UTF-8");
-                                } else if (frameId.equals("TALB")) {
-                                    currentSongMeta.album =
-                                            new String(frameData, 1, frameData.length - 1, "UTF-8");
-                                }
-
-                                //TODO: break if we have all the data we need
-
-                            } else {
-                                grandTotal += in.skip(frameSize);
-                            }
-
-                        }
-                    }
-
-                    in.close();
-                    connection.disconnect();
-                    cloudSongs.add(currentSongMeta);
-
-                    String jsonString1 = currentSongMeta.toJsonObject().toString();
-                    if (jsonString1 != null) {
-                        songCachePrefsEditor.putString(songPath, jsonString1);
-                    }
-
-
+        protected DropboxDirCache.Listing doInBackground(Object... params) {
+            DropboxDirCache cache = DropboxDirCache.getInstance(LibraryActivity.this);
+            DropboxDirCache.Listing cached = mShown;
+            if (cached == null) {
+                cached = cache.get(mPath);
+                if (cached != null) {
+                    publishProgress(cached);
                 }
+            }
 
-                songCachePrefsEditor.commit();
-
-                if (theFile != null &&
-                        theFile.isDir) { //theFile is be null iff we had everything cached
-                    SharedPreferences.Editor dirCachePrefsEditor = dirCachePrefs.edit();
-                    dirCachePrefsEditor.putString(theFile.path, theFile.hash);
-                    dirCachePrefsEditor.commit();
+            DropboxSync sync = DropboxSync.getInstance(LibraryActivity.this);
+            if (sync.isReady()) {
+                //the synced tree is as good as a listing and costs at most one delta request
+                sync.syncIfStale(LibraryActivity.this.mCloud);
+                DropboxDirCache.Listing synced = sync.getListing(mPath);
+                if (synced != null) {
+                    return synced.sameEntries(cached) ? cached : synced;
                 }
+            }
 
-                return cloudSongs;
-
+            try {
+                return cache.revalidate(LibraryActivity.this.mCloud, mPath, cached);
             } catch (DropboxException e) {
-                return null;
-            } catch (MalformedURLException e) {
-                return null;
-            } catch (IOException e) {
-                return null;
+                Log.w("OrchidMP", "Unable to list " + mPath, e);
+                return cached;
             }
         }
 
 
         @Override
-        protected void onProgressUpdate(Integer... values) {
-
-            //TODO use formatted String resource instead of this stringbuilder mess
-            String text =
-                    LibraryActivity.this.getResources().getString(R.string.preparing_cloud_songs) +
-                            "(" + values[0] + "/" + totalSongs + ")";
-
-            ((TextView) LibraryActivity.this.findViewById(R.id.progress_pane_text)).setText(text);
+        protected void onProgressUpdate(DropboxDirCache.Listing... cached) {
+            if (mDropboxLs == this) {
+                mShown = cached[0];
+                showDropboxListing(mLimiter, mShown);
+            }
         }
 
 
         @Override
-        protected void onPostExecute(ArrayList<CloudSongMetadata> result) {
+        protected void onPostExecute(DropboxDirCache.Listing result) {
+            if (mDropboxLs != this) {
+                return;
+            }
+            mDropboxLs = null;
 
             if (result == null) {
-                Toast.makeText(getApplicationContext(),
-                        mToastMessage == null ? "An error occurred. Please try again." :
-                                mToastMessage, Toast.LENGTH_LONG).show(); //TODO: hardcoded string
-            } else {
-                PlaybackService.get(LibraryActivity.this).addCloudSongs(result, mMode);
+                // nothing cached and Dropbox could not be reached
+                unlockDropboxFileBrowser();
+                return;
             }
+            if (result != mShown) {
+                showDropboxListing(mLimiter, result);
+            }
+            DropboxDirCache.getInstance(LibraryActivity.this).prefetch(LibraryActivity.this.mCloud, result);
+        }
+
+    }
 
-            LibraryActivity.this.findViewById(R.id.progress_pane).setVisibility(View.GONE);
 
+    @Override
+    public void onImportProgress(int done, int found) {
+        //TODO use formatted String resource instead of this stringbuilder mess
+        String text = getResources().getString(R.string.preparing_cloud_songs);
+        if (found != 0) {
+            text += "(" + done + "/" + found + ")";
         }
 
+        ((TextView) findViewById(R.id.progress_pane_text)).setText(text);
+        findViewById(R.id.progress_pane).setVisibility(View.VISIBLE);
+    }
+
+
+    @Override
+    public void onImportFinished() {
+        findViewById(R.id.progress_pane).setVisibility(View.GONE);
     }
     /* end Dropbox API stuff */
 
@@ -674,6 +436,7 @@ public class LibraryActivity extends PlaybackActivity
 		/* Dropbox API stuff */
         AndroidAuthSession session = buildSession();
         mApi = new DropboxAPI<AndroidAuthSession>(session);
+        mCloud = new DropboxClient(mApi);
         
         /* if(mApi.getSession().isLinked()) {
             updateUi(true);
@@ -709,6 +472,26 @@ public class LibraryActivity extends PlaybackActivity
     }
 
 
+    @Override
+    protected void onServiceReady() {
+        super.onServiceReady();
+        //imports run in the service; pick up the progress of one started before a rotation
+        PlaybackService.get(this).getCloudImport().setCallback(this);
+    }
+
+
+    @Override
+    public void onStop() {
+        if (PlaybackService.hasInstance()) {
+            CloudImport cloudImport = PlaybackService.get(this).getCloudImport();
+            if (cloudImport.getCallback() == this) {
+                cloudImport.setCallback(null);
+            }
+        }
+        super.onStop();
+    }
+
+
     @Override
     public void onStart() {
         super.onStart();
@@ -872,8 +655,18 @@ public class LibraryActivity extends PlaybackActivity
                 MediaUtils.TYPE_DROPBOX) {
             int mode = (action == ACTION_PLAY_ALL || action == ACTION_PLAY) ? ACTION_PLAY :
                     ACTION_ENQUEUE;
-            new DropboxPrepareMetadata((String) intent.getStringExtra(LibraryAdapter.DATA_FILE),
-                    modeForAction[mode]).execute();
+            PlaybackService.get(this).getCloudImport().start(
+                    (String) intent.getStringExtra(LibraryAdapter.DATA_FILE), modeForAction[mode]);
+            return;
+        }
+
+        if (intent.getIntExtra(LibraryAdapter.DATA_TYPE, MediaUtils.TYPE_INVALID) ==
+                MediaUtils.TYPE_FILE) {
+            // read the folder directly rather than scanning MediaStore for it
+            int mode = (action == ACTION_PLAY_ALL) ? ACTION_PLAY :
+                    (action == ACTION_ENQUEUE_ALL) ? ACTION_ENQUEUE : action;
+            PlaybackService.get(this).getFolderImport().start(
+                    intent.getStringExtra(LibraryAdapter.DATA_FILE), modeForAction[mode]);
             return;
         }
 
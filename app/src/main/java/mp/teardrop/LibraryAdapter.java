@@ -23,6 +23,7 @@
 package mp.teardrop;
 
 import android.content.Intent;
+import android.os.CancellationSignal;
 import android.view.View;
 import android.widget.ListAdapter;
 
@@ -82,16 +83,20 @@ public interface LibraryAdapter extends ListAdapter {
 	 *
 	 * This should be called on a worker thread.
 	 *
+	 * @param signal Signal that is cancelled once the result is no longer
+	 * needed. Implementations should pass it to any provider queries and
+	 * check it between expensive steps; cancellation is reported by throwing
+	 * {@link android.os.OperationCanceledException}.
 	 * @return The data. Contents depend on the sub-class.
 	 */
-	public Object query();
+	public Object query(CancellationSignal signal);
 
 	/**
 	 * Update the adapter with the given data.
 	 *
 	 * Must be called on the UI thread.
 	 *
-	 * @param data Data from {@link LibraryAdapter#query()}.
+	 * @param data Data from {@link LibraryAdapter#query(CancellationSignal)}.
 	 */
 	public void commitQuery(Object data);
 
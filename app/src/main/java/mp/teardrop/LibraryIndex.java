@@ -0,0 +1,676 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Process-wide, in-memory copy of the MediaStore audio table.
+ *
+ * Every track is stored as one row across a set of primitive columns, with
+ * all strings packed into per-column character pools. Once built, browsing,
+ * grouping and random selection can be answered by array scans instead of
+ * ContentProvider queries.
+ *
+ * The index is built once on a background thread and refreshed
+ * incrementally when the media store changes: only the ids and
+ * modification dates are queried, and full rows are fetched just for
+ * tracks that are new or have been modified since the last build.
+ *
+ * Readers always see an immutable {@link Snapshot}; a refresh builds a new
+ * snapshot and swaps it in atomically.
+ */
+public class LibraryIndex implements Handler.Callback {
+	/**
+	 * Columns fetched when a full row is needed. The order matters; see
+	 * {@link Builder#addRow(Cursor)}.
+	 */
+	private static final String[] ROW_PROJECTION = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.DATA,
+		MediaStore.Audio.Media.TITLE,
+		MediaStore.Audio.Media.ALBUM,
+		MediaStore.Audio.Media.ARTIST,
+		MediaStore.Audio.Media.ALBUM_ID,
+		MediaStore.Audio.Media.ARTIST_ID,
+		MediaStore.Audio.Media.DURATION,
+		MediaStore.Audio.Media.TRACK,
+		MediaStore.Audio.Media.DATE_MODIFIED,
+		MediaStore.Audio.Media.TITLE_KEY,
+		MediaStore.Audio.Media.ALBUM_KEY,
+		MediaStore.Audio.Media.ARTIST_KEY,
+	};
+	/**
+	 * Columns fetched to detect changes since the last build.
+	 */
+	private static final String[] DIFF_PROJECTION = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.DATE_MODIFIED,
+	};
+	/**
+	 * Same filter used by {@link MediaUtils#isSongAvailable(Context, ContentResolver)}.
+	 */
+	private static final String SELECTION = MediaStore.Audio.Media.IS_MUSIC + " AND length(_data)";
+	/**
+	 * Maximum number of ids in a single "_id IN (...)" query. SQLite limits
+	 * the length of a statement, so large change sets are fetched in batches.
+	 */
+	private static final int FETCH_BATCH_SIZE = 500;
+
+	/**
+	 * Rebuild or refresh the index. obj is the application Context.
+	 */
+	private static final int MSG_REFRESH = 0;
+
+	private static LibraryIndex sInstance;
+
+	/**
+	 * The most recently built snapshot, or null if the index has not been
+	 * built yet.
+	 */
+	private volatile Snapshot mSnapshot;
+	/**
+	 * Handler running on the index thread.
+	 */
+	private Handler mHandler;
+	/**
+	 * True once the cached cloud songs have been added to the
+	 * {@link SearchIndex}. Only accessed on the index thread.
+	 */
+	private boolean mCloudSongsIndexed;
+	/**
+	 * Handler on the main thread.
+	 */
+	private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+	private LibraryIndex()
+	{
+	}
+
+	/**
+	 * Returns the process-wide index instance.
+	 */
+	public static synchronized LibraryIndex getInstance()
+	{
+		if (sInstance == null)
+			sInstance = new LibraryIndex();
+		return sInstance;
+	}
+
+	/**
+	 * Returns the current snapshot of the index, or null if it has not been
+	 * built yet. Callers should fall back to querying the MediaStore in that
+	 * case.
+	 */
+	public Snapshot getSnapshot()
+	{
+		return mSnapshot;
+	}
+
+	/**
+	 * Schedule a refresh of the index on the index thread. Multiple requests
+	 * made before the refresh starts are coalesced into one. The
+	 * {@link SearchIndex} is kept in sync with each new snapshot.
+	 *
+	 * @param context A Context to query the MediaStore with.
+	 */
+	public synchronized void requestRefresh(Context context)
+	{
+		if (mHandler == null) {
+			HandlerThread thread = new HandlerThread("LibraryIndex", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			mHandler = new Handler(thread.getLooper(), this);
+		}
+		mHandler.removeMessages(MSG_REFRESH);
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_REFRESH, context.getApplicationContext()));
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_REFRESH: {
+			Context context = (Context)message.obj;
+			if (!mCloudSongsIndexed) {
+				indexCloudSongs(context);
+				mCloudSongsIndexed = true;
+			}
+
+			Snapshot snapshot;
+			try {
+				snapshot = refresh(context.getContentResolver(), mSnapshot);
+			} catch (SecurityException e) {
+				// No permission to read external storage (yet)
+				Log.w("OrchidMP", "Unable to build library index", e);
+				snapshot = null;
+			}
+			if (snapshot != null) {
+				mSnapshot = snapshot;
+				// MediaUtils' caches are only used on the main thread
+				mUiHandler.post(new Runnable() {
+					@Override
+					public void run()
+					{
+						MediaUtils.onMediaChange();
+					}
+				});
+				SearchIndex.getInstance().syncLocal(snapshot);
+			}
+			break;
+		}
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add the cloud songs stored in {@link CloudSongStore} to the search
+	 * index. Songs prepared later are added as they are stored.
+	 */
+	private static void indexCloudSongs(Context context)
+	{
+		SearchIndex search = SearchIndex.getInstance();
+		Cursor cursor = CloudSongStore.getInstance(context).queryTags();
+		try {
+			while (cursor.moveToNext())
+				search.putCloudSong(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Build a new snapshot, reusing rows from old that have not changed.
+	 *
+	 * @param resolver A ContentResolver to query the MediaStore with.
+	 * @param old The previous snapshot, or null to build from scratch.
+	 * @return The new snapshot, or null if the MediaStore could not be queried.
+	 */
+	private static Snapshot refresh(ContentResolver resolver, Snapshot old)
+	{
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		String sort = MediaStore.Audio.Media._ID;
+
+		if (old == null) {
+			Cursor cursor = resolver.query(media, ROW_PROJECTION, SELECTION, null, sort);
+			if (cursor == null)
+				return null;
+			Builder builder = new Builder(cursor.getCount());
+			while (cursor.moveToNext())
+				builder.addRow(cursor);
+			cursor.close();
+			return builder.build();
+		}
+
+		Cursor cursor = resolver.query(media, DIFF_PROJECTION, SELECTION, null, sort);
+		if (cursor == null)
+			return null;
+
+		// Walk the current ids alongside the old snapshot (both sorted by id).
+		// sources[i] is the old row to copy for the i-th id, or -1 if the row
+		// has to be fetched again.
+		int count = cursor.getCount();
+		long[] ids = new long[count];
+		int[] sources = new int[count];
+		ArrayList<Long> stale = new ArrayList<Long>();
+		int oldRow = 0;
+		for (int i = 0; i != count && cursor.moveToNext(); ++i) {
+			long id = cursor.getLong(0);
+			long modified = cursor.getLong(1);
+			while (oldRow != old.mSize && old.mIds[oldRow] < id)
+				++oldRow;
+			ids[i] = id;
+			if (oldRow != old.mSize && old.mIds[oldRow] == id && old.mModified[oldRow] == modified) {
+				sources[i] = oldRow;
+			} else {
+				sources[i] = -1;
+				stale.add(id);
+			}
+		}
+		cursor.close();
+
+		if (stale.isEmpty() && count == old.mSize)
+			return null; // nothing changed
+
+		Builder builder = new Builder(count);
+		int fetched = 0;
+		int row = 0;
+		while (row != count) {
+			if (sources[row] != -1) {
+				builder.copyRow(old, sources[row]);
+				++row;
+				continue;
+			}
+
+			// Fetch the next batch of stale rows. Results come back sorted by
+			// id, so they can be merged in order.
+			int end = Math.min(fetched + FETCH_BATCH_SIZE, stale.size());
+			StringBuilder selection = new StringBuilder(SELECTION);
+			selection.append(" AND _id IN (");
+			for (int i = fetched; i != end; ++i) {
+				if (i != fetched)
+					selection.append(',');
+				selection.append(stale.get(i));
+			}
+			selection.append(')');
+			long lastId = stale.get(end - 1);
+			fetched = end;
+
+			Cursor rows = resolver.query(media, ROW_PROJECTION, selection.toString(), null, sort);
+			if (rows == null)
+				return null;
+			rows.moveToNext();
+			for (; row != count && ids[row] <= lastId; ++row) {
+				if (sources[row] != -1) {
+					builder.copyRow(old, sources[row]);
+				} else if (!rows.isAfterLast() && rows.getLong(0) == ids[row]) {
+					builder.addRow(rows);
+					rows.moveToNext();
+				}
+				// else: removed between the two queries; drop it
+			}
+			rows.close();
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Packs strings end to end into a single character array. String i spans
+	 * chars[offsets[i]] to chars[offsets[i + 1]].
+	 */
+	private static final class StringPool {
+		final char[] chars;
+		final int[] offsets;
+
+		StringPool(char[] chars, int[] offsets)
+		{
+			this.chars = chars;
+			this.offsets = offsets;
+		}
+
+		String get(int i)
+		{
+			int start = offsets[i];
+			int end = offsets[i + 1];
+			if (start == end)
+				return null;
+			return new String(chars, start, end - start);
+		}
+
+		/**
+		 * Compare string i of this pool to string j of the same pool
+		 * without allocating.
+		 */
+		int compare(int i, int j)
+		{
+			int a = offsets[i];
+			int aEnd = offsets[i + 1];
+			int b = offsets[j];
+			int bEnd = offsets[j + 1];
+			while (a != aEnd && b != bEnd) {
+				int diff = chars[a++] - chars[b++];
+				if (diff != 0)
+					return diff;
+			}
+			return (aEnd - a) - (bEnd - b);
+		}
+	}
+
+	/**
+	 * Accumulates rows and string data for a new snapshot.
+	 */
+	private static final class StringPoolBuilder {
+		private final StringBuilder mChars = new StringBuilder();
+		private int[] mOffsets;
+		private int mCount;
+
+		StringPoolBuilder(int capacity)
+		{
+			mOffsets = new int[capacity + 1];
+		}
+
+		void add(String value)
+		{
+			if (value != null)
+				mChars.append(value);
+			if (mCount + 2 > mOffsets.length)
+				mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+			mOffsets[++mCount] = mChars.length();
+		}
+
+		void add(StringPool pool, int i)
+		{
+			mChars.append(pool.chars, pool.offsets[i], pool.offsets[i + 1] - pool.offsets[i]);
+			if (mCount + 2 > mOffsets.length)
+				mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+			mOffsets[++mCount] = mChars.length();
+		}
+
+		StringPool build()
+		{
+			char[] chars = new char[mChars.length()];
+			mChars.getChars(0, chars.length, chars, 0);
+			return new StringPool(chars, Arrays.copyOf(mOffsets, mCount + 1));
+		}
+	}
+
+	private static final class Builder {
+		private int mSize;
+		private long[] mIds;
+		private long[] mAlbumIds;
+		private long[] mArtistIds;
+		private long[] mDurations;
+		private long[] mModified;
+		private int[] mTracks;
+		private final StringPoolBuilder mPaths;
+		private final StringPoolBuilder mTitles;
+		private final StringPoolBuilder mAlbums;
+		private final StringPoolBuilder mArtists;
+		private final StringPoolBuilder mTitleKeys;
+		private final StringPoolBuilder mAlbumKeys;
+		private final StringPoolBuilder mArtistKeys;
+
+		Builder(int capacity)
+		{
+			capacity = Math.max(capacity, 16);
+			mIds = new long[capacity];
+			mAlbumIds = new long[capacity];
+			mArtistIds = new long[capacity];
+			mDurations = new long[capacity];
+			mModified = new long[capacity];
+			mTracks = new int[capacity];
+			mPaths = new StringPoolBuilder(capacity);
+			mTitles = new StringPoolBuilder(capacity);
+			mAlbums = new StringPoolBuilder(capacity);
+			mArtists = new StringPoolBuilder(capacity);
+			mTitleKeys = new StringPoolBuilder(capacity);
+			mAlbumKeys = new StringPoolBuilder(capacity);
+			mArtistKeys = new StringPoolBuilder(capacity);
+		}
+
+		private void ensureCapacity()
+		{
+			if (mSize != mIds.length)
+				return;
+			int capacity = mSize * 2;
+			mIds = Arrays.copyOf(mIds, capacity);
+			mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+			mArtistIds = Arrays.copyOf(mArtistIds, capacity);
+			mDurations = Arrays.copyOf(mDurations, capacity);
+			mModified = Arrays.copyOf(mModified, capacity);
+			mTracks = Arrays.copyOf(mTracks, capacity);
+		}
+
+		/**
+		 * Append the row the cursor is positioned on. The cursor must have
+		 * been queried with {@link LibraryIndex#ROW_PROJECTION}.
+		 */
+		void addRow(Cursor cursor)
+		{
+			ensureCapacity();
+			int i = mSize++;
+			mIds[i] = cursor.getLong(0);
+			mPaths.add(cursor.getString(1));
+			mTitles.add(cursor.getString(2));
+			mAlbums.add(cursor.getString(3));
+			mArtists.add(cursor.getString(4));
+			mAlbumIds[i] = cursor.getLong(5);
+			mArtistIds[i] = cursor.getLong(6);
+			mDurations[i] = cursor.getLong(7);
+			mTracks[i] = cursor.getInt(8);
+			mModified[i] = cursor.getLong(9);
+			mTitleKeys.add(cursor.getString(10));
+			mAlbumKeys.add(cursor.getString(11));
+			mArtistKeys.add(cursor.getString(12));
+		}
+
+		/**
+		 * Append row i of an existing snapshot.
+		 */
+		void copyRow(Snapshot old, int i)
+		{
+			ensureCapacity();
+			int j = mSize++;
+			mIds[j] = old.mIds[i];
+			mAlbumIds[j] = old.mAlbumIds[i];
+			mArtistIds[j] = old.mArtistIds[i];
+			mDurations[j] = old.mDurations[i];
+			mModified[j] = old.mModified[i];
+			mTracks[j] = old.mTracks[i];
+			mPaths.add(old.mPaths, i);
+			mTitles.add(old.mTitles, i);
+			mAlbums.add(old.mAlbums, i);
+			mArtists.add(old.mArtists, i);
+			mTitleKeys.add(old.mTitleKeys, i);
+			mAlbumKeys.add(old.mAlbumKeys, i);
+			mArtistKeys.add(old.mArtistKeys, i);
+		}
+
+		Snapshot build()
+		{
+			return new Snapshot(this);
+		}
+	}
+
+	/**
+	 * An immutable view of the library at one point in time. Rows are sorted
+	 * by media id.
+	 */
+	public static final class Snapshot {
+		private final int mSize;
+		private final long[] mIds;
+		private final long[] mAlbumIds;
+		private final long[] mArtistIds;
+		private final long[] mDurations;
+		private final long[] mModified;
+		private final int[] mTracks;
+		private final StringPool mPaths;
+		private final StringPool mTitles;
+		private final StringPool mAlbums;
+		private final StringPool mArtists;
+		private final StringPool mTitleKeys;
+		private final StringPool mAlbumKeys;
+		private final StringPool mArtistKeys;
+
+		private Snapshot(Builder builder)
+		{
+			int size = builder.mSize;
+			mSize = size;
+			mIds = Arrays.copyOf(builder.mIds, size);
+			mAlbumIds = Arrays.copyOf(builder.mAlbumIds, size);
+			mArtistIds = Arrays.copyOf(builder.mArtistIds, size);
+			mDurations = Arrays.copyOf(builder.mDurations, size);
+			mModified = Arrays.copyOf(builder.mModified, size);
+			mTracks = Arrays.copyOf(builder.mTracks, size);
+			mPaths = builder.mPaths.build();
+			mTitles = builder.mTitles.build();
+			mAlbums = builder.mAlbums.build();
+			mArtists = builder.mArtists.build();
+			mTitleKeys = builder.mTitleKeys.build();
+			mAlbumKeys = builder.mAlbumKeys.build();
+			mArtistKeys = builder.mArtistKeys.build();
+		}
+
+		/**
+		 * Returns the number of tracks in the snapshot.
+		 */
+		public int size()
+		{
+			return mSize;
+		}
+
+		/**
+		 * Returns the row holding the given media id, or -1 if there is no
+		 * such track.
+		 */
+		public int indexOf(long id)
+		{
+			int row = Arrays.binarySearch(mIds, id);
+			return row < 0 ? -1 : row;
+		}
+
+		public long getId(int row)
+		{
+			return mIds[row];
+		}
+
+		public long getAlbumId(int row)
+		{
+			return mAlbumIds[row];
+		}
+
+		public long getArtistId(int row)
+		{
+			return mArtistIds[row];
+		}
+
+		public long getDuration(int row)
+		{
+			return mDurations[row];
+		}
+
+		public long getDateModified(int row)
+		{
+			return mModified[row];
+		}
+
+		public int getTrackNumber(int row)
+		{
+			return mTracks[row];
+		}
+
+		public String getPath(int row)
+		{
+			return mPaths.get(row);
+		}
+
+		public String getTitle(int row)
+		{
+			return mTitles.get(row);
+		}
+
+		public String getAlbum(int row)
+		{
+			return mAlbums.get(row);
+		}
+
+		public String getArtist(int row)
+		{
+			return mArtists.get(row);
+		}
+
+		/**
+		 * Returns a copy of all media ids, in ascending order.
+		 */
+		public long[] copyIds()
+		{
+			return mIds.clone();
+		}
+
+		/**
+		 * Create a populated Song for the given row.
+		 */
+		public Song getSong(int row)
+		{
+			Song song = new Song(mIds[row]);
+			song.path = mPaths.get(row);
+			song.title = mTitles.get(row);
+			song.album = mAlbums.get(row);
+			song.artist = mArtists.get(row);
+			song.albumId = mAlbumIds[row];
+			song.artistId = mArtistIds[row];
+			song.trackNumber = mTracks[row];
+			return song;
+		}
+
+		/**
+		 * Returns the rows belonging to the given group, sorted the same way
+		 * as {@link MediaUtils#DEFAULT_SORT}.
+		 *
+		 * @param type One of UnifiedAdapter.ITEM_TYPE_ARTIST, ITEM_TYPE_ALBUM
+		 * or ITEM_TYPE_SONG.
+		 * @param id The id of the artist, album or song.
+		 */
+		public int[] findRows(int type, long id)
+		{
+			if (type == UnifiedAdapter.ITEM_TYPE_SONG) {
+				int row = indexOf(id);
+				return row == -1 ? new int[0] : new int[] { row };
+			}
+
+			long[] column;
+			switch (type) {
+			case UnifiedAdapter.ITEM_TYPE_ARTIST:
+				column = mArtistIds;
+				break;
+			case UnifiedAdapter.ITEM_TYPE_ALBUM:
+				column = mAlbumIds;
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid type specified: " + type);
+			}
+
+			int count = 0;
+			int[] rows = new int[16];
+			for (int i = 0; i != mSize; ++i) {
+				if (column[i] == id) {
+					if (count == rows.length)
+						rows = Arrays.copyOf(rows, count * 2);
+					rows[count++] = i;
+				}
+			}
+			return sortRows(rows, count);
+		}
+
+		/**
+		 * Compare two rows by artist key, album key and track number.
+		 */
+		private int compareRows(int a, int b)
+		{
+			int diff = mArtistKeys.compare(a, b);
+			if (diff != 0)
+				return diff;
+			diff = mAlbumKeys.compare(a, b);
+			if (diff != 0)
+				return diff;
+			return mTracks[a] - mTracks[b];
+		}
+
+		/**
+		 * Returns the first <code>count</code> of the given rows sorted by
+		 * artist, album and track.
+		 */
+		private int[] sortRows(int[] rows, int count)
+		{
+			Integer[] order = new Integer[count];
+			for (int i = 0; i != count; ++i)
+				order[i] = rows[i];
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b)
+				{
+					return compareRows(a, b);
+				}
+			});
+			int[] sorted = new int[count];
+			for (int i = 0; i != count; ++i)
+				sorted[i] = order[i];
+			return sorted;
+		}
+	}
+}
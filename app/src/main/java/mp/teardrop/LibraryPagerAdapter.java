@@ -28,9 +28,12 @@ import java.util.Arrays;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.OperationCanceledException;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.view.ContextMenu;
@@ -151,6 +154,18 @@ public class LibraryPagerAdapter
 	 * The current filter text, or null if none.
 	 */
 	private String mFilter;
+	/**
+	 * The generation of the most recently requested query for each adapter,
+	 * indexed by media type. Results of older generations are dropped.
+	 * Guarded by itself.
+	 */
+	private final int[] mQueryGenerations = new int[MAX_ADAPTER_COUNT];
+	/**
+	 * The cancellation signal of the most recently requested query for each
+	 * adapter, indexed by media type. Cancelled when superseded. Guarded by
+	 * mQueryGenerations.
+	 */
+	private final CancellationSignal[] mQuerySignals = new CancellationSignal[MAX_ADAPTER_COUNT];
 	/**
 	 * The position of the songs page, or -1 if it is hidden.
 	 */
@@ -341,6 +356,11 @@ public class LibraryPagerAdapter
 			view.setOnItemClickListener(this);
 			view.setTag(type);
 			view.setAdapter(adapter);
+			if (type == MediaUtils.TYPE_UNIFIED) {
+				// the lists of all artists, albums and songs come with
+				// precomputed sections
+				view.setFastScrollEnabled(true);
+			}
 			adapter.setFilter(mFilter);
 
 			mAdapters[type] = adapter;
@@ -526,7 +546,8 @@ public class LibraryPagerAdapter
 	}
 
 	/**
-	 * Run on query on the adapter passed in obj.
+	 * Run on query on the adapter passed in obj. arg1 is the query
+	 * generation; the query is skipped if a newer one has been requested.
 	 *
 	 * Runs on worker thread.
 	 */
@@ -546,7 +567,8 @@ public class LibraryPagerAdapter
 	private static final int MSG_REQUEST_REQUERY = 2;
 	/**
 	 * Commit the cursor passed in obj to the adapter at the index passed in
-	 * arg1.
+	 * arg1. arg2 is the generation of the query that produced it; results
+	 * of outdated generations are dropped.
 	 *
 	 * Runs on UI thread.
 	 */
@@ -559,14 +581,38 @@ public class LibraryPagerAdapter
 		case MSG_RUN_QUERY: {
 			//we are on the worker thread here
             LibraryAdapter adapter = (LibraryAdapter) message.obj;
+            int type = adapter.getMediaType();
+            int generation = message.arg1;
+            CancellationSignal signal;
+            synchronized (mQueryGenerations) {
+                if (generation != mQueryGenerations[type])
+                    break;
+                signal = mQuerySignals[type];
+            }
+
+            Object data;
+            try {
+                data = adapter.query(signal);
+            } catch (OperationCanceledException e) {
+                break;
+            }
+
             Handler handler = mUiHandler;
-            handler.sendMessage(handler.obtainMessage(MSG_COMMIT_QUERY, adapter.getMediaType(), 0,
-                    adapter.query()));
+            handler.sendMessage(handler.obtainMessage(MSG_COMMIT_QUERY, type, generation, data));
             break;
         }
 		case MSG_COMMIT_QUERY: {
 			//we are on the UI thread here
 			int index = message.arg1;
+			synchronized (mQueryGenerations) {
+				if (message.arg2 != mQueryGenerations[index]) {
+					// superseded by a newer query
+					if (message.obj instanceof Cursor)
+						((Cursor)message.obj).close();
+					break;
+				}
+				mQuerySignals[index] = null;
+			}
 			if(index == MediaUtils.TYPE_UNIFIED) {
 				//MediaInfoHolder mih = (MediaInfoHolder) message.obj;
 				mAdapters[index].commitQuery(message.obj);
@@ -652,10 +698,24 @@ public class LibraryPagerAdapter
 	 */
 	private void postRunQuery(LibraryAdapter adapter)
 	{
-		mRequeryNeeded[adapter != null ? adapter.getMediaType() : MediaUtils.TYPE_UNIFIED] = false;
+		int type = adapter != null ? adapter.getMediaType() : MediaUtils.TYPE_UNIFIED;
+		mRequeryNeeded[type] = false;
+		// the adapter runs its first query when it is created
+		if (adapter == null)
+			return;
+
+		// Supersede any pending or running query for this adapter
+		int generation;
+		synchronized (mQueryGenerations) {
+			generation = ++mQueryGenerations[type];
+			if (mQuerySignals[type] != null)
+				mQuerySignals[type].cancel();
+			mQuerySignals[type] = new CancellationSignal();
+		}
+
 		Handler handler = mWorkerHandler;
 		handler.removeMessages(MSG_RUN_QUERY, adapter);
-		handler.sendMessage(handler.obtainMessage(MSG_RUN_QUERY, adapter));
+		handler.sendMessage(handler.obtainMessage(MSG_RUN_QUERY, generation, 0, adapter));
 	}
 
 	/**
@@ -28,6 +28,8 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.provider.MediaStore;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
@@ -339,9 +341,21 @@ public class MediaAdapter
 	}
 
 	@Override
-	public Object query()
+	public Object query(CancellationSignal signal)
 	{
-		return buildQuery(mProjection, false).runQuery(mActivity.getContentResolver());
+		Cursor cursor = buildQuery(mProjection, false).runQuery(mActivity.getContentResolver(), signal);
+		if (cursor != null && mSortMode == 0 && mFieldKeys != null) {
+			// build the fast-scroll sections here rather than on the UI
+			// thread, from the key column the default sort mode uses
+			try {
+				int keyColumn = cursor.getColumnIndex(mFieldKeys[mFieldKeys.length - 1]);
+				cursor = MusicAlphabetIndexer.buildIndexedCursor(cursor, keyColumn, signal);
+			} catch (OperationCanceledException e) {
+				cursor.close();
+				throw e;
+			}
+		}
+		return cursor;
 	}
 
 	@Override
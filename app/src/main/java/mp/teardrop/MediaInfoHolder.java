@@ -3,6 +3,7 @@ package mp.teardrop;
 import java.util.ArrayList;
 
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 
 /**
  * Contains media information retrieved from the MediaStore. Used to pass said
@@ -13,6 +14,11 @@ class MediaInfoHolder {
 	class ArtistInfo {
 		String name;
 		long databaseId;
+		/**
+		 * The MediaStore key the list of all artists is sorted by, null in
+		 * other lists.
+		 */
+		String key;
 
 		public ArtistInfo(String name, long databaseId) {
 			this.name = name;
@@ -24,13 +30,29 @@ class MediaInfoHolder {
 		String name;
 		String artistName;
 		long databaseId;
+		/**
+		 * The cover, loaded on a worker thread once the album is shown.
+		 */
 		Bitmap cover;
+		/**
+		 * True once loading the cover was requested. Only used on the UI
+		 * thread.
+		 */
+		boolean coverRequested;
+		/**
+		 * Drawable wrapping cover, created by the adapter when first shown.
+		 */
+		BitmapDrawable coverDrawable;
+		/**
+		 * The MediaStore key the list of all albums is sorted by, null in
+		 * other lists.
+		 */
+		String key;
 
-		public AlbumInfo(String name, String artistName, long databaseId, Bitmap cover) {
+		public AlbumInfo(String name, String artistName, long databaseId) {
 			this.name = name;
 			this.artistName = artistName;
 			this.databaseId = databaseId;
-			this.cover = cover;
 		}
 	}
 
@@ -38,6 +60,15 @@ class MediaInfoHolder {
 		String name;
 		String artistName;
 		long databaseId;
+		/**
+		 * Dropbox path of a cached cloud song, null for local songs.
+		 */
+		String cloudPath;
+		/**
+		 * The MediaStore key the list of all songs is sorted by, null in
+		 * other lists.
+		 */
+		String key;
 
 		public SongInfo(String name, String artistName, long databaseId) {
 			this.name = name;
@@ -62,4 +93,14 @@ class MediaInfoHolder {
 	ArrayList<PlaylistInfo> playlists = new ArrayList<PlaylistInfo>();
 
 	boolean permissionToReadStorageWasDenied = false;
+
+	/**
+	 * Fast-scroll sections of the list of all artists, albums or songs,
+	 * or null if the list shown is not one of those.
+	 */
+	MusicAlphabetIndexer.Sections sections;
+	/**
+	 * The UnifiedAdapter.ITEM_TYPE_MORE_* type of the list sections are for.
+	 */
+	int sectionsType;
 }
@@ -23,11 +23,6 @@
 package mp.teardrop;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.jar.Manifest;
 
@@ -85,18 +80,9 @@ public class MediaUtils {
 	private static Random sRandom;
 
 	/**
-	 * Shuffled list of all ids in the library.
+	 * Weighted choice of songs from the whole library for randomSong().
 	 */
-	private static long[] sAllSongs;
-	private static int sAllSongsIdx;
-
-	/**
-	 * Query this many songs at a time from sAllSongs.
-	 */
-	private static final int RANDOM_POPULATE_SIZE = 20;
-	private static final Song[] sRandomCache = new Song[RANDOM_POPULATE_SIZE];
-	private static int sRandomCacheIdx;
-	private static int sRandomCacheEnd;
+	private static SmartRandom sLibraryRandom;
 
 	/**
 	 * Total number of songs in the music library, or -1 for uninitialized.
@@ -281,56 +267,6 @@ public class MediaUtils {
 		}
 	}
 
-	/**
-	 * Shuffle a Song list using Collections.shuffle().
-	 *
-	 * @param albumShuffle If true, preserve the order of tracks inside albums.
-	 */
-	public static void shuffle(List<Song> list, boolean albumShuffle)
-	{
-		int size = list.size();
-		if (size < 2)
-			return;
-
-		Random random = getRandom();
-		if (albumShuffle) {
-			List<Song> tempList = new ArrayList<Song>(list);
-			Collections.sort(tempList);
-			
-			// Build map of albumId to start index in sorted list
-			Map<Long, Integer> albumStartIndices = new HashMap<Long, Integer>();
-			int index = 0;
-			for (Song song : tempList) {
-				if (!albumStartIndices.containsKey(song.albumId)) {
-					albumStartIndices.put(song.albumId, index);
-				}
-				index++;
-			}
-			
-			//Extract album list and shuffle
-			List<Long> shuffledAlbums = new ArrayList<Long>(albumStartIndices.keySet());
-			Collections.shuffle(shuffledAlbums, random);
-			
-			//Build Song list from album list
-			list.clear();
-			for (Long albumId : shuffledAlbums) {
-				int songIndex = albumStartIndices.get(albumId);
-				Song song = tempList.get(songIndex);
-				do {
-					list.add(song);
-					songIndex++;
-					if (songIndex < size) {
-						song = tempList.get(songIndex);
-					} else {
-						break;
-					}
-				} while (albumId == song.albumId);
-			}
-		} else {
-			Collections.shuffle(list, random);
-		}
-	}
-
 	/**
      * Determine if any songs are available from the library.
      *
@@ -344,7 +280,10 @@ public class MediaUtils {
 
         if (sSongCount == -1) {
 
-			if (!hasPermissionToReadStorage(context)) {
+			LibraryIndex.Snapshot index = LibraryIndex.getInstance().getSnapshot();
+			if (index != null) {
+				sSongCount = index.size();
+			} else if (!hasPermissionToReadStorage(context)) {
 				sSongCount = 0;
 			} else {
 				Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
@@ -370,120 +309,99 @@ public class MediaUtils {
                 PackageManager.PERMISSION_GRANTED;
 	}
 
+	public static void onMediaChange()
+	{
+		sSongCount = -1;
+	}
+
 	/**
-	 * Returns a shuffled array contaning the ids of all the songs on the
-	 * device's library.
+	 * Returns a song randomly selected from all the songs in the library,
+	 * weighted by play statistics and avoiding recent picks. Songs come
+	 * from the in-memory {@link LibraryIndex}, so the provider is not
+	 * queried; returns null until the index has been built.
 	 *
-	 * @param resolver A ContentResolver to use.
+	 * @param context A context to use.
 	 */
-	public static long[] queryAllSongs(ContentResolver resolver)
+	public static Song randomSong(Context context)
 	{
-		sAllSongsIdx = 0;
-		sRandomCacheEnd = -1;
-
-		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-		String selection = MediaStore.Audio.Media.IS_MUSIC;
-		selection += " AND length(_data)";
-		Cursor cursor = resolver.query(media, Song.EMPTY_PROJECTION, selection, null, null);
-		if (cursor == null || cursor.getCount() == 0) {
-			sSongCount = 0;
+		LibraryIndex.Snapshot index = LibraryIndex.getInstance().getSnapshot();
+		if (index == null) {
+			LibraryIndex.getInstance().requestRefresh(context);
 			return null;
 		}
+		sSongCount = index.size();
+		if (sSongCount == 0)
+			return null;
 
-		int count = cursor.getCount();
-		long[] ids = new long[count];
-		for (int i = 0; i != count; ++i) {
-			if (!cursor.moveToNext())
-				return null;
-			ids[i] = cursor.getLong(0);
+		int row;
+		synchronized (MediaUtils.class) {
+			SmartRandom random = sLibraryRandom;
+			if (random == null) {
+				random = new SmartRandom(PlayCountsHelper.getSongStats());
+				sLibraryRandom = random;
+			}
+			if (random.getSource() != index)
+				random.setItems(index.copyIds(), index);
+			row = random.pick(getRandom());
 		}
-		sSongCount = count;
-		cursor.close();
-
-		shuffle(ids);
 
-		return ids;
+		Song song = index.getSong(row);
+		song.flags |= Song.FLAG_RANDOM;
+		return song;
 	}
 
-	public static void onMediaChange()
+	/**
+	 * Note that the given song started playing, so randomSong() does not
+	 * pick it again soon.
+	 */
+	public static void onSongPlayed(Song song)
 	{
-		sSongCount = -1;
-		sAllSongs = null;
+		if (song.id < 0)
+			return;
+		synchronized (MediaUtils.class) {
+			if (sLibraryRandom != null)
+				sLibraryRandom.played(song.id);
+		}
 	}
 
 	/**
-	 * Returns a song randomly selected from all the songs in the Android
-	 * MediaStore.
-	 *
-	 * @param resolver A ContentResolver to use.
+	 * Reweigh the given song in randomSong() after its play statistics
+	 * have changed, e.g. after it was skipped.
 	 */
-	public static Song randomSong(ContentResolver resolver)
+	public static void onSongStatsChanged(Song song)
 	{
-		long[] songs = sAllSongs;
-
-		if (songs == null) {
-			songs = queryAllSongs(resolver);
-			if (songs == null)
-				return null;
-			sAllSongs = songs;
-		} else if (sAllSongsIdx == sAllSongs.length) {
-			sAllSongsIdx = 0;
-			sRandomCacheEnd = -1;
-			shuffle(sAllSongs);
+		if (song.id < 0)
+			return;
+		synchronized (MediaUtils.class) {
+			if (sLibraryRandom != null)
+				sLibraryRandom.update(song.id);
 		}
+	}
 
-		if (sAllSongsIdx >= sRandomCacheEnd) {
-			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-
-			StringBuilder selection = new StringBuilder("_ID IN (");
-
-			boolean first = true;
-			int end = Math.min(sAllSongsIdx + RANDOM_POPULATE_SIZE, sAllSongs.length);
-			for (int i = sAllSongsIdx; i != end; ++i) {
-				if (!first)
-					selection.append(',');
-
-				first = false;
-
-				selection.append(sAllSongs[i]);
-			}
-
-			selection.append(')');
-
-			Cursor cursor = resolver.query(media, Song.FILLED_PROJECTION, selection.toString(), null, null);
-
-			if (cursor == null) {
-				sAllSongs = null;
-				return null;
-			}
-
-			int count = cursor.getCount();
-			if (count > 0) {
-				Assert.assertTrue(count <= RANDOM_POPULATE_SIZE);
-
-				for (int i = 0; i != count; ++i) {
-					cursor.moveToNext();
-					Song newSong = new Song(-1);
-					newSong.populate(cursor);
-					newSong.flags |= Song.FLAG_RANDOM;
-					sRandomCache[i] = newSong;
-				}
-			}
-
-			cursor.close();
-
-			// The query will return sorted results; undo that
-			shuffle(sRandomCache, count);
-
-			sRandomCacheIdx = 0;
-			sRandomCacheEnd = sAllSongsIdx + count;
+	/**
+	 * Make randomSong() reweigh all songs after the play statistics have
+	 * been reloaded.
+	 */
+	public static void onSongStatsReloaded()
+	{
+		synchronized (MediaUtils.class) {
+			if (sLibraryRandom != null)
+				sLibraryRandom.invalidate();
 		}
+	}
 
-		Song result = sRandomCache[sRandomCacheIdx];
-		++sRandomCacheIdx;
-		++sAllSongsIdx;
-
-		return result;
+	/**
+	 * Returns the selection arguments for "column&gt;=? AND column&lt;?"
+	 * that match every path under the folder <code>folder</code>, so that
+	 * an index on the path column serves the lookup.
+	 */
+	static String[] rangeUnder(String folder)
+	{
+		String prefix = folder.endsWith("/") ? folder : folder + "/";
+		// everything starting with prefix sorts between prefix and prefix
+		// with its last character, the '/', replaced by the next one
+		String end = prefix.substring(0, prefix.length() - 1) + (char)('/' + 1);
+		return new String[] { prefix, end };
 	}
 
 	/**
@@ -503,6 +421,13 @@ public class MediaUtils {
 	}
 
 
+	/**
+	* The directory sanitizeMediaPath last found to be another name of the
+	* external storage, or null. Tried first, so that the tree does not have
+	* to be walked up again for every folder.
+	*/
+	private static String sStorageAlias;
+
 	/**
 	* This is an ugly hack: The tries to 'guess' if given path
 	* is also accessible using a fuse mount
@@ -514,12 +439,22 @@ public class MediaUtils {
 		long exLastmod = exStorage.lastModified();
 
 		if(exLastmod > 0 && path != null) {
+			String alias = sStorageAlias;
+			if(alias != null && path.startsWith(alias)
+					&& (path.length() == alias.length() || path.charAt(alias.length()) == '/')
+					&& (new File(alias+"/Android")).lastModified() == exLastmod) {
+				String guessPath = exPath + path.substring(alias.length());
+				if( (new File(guessPath)).exists() )
+					return guessPath;
+			}
+
 			String pfx = path;
 			while(true) {
 				if((new File(pfx+"/Android")).lastModified() == exLastmod) {
 					String guessPath = exPath + path.substring(pfx.length());
 					if( (new File(guessPath)).exists() ) {
 						path = guessPath;
+						sStorageAlias = pfx;
 						break;
 					}
 				}
@@ -17,8 +17,11 @@
 package mp.teardrop;
 
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.CancellationSignal;
 import android.provider.MediaStore;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Like android.widget.AlphabetIndexer, but handles MediaStore sorting order
@@ -36,10 +39,20 @@ public class MusicAlphabetIndexer {
 	 * letter of the alphabet.
 	 */
 	private static String[] ALPHABET_KEYS = null;
+	/**
+	 * Stands in for the first letter of rows that have no key.
+	 */
+	private static final String NO_KEY = "\t~\t";
 	/**
 	 * Cached section postions.
 	 */
 	private final int mAlphaMap[];
+	/**
+	 * The section of each row, if the cursor was built by
+	 * {@link #buildIndexedCursor(Cursor, int, CancellationSignal)}; null
+	 * otherwise.
+	 */
+	private byte[] mRowSections;
 	/**
 	 * Cursor that is used by the adapter of the list view.
 	 */
@@ -56,6 +69,13 @@ public class MusicAlphabetIndexer {
 	 * alphabetically
 	 */
 	public MusicAlphabetIndexer(int sortedColumnIndex)
+	{
+		loadAlphabetKeys();
+		mColumnIndex = sortedColumnIndex;
+		mAlphaMap = new int[ALPHABET.length];
+	}
+
+	private static synchronized void loadAlphabetKeys()
 	{
 		if (ALPHABET_KEYS == null) {
 			String[] keys = new String[ALPHABET.length];
@@ -64,9 +84,164 @@ public class MusicAlphabetIndexer {
 			}
 			ALPHABET_KEYS = keys;
 		}
+	}
 
-		mColumnIndex = sortedColumnIndex;
-		mAlphaMap = new int[ALPHABET.length];
+	/**
+	 * A cursor carrying a precomputed section table, built on the worker
+	 * thread by {@link MusicAlphabetIndexer#buildIndexedCursor(Cursor, int, CancellationSignal)}.
+	 */
+	private static class IndexedCursor extends CursorWrapper {
+		/**
+		 * The first row of each section, or the row count if no row is
+		 * in or after the section.
+		 */
+		final int[] sectionStarts;
+		/**
+		 * The section of each row.
+		 */
+		final byte[] rowSections;
+
+		IndexedCursor(Cursor cursor, int[] sectionStarts, byte[] rowSections)
+		{
+			super(cursor);
+			this.sectionStarts = sectionStarts;
+			this.rowSections = rowSections;
+		}
+	}
+
+	/**
+	 * Compute the section table for the given cursor in one pass over its
+	 * key column. Should be called on a worker thread; the result can be
+	 * passed to {@link #setCursor(Cursor)} to make all lookups constant time.
+	 *
+	 * @param cursor A cursor sorted by the given column.
+	 * @param keyColumnIndex The number of a column holding MediaStore keys,
+	 * such as ARTIST_KEY, which the cursor is sorted on.
+	 * @param signal Checked periodically; may be null.
+	 * @return A wrapper around cursor carrying the table.
+	 */
+	public static Cursor buildIndexedCursor(Cursor cursor, int keyColumnIndex, CancellationSignal signal)
+	{
+		loadAlphabetKeys();
+		String[] alphabet = ALPHABET_KEYS;
+		int count = cursor.getCount();
+		int[] sectionStarts = new int[alphabet.length];
+		byte[] rowSections = new byte[count];
+
+		// Sections are found in ascending order since the rows are sorted
+		// by key; nextSection is the first section whose start is unknown.
+		int nextSection = 1;
+		cursor.moveToPosition(-1);
+		for (int row = 0; cursor.moveToNext(); ++row) {
+			if (signal != null && (row & 0xff) == 0)
+				signal.throwIfCanceled();
+			nextSection = place(cursor.getString(keyColumnIndex), row, nextSection, sectionStarts, rowSections);
+		}
+		while (nextSection != alphabet.length)
+			sectionStarts[nextSection++] = count;
+		cursor.moveToPosition(-1);
+
+		return new IndexedCursor(cursor, sectionStarts, rowSections);
+	}
+
+	/**
+	 * Record the section of the row <code>row</code>, whose MediaStore key
+	 * is <code>key</code>, and the start of any sections that begin at it.
+	 *
+	 * @param nextSection The first section whose start is not known yet.
+	 * @return The first section whose start is still not known.
+	 */
+	private static int place(String key, int row, int nextSection, int[] sectionStarts, byte[] rowSections)
+	{
+		String[] alphabet = ALPHABET_KEYS;
+		if (key == null || key.length() < 3)
+			key = NO_KEY;
+		while (nextSection != alphabet.length && compareLetter(key, alphabet[nextSection]) >= 0)
+			sectionStarts[nextSection++] = row;
+
+		// The rows are sorted, so a row can only belong to the last
+		// section that has started.
+		int section = nextSection - 1;
+		rowSections[row] = (byte)(section != 0 && key.startsWith(alphabet[section]) ? section : 0);
+		return nextSection;
+	}
+
+	/**
+	 * Compare the first letter (three characters) of a key with the key of
+	 * a section, without copying it out.
+	 */
+	private static int compareLetter(String key, String letter)
+	{
+		int length = Math.min(3, letter.length());
+		for (int i = 0; i != length; ++i) {
+			int diff = key.charAt(i) - letter.charAt(i);
+			if (diff != 0)
+				return diff;
+		}
+		return 3 - letter.length();
+	}
+
+	/**
+	 * A section table for a list that is not backed by a cursor, built on
+	 * the worker thread by {@link MusicAlphabetIndexer#buildSections(List, CancellationSignal)}.
+	 */
+	public static final class Sections {
+		private final int[] mSectionStarts;
+		private final byte[] mRowSections;
+
+		Sections(int[] sectionStarts, byte[] rowSections)
+		{
+			mSectionStarts = sectionStarts;
+			mRowSections = rowSections;
+		}
+
+		/**
+		 * Returns the first row in the given section or, if there is none,
+		 * in a later one, or the row count if there is none either.
+		 */
+		public int getPositionForSection(int sectionIndex)
+		{
+			if (sectionIndex <= 0)
+				return 0;
+			if (sectionIndex >= mSectionStarts.length)
+				return mRowSections.length;
+			return mSectionStarts[sectionIndex];
+		}
+
+		/**
+		 * Returns the section of the given row.
+		 */
+		public int getSectionForPosition(int position)
+		{
+			return position >= 0 && position < mRowSections.length ? mRowSections[position] : 0;
+		}
+	}
+
+	/**
+	 * Compute the section table for a list sorted by MediaStore keys, in
+	 * one pass. Should be called on a worker thread.
+	 *
+	 * @param keys The keys of the rows, in order, as read from the
+	 * ARTIST_KEY, ALBUM_KEY or TITLE_KEY column.
+	 * @param signal Checked periodically; may be null.
+	 */
+	public static Sections buildSections(List<String> keys, CancellationSignal signal)
+	{
+		loadAlphabetKeys();
+		int count = keys.size();
+		int[] sectionStarts = new int[ALPHABET_KEYS.length];
+		byte[] rowSections = new byte[count];
+
+		int nextSection = 1;
+		for (int row = 0; row != count; ++row) {
+			if (signal != null && (row & 0xff) == 0)
+				signal.throwIfCanceled();
+			nextSection = place(keys.get(row), row, nextSection, sectionStarts, rowSections);
+		}
+		while (nextSection != sectionStarts.length)
+			sectionStarts[nextSection++] = count;
+
+		return new Sections(sectionStarts, rowSections);
 	}
 
 	/**
@@ -85,11 +260,19 @@ public class MusicAlphabetIndexer {
 	public void setCursor(Cursor cursor)
 	{
 		mDataCursor = cursor;
-		Arrays.fill(mAlphaMap, -1);
+		if (cursor instanceof IndexedCursor) {
+			IndexedCursor indexed = (IndexedCursor)cursor;
+			System.arraycopy(indexed.sectionStarts, 0, mAlphaMap, 0, mAlphaMap.length);
+			mRowSections = indexed.rowSections;
+		} else {
+			Arrays.fill(mAlphaMap, -1);
+			mRowSections = null;
+		}
 	}
 
 	/**
-	 * Performs a binary search or cache lookup to find the first row that
+	 * Performs a table lookup, or a binary search if the cursor was not
+	 * indexed ahead of time, to find the first row that
 	 * matches a given section's starting letter.
 	 *
 	 * @param sectionIndex the section to search for
@@ -162,6 +345,10 @@ public class MusicAlphabetIndexer {
 	 */
 	public int getSectionForPosition(int position)
 	{
+		byte[] rowSections = mRowSections;
+		if (rowSections != null)
+			return position >= 0 && position < rowSections.length ? rowSections[position] : 0;
+
 		int savedCursorPos = mDataCursor.getPosition();
 		mDataCursor.moveToPosition(position);
 		String key = MediaStore.Audio.keyFor(mDataCursor.getString(mColumnIndex));
@@ -0,0 +1,333 @@
+package mp.teardrop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * The app's own database of the music on local storage, kept by
+ * {@link MusicScanner} independently of MediaStore.
+ *
+ * Every scanned folder is stored with its modification time, and every
+ * track with the modification time, size and a hash of the file it was
+ * read from, together with its tags, ReplayGain values, duration and where
+ * its embedded cover is. A track's data can be used without opening the
+ * file for as long as the file's time and size match.
+ *
+ * The scanner and the folder import share the instance returned by
+ * {@link #getInstance(Context)}.
+ */
+public class MusicDatabase extends SQLiteOpenHelper {
+	private static final int DATABASE_VERSION = 1;
+	private static final String DATABASE_NAME = "music.db";
+	private static final String TABLE_DIRS = "dirs";
+	private static final String DIRS_CREATE = "CREATE TABLE " + TABLE_DIRS + " ("
+		+ "path TEXT PRIMARY KEY, "
+		+ "parent TEXT NOT NULL, "
+		+ "modified INTEGER NOT NULL);";
+	private static final String INDEX_DIRS_PARENT_CREATE = "CREATE INDEX idx_dirs_parent ON " + TABLE_DIRS
+		+ " (parent);";
+	private static final String TABLE_TRACKS = "tracks";
+	private static final String TRACKS_CREATE = "CREATE TABLE " + TABLE_TRACKS + " ("
+		+ "path TEXT PRIMARY KEY, "
+		+ "dir TEXT NOT NULL, "
+		+ "modified INTEGER NOT NULL, "
+		+ "size INTEGER NOT NULL, "
+		+ "hash INTEGER NOT NULL, "
+		+ "title TEXT, "
+		+ "artist TEXT, "
+		+ "album TEXT, "
+		+ "track_number INTEGER, "
+		+ "duration INTEGER, "
+		+ "rg_track REAL, "
+		+ "rg_album REAL, "
+		+ "cover_offset INTEGER, "
+		+ "cover_length INTEGER);";
+	private static final String INDEX_TRACKS_DIR_CREATE = "CREATE INDEX idx_tracks_dir ON " + TABLE_TRACKS
+		+ " (dir);";
+	private static final String[] COLUMNS = {
+		"path", "dir", "modified", "size", "hash", "title", "artist", "album",
+		"track_number", "duration", "rg_track", "rg_album", "cover_offset", "cover_length" };
+
+	private static MusicDatabase sInstance;
+
+	/**
+	 * A track as read from its file.
+	 */
+	public static final class Track {
+		public String path;
+		/**
+		 * The path of the folder the file is in.
+		 */
+		public String dir;
+		/**
+		 * Modification time of the file, in milliseconds.
+		 */
+		public long modified;
+		public long size;
+		/**
+		 * Hash of the start and end of the file, where the tags are.
+		 */
+		public long hash;
+		public String title;
+		public String artist;
+		public String album;
+		/**
+		 * The position of the track in its album, or 0 if unknown.
+		 */
+		public int trackNumber;
+		/**
+		 * Length in milliseconds, or 0 if unknown.
+		 */
+		public long duration;
+		/**
+		 * ReplayGain track gain in dB, or null if the file has none.
+		 */
+		public Float rgTrack;
+		/**
+		 * ReplayGain album gain in dB, or null if the file has none.
+		 */
+		public Float rgAlbum;
+		/**
+		 * Offset of the embedded cover image in the file, or -1 if there
+		 * is none.
+		 */
+		public long coverOffset = -1;
+		/**
+		 * Length of the embedded cover image, in bytes.
+		 */
+		public int coverLength;
+
+		/**
+		 * Returns true if this was read from the file as it is now, going
+		 * by its time and size.
+		 */
+		public boolean isCurrent(long modified, long size)
+		{
+			return this.modified == modified && this.size == size;
+		}
+	}
+
+	/**
+	 * Changes to store in one transaction.
+	 */
+	public static final class Batch {
+		final ArrayList<Track> tracks = new ArrayList<Track>();
+		final ArrayList<String> removedTracks = new ArrayList<String>();
+		final ArrayList<ContentValues> dirs = new ArrayList<ContentValues>();
+		final ArrayList<String> removedDirs = new ArrayList<String>();
+
+		/**
+		 * Store <code>track</code>, replacing the track with the same path.
+		 */
+		public void putTrack(Track track)
+		{
+			tracks.add(track);
+		}
+
+		public void removeTrack(String path)
+		{
+			removedTracks.add(path);
+		}
+
+		/**
+		 * Store that the folder at <code>path</code> has been scanned as of
+		 * <code>modified</code>.
+		 */
+		public void putDir(String path, String parent, long modified)
+		{
+			ContentValues values = new ContentValues(3);
+			values.put("path", path);
+			values.put("parent", parent);
+			values.put("modified", modified);
+			dirs.add(values);
+		}
+
+		/**
+		 * Forget the folder at <code>path</code> and everything under it.
+		 */
+		public void removeDir(String path)
+		{
+			removedDirs.add(path);
+		}
+
+		/**
+		 * Returns the number of changes in the batch.
+		 */
+		public int size()
+		{
+			return tracks.size() + removedTracks.size() + dirs.size() + removedDirs.size();
+		}
+	}
+
+	private MusicDatabase(Context context)
+	{
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * Returns the process-wide database.
+	 */
+	public static synchronized MusicDatabase getInstance(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new MusicDatabase(context.getApplicationContext());
+		return sInstance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db)
+	{
+		db.execSQL(DIRS_CREATE);
+		db.execSQL(INDEX_DIRS_PARENT_CREATE);
+		db.execSQL(TRACKS_CREATE);
+		db.execSQL(INDEX_TRACKS_DIR_CREATE);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+	}
+
+	private static ContentValues toValues(Track track)
+	{
+		ContentValues values = new ContentValues(14);
+		values.put("path", track.path);
+		values.put("dir", track.dir);
+		values.put("modified", track.modified);
+		values.put("size", track.size);
+		values.put("hash", track.hash);
+		values.put("title", track.title);
+		values.put("artist", track.artist);
+		values.put("album", track.album);
+		values.put("track_number", track.trackNumber);
+		values.put("duration", track.duration);
+		values.put("rg_track", track.rgTrack);
+		values.put("rg_album", track.rgAlbum);
+		values.put("cover_offset", track.coverOffset);
+		values.put("cover_length", track.coverLength);
+		return values;
+	}
+
+	/**
+	 * Build a track from a cursor positioned on a row with {@link #COLUMNS}.
+	 */
+	private static Track fromCursor(Cursor cursor)
+	{
+		Track track = new Track();
+		track.path = cursor.getString(0);
+		track.dir = cursor.getString(1);
+		track.modified = cursor.getLong(2);
+		track.size = cursor.getLong(3);
+		track.hash = cursor.getLong(4);
+		track.title = cursor.getString(5);
+		track.artist = cursor.getString(6);
+		track.album = cursor.getString(7);
+		track.trackNumber = cursor.getInt(8);
+		track.duration = cursor.getLong(9);
+		track.rgTrack = cursor.isNull(10) ? null : cursor.getFloat(10);
+		track.rgAlbum = cursor.isNull(11) ? null : cursor.getFloat(11);
+		track.coverOffset = cursor.getLong(12);
+		track.coverLength = cursor.getInt(13);
+		return track;
+	}
+
+	/**
+	 * Returns the stored track at <code>path</code>, or null if there is
+	 * none. It may be out of date; see {@link Track#isCurrent(long, long)}.
+	 */
+	public Track getTrack(String path)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_TRACKS, COLUMNS, "path=?",
+			new String[] { path }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? fromCursor(cursor) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the stored tracks in the folder <code>dir</code>, not in
+	 * subfolders, by path.
+	 */
+	public HashMap<String, Track> getTracksIn(String dir)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_TRACKS, COLUMNS, "dir=?",
+			new String[] { dir }, null, null, null);
+		HashMap<String, Track> tracks = new HashMap<String, Track>(cursor.getCount() * 2);
+		try {
+			while (cursor.moveToNext()) {
+				Track track = fromCursor(cursor);
+				tracks.put(track.path, track);
+			}
+		} finally {
+			cursor.close();
+		}
+		return tracks;
+	}
+
+	/**
+	 * Returns the modification time the folder <code>path</code> was last
+	 * scanned at, or 0 if it never was.
+	 */
+	public long getDirModified(String path)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_DIRS, new String[] { "modified" }, "path=?",
+			new String[] { path }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the stored subfolders of the folder <code>parent</code> and
+	 * the modification times they were last scanned at, by path.
+	 */
+	public HashMap<String, Long> getSubdirs(String parent)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE_DIRS, new String[] { "path", "modified" },
+			"parent=?", new String[] { parent }, null, null, null);
+		HashMap<String, Long> dirs = new HashMap<String, Long>(cursor.getCount() * 2);
+		try {
+			while (cursor.moveToNext())
+				dirs.put(cursor.getString(0), cursor.getLong(1));
+		} finally {
+			cursor.close();
+		}
+		return dirs;
+	}
+
+	/**
+	 * Store the changes in <code>batch</code> in one transaction.
+	 */
+	public void commit(Batch batch)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (String path : batch.removedDirs) {
+				String[] range = MediaUtils.rangeUnder(path);
+				db.delete(TABLE_TRACKS, "path>=? AND path<?", range);
+				db.delete(TABLE_DIRS, "path>=? AND path<?", range);
+				db.delete(TABLE_DIRS, "path=?", new String[] { path });
+			}
+			for (String path : batch.removedTracks)
+				db.delete(TABLE_TRACKS, "path=?", new String[] { path });
+			for (Track track : batch.tracks)
+				db.insertWithOnConflict(TABLE_TRACKS, null, toValues(track), SQLiteDatabase.CONFLICT_REPLACE);
+			for (ContentValues dir : batch.dirs)
+				db.insertWithOnConflict(TABLE_DIRS, null, dir, SQLiteDatabase.CONFLICT_REPLACE);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+}
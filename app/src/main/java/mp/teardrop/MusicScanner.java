@@ -0,0 +1,702 @@
+package mp.teardrop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import ch.blinkenlights.bastp.Bastp;
+
+/**
+ * Keeps {@link MusicDatabase} in step with the music on external storage.
+ *
+ * A scan compares the modification time of every folder with the time it
+ * was last scanned at. A folder whose time has not changed still has the
+ * same files, so only the times and sizes of its stored tracks are
+ * checked; a folder whose time changed is listed again. Files that are new
+ * or whose time or size changed are hashed, and only those whose hash
+ * changed too are read again: their tags and ReplayGain values with bastp,
+ * their duration with MediaMetadataRetriever and the position of their
+ * embedded cover.
+ *
+ * Folders and files are looked at on a few threads at once, and the
+ * results are written on the scan thread in batches. A folder's time is
+ * stored only once all its files are, so a scan that is interrupted, or a
+ * file that cannot be read, is picked up again the next time.
+ */
+public class MusicScanner implements Handler.Callback {
+	/**
+	 * Most threads looking at folders and files at once.
+	 */
+	private static final int MAX_THREADS = 4;
+	/**
+	 * Number of changes written in one transaction.
+	 */
+	private static final int BATCH_SIZE = 500;
+	/**
+	 * Time to wait after a request before scanning, in milliseconds, so
+	 * that a burst of changes causes a single scan.
+	 */
+	private static final long SCAN_DELAY = 1000;
+	/**
+	 * Number of bytes hashed at each end of a file. Tags live at the start
+	 * or the end.
+	 */
+	private static final int HASH_SPAN = 64 * 1024;
+	/**
+	 * Scan, using the Context in obj.
+	 */
+	private static final int MSG_SCAN = 0;
+
+	private static MusicScanner sInstance;
+
+	/**
+	 * Handler on the scan thread; created on first use.
+	 */
+	private Handler mHandler;
+
+	/**
+	 * What a folder task found out about one folder.
+	 */
+	private static final class Folder {
+		final String path;
+		final String parent;
+		final long modified;
+		/**
+		 * True if the folder no longer exists.
+		 */
+		boolean gone;
+		/**
+		 * Subfolders to scan, with the time they were last scanned at, or 0
+		 * if they never were.
+		 */
+		HashMap<String, Long> subdirs;
+		/**
+		 * Files that are new or changed.
+		 */
+		final ArrayList<FileWork> files = new ArrayList<FileWork>();
+		final ArrayList<String> removedTracks = new ArrayList<String>();
+		final ArrayList<String> removedDirs = new ArrayList<String>();
+		/**
+		 * Number of files not handled yet. Only used on the scan thread.
+		 */
+		int remaining;
+		/**
+		 * True if a file could not be read, so that the folder has to be
+		 * scanned again. Only used on the scan thread.
+		 */
+		boolean failed;
+
+		Folder(String path, String parent, long modified)
+		{
+			this.path = path;
+			this.parent = parent;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * A file that is new or changed.
+	 */
+	private static final class FileWork {
+		final File file;
+		final long modified;
+		final long size;
+		/**
+		 * The track as last stored, or null if it is new.
+		 */
+		final MusicDatabase.Track stored;
+
+		FileWork(File file, long modified, long size, MusicDatabase.Track stored)
+		{
+			this.file = file;
+			this.modified = modified;
+			this.size = size;
+			this.stored = stored;
+		}
+	}
+
+	/**
+	 * What a file task found out about one file.
+	 */
+	private static final class FileResult {
+		final Folder folder;
+		/**
+		 * The track to store, or null if the file could not be read.
+		 */
+		final MusicDatabase.Track track;
+		/**
+		 * True if the track was read from the file again.
+		 */
+		final boolean read;
+
+		FileResult(Folder folder, MusicDatabase.Track track, boolean read)
+		{
+			this.folder = folder;
+			this.track = track;
+			this.read = read;
+		}
+	}
+
+	/**
+	 * One scan of the whole tree.
+	 */
+	private static final class Scan {
+		private final MusicDatabase mDatabase;
+		private final CompletionService<Object> mCompletion;
+		private MusicDatabase.Batch mBatch = new MusicDatabase.Batch();
+		/**
+		 * Number of tasks submitted and not yet taken.
+		 */
+		private int mPending;
+		int folders;
+		int filesRead;
+
+		Scan(MusicDatabase database, ExecutorService executor)
+		{
+			mDatabase = database;
+			mCompletion = new ExecutorCompletionService<Object>(executor);
+		}
+
+		/**
+		 * Scan <code>root</code> and everything under it.
+		 */
+		void run(File root) throws InterruptedException
+		{
+			String path = root.getPath();
+			String parent = root.getParent();
+			submitFolder(path, parent == null ? "/" : parent, mDatabase.getDirModified(path));
+
+			while (mPending != 0) {
+				Object result;
+				try {
+					result = mCompletion.take().get();
+				} catch (ExecutionException e) {
+					// whatever the task was for is scanned again next time
+					Log.w("OrchidMP", "Music scan task failed", e.getCause());
+					continue;
+				} finally {
+					--mPending;
+				}
+
+				if (result instanceof Folder)
+					onFolder((Folder)result);
+				else
+					onFile((FileResult)result);
+
+				if (mBatch.size() >= BATCH_SIZE)
+					commit();
+			}
+			commit();
+		}
+
+		private void commit()
+		{
+			if (mBatch.size() == 0)
+				return;
+			mDatabase.commit(mBatch);
+			mBatch = new MusicDatabase.Batch();
+		}
+
+		private void submitFolder(final String path, final String parent, final long stored)
+		{
+			++mPending;
+			mCompletion.submit(new Callable<Object>() {
+				@Override
+				public Object call()
+				{
+					return scanFolder(mDatabase, path, parent, stored);
+				}
+			});
+		}
+
+		private void submitFile(final Folder folder, final FileWork work)
+		{
+			++mPending;
+			mCompletion.submit(new Callable<Object>() {
+				@Override
+				public Object call()
+				{
+					MusicDatabase.Track track = scanFile(folder.path, work);
+					return new FileResult(folder, track, track != null && track != work.stored);
+				}
+			});
+		}
+
+		private void onFolder(Folder folder)
+		{
+			++folders;
+			if (folder.gone) {
+				mBatch.removeDir(folder.path);
+				return;
+			}
+
+			for (String path : folder.removedDirs)
+				mBatch.removeDir(path);
+			for (String path : folder.removedTracks)
+				mBatch.removeTrack(path);
+			for (Map.Entry<String, Long> subdir : folder.subdirs.entrySet()) {
+				long stored = subdir.getValue();
+				// store new folders right away, as never scanned, so they
+				// are found again even if this scan does not get to them
+				if (stored == 0)
+					mBatch.putDir(subdir.getKey(), folder.path, 0);
+				submitFolder(subdir.getKey(), folder.path, stored);
+			}
+
+			folder.remaining = folder.files.size();
+			if (folder.remaining == 0)
+				mBatch.putDir(folder.path, folder.parent, folder.modified);
+			for (FileWork work : folder.files)
+				submitFile(folder, work);
+		}
+
+		private void onFile(FileResult result)
+		{
+			Folder folder = result.folder;
+			if (result.track != null)
+				mBatch.putTrack(result.track);
+			else
+				folder.failed = true;
+			if (result.read)
+				++filesRead;
+			// leave the folder's stored time as it was if a file failed, so
+			// that the next scan tries it again
+			if (--folder.remaining == 0 && !folder.failed)
+				mBatch.putDir(folder.path, folder.parent, folder.modified);
+		}
+	}
+
+	/**
+	 * Returns the process-wide scanner.
+	 */
+	public static synchronized MusicScanner getInstance()
+	{
+		if (sInstance == null)
+			sInstance = new MusicScanner();
+		return sInstance;
+	}
+
+	/**
+	 * Scan the external storage in the background, soon, unless a scan is
+	 * already due. Does nothing without permission to read the storage.
+	 */
+	public synchronized void requestScan(Context context)
+	{
+		if (!MediaUtils.hasPermissionToReadStorage(context))
+			return;
+		if (mHandler == null) {
+			HandlerThread thread = new HandlerThread("MusicScanner", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			mHandler = new Handler(thread.getLooper(), this);
+		}
+		mHandler.removeMessages(MSG_SCAN);
+		mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SCAN, context.getApplicationContext()), SCAN_DELAY);
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_SCAN:
+			scan((Context)message.obj);
+			break;
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Bring the database up to date. Runs on the scan thread.
+	 */
+	private static void scan(Context context)
+	{
+		String state = Environment.getExternalStorageState();
+		if (!Environment.MEDIA_MOUNTED.equals(state) && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
+			// an unmounted storage would look like everything was deleted
+			return;
+
+		long start = SystemClock.elapsedRealtime();
+		int threads = Math.min(MAX_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable() {
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "MusicScanner worker");
+			}
+		});
+
+		Scan scan = new Scan(MusicDatabase.getInstance(context), executor);
+		try {
+			scan.run(Environment.getExternalStorageDirectory());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Log.d("OrchidMP", "Music scan: " + scan.folders + " folders, " + scan.filesRead + " files read, "
+			+ (SystemClock.elapsedRealtime() - start) + " ms");
+	}
+
+	/**
+	 * Find out what changed in the folder at <code>path</code> since it
+	 * was scanned at <code>stored</code>. Runs on a worker thread.
+	 */
+	private static Folder scanFolder(MusicDatabase database, String path, String parent, long stored)
+	{
+		File dir = new File(path);
+		Folder folder = new Folder(path, parent, dir.lastModified());
+		if (folder.modified == 0) {
+			folder.gone = true;
+			return folder;
+		}
+
+		HashMap<String, MusicDatabase.Track> tracks = database.getTracksIn(path);
+
+		if (folder.modified == stored) {
+			// the same files as last time; only their contents may differ
+			folder.subdirs = database.getSubdirs(path);
+			for (MusicDatabase.Track track : tracks.values()) {
+				File file = new File(track.path);
+				long modified = file.lastModified();
+				if (modified == 0) {
+					folder.removedTracks.add(track.path);
+					continue;
+				}
+				long size = file.length();
+				if (!track.isCurrent(modified, size))
+					folder.files.add(new FileWork(file, modified, size, track));
+			}
+			return folder;
+		}
+
+		DirectorySnapshot snapshot = DirectorySnapshot.take(dir);
+		if (snapshot == null) {
+			folder.gone = true;
+			return folder;
+		}
+		// like the media scanner, leave out the files of folders marked
+		// with .nomedia
+		boolean hidden = new File(dir, ".nomedia").exists();
+
+		HashMap<String, Long> known = database.getSubdirs(path);
+		folder.subdirs = new HashMap<String, Long>();
+		for (DirectorySnapshot.Entry entry : snapshot.entries) {
+			String entryPath = entry.file.getPath();
+			if (entry.type == DirectorySnapshot.TYPE_FOLDER) {
+				Long last = known.remove(entryPath);
+				folder.subdirs.put(entryPath, last == null ? 0 : last);
+			} else if (entry.type == DirectorySnapshot.TYPE_AUDIO && !hidden) {
+				MusicDatabase.Track track = tracks.remove(entryPath);
+				long modified = entry.file.lastModified();
+				long size = entry.file.length();
+				if (track == null || !track.isCurrent(modified, size))
+					folder.files.add(new FileWork(entry.file, modified, size, track));
+			}
+		}
+		// whatever was stored and is not there any more
+		folder.removedTracks.addAll(tracks.keySet());
+		folder.removedDirs.addAll(known.keySet());
+		return folder;
+	}
+
+	/**
+	 * Returns the track for a new or changed file: the stored track with
+	 * the new time and size if the hash shows the file did not really
+	 * change, or the track read from the file otherwise. Returns null if
+	 * the file cannot be read. Runs on a worker thread.
+	 */
+	private static MusicDatabase.Track scanFile(String dir, FileWork work)
+	{
+		long hash;
+		try {
+			hash = hash(work.file, work.size);
+		} catch (IOException e) {
+			return null;
+		}
+
+		MusicDatabase.Track track = work.stored;
+		if (track == null || track.hash != hash) {
+			track = readTags(work.file);
+			track.duration = readDuration(work.file);
+			long[] cover = findCover(work.file);
+			if (cover != null) {
+				track.coverOffset = cover[0];
+				track.coverLength = (int)cover[1];
+			}
+		}
+		track.dir = dir;
+		track.modified = work.modified;
+		track.size = work.size;
+		track.hash = hash;
+		return track;
+	}
+
+	/**
+	 * Returns a hash of the size of <code>file</code> and of the bytes at
+	 * either end, where tags are kept.
+	 */
+	private static long hash(File file, long size) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[(int)Math.min(size, HASH_SPAN)];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.readFully(buffer);
+			crc.update(buffer);
+			if (size > HASH_SPAN) {
+				in.seek(Math.max(HASH_SPAN, size - HASH_SPAN));
+				int length = (int)(size - in.getFilePointer());
+				in.readFully(buffer, 0, length);
+				crc.update(buffer, 0, length);
+			}
+		} finally {
+			in.close();
+		}
+		return size << 32 | crc.getValue();
+	}
+
+	/**
+	 * Returns a track with the tags and ReplayGain values bastp finds in
+	 * <code>file</code>. Tags the file does not have are left null.
+	 */
+	static MusicDatabase.Track readTags(File file)
+	{
+		HashMap tags = new Bastp().getTags(file.getPath());
+		MusicDatabase.Track track = new MusicDatabase.Track();
+		track.path = file.getPath();
+		track.title = getTag(tags, "TITLE");
+		track.artist = getTag(tags, "ARTIST");
+		track.album = getTag(tags, "ALBUM");
+		track.trackNumber = parseNumber(getTag(tags, "TRACKNUMBER"));
+		track.rgTrack = parseGain(getTag(tags, "REPLAYGAIN_TRACK_GAIN"));
+		track.rgAlbum = parseGain(getTag(tags, "REPLAYGAIN_ALBUM_GAIN"));
+		return track;
+	}
+
+	/**
+	 * Returns the first value of the tag <code>key</code>, or null if there
+	 * is none.
+	 */
+	private static String getTag(HashMap tags, String key)
+	{
+		Object values = tags.get(key);
+		if (!(values instanceof Vector) || ((Vector)values).isEmpty())
+			return null;
+		String value = ((Vector)values).get(0).toString().trim();
+		return value.length() == 0 ? null : value;
+	}
+
+	/**
+	 * Returns the number at the start of <code>value</code>, e.g. 3 for
+	 * "3/12", or 0 if there is none.
+	 */
+	private static int parseNumber(String value)
+	{
+		if (value == null)
+			return 0;
+		int number = 0;
+		for (int i = 0, n = Math.min(value.length(), 6); i != n; ++i) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			number = number * 10 + c - '0';
+		}
+		return number;
+	}
+
+	/**
+	 * Returns the gain in a ReplayGain tag such as "-6.5 dB", or null if
+	 * there is none.
+	 */
+	private static Float parseGain(String value)
+	{
+		if (value == null)
+			return null;
+		try {
+			return Float.parseFloat(value.replaceAll("[^0-9.-]", ""));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the length of the audio in <code>file</code> in
+	 * milliseconds, or 0 if it cannot be found out.
+	 */
+	private static long readDuration(File file)
+	{
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try {
+			retriever.setDataSource(file.getPath());
+			String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+			return duration == null ? 0 : Long.parseLong(duration);
+		} catch (RuntimeException e) {
+			// not something the platform can play
+			return 0;
+		} finally {
+			retriever.release();
+		}
+	}
+
+	/**
+	 * Returns the offset and length of the image embedded in an ID3v2 tag
+	 * or in FLAC metadata, or null if there is none.
+	 */
+	static long[] findCover(File file)
+	{
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				byte[] magic = new byte[4];
+				in.readFully(magic);
+				long[] range = null;
+				if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C')
+					range = findFlacCover(in);
+				else if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3')
+					range = findId3Cover(in);
+				if (range != null && (range[0] < 0 || range[1] <= 0 || range[0] + range[1] > in.length()))
+					range = null;
+				return range;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static int syncsafe(byte[] b, int off)
+	{
+		return (b[off] & 0x7f) << 21 | (b[off + 1] & 0x7f) << 14 | (b[off + 2] & 0x7f) << 7 | (b[off + 3] & 0x7f);
+	}
+
+	private static int be32(byte[] b, int off)
+	{
+		return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * Find the first APIC frame of an ID3v2.3 or 2.4 tag. Unsynchronised,
+	 * compressed and encrypted tags are skipped.
+	 */
+	private static long[] findId3Cover(RandomAccessFile in) throws IOException
+	{
+		byte[] header = new byte[10];
+		in.seek(0);
+		in.readFully(header);
+		int version = header[3];
+		if (version < 3 || version > 4 || (header[5] & 0x80) != 0)
+			return null;
+
+		long end = 10 + syncsafe(header, 6);
+		long pos = 10;
+		if ((header[5] & 0x40) != 0) {
+			// skip the extended header; its size only counts itself in 2.4
+			byte[] size = new byte[4];
+			in.readFully(size);
+			pos += version == 4 ? syncsafe(size, 0) : 4 + be32(size, 0);
+		}
+
+		byte[] frame = new byte[10];
+		while (pos + 10 <= end) {
+			in.seek(pos);
+			in.readFully(frame);
+			if (frame[0] == 0)
+				// padding
+				break;
+			int size = version == 4 ? syncsafe(frame, 4) : be32(frame, 4);
+			if (size <= 0 || pos + 10 + size > end)
+				break;
+
+			boolean encoded = version == 4 ? (frame[9] & 0x0f) != 0 : (frame[9] & 0xc0) != 0;
+			if (frame[0] == 'A' && frame[1] == 'P' && frame[2] == 'I' && frame[3] == 'C' && !encoded) {
+				// the text encoding, MIME type, picture type and description
+				// come before the image
+				byte[] data = new byte[Math.min(size, 4096)];
+				in.readFully(data);
+				int encoding = data[0];
+				int i = 1;
+				while (i < data.length && data[i] != 0)
+					++i;
+				i += 2;
+				if (encoding == 1 || encoding == 2) {
+					while (i + 1 < data.length && (data[i] != 0 || data[i + 1] != 0))
+						i += 2;
+					i += 2;
+				} else {
+					while (i < data.length && data[i] != 0)
+						++i;
+					++i;
+				}
+				if (i >= data.length)
+					return null;
+				return new long[] { pos + 10 + i, size - i };
+			}
+			pos += 10 + size;
+		}
+		return null;
+	}
+
+	/**
+	 * Find the first PICTURE block in FLAC metadata.
+	 */
+	private static long[] findFlacCover(RandomAccessFile in) throws IOException
+	{
+		long pos = 4;
+		byte[] header = new byte[4];
+		while (true) {
+			in.seek(pos);
+			in.readFully(header);
+			int type = header[0] & 0x7f;
+			int length = (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+			if (type == 6) {
+				// the picture type, MIME type, description, width, height,
+				// depth and number of colors come before the image
+				long p = pos + 4 + 4;
+				in.seek(p);
+				p += 4 + in.readInt();
+				in.seek(p);
+				p += 4 + in.readInt() + 16;
+				in.seek(p);
+				int dataLength = in.readInt();
+				return new long[] { p + 4, dataLength };
+			}
+			if ((header[0] & 0x80) != 0)
+				// last metadata block
+				return null;
+			pos += 4 + length;
+		}
+	}
+}
@@ -23,6 +23,8 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.Cursor;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PlayCountsHelper extends SQLiteOpenHelper {
 
@@ -30,18 +32,27 @@ public class PlayCountsHelper extends SQLiteOpenHelper {
 	 * SQL constants and CREATE TABLE statements used by 
 	 * this java class
 	 */
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 2;
 	private static final String DATABASE_NAME = "playcounts.db";
 	private static final String TABLE_PLAYCOUNTS = "playcounts";
 	private static final String DATABASE_CREATE = "CREATE TABLE "+TABLE_PLAYCOUNTS + " (" //TODO: normalize the DB if needed
 	  + "type      INTEGER, "
 	  + "type_id   BIGINT, "
-	  + "playcount INTEGER);";
+	  + "playcount INTEGER, "
+	  + "skipcount INTEGER DEFAULT 0, "
+	  + "last_played BIGINT DEFAULT 0);";
 	private static final String INDEX_UNIQUE_CREATE = "CREATE UNIQUE INDEX idx_uniq ON "+TABLE_PLAYCOUNTS
 	  + " (type, type_id);";
 	private static final String INDEX_TYPE_CREATE = "CREATE INDEX idx_type ON "+TABLE_PLAYCOUNTS
 	  + " (type);";
 
+	/**
+	 * Play statistics of songs by MediaStore id, shared by all instances.
+	 * Filled by loadSongStats() and kept in step with the database by
+	 * countSong() and countSkip().
+	 */
+	private static final ConcurrentHashMap<Long, SmartRandom.Stats> sSongStats = new ConcurrentHashMap<Long, SmartRandom.Stats>();
+
 	private Context ctx;
 
 	public PlayCountsHelper(Context context) {
@@ -58,7 +69,34 @@ public class PlayCountsHelper extends SQLiteOpenHelper {
 
 	@Override
 	public void onUpgrade(SQLiteDatabase dbh, int oldVersion, int newVersion) {
-		// first db -> nothing to upgrade
+		if (oldVersion < 2) {
+			dbh.execSQL("ALTER TABLE "+TABLE_PLAYCOUNTS+" ADD COLUMN skipcount INTEGER DEFAULT 0");
+			dbh.execSQL("ALTER TABLE "+TABLE_PLAYCOUNTS+" ADD COLUMN last_played BIGINT DEFAULT 0");
+		}
+	}
+
+	/**
+	 * Returns the play statistics of songs by MediaStore id. The map is
+	 * empty until loadSongStats() has run.
+	 */
+	public static Map<Long, SmartRandom.Stats> getSongStats() {
+		return sSongStats;
+	}
+
+	/**
+	 * Read the play statistics of all songs into the map returned by
+	 * {@link #getSongStats()}. Should be called on a worker thread.
+	 */
+	public void loadSongStats() {
+		SQLiteDatabase dbh = this.getReadableDatabase();
+		Cursor cursor = dbh.rawQuery("SELECT type_id, playcount, skipcount, last_played FROM "+TABLE_PLAYCOUNTS+" WHERE type="+UnifiedAdapter.ITEM_TYPE_SONG, null);
+
+		while (cursor.moveToNext()) {
+			sSongStats.put(cursor.getLong(0),
+					new SmartRandom.Stats(cursor.getInt(1), cursor.getInt(2), cursor.getLong(3)));
+		}
+
+		cursor.close();
 	}
 
 	/**
@@ -86,7 +124,11 @@ public class PlayCountsHelper extends SQLiteOpenHelper {
 			
 			//create the row if it doesn't exist, then increment
 			dbh.execSQL("INSERT OR IGNORE INTO "+TABLE_PLAYCOUNTS+" (type, type_id, playcount) VALUES ("+UnifiedAdapter.ITEM_TYPE_SONG+", "+id+", 0);");
-			dbh.execSQL("UPDATE "+TABLE_PLAYCOUNTS+" SET playcount=playcount+1 WHERE type="+UnifiedAdapter.ITEM_TYPE_SONG+" AND type_id="+id+";");
+			long now = System.currentTimeMillis();
+			dbh.execSQL("UPDATE "+TABLE_PLAYCOUNTS+" SET playcount=playcount+1, last_played="+now+" WHERE type="+UnifiedAdapter.ITEM_TYPE_SONG+" AND type_id="+id+";");
+			SmartRandom.Stats stats = sSongStats.get(id);
+			sSongStats.put(id, stats == null ? new SmartRandom.Stats(1, 0, now)
+					: new SmartRandom.Stats(stats.plays + 1, stats.skips, now));
 			
 			dbh.execSQL("INSERT OR IGNORE INTO "+TABLE_PLAYCOUNTS+" (type, type_id, playcount) VALUES ("+UnifiedAdapter.ITEM_TYPE_ARTIST+", "+artistId+", 0);");
 			dbh.execSQL("UPDATE "+TABLE_PLAYCOUNTS+" SET playcount=playcount+1 WHERE type="+UnifiedAdapter.ITEM_TYPE_ARTIST+" AND type_id="+artistId+";");
@@ -103,6 +145,32 @@ public class PlayCountsHelper extends SQLiteOpenHelper {
 		}
 	}
 
+	/**
+	 * Remembers that this song was skipped, which makes it less likely to
+	 * be picked by the random finish action.
+	 *
+	 * @param song
+	 */
+	public void countSkip(Song song) {
+		long id = song.id;
+
+		try {
+
+			SQLiteDatabase dbh = this.getWritableDatabase();
+
+			dbh.execSQL("INSERT OR IGNORE INTO "+TABLE_PLAYCOUNTS+" (type, type_id, playcount) VALUES ("+UnifiedAdapter.ITEM_TYPE_SONG+", "+id+", 0);");
+			dbh.execSQL("UPDATE "+TABLE_PLAYCOUNTS+" SET skipcount=skipcount+1 WHERE type="+UnifiedAdapter.ITEM_TYPE_SONG+" AND type_id="+id+";");
+			SmartRandom.Stats stats = sSongStats.get(id);
+			sSongStats.put(id, stats == null ? new SmartRandom.Stats(0, 1, 0)
+					: new SmartRandom.Stats(stats.plays, stats.skips + 1, stats.lastPlayed));
+
+			dbh.close();
+
+		} catch(IllegalStateException e) {
+
+		}
+	}
+
 	/**
 	 * Returns a sorted array list of most often listened to artist, album or song ids
 	 * 
@@ -398,6 +398,7 @@ public abstract class PlaybackActivity extends Activity
 	//static final int MENU_SONG_FAVORITE = 12;
 	static final int MENU_UNLINK_WITH_DROPBOX = 91;
 	static final int MENU_SHUFFLE_QUEUE = 21;
+	static final int MENU_UNDO_QUEUE = 22;
 
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu)
@@ -72,7 +72,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Random;
 
 import mp.teardrop.SongTimeline.Callback;
 
@@ -245,6 +244,7 @@ public final class PlaybackService extends Service
 	static boolean shouldCountSongStart = true;
 
 	static final String PREFS_SAVED_SONGS = "savedSongs";
+	static final String PREFS_SAVED_SHUFFLE = "savedShuffle";
 
 	/**
 	 * The PlaybackService state, indicating if the service is playing,
@@ -281,6 +281,11 @@ public final class PlaybackService extends Service
      * the current song's duration just as a new song is being processed.
 	 */
 	private static final Object[] sDurationRefreshLock = new Object[0];
+	/**
+	 * A streaming link that expires within this many milliseconds is
+	 * refreshed before it is used.
+	 */
+	private static final long CLOUD_LINK_MARGIN = 60 * 60 * 1000;
 
 	/**
 	 * Object used for PlaybackService startup waiting.
@@ -324,6 +329,17 @@ public final class PlaybackService extends Service
 
 	private Looper mLooper;
 	private Handler mHandler;
+	/**
+	 * Runs QUERY and QUERY_READ, which read MediaStore cursors, so that
+	 * messages on mHandler never wait for them.
+	 */
+	private Looper mQueryLooper;
+	private Handler mQueryHandler;
+	/**
+	 * The query whose songs the query thread is reading, or null. Only used
+	 * on the query thread.
+	 */
+	private SongTimeline.PendingSongs mReadingQuery;
 	MediaPlayer mMediaPlayer;
 	MediaPlayer mPreparedMediaPlayer;
 	private boolean mMediaPlayerInitialized;
@@ -413,6 +429,21 @@ public final class PlaybackService extends Service
 	 * Reference to Playcounts helper class
 	 */
 	private PlayCountsHelper mPlayCounts;
+	/**
+	 * Weighted choice of queue positions for FINISH_RANDOM. Lock on it
+	 * before use; its items are rebuilt only when the queue has changed.
+	 */
+	private final SmartRandom mSmartRandom = new SmartRandom(PlayCountsHelper.getSongStats());
+	/**
+	 * Imports Dropbox files and folders into the timeline, independent of
+	 * the activity that asked for them.
+	 */
+	private CloudImport mCloudImport;
+	/**
+	 * Imports local files and folders into the timeline, straight from the
+	 * filesystem.
+	 */
+	private FolderImport mFolderImport;
 
 	@Override
 	public void onCreate()
@@ -425,9 +456,11 @@ public final class PlaybackService extends Service
 		int state = loadState();
 
 		mPlayCounts = new PlayCountsHelper(this);
+		mCloudImport = new CloudImport(this);
+		mFolderImport = new FolderImport(this);
 
 		mMediaPlayer = getNewMediaPlayer();
-		mBastpUtil = new BastpUtil();
+		mBastpUtil = new BastpUtil(this);
 		mReadahead = new ReadaheadThread();
 		mReadahead.start();
 
@@ -470,11 +503,19 @@ public final class PlaybackService extends Service
 
 		getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
                 true, mObserver);
+		LibraryIndex.getInstance().requestRefresh(this);
+		MusicScanner.getInstance().requestScan(this);
 
 		CompatIcs.registerRemote(this, mAudioManager);
 
 		mLooper = thread.getLooper();
 		mHandler = new Handler(mLooper, this);
+		mHandler.sendEmptyMessage(LOAD_SONG_STATS);
+
+		HandlerThread queryThread = new HandlerThread("PlaybackService queries", Process.THREAD_PRIORITY_BACKGROUND);
+		queryThread.start();
+		mQueryLooper = queryThread.getLooper();
+		mQueryHandler = new Handler(mQueryLooper, this);
 
 		initWidgets();
 
@@ -572,6 +613,9 @@ public final class PlaybackService extends Service
 		sInstance = null;
 
 		mLooper.quit();
+		mQueryLooper.quit();
+		mCloudImport.shutdown();
+		mFolderImport.shutdown();
 
 		// clear the notification
 		stopForeground(true);
@@ -618,17 +662,27 @@ public final class PlaybackService extends Service
 		return mp;
 	}
 
+    /**
+     * Get a new streaming link for a cloud song and store it, so that the next import of the
+     * song's folder can reuse it. The song's tags are left alone: they stay valid for as long as
+     * its revision does.
+     */
+    private void refreshCloudLink(Song song) throws DropboxException {
+        CloudClient.Link link = LibraryActivity.mCloud.media(song.dbPath);
+        song.path = link.url;
+        song.cloudLinkExpires = link.expires;
+        CloudSongStore.getInstance(this).updateLink(song.dbPath, link.url, link.expires);
+    }
+
     public void prepareMediaPlayer(MediaPlayer mp, Song song) throws IOException {
 
-        Date threeHoursAgo = new Date(new Date().getTime() - 10800000);
+        //links are resolved just in time, with some margin for songs that are paused a while
+        Date soon = new Date(System.currentTimeMillis() + CLOUD_LINK_MARGIN);
 
-        if (song.isCloudSong && (song.dropboxLinkCreated == null ||
-                song.dropboxLinkCreated.before(threeHoursAgo))) {
-            //FIXME some of this code is duplicated
+        if (song.isCloudSong && (song.cloudLinkExpires == null ||
+                song.cloudLinkExpires.before(soon))) {
             try {
-                String path = LibraryActivity.mApi.media(song.dbPath, true).url;
-                song.path = path;
-                song.dropboxLinkCreated = new Date();
+                refreshCloudLink(song);
             } catch (DropboxException e1) {
                 Log.w("OrchidMP", "Failed to refresh a song's streaming link: " + e1.getMessage());
                 throw new IOException("Failed to refresh a song's streaming link.");
@@ -1322,11 +1376,8 @@ public final class PlaybackService extends Service
 
 					//TODO: maybe this should re-download all the song's metadata, not just refresh the url? in case it was modified?
 					//better yet, refresh the song's metadata after it has started playing to keep things smooth
-					String path = LibraryActivity.mApi.media(song.dbPath, true).url;
-
 					//retry with refreshed streaming link
-					song.path = path;
-                    song.dropboxLinkCreated = new Date();
+					refreshCloudLink(song);
 					processSong(song, playing);
 
 					return;
@@ -1370,7 +1421,8 @@ public final class PlaybackService extends Service
 
 		// song was played in its entirety - increase its popularity significantly
 		Song song = mTimeline.getSong(0);
-		mPlayCounts.countSong(song, 5);
+		if (song.id >= 0)
+			mPlayCounts.countSong(song, 5);
 
 		if (finishAction(mState) == SongTimeline.FINISH_REPEAT_CURRENT) {
 			setCurrentSong(0, false);
@@ -1382,9 +1434,7 @@ public final class PlaybackService extends Service
 				setCurrentSong(0, false);
 				play();
 			} else {
-				int target = new Random().nextInt(mTimeline.getLength() - 1);
-				if(target >= mTimeline.getPosition()) target++;
-				mTimeline.setCurrentQueuePosition(target);
+				mTimeline.setCurrentQueuePosition(pickRandomQueuePosition());
 				setCurrentSong(0, false);
 				play();
 			}
@@ -1404,10 +1454,14 @@ public final class PlaybackService extends Service
 	public void onPrepared(MediaPlayer mp) {
 		if(shouldCountSongStart) {
 			Song song = mTimeline.getSong(0);
-			if (!song.isCloudSong) {
+			if (song.id >= 0) {
 				mPlayCounts.countSong(song,
 						1); //increase the song's popularity slightly when it starts playing
 			}
+			synchronized (mSmartRandom) {
+				mSmartRandom.played(randomKey(song));
+			}
+			MediaUtils.onSongPlayed(song);
 		}
 		shouldCountSongStart = !shouldCountSongStart;
 
@@ -1440,6 +1494,19 @@ public final class PlaybackService extends Service
 		return mTimeline.getSong(delta);
 	}
 
+	/**
+	 * Returns the song <code>delta</code> positions from the current song,
+	 * or null if that is beyond either end of the queue. For rendering
+	 * things ahead of time; use getSong() for the songs next to the current
+	 * one.
+	 */
+	public Song peekSong(int delta)
+	{
+		if (mTimeline == null)
+			return null;
+		return mTimeline.peekSong(delta);
+	}
+
 	private class Receiver extends BroadcastReceiver {
 		@Override
 		public void onReceive(Context content, Intent intent)
@@ -1481,7 +1548,8 @@ public final class PlaybackService extends Service
 	 */
 	private static final int RELEASE_WAKE_LOCK = 1;
 	/**
-	 * Run the given query and add the results to the timeline.
+	 * Run the given query and add the results to the timeline. Sent to the
+	 * query thread.
 	 *
 	 * obj is the QueryTask. arg1 is the add mode (one of SongTimeline.MODE_*)
 	 */
@@ -1512,6 +1580,45 @@ public final class PlaybackService extends Service
 	private static final int PROCESS_SONG = 13;
 	private static final int PROCESS_STATE = 14;
 	private static final int SKIP_BROKEN_SONG = 15;
+	/**
+	 * Add the next batch of songs read for the query in obj to the
+	 * timeline.
+	 */
+	private static final int QUERY_BATCH = 16;
+	/**
+	 * Count a skip of the song in obj.
+	 */
+	private static final int COUNT_SKIP = 17;
+	/**
+	 * Read the play statistics SmartRandom weighs songs by.
+	 */
+	private static final int LOAD_SONG_STATS = 18;
+	/**
+	 * Append the songs in obj, the next batch of a cloud import, to the
+	 * timeline.
+	 */
+	private static final int CLOUD_BATCH = 19;
+	/**
+	 * Add the songs in obj, the first of a folder import, to the timeline
+	 * with the mode in arg1.
+	 */
+	private static final int FILE_SONGS = 20;
+	/**
+	 * Append the songs in obj, the next batch of a folder import, to the
+	 * timeline.
+	 */
+	private static final int FILE_BATCH = 21;
+	/**
+	 * Add the first song of the query in obj, read by a QUERY, to the
+	 * timeline. obj is null if the query found nothing; arg1 is the add
+	 * mode.
+	 */
+	private static final int QUERY_SONGS = 22;
+	/**
+	 * Read the next batch of songs of the query being added. Sent to the
+	 * query thread.
+	 */
+	private static final int QUERY_READ = 23;
 
 	private static final int FORCE_PLAYBACK = 1337;
 
@@ -1536,9 +1643,65 @@ public final class PlaybackService extends Service
 		case QUERY:
 			runQuery((QueryTask)message.obj);
 			break;
+		case COUNT_SKIP: {
+			Song song = (Song)message.obj;
+			mPlayCounts.countSkip(song);
+			synchronized (mSmartRandom) {
+				mSmartRandom.update(randomKey(song));
+			}
+			MediaUtils.onSongStatsChanged(song);
+			break;
+		}
+		case LOAD_SONG_STATS:
+			mPlayCounts.loadSongStats();
+			synchronized (mSmartRandom) {
+				mSmartRandom.invalidate();
+			}
+			MediaUtils.onSongStatsReloaded();
+			break;
+		case QUERY_READ:
+			readQueryBatch();
+			break;
+		case QUERY_SONGS: {
+			SongTimeline.PendingSongs pending = (SongTimeline.PendingSongs)message.obj;
+			queryAdded(pending == null ? 0 : mTimeline.addQuerySongs(pending), message.arg1);
+			break;
+		}
+		case QUERY_BATCH: {
+			Song next = getSong(1);
+			// only the first batch normally gives us a new next song
+			if (mTimeline.addPendingSongs((SongTimeline.PendingSongs)message.obj) && getSong(1) != next)
+				triggerGaplessUpdate();
+			break;
+		}
 		case CLOUD_SONGS:
 			runDropboxQuery((ArrayList<CloudSongMetadata>) message.obj, message.arg1);
 			break;
+		case CLOUD_BATCH: {
+			Song next = getSong(1);
+			if (!mTimeline.appendCloudSongs((ArrayList<CloudSongMetadata>) message.obj))
+				// the queue has moved on; stop loading songs nobody will hear
+				mCloudImport.cancel();
+			else if (getSong(1) != next)
+				triggerGaplessUpdate();
+			break;
+		}
+		case FILE_SONGS: {
+			int count = mTimeline.addFileSongs((ArrayList<Song>) message.obj, message.arg1);
+			if (count != 0 && isPlayMode(message.arg1) && (mState & FLAG_PLAYING) == 0)
+				setFlag(FLAG_PLAYING);
+			triggerGaplessUpdate();
+			break;
+		}
+		case FILE_BATCH: {
+			Song next = getSong(1);
+			if (!mTimeline.appendFileSongs((ArrayList<Song>) message.obj))
+				// the queue has moved on; stop reading songs nobody will hear
+				mFolderImport.cancel();
+			else if (getSong(1) != next)
+				triggerGaplessUpdate();
+			break;
+		}
 		case IDLE_TIMEOUT:
 			if ((mState & FLAG_PLAYING) != 0) {
 				mHandler.sendMessage(mHandler.obtainMessage(FADE_OUT, 0));
@@ -1686,6 +1849,8 @@ public final class PlaybackService extends Service
 		for (int i = list.size(); --i != -1; )
 			list.get(i).displayLoadingMessage();
 
+		if (delta == SongTimeline.SHIFT_NEXT_SONG)
+			countSkip();
 		Song song = setCurrentSong(delta, false);
 		userActionTriggered();
 		return song;
@@ -1719,17 +1884,69 @@ public final class PlaybackService extends Service
 
 	/**
 	 * Run the query and add the results to the timeline. Should be called in the
-	 * worker thread.
+	 * query thread.
 	 *
 	 * @param query The query to run.
 	 */
 	public void runQuery(QueryTask query)
 	{
-		int count = mTimeline.addSongs(this, query);
+		SongTimeline.PendingSongs reading = mReadingQuery;
+		if (reading != null && (query.mode == SongTimeline.MODE_ENQUEUE
+				|| query.mode == SongTimeline.MODE_ENQUEUE_POS_FIRST || query.mode == SongTimeline.MODE_ENQUEUE_ID_FIRST)) {
+			// songs still coming from an earlier query go first
+			mReadingQuery = null;
+			mQueryHandler.removeMessages(QUERY_READ);
+			while (reading.read(SongTimeline.BATCH_SIZE))
+				mHandler.sendMessage(mHandler.obtainMessage(QUERY_BATCH, reading));
+		}
+
+		SongTimeline.PendingSongs pending = mTimeline.readQuery(this, query);
+		mHandler.sendMessage(mHandler.obtainMessage(QUERY_SONGS, query.mode, 0, pending));
+		if (pending != null && mReadingQuery != null) {
+			// the new songs replace the rest of the earlier query
+			mReadingQuery.cancel();
+			mReadingQuery = null;
+			mQueryHandler.removeMessages(QUERY_READ);
+		}
+
+		// The rest of the songs follow in batches, leaving room for other
+		// queries in between.
+		if (pending != null && pending.count > 1) {
+			mReadingQuery = pending;
+			mQueryHandler.sendEmptyMessage(QUERY_READ);
+		}
+	}
+
+	/**
+	 * Read the next batch of the query being added and hand it to the
+	 * worker thread. Should be called in the query thread.
+	 */
+	private void readQueryBatch()
+	{
+		SongTimeline.PendingSongs pending = mReadingQuery;
+		if (pending == null)
+			return;
+		if (pending.read(SongTimeline.BATCH_SIZE)) {
+			mHandler.sendMessage(mHandler.obtainMessage(QUERY_BATCH, pending));
+			mQueryHandler.sendEmptyMessage(QUERY_READ);
+		} else {
+			// all read, or cancelled by a change to the timeline
+			mReadingQuery = null;
+		}
+	}
 
+	/**
+	 * Tell the user how many songs a query added and start playing if the
+	 * mode asks for it. Should be called in the worker thread.
+	 *
+	 * @param count The number of songs added.
+	 * @param mode The mode they were added with, one of SongTimeline.MODE_*.
+	 */
+	private void queryAdded(int count, int mode)
+	{
 		int text;
 
-		switch (query.mode) {
+		switch (mode) {
 		case SongTimeline.MODE_PLAY:
 		case SongTimeline.MODE_PLAY_POS_FIRST:
 		case SongTimeline.MODE_PLAY_ID_FIRST:
@@ -1744,7 +1961,7 @@ public final class PlaybackService extends Service
 			text = R.plurals.enqueued;
 			break;
 		default:
-			throw new IllegalArgumentException("Invalid add mode: " + query.mode);
+			throw new IllegalArgumentException("Invalid add mode: " + mode);
 		}
 
 		Toast.makeText(this, getResources().getQuantityString(text, count, count), Toast.LENGTH_SHORT).show();
@@ -1754,29 +1971,25 @@ public final class PlaybackService extends Service
 	/**
 	 * Doesn't actually query anything, but so named because it's
 	 * a sister method of runQuery. Prepares Song instances and
-	 * adds them to the timeline.
+	 * adds them to the timeline. The caller tells the user how many songs
+	 * were added, since these may only be the first of them.
 	 *
 	 * @param cloudSongs Metadata of the songs to add.
 	 */
 	private void runDropboxQuery(ArrayList<CloudSongMetadata> cloudSongs, int mode) {
 		int count = mTimeline.addCloudSongs(cloudSongs, mode);
 
-		int text;
-
 		switch (mode) {
 		case SongTimeline.MODE_PLAY:
-			text = R.plurals.playing;
 			if (count != 0 && (mState & FLAG_PLAYING) == 0)
 				setFlag(FLAG_PLAYING);
 			break;
 		case SongTimeline.MODE_ENQUEUE:
-			text = R.plurals.enqueued;
 			break;
 		default:
 			throw new IllegalArgumentException("Invalid add mode: " + mode);
 		}
 
-		Toast.makeText(this, getResources().getQuantityString(text, count, count), Toast.LENGTH_SHORT).show();
 		triggerGaplessUpdate();
 	}
 
@@ -1787,7 +2000,7 @@ public final class PlaybackService extends Service
 	 */
 	public void addSongs(QueryTask query)
 	{
-		mHandler.sendMessage(mHandler.obtainMessage(QUERY, query));
+		mQueryHandler.sendMessage(mQueryHandler.obtainMessage(QUERY, query));
 	}
 
 	/**
@@ -1802,6 +2015,66 @@ public final class PlaybackService extends Service
 				);
 	}
 
+	/**
+	 * Append more songs of the cloud import whose first songs were given to
+	 * addCloudSongs(). They are dropped, and the import cancelled, if the
+	 * queue has been replaced since.
+	 *
+	 * @param cloudSongs The metadata for the songs.
+	 */
+	void appendCloudSongs(ArrayList<CloudSongMetadata> cloudSongs)
+	{
+		mHandler.sendMessage(mHandler.obtainMessage(CLOUD_BATCH, cloudSongs));
+	}
+
+	/**
+	 * Returns the importer of Dropbox files and folders.
+	 */
+	public CloudImport getCloudImport()
+	{
+		return mCloudImport;
+	}
+
+	/**
+	 * Add the first songs of a folder import to the timeline.
+	 *
+	 * @param songs The songs, read from their files.
+	 * @param mode How to add the songs to the timeline, one of
+	 * {@link SongTimeline}.MODE_*.
+	 */
+	void addFileSongs(ArrayList<Song> songs, int mode)
+	{
+		mHandler.sendMessage(mHandler.obtainMessage(FILE_SONGS, mode, 0, songs));
+	}
+
+	/**
+	 * Append more songs of the folder import whose first songs were given
+	 * to addFileSongs(). They are dropped, and the import cancelled, if the
+	 * queue has been replaced since.
+	 */
+	void appendFileSongs(ArrayList<Song> songs)
+	{
+		mHandler.sendMessage(mHandler.obtainMessage(FILE_BATCH, songs));
+	}
+
+	/**
+	 * Returns the importer of local files and folders.
+	 */
+	public FolderImport getFolderImport()
+	{
+		return mFolderImport;
+	}
+
+	/**
+	 * Returns true if <code>mode</code> replaces the queue and starts
+	 * playing.
+	 */
+	private static boolean isPlayMode(int mode)
+	{
+		return mode == SongTimeline.MODE_PLAY || mode == SongTimeline.MODE_PLAY_POS_FIRST
+			|| mode == SongTimeline.MODE_PLAY_ID_FIRST;
+	}
+
 	/**
 	 * Enqueues all the songs with the same album/artist/genre as the current
 	 * song.
@@ -1863,6 +2136,24 @@ public final class PlaybackService extends Service
 		triggerGaplessUpdate();
 	}
 
+	/**
+	 * Returns true if there is a queue edit that undoQueueChange() can undo.
+	 */
+	public boolean canUndoQueueChange()
+	{
+		return mTimeline.canUndo();
+	}
+
+	/**
+	 * Restore the queue from before the last time songs were added, cleared
+	 * or shuffled.
+	 */
+	public void undoQueueChange()
+	{
+		if (mTimeline.undo())
+			triggerGaplessUpdate();
+	}
+
 
 	/**
 	 * Return the error message set when FLAG_ERROR is set.
@@ -1892,6 +2183,9 @@ public final class PlaybackService extends Service
 		public void onChange(boolean selfChange)
 		{
 			MediaUtils.onMediaChange();
+			LibraryIndex.getInstance().requestRefresh(PlaybackService.this);
+			// the media scanner found changes; look for them too
+			MusicScanner.getInstance().requestScan(PlaybackService.this);
 			onMediaChange();
 		}
 	};
@@ -2317,6 +2611,22 @@ public final class PlaybackService extends Service
 		return mTimeline.getSongByQueuePosition(id);
 	}
 
+	/**
+	 * Start reporting fine-grained queue changes to the given listener.
+	 */
+	public void addQueueListener(SongTimeline.QueueListener listener)
+	{
+		mTimeline.addQueueListener(listener);
+	}
+
+	/**
+	 * Stop reporting queue changes to the given listener.
+	 */
+	public void removeQueueListener(SongTimeline.QueueListener listener)
+	{
+		mTimeline.removeQueueListener(listener);
+	}
+
 	/**
 	 * Do a 'hard' jump to given queue position
 	 */
@@ -2336,16 +2646,67 @@ public final class PlaybackService extends Service
 	 * if possible.
 	 */
 	public void jumpToRandomQueuePosition() {
-		int target;
-		if(mTimeline.getLength() == 1) {
-			target = 0;
-		} else {
-			target = new Random().nextInt(mTimeline.getLength() - 1);
-			if(target == mTimeline.getPosition()) target++;
-		}
-		mTimeline.setCurrentQueuePosition(target);
+		countSkip();
+		mTimeline.setCurrentQueuePosition(pickRandomQueuePosition());
 		setCurrentSong(0, false);
 		play();
 	}
 
+	/**
+	 * Returns the key SmartRandom knows a song by: its MediaStore id, or a
+	 * value below -1 made from the path for songs that are not in
+	 * MediaStore, which have no play statistics: the Dropbox path for cloud
+	 * songs and the file path for songs imported from a folder.
+	 */
+	private static long randomKey(Song song)
+	{
+		if (song.id < 0) {
+			String path = song.isCloudSong ? song.dbPath : song.path;
+			return -2L - (path == null ? 0 : path.hashCode() & 0xffffffffL);
+		}
+		return song.id;
+	}
+
+	/**
+	 * Pick a random queue position, weighted by play statistics and other
+	 * than the current song and the songs played just before it, unless
+	 * the queue is too short for that.
+	 */
+	private int pickRandomQueuePosition()
+	{
+		SongTimeline.Snapshot snapshot = mTimeline.getSnapshot();
+		SongQueue songs = snapshot.songs;
+		int length = songs.size();
+		if (length <= 1)
+			return 0;
+
+		synchronized (mSmartRandom) {
+			if (mSmartRandom.getSource() != songs) {
+				long[] keys = new long[length];
+				for (int i = 0; i != length; ++i)
+					keys[i] = randomKey(songs.get(i));
+				mSmartRandom.setItems(keys, songs);
+			}
+			Song current = snapshot.getSong(0);
+			if (current != null)
+				mSmartRandom.played(randomKey(current));
+			return mSmartRandom.pick(MediaUtils.getRandom());
+		}
+	}
+
+	/**
+	 * Count a skip of the current song if the user moves on before it has
+	 * played halfway.
+	 */
+	private void countSkip()
+	{
+		Song song = mCurrentSong;
+		// songs that are not in MediaStore share a placeholder id and have
+		// no statistics to count into
+		if (song == null || song.id < 0 || !mMediaPlayerInitialized)
+			return;
+		if (mMediaPlayer.getCurrentPosition() < mMediaPlayer.getDuration() / 2)
+			mHandler.sendMessage(mHandler.obtainMessage(COUNT_SKIP, song));
+	}
+
 }
@@ -64,4 +64,5 @@ public class PrefKeys {
 	public static final String REPLAYGAIN_BUMP = "replaygain_bump";
 	public static final String REPLAYGAIN_UNTAGGED_DEBUMP = "replaygain_untagged_debump";
 	public static final String ENABLE_READAHEAD = "enable_readahead";
+	public static final String CLOUD_IMPORT_THREADS = "cloud_import_threads";
 }
@@ -25,6 +25,7 @@ package mp.teardrop;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
 
 /**
  * Represents a pending query.
@@ -37,7 +38,7 @@ public class QueryTask {
 	public String sortOrder;
 
 	/**
-	 * Used for {@link SongTimeline#addSongs(android.content.Context, QueryTask)}.
+	 * Used for {@link SongTimeline#readQuery(android.content.Context, QueryTask)}.
 	 * One of SongTimeline.MODE_*.
 	 */
 	public int mode;
@@ -75,4 +76,16 @@ public class QueryTask {
 	{
 		return resolver.query(uri, projection, selection, selectionArgs, sortOrder);
 	}
+
+	/**
+	 * Run the query. Should be called on a background thread.
+	 *
+	 * @param resolver The ContentResolver to query with.
+	 * @param signal A signal to abort the query with, or null. If it is
+	 * cancelled while the query runs, OperationCanceledException is thrown.
+	 */
+	public Cursor runQuery(ContentResolver resolver, CancellationSignal signal)
+	{
+		return resolver.query(uri, projection, selection, selectionArgs, sortOrder, signal);
+	}
 }
@@ -0,0 +1,556 @@
+package mp.teardrop;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index used for search-as-you-type over the local library and
+ * the cached Dropbox songs.
+ *
+ * Title, artist, album and file name are normalized (lower case, accents
+ * removed, punctuation turned into spaces) and split into keys:
+ * <ul>
+ * <li>every trigram of every field, used for terms of three or more
+ * characters; candidates are verified against the normalized text since
+ * trigrams alone can give false positives</li>
+ * <li>the first one and two characters of every word, used for shorter
+ * terms, which therefore only match at the start of a word</li>
+ * </ul>
+ *
+ * Each key maps to a posting list of document numbers. Documents are only
+ * ever appended, so the lists stay sorted and multi-term queries are
+ * answered by intersecting them. Removed documents are marked dead and
+ * dropped once enough of them pile up.
+ *
+ * All methods are synchronized; queries are expected to take a few
+ * milliseconds at most.
+ */
+public class SearchIndex {
+	private static final Pattern SPACE_SPLIT = Pattern.compile(" ");
+	private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+	/**
+	 * Marks a key as a word prefix rather than a trigram.
+	 */
+	private static final long PREFIX_KEY = 1L << 56;
+	/**
+	 * Compact once at least this many documents are dead and they make up
+	 * half of the index.
+	 */
+	private static final int MIN_DEAD_TO_COMPACT = 1024;
+
+	private static SearchIndex sInstance;
+
+	/**
+	 * The results of a search.
+	 */
+	public static class Hits {
+		/**
+		 * MediaStore ids of matching local songs.
+		 */
+		public final long[] mediaIds;
+		/**
+		 * Dropbox paths of matching cached cloud songs.
+		 */
+		public final String[] cloudPaths;
+		/**
+		 * Titles of the songs in cloudPaths, null where unknown.
+		 */
+		public final String[] cloudTitles;
+		/**
+		 * Artists of the songs in cloudPaths, null where unknown.
+		 */
+		public final String[] cloudArtists;
+
+		Hits(long[] mediaIds, String[] cloudPaths, String[] cloudTitles, String[] cloudArtists)
+		{
+			this.mediaIds = mediaIds;
+			this.cloudPaths = cloudPaths;
+			this.cloudTitles = cloudTitles;
+			this.cloudArtists = cloudArtists;
+		}
+	}
+
+	/**
+	 * A growable, sorted list of document numbers.
+	 */
+	private static final class PostingList {
+		int[] docs = new int[4];
+		int size;
+
+		void add(int doc)
+		{
+			// a document may produce the same key more than once
+			if (size != 0 && docs[size - 1] == doc)
+				return;
+			if (size == docs.length)
+				docs = Arrays.copyOf(docs, size * 2);
+			docs[size++] = doc;
+		}
+	}
+
+	private static final Comparator<PostingList> SIZE_ORDER = new Comparator<PostingList>() {
+		@Override
+		public int compare(PostingList a, PostingList b)
+		{
+			return a.size - b.size;
+		}
+	};
+
+	private HashMap<Long, PostingList> mPostings = new HashMap<Long, PostingList>();
+	/**
+	 * Normalized text of each document, fields separated by newlines. Null
+	 * for dead documents.
+	 */
+	private String[] mTexts = new String[256];
+	/**
+	 * MediaStore id of each local document.
+	 */
+	private long[] mMediaIds = new long[256];
+	/**
+	 * date_modified of each local document, used to skip unchanged songs.
+	 */
+	private long[] mStamps = new long[256];
+	/**
+	 * Dropbox path of each cloud document, null for local documents.
+	 */
+	private String[] mCloudPaths = new String[256];
+	/**
+	 * Title and artist of each cloud document, as shown in search results.
+	 * Local documents are shown from the library index instead.
+	 */
+	private String[] mCloudTitles = new String[256];
+	private String[] mCloudArtists = new String[256];
+	private final BitSet mDead = new BitSet();
+	private int mDocCount;
+	private int mDeadCount;
+	/**
+	 * Maps MediaStore ids to document numbers.
+	 */
+	private HashMap<Long, Integer> mLocalDocs = new HashMap<Long, Integer>();
+	/**
+	 * Maps Dropbox paths to document numbers.
+	 */
+	private HashMap<String, Integer> mCloudDocs = new HashMap<String, Integer>();
+
+	private SearchIndex()
+	{
+	}
+
+	/**
+	 * Returns the process-wide search index.
+	 */
+	public static synchronized SearchIndex getInstance()
+	{
+		if (sInstance == null)
+			sInstance = new SearchIndex();
+		return sInstance;
+	}
+
+	/**
+	 * Lower-case the given text, strip accents and replace everything that
+	 * is not a letter or digit with single spaces.
+	 *
+	 * @return The normalized text, or an empty string if text is null.
+	 */
+	public static String normalize(String text)
+	{
+		if (text == null)
+			return "";
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		decomposed = COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+
+		StringBuilder result = new StringBuilder(decomposed.length());
+		boolean space = true;
+		for (int i = 0, n = decomposed.length(); i != n; ++i) {
+			char c = decomposed.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				result.append(c);
+				space = false;
+			} else if (!space) {
+				result.append(' ');
+				space = true;
+			}
+		}
+		int length = result.length();
+		if (length != 0 && result.charAt(length - 1) == ' ')
+			result.setLength(length - 1);
+		return result.toString();
+	}
+
+	/**
+	 * Split a filter string entered by the user into normalized terms.
+	 *
+	 * @return The terms, or null if the filter contains no searchable text.
+	 */
+	public static String[] parseTerms(String filter)
+	{
+		String normalized = normalize(filter);
+		if (normalized.length() == 0)
+			return null;
+		return SPACE_SPLIT.split(normalized);
+	}
+
+	/**
+	 * Returns true if the given text contains every term, ignoring case
+	 * and accents, under the same rule as {@link #search(String)}. Used for
+	 * lists that are too small or short-lived to be worth indexing.
+	 *
+	 * @param terms Terms returned by {@link #parseTerms(String)}.
+	 */
+	public static boolean matches(String text, String[] terms)
+	{
+		String normalized = normalize(text);
+		for (String term : terms) {
+			if (!containsTerm(normalized, term))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the normalized text contains the term: anywhere for
+	 * terms of three or more characters, only at the start of a word for
+	 * shorter ones.
+	 */
+	private static boolean containsTerm(String text, String term)
+	{
+		if (term.length() >= 3)
+			return text.contains(term);
+		for (int i = text.indexOf(term); i != -1; i = text.indexOf(term, i + 1)) {
+			if (i == 0 || isSeparator(text.charAt(i - 1)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Bring the local part of the index in line with the given library
+	 * snapshot. Only songs that are new or have been modified are
+	 * re-indexed.
+	 */
+	public synchronized void syncLocal(LibraryIndex.Snapshot snapshot)
+	{
+		BitSet seen = new BitSet(mDocCount);
+		for (int row = 0, n = snapshot.size(); row != n; ++row) {
+			long id = snapshot.getId(row);
+			long stamp = snapshot.getDateModified(row);
+			Integer doc = mLocalDocs.get(id);
+			if (doc != null && mStamps[doc] == stamp) {
+				seen.set(doc);
+				continue;
+			}
+			if (doc != null)
+				kill(doc);
+			int newDoc = addDocument(snapshot.getTitle(row), snapshot.getArtist(row),
+				snapshot.getAlbum(row), fileName(snapshot.getPath(row)));
+			mMediaIds[newDoc] = id;
+			mStamps[newDoc] = stamp;
+			mLocalDocs.put(id, newDoc);
+			seen.set(newDoc);
+		}
+
+		ArrayList<Long> removed = new ArrayList<Long>();
+		for (Map.Entry<Long, Integer> entry : mLocalDocs.entrySet()) {
+			if (!seen.get(entry.getValue()))
+				removed.add(entry.getKey());
+		}
+		for (Long id : removed)
+			kill(mLocalDocs.remove(id));
+
+		compactIfNeeded();
+	}
+
+	/**
+	 * Add or replace a cached cloud song.
+	 *
+	 * @param path The path of the song in Dropbox.
+	 */
+	public synchronized void putCloudSong(String path, String title, String artist, String album)
+	{
+		Integer old = mCloudDocs.get(path);
+		if (old != null)
+			kill(old);
+		int doc = addDocument(title, artist, album, fileName(path));
+		mCloudPaths[doc] = path;
+		mCloudTitles[doc] = title;
+		mCloudArtists[doc] = artist;
+		mCloudDocs.put(path, doc);
+		compactIfNeeded();
+	}
+
+	/**
+	 * Remove a cloud song from the index.
+	 *
+	 * @param path The path of the song in Dropbox.
+	 */
+	public synchronized void removeCloudSong(String path)
+	{
+		Integer doc = mCloudDocs.remove(path);
+		if (doc != null) {
+			kill(doc);
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * Find all songs matching every term of the given filter.
+	 *
+	 * @param filter The text entered by the user.
+	 * @return The hits, or null if the filter is empty.
+	 */
+	public synchronized Hits search(String filter)
+	{
+		String[] terms = parseTerms(filter);
+		if (terms == null)
+			return null;
+
+		ArrayList<PostingList> lists = new ArrayList<PostingList>();
+		boolean verify = false;
+		for (String term : terms) {
+			int length = term.length();
+			if (length < 3) {
+				long key = PREFIX_KEY | ((long)length << 48) | prefix(term, 0, length);
+				PostingList list = mPostings.get(key);
+				if (list == null)
+					return new Hits(new long[0], new String[0], new String[0], new String[0]);
+				lists.add(list);
+			} else {
+				verify = true;
+				for (int i = 0; i + 3 <= length; ++i) {
+					PostingList list = mPostings.get(trigram(term, i));
+					if (list == null)
+						return new Hits(new long[0], new String[0], new String[0], new String[0]);
+					lists.add(list);
+				}
+			}
+		}
+
+		// Intersect starting from the shortest list so the candidate set
+		// shrinks as fast as possible.
+		PostingList[] sorted = lists.toArray(new PostingList[lists.size()]);
+		Arrays.sort(sorted, SIZE_ORDER);
+		int[] candidates = Arrays.copyOf(sorted[0].docs, sorted[0].size);
+		int count = candidates.length;
+		for (int i = 1; i != sorted.length && count != 0; ++i)
+			count = intersect(candidates, count, sorted[i]);
+
+		long[] mediaIds = new long[count];
+		int mediaCount = 0;
+		ArrayList<String> cloudPaths = new ArrayList<String>();
+		ArrayList<String> cloudTitles = new ArrayList<String>();
+		ArrayList<String> cloudArtists = new ArrayList<String>();
+		outer: for (int i = 0; i != count; ++i) {
+			int doc = candidates[i];
+			if (mDead.get(doc))
+				continue;
+			if (verify) {
+				String text = mTexts[doc];
+				for (String term : terms) {
+					if (!containsTerm(text, term))
+						continue outer;
+				}
+			}
+			if (mCloudPaths[doc] != null) {
+				cloudPaths.add(mCloudPaths[doc]);
+				cloudTitles.add(mCloudTitles[doc]);
+				cloudArtists.add(mCloudArtists[doc]);
+			} else {
+				mediaIds[mediaCount++] = mMediaIds[doc];
+			}
+		}
+
+		int cloudCount = cloudPaths.size();
+		return new Hits(Arrays.copyOf(mediaIds, mediaCount), cloudPaths.toArray(new String[cloudCount]),
+			cloudTitles.toArray(new String[cloudCount]), cloudArtists.toArray(new String[cloudCount]));
+	}
+
+	/**
+	 * Keep only the first count entries of docs that also appear in list.
+	 * Uses a galloping search through list, which is at least as long.
+	 *
+	 * @return The number of entries kept.
+	 */
+	private static int intersect(int[] docs, int count, PostingList list)
+	{
+		int[] other = list.docs;
+		int otherSize = list.size;
+		int kept = 0;
+		int lo = 0;
+		for (int i = 0; i != count && lo != otherSize; ++i) {
+			int doc = docs[i];
+			// gallop to find a range containing doc, then binary search it
+			int step = 1;
+			int hi = lo;
+			while (hi < otherSize && other[hi] < doc) {
+				lo = hi;
+				hi += step;
+				step <<= 1;
+			}
+			int pos = Arrays.binarySearch(other, lo, Math.min(hi + 1, otherSize), doc);
+			if (pos >= 0) {
+				docs[kept++] = doc;
+				lo = pos + 1;
+			} else {
+				lo = -pos - 1;
+			}
+		}
+		return kept;
+	}
+
+	private static long trigram(String text, int i)
+	{
+		return ((long)text.charAt(i) << 32) | ((long)text.charAt(i + 1) << 16) | text.charAt(i + 2);
+	}
+
+	private static long prefix(String text, int start, int length)
+	{
+		long key = text.charAt(start);
+		if (length == 2)
+			key = (key << 16) | text.charAt(start + 1);
+		return key;
+	}
+
+	private static String fileName(String path)
+	{
+		if (path == null)
+			return null;
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot <= slash)
+			dot = path.length();
+		return path.substring(slash + 1, dot);
+	}
+
+	/**
+	 * Append a new document and add it to the posting lists.
+	 *
+	 * @return The new document number.
+	 */
+	private int addDocument(String title, String artist, String album, String fileName)
+	{
+		int doc = mDocCount++;
+		if (doc == mTexts.length) {
+			int capacity = doc * 2;
+			mTexts = Arrays.copyOf(mTexts, capacity);
+			mMediaIds = Arrays.copyOf(mMediaIds, capacity);
+			mStamps = Arrays.copyOf(mStamps, capacity);
+			mCloudPaths = Arrays.copyOf(mCloudPaths, capacity);
+			mCloudTitles = Arrays.copyOf(mCloudTitles, capacity);
+			mCloudArtists = Arrays.copyOf(mCloudArtists, capacity);
+		}
+
+		String text = normalize(title) + '\n' + normalize(artist) + '\n' + normalize(album) + '\n' + normalize(fileName);
+		mTexts[doc] = text;
+		mMediaIds[doc] = 0;
+		mStamps[doc] = 0;
+		mCloudPaths[doc] = null;
+		mCloudTitles[doc] = null;
+		mCloudArtists[doc] = null;
+		indexText(doc, text);
+		return doc;
+	}
+
+	private void indexText(int doc, String text)
+	{
+		int length = text.length();
+		int wordStart = 0;
+		for (int i = 0; i <= length; ++i) {
+			if (i != length && !isSeparator(text.charAt(i)))
+				continue;
+			int wordLength = i - wordStart;
+			if (wordLength >= 1)
+				post(PREFIX_KEY | (1L << 48) | prefix(text, wordStart, 1), doc);
+			if (wordLength >= 2)
+				post(PREFIX_KEY | (2L << 48) | prefix(text, wordStart, 2), doc);
+			wordStart = i + 1;
+		}
+
+		// query terms never contain separators, so neither do the trigrams
+		for (int i = 0; i + 3 <= length; ++i) {
+			if (isSeparator(text.charAt(i)) || isSeparator(text.charAt(i + 1)) || isSeparator(text.charAt(i + 2)))
+				continue;
+			post(trigram(text, i), doc);
+		}
+	}
+
+	private static boolean isSeparator(char c)
+	{
+		return c == ' ' || c == '\n';
+	}
+
+	private void post(long key, int doc)
+	{
+		PostingList list = mPostings.get(key);
+		if (list == null) {
+			list = new PostingList();
+			mPostings.put(key, list);
+		}
+		list.add(doc);
+	}
+
+	private void kill(int doc)
+	{
+		if (mDead.get(doc))
+			return;
+		mDead.set(doc);
+		mTexts[doc] = null;
+		++mDeadCount;
+	}
+
+	/**
+	 * Rebuild the posting lists without dead documents once they make up
+	 * a large part of the index.
+	 */
+	private void compactIfNeeded()
+	{
+		if (mDeadCount < MIN_DEAD_TO_COMPACT || mDeadCount * 2 < mDocCount)
+			return;
+
+		String[] texts = mTexts;
+		long[] mediaIds = mMediaIds;
+		long[] stamps = mStamps;
+		String[] cloudPaths = mCloudPaths;
+		String[] cloudTitles = mCloudTitles;
+		String[] cloudArtists = mCloudArtists;
+		int oldCount = mDocCount;
+
+		int capacity = Math.max(256, oldCount - mDeadCount);
+		mTexts = new String[capacity];
+		mMediaIds = new long[capacity];
+		mStamps = new long[capacity];
+		mCloudPaths = new String[capacity];
+		mCloudTitles = new String[capacity];
+		mCloudArtists = new String[capacity];
+		mPostings = new HashMap<Long, PostingList>();
+		mLocalDocs = new HashMap<Long, Integer>();
+		mCloudDocs = new HashMap<String, Integer>();
+		mDead.clear();
+		mDocCount = 0;
+		mDeadCount = 0;
+
+		for (int old = 0; old != oldCount; ++old) {
+			String text = texts[old];
+			if (text == null)
+				continue;
+			int doc = mDocCount++;
+			mTexts[doc] = text;
+			mMediaIds[doc] = mediaIds[old];
+			mStamps[doc] = stamps[old];
+			mCloudPaths[doc] = cloudPaths[old];
+			mCloudTitles[doc] = cloudTitles[old];
+			mCloudArtists[doc] = cloudArtists[old];
+			indexText(doc, text);
+			if (cloudPaths[old] != null)
+				mCloudDocs.put(cloudPaths[old], doc);
+			else
+				mLocalDocs.put(mediaIds[old], doc);
+		}
+	}
+}
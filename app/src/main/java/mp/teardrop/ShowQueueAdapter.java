@@ -21,42 +21,291 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-public class ShowQueueAdapter extends ArrayAdapter<Song> {
-	
+import java.util.ArrayList;
+
+/**
+ * Windowed view of the song timeline. Songs are read from the published
+ * queue by index only when their row is bound, and the changes reported
+ * through {@link SongTimeline.QueueListener} are applied as deltas, so
+ * opening a long queue costs nothing and edits only rebind the rows they
+ * touch.
+ */
+public class ShowQueueAdapter extends BaseAdapter
+	implements SongTimeline.QueueListener, Handler.Callback {
+
+	/**
+	 * Queue events, collected on whatever thread modified the timeline and
+	 * applied in order on the UI thread.
+	 */
+	private static final int EVENT_RESET = 0;
+	private static final int EVENT_INSERTED = 1;
+	private static final int EVENT_REMOVED = 2;
+	private static final int EVENT_MOVED = 3;
+	private static final int EVENT_CHANGED = 4;
+	private static final int EVENT_POSITION = 5;
+	/**
+	 * Apply a {@link Batch} on the UI thread.
+	 */
+	private static final int MSG_BATCH = 0;
+
+	/**
+	 * The events of one published change together with the queue they
+	 * left behind.
+	 */
+	private static final class Batch {
+		final int[][] events;
+		final SongQueue songs;
+
+		Batch(int[][] events, SongQueue songs)
+		{
+			this.events = events;
+			this.songs = songs;
+		}
+	}
+
 	int resource;
 	Context context;
 	int hl_row;
+	/**
+	 * The list showing this adapter, used to find the visible window.
+	 */
+	private final ListView mListView;
+	private final Handler mUiHandler;
+	/**
+	 * The service whose timeline we are attached to, or null when detached.
+	 */
+	private PlaybackService mService;
+	/**
+	 * Number of rows, as of the last applied event. This deliberately lags
+	 * behind the timeline until the event reaches the UI thread, so the
+	 * ListView never sees the count change without a notification.
+	 */
+	private int mCount;
+	/**
+	 * The queue as of the last applied batch. Rows are bound from this, so
+	 * they always agree with mCount. Only used on the UI thread.
+	 */
+	private SongQueue mSongs;
+	/**
+	 * Events reported since the last publish, as { event, arg1, arg2, arg3 }.
+	 * Only used with the timeline lock held.
+	 */
+	private final ArrayList<int[]> mPending = new ArrayList<int[]>();
+	/*
+	** Row icons, loaded once and shared by all rows
+	*/
+	private final Drawable mPlayingCloudIcon;
+	private final Drawable mPlayingIcon;
+	private final Drawable mCloudIcon;
+	private final Drawable mIcon;
 	
-	public ShowQueueAdapter(Context context, int resource) {
-		super(context, resource);
+	public ShowQueueAdapter(Context context, int resource, ListView listView) {
 		this.resource = resource;
 		this.context = context;
 		this.hl_row = -1;
+		mListView = listView;
+		mUiHandler = new Handler(Looper.getMainLooper(), this);
+		mPlayingCloudIcon = context.getResources().getDrawable(R.drawable.accented_eighth_note_cloud);
+		mPlayingIcon = context.getResources().getDrawable(R.drawable.accented_eighth_note_24);
+		mCloudIcon = context.getResources().getDrawable(R.drawable.eighth_note_cloud);
+		mIcon = context.getResources().getDrawable(R.drawable.eighth_note);
+	}
+
+	/**
+	 * Start following the timeline of the given service. Must be called on
+	 * the UI thread.
+	 */
+	public void attach(PlaybackService service) {
+		if (mService == service)
+			return;
+		detach();
+		mService = service;
+		service.addQueueListener(this);
+	}
+
+	/**
+	 * Stop following the timeline and drop any events not yet applied. Must
+	 * be called on the UI thread.
+	 */
+	public void detach() {
+		if (mService == null)
+			return;
+		mService.removeQueueListener(this);
+		mService = null;
+		mUiHandler.removeCallbacksAndMessages(null);
+		mPending.clear();
+		mSongs = null;
 	}
 	
 	/*
-	** Tells the adapter to highlight a specific row id
-	** Set this to -1 to disable the feature
+	** Returns the row that is currently highlighted, or -1
 	*/
-	public void highlightRow(int pos) {
-		this.hl_row = pos;
+	public int getHighlightedRow() {
+		return this.hl_row;
+	}
+
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Returns the song at the given queue position, as of the last applied
+	 * batch, or null if there is none.
+	 */
+	@Override
+	public Song getItem(int position) {
+		SongQueue songs = mSongs;
+		if (songs == null || position < 0 || position >= songs.size())
+			return null;
+		return songs.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public void queueReset(int length, int position) {
+		mPending.add(new int[] { EVENT_RESET, length, position, 0 });
+	}
+
+	@Override
+	public void songsInserted(int start, int count) {
+		mPending.add(new int[] { EVENT_INSERTED, start, count, 0 });
+	}
+
+	@Override
+	public void songsRemoved(int start, int count) {
+		mPending.add(new int[] { EVENT_REMOVED, start, count, 0 });
+	}
+
+	@Override
+	public void songsMoved(int from, int to, int count) {
+		mPending.add(new int[] { EVENT_MOVED, from, to, count });
+	}
+
+	@Override
+	public void songsChanged(int start, int count) {
+		mPending.add(new int[] { EVENT_CHANGED, start, count, 0 });
+	}
+
+	@Override
+	public void positionChanged(int position) {
+		mPending.add(new int[] { EVENT_POSITION, position, 0, 0 });
+	}
+
+	@Override
+	public void changesPublished(SongQueue songs) {
+		// changes to e.g. the shuffle mode alone are published too
+		if (mPending.isEmpty())
+			return;
+		int[][] events = mPending.toArray(new int[mPending.size()][]);
+		mPending.clear();
+		mUiHandler.obtainMessage(MSG_BATCH, new Batch(events, songs)).sendToTarget();
+	}
+
+	@Override
+	public boolean handleMessage(Message message) {
+		if (message.what != MSG_BATCH)
+			return false;
+		Batch batch = (Batch)message.obj;
+		// switch to the new queue first so rows rebound below show it
+		mSongs = batch.songs;
+		for (int[] event : batch.events)
+			apply(event);
+		return true;
+	}
+
+	/**
+	 * Apply one queue event to the row count and the rows on screen.
+	 */
+	private void apply(int[] event) {
+		switch (event[0]) {
+		case EVENT_RESET:
+			mCount = event[1];
+			this.hl_row = event[2];
+			notifyDataSetChanged();
+			// bring the current song into view right away
+			if (this.hl_row > 0 && this.hl_row < mCount)
+				mListView.setSelection(this.hl_row);
+			break;
+		case EVENT_INSERTED:
+			mCount += event[2];
+			notifyDataSetChanged();
+			break;
+		case EVENT_REMOVED:
+			mCount -= event[2];
+			notifyDataSetChanged();
+			break;
+		case EVENT_MOVED: {
+			int start = Math.min(event[1], event[2]);
+			int end = Math.max(event[1], event[2]) + event[3];
+			rebindRows(start, end - start);
+			break;
+		}
+		case EVENT_CHANGED:
+			rebindRows(event[1], event[2]);
+			break;
+		case EVENT_POSITION: {
+			int old = this.hl_row;
+			this.hl_row = event[1];
+			rebindRows(old, 1);
+			rebindRows(event[1], 1);
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Rebind the rows in the given range that are currently on screen. Rows
+	 * outside the visible window will be bound when they are scrolled in.
+	 */
+	private void rebindRows(int start, int count) {
+		ListView list = mListView;
+		int first = list.getFirstVisiblePosition();
+		int end = Math.min(Math.min(start + count, first + list.getChildCount()), mCount);
+		for (int i = Math.max(start, first); i < end; ++i) {
+			getView(i, list.getChildAt(i - first), list);
+		}
 	}
 	
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
-		LayoutInflater inflater = ((Activity)context).getLayoutInflater();
-		View row = inflater.inflate(resource, parent, false);
+		View row = convertView;
+		TextView target;
+		if(row == null) {
+			LayoutInflater inflater = ((Activity)context).getLayoutInflater();
+			row = inflater.inflate(resource, parent, false);
+			target = ((TextView)row.findViewById(R.id.text));
+			row.setTag(target);
+		} else {
+			target = (TextView)row.getTag();
+			// clear touch feedback left over from the row's previous use
+			target.setPressed(false);
+			target.jumpDrawablesToCurrentState();
+		}
 		Song song = getItem(position);
-		TextView target = ((TextView)row.findViewById(R.id.text));
+		if(song == null) {
+			// not part of the applied queue; a pending batch will rebind this row
+			target.setText(null);
+			target.setCompoundDrawablesWithIntrinsicBounds(null, null, null, null);
+			return row;
+		}
 		SpannableStringBuilder sb = new SpannableStringBuilder(song.title);
 		sb.append('\n');
 		sb.append(song.artist+" | "+song.album);
@@ -66,13 +315,13 @@ public class ShowQueueAdapter extends ArrayAdapter<Song> {
 		
 		Drawable drawable;
 		if(position == this.hl_row && song.isCloudSong) {
-			drawable = context.getResources().getDrawable(R.drawable.accented_eighth_note_cloud);
+			drawable = mPlayingCloudIcon;
 		} else if(position == this.hl_row) {
-			drawable = context.getResources().getDrawable(R.drawable.accented_eighth_note_24);
+			drawable = mPlayingIcon;
 		} else if(song.isCloudSong) {
-			drawable = context.getResources().getDrawable(R.drawable.eighth_note_cloud);
+			drawable = mCloudIcon;
 		} else {
-			drawable = context.getResources().getDrawable(R.drawable.eighth_note);
+			drawable = mIcon;
 		}
 		
 		target.setCompoundDrawablesWithIntrinsicBounds(drawable, null, null, null);
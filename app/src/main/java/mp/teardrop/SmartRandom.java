@@ -0,0 +1,320 @@
+package mp.teardrop;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Picks songs at random, weighted by how they have been treated: songs that
+ * are often played come up more, songs that are often skipped or have just
+ * been played come up less.
+ *
+ * The weights are kept in a Fenwick tree, so a pick and a weight change both
+ * take O(log n). Songs that were picked or played recently are left out
+ * altogether until they fall out of a bounded history window.
+ *
+ * Not thread-safe.
+ */
+final class SmartRandom {
+	/**
+	 * What is known about how a song has been listened to. Kept in memory by
+	 * PlayCountsHelper, which replaces the Stats of a song when they change,
+	 * so reading them never hits the database.
+	 */
+	static final class Stats {
+		final int plays;
+		final int skips;
+		/**
+		 * When the song last started playing, in milliseconds since the
+		 * epoch, or 0 if never.
+		 */
+		final long lastPlayed;
+
+		Stats(int plays, int skips, long lastPlayed)
+		{
+			this.plays = plays;
+			this.skips = skips;
+			this.lastPlayed = lastPlayed;
+		}
+	}
+
+	/**
+	 * Most recent keys kept out of the running.
+	 */
+	private static final int MAX_HISTORY = 32;
+	/**
+	 * A song played this long ago has regained half of its weight.
+	 */
+	private static final long RECOVERY_TIME = 24 * 60 * 60 * 1000L;
+
+	private final Map<Long, Stats> mStats;
+
+	/**
+	 * The key of each item. Items with the same key are the same song.
+	 */
+	private long[] mKeys = new long[0];
+	/**
+	 * The current weight of each item; 0 while its key is in the history.
+	 */
+	private double[] mWeights = new double[0];
+	/**
+	 * Fenwick tree over mWeights, 1-based.
+	 */
+	private double[] mTree = new double[1];
+	/**
+	 * First item for each key, and the next item with the same key after
+	 * each item (or -1).
+	 */
+	private final HashMap<Long, Integer> mFirstItems = new HashMap<Long, Integer>();
+	private int[] mNextItems = new int[0];
+	/**
+	 * Number of weight changes since the tree was last built, to rebuild it
+	 * before rounding errors pile up.
+	 */
+	private int mUpdates;
+	/**
+	 * What the items were built from; see {@link #getSource()}.
+	 */
+	private Object mSource;
+
+	/**
+	 * Recently picked or played keys, oldest first, as a ring buffer.
+	 */
+	private final long[] mHistory = new long[MAX_HISTORY];
+	private int mHistoryStart;
+	private int mHistoryCount;
+	/**
+	 * How many keys the history holds for the current items. Kept below the
+	 * number of distinct keys so that something can always be picked.
+	 */
+	private int mHistoryLimit;
+
+	/**
+	 * @param stats Statistics by MediaStore id, shared with and updated by
+	 * PlayCountsHelper. Keys without an entry get the weight of a song that
+	 * has never been played.
+	 */
+	SmartRandom(Map<Long, Stats> stats)
+	{
+		mStats = stats;
+	}
+
+	/**
+	 * Returns the weight of a song with the given statistics.
+	 */
+	static double weight(Stats stats, long now)
+	{
+		if (stats == null)
+			return 1.0;
+		double weight = Math.sqrt(1 + stats.plays) / (1 + 2 * stats.skips);
+		if (stats.lastPlayed != 0) {
+			long age = Math.max(now - stats.lastPlayed, 0);
+			weight *= (double)age / (age + RECOVERY_TIME);
+		}
+		return weight;
+	}
+
+	/**
+	 * Returns the object passed to the last call to setItems(), so callers
+	 * can tell whether the items are still current.
+	 */
+	Object getSource()
+	{
+		return mSource;
+	}
+
+	/**
+	 * Make the next caller rebuild the items, after many statistics have
+	 * changed at once.
+	 */
+	void invalidate()
+	{
+		mSource = null;
+	}
+
+	/**
+	 * Replace the items to pick from. Takes O(n). The history is kept, so
+	 * recently picked keys stay out of the running.
+	 *
+	 * @param keys The key of each item: a MediaStore id, or a negative value
+	 * for songs without statistics.
+	 * @param source What the keys were read from; see {@link #getSource()}.
+	 */
+	void setItems(long[] keys, Object source)
+	{
+		int count = keys.length;
+		mKeys = keys;
+		mSource = source;
+		mWeights = new double[count];
+		mNextItems = new int[count];
+		mFirstItems.clear();
+		for (int i = count; --i != -1; ) {
+			Integer next = mFirstItems.put(keys[i], i);
+			mNextItems[i] = next == null ? -1 : next;
+		}
+
+		mHistoryLimit = Math.min(MAX_HISTORY, mFirstItems.size() / 2);
+		while (mHistoryCount > mHistoryLimit) {
+			mHistoryStart = (mHistoryStart + 1) % MAX_HISTORY;
+			--mHistoryCount;
+		}
+
+		long now = System.currentTimeMillis();
+		for (int i = 0; i != count; ++i)
+			mWeights[i] = weight(mStats.get(keys[i]), now);
+		for (int i = 0; i != mHistoryCount; ++i) {
+			Integer item = mFirstItems.get(mHistory[(mHistoryStart + i) % MAX_HISTORY]);
+			for (int j = item == null ? -1 : item; j != -1; j = mNextItems[j])
+				mWeights[j] = 0;
+		}
+		build();
+	}
+
+	/**
+	 * Build mTree from mWeights in O(n).
+	 */
+	private void build()
+	{
+		int count = mWeights.length;
+		double[] tree = new double[count + 1];
+		for (int i = 1; i <= count; ++i) {
+			tree[i] += mWeights[i - 1];
+			int parent = i + (i & -i);
+			if (parent <= count)
+				tree[parent] += tree[i];
+		}
+		mTree = tree;
+		mUpdates = 0;
+	}
+
+	/**
+	 * Set the weight of an item in O(log n).
+	 */
+	private void setWeight(int item, double weight)
+	{
+		double delta = weight - mWeights[item];
+		if (delta == 0)
+			return;
+		mWeights[item] = weight;
+		double[] tree = mTree;
+		for (int i = item + 1; i < tree.length; i += i & -i)
+			tree[i] += delta;
+		if (++mUpdates > tree.length)
+			build();
+	}
+
+	/**
+	 * Set the weight of every item with the given key.
+	 */
+	private void setKeyWeight(long key, double weight)
+	{
+		Integer item = mFirstItems.get(key);
+		for (int i = item == null ? -1 : item; i != -1; i = mNextItems[i])
+			setWeight(i, weight);
+	}
+
+	/**
+	 * Returns the total weight of the items in O(log n).
+	 */
+	private double total()
+	{
+		double[] tree = mTree;
+		double sum = 0;
+		for (int i = tree.length - 1; i > 0; i -= i & -i)
+			sum += tree[i];
+		return sum;
+	}
+
+	/**
+	 * Put a key into the history, taking it out of the running, and let the
+	 * oldest key back in if the history is full.
+	 */
+	private void remember(long key)
+	{
+		for (int i = 0; i != mHistoryCount; ++i) {
+			if (mHistory[(mHistoryStart + i) % MAX_HISTORY] == key)
+				return;
+		}
+		if (mHistoryLimit == 0)
+			return;
+
+		if (mHistoryCount == mHistoryLimit) {
+			long oldest = mHistory[mHistoryStart];
+			mHistoryStart = (mHistoryStart + 1) % MAX_HISTORY;
+			--mHistoryCount;
+			setKeyWeight(oldest, weight(mStats.get(oldest), System.currentTimeMillis()));
+		}
+		mHistory[(mHistoryStart + mHistoryCount) % MAX_HISTORY] = key;
+		++mHistoryCount;
+		setKeyWeight(key, 0);
+	}
+
+	/**
+	 * Note that the song with the given key started playing, so it is not
+	 * picked again soon.
+	 */
+	void played(long key)
+	{
+		remember(key);
+	}
+
+	/**
+	 * Recompute the weight of a key after its statistics have changed.
+	 */
+	void update(long key)
+	{
+		for (int i = 0; i != mHistoryCount; ++i) {
+			if (mHistory[(mHistoryStart + i) % MAX_HISTORY] == key)
+				return;
+		}
+		setKeyWeight(key, weight(mStats.get(key), System.currentTimeMillis()));
+	}
+
+	/**
+	 * Pick an item at random, in proportion to its weight, and put its key
+	 * into the history.
+	 *
+	 * @return The index of the item, or -1 if there are no items.
+	 */
+	int pick(Random random)
+	{
+		int count = mWeights.length;
+		if (count == 0)
+			return -1;
+
+		double total = total();
+		int item;
+		if (total <= 0) {
+			// only zero weights left, e.g. everything was skipped just now
+			item = random.nextInt(count);
+		} else {
+			// find the first item whose running total exceeds the target
+			double target = random.nextDouble() * total;
+			double[] tree = mTree;
+			int pos = 0;
+			for (int step = Integer.highestOneBit(count); step != 0; step >>= 1) {
+				int next = pos + step;
+				if (next <= count && tree[next] <= target) {
+					pos = next;
+					target -= tree[next];
+				}
+			}
+			item = Math.min(pos, count - 1);
+			// rounding can land on an item that was just zeroed; take the
+			// nearest item before it with a weight, or after it if none
+			int found = item;
+			while (found != -1 && mWeights[found] == 0)
+				--found;
+			if (found == -1) {
+				found = item + 1;
+				while (found != count && mWeights[found] == 0)
+					++found;
+			}
+			// if every weight is zero, the total was just rounding residue
+			item = found == count ? random.nextInt(count) : found;
+		}
+
+		remember(mKeys[item]);
+		return item;
+	}
+}
@@ -22,16 +22,19 @@
 
 package mp.teardrop;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
@@ -109,30 +112,44 @@ public class Song implements Comparable<Song> {
 		MediaStore.Audio.Playlists.Members.TRACK,
 	};
 
-	private class LruCacheKey {
-		long id;
-		long artistId;
-		long albumId;
-		String path;
-
-		public LruCacheKey(long id, long artistId, long albumId, String path) {
-			this.id = id;
-			this.artistId = artistId;
-			this.albumId = albumId;
-			this.path = path;
+	/**
+	 * Identifies the cover of a song. Songs of the same album by the same
+	 * artist share a cover. Songs that are not in MediaStore have no album
+	 * or artist ids, so they are told apart by path.
+	 */
+	private static final class LruCacheKey {
+		final long id;
+		final long artistId;
+		final long albumId;
+		final String path;
+		final String artist;
+		final String album;
+
+		public LruCacheKey(Song song) {
+			this.id = song.id;
+			this.artistId = song.artistId;
+			this.albumId = song.albumId;
+			this.path = song.path;
+			this.artist = song.artist;
+			this.album = song.album;
 		}
 
 		@Override
 		public boolean equals(Object obj) {
-			if (obj instanceof LruCacheKey && this.albumId == ((LruCacheKey)obj).albumId && this.artistId == ((LruCacheKey)obj).artistId) {
-				return true;
-			}
-			return false;
+			if (!(obj instanceof LruCacheKey))
+				return false;
+			LruCacheKey other = (LruCacheKey)obj;
+			if (this.id < 0 || other.id < 0)
+				return this.id < 0 && other.id < 0 && (this.path == null ? other.path == null : this.path.equals(other.path));
+			return this.albumId == other.albumId && this.artistId == other.artistId;
 		}
 
 		@Override
 		public int hashCode() {
-			return (int)( 0xFFFFFF & (this.artistId + this.albumId) );
+			if (this.id < 0)
+				return this.path == null ? 0 : this.path.hashCode();
+			int hash = (int)(this.albumId ^ (this.albumId >>> 32));
+			return 31 * hash + (int)(this.artistId ^ (this.artistId >>> 32));
 		}
 
 		@Override
@@ -143,95 +160,245 @@ public class Song implements Comparable<Song> {
 	}
 
 	/**
-	 * A cache of 6 MiB of covers.
+	 * The cover file found in a folder, as of the folder's modification
+	 * time.
+	 */
+	private static final class FolderCover {
+		final long modified;
+		/**
+		 * The cover file, or null if the folder has none.
+		 */
+		final File file;
+
+		FolderCover(long modified, File file)
+		{
+			this.modified = modified;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * A cache of covers, 6 MiB on a typical heap; see
+	 * {@link CacheRegistry#scale(int)}.
 	 */
 	private static class CoverCache extends LruCache<LruCacheKey, Bitmap> {
+		/**
+		 * Number of folders whose cover file is remembered.
+		 */
+		private static final int FOLDER_COUNT = 256;
+		/**
+		 * How far the decoder may read to find the size of a cover before
+		 * the stream has to be opened again to decode it.
+		 */
+		private static final int MARK_LIMIT = 256 * 1024;
+		/**
+		 * Largest embedded cover, in bytes, that is read into memory to
+		 * decode it.
+		 */
+		private static final int MAX_EMBEDDED = 8 * 1024 * 1024;
+
 		private final Context mContext;
+		/**
+		 * The cover file of recently used folders, least recently used
+		 * first. Adding, removing or renaming a file changes the folder's
+		 * modification time, which makes the entry stale, so an entry can be
+		 * trusted, even one saying there is no cover, for as long as the
+		 * time matches.
+		 */
+		private final LinkedHashMap<String, FolderCover> mFolders =
+			new LinkedHashMap<String, FolderCover>(FOLDER_COUNT, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, FolderCover> eldest)
+				{
+					return size() > FOLDER_COUNT;
+				}
+			};
 
 		// Possible coverart names if we are going to load the cover on our own
 		private static String[] coverNames = { "cover.jpg", "cover.png", "album.jpg", "album.png", "artwork.jpg", "artwork.png", "art.jpg", "art.png" };
 
 		public CoverCache(Context context)
 		{
-			super(6 * 1024 * 1024);
+			super(CacheRegistry.getInstance(context).scale(6 * 1024 * 1024));
 			mContext = context;
 		}
 
 		@Override
 		public Bitmap create(LruCacheKey key)
 		{
-			try {
-				InputStream inputStream = null;
-				InputStream sampleInputStream = null; // same as inputStream but used for getSampleSize
-
-				if ((mCoverLoadMode & COVER_MODE_VANILLA) != 0) {
-					String basePath = (new File(key.path)).getParentFile().getAbsolutePath(); // ../ of the currently playing file
-					for (String coverFile: coverNames) {
-						File guessedFile = new File( basePath + "/" + coverFile);
-						if (guessedFile.exists() && !guessedFile.isDirectory()) {
-							inputStream = new FileInputStream(guessedFile);
-							sampleInputStream = new FileInputStream(guessedFile);
-							break;
-						}
+			File file = null;
+			Uri uri = null;
+
+			if ((mCoverLoadMode & COVER_MODE_VANILLA) != 0 && key.path != null) {
+				File dir = new File(key.path).getParentFile(); // ../ of the currently playing file
+				if (dir != null)
+					file = findCoverFile(dir);
+			}
+
+			if (file == null && (mCoverLoadMode & COVER_MODE_SHADOW) != 0 && key.artist != null && key.album != null) {
+				String shadowPath = "/sdcard/Music/.vanilla/"+(key.artist.replaceAll("/", "_"))+"/"+(key.album.replaceAll("/", "_"))+".jpg";
+				File guessedFile = new File(shadowPath);
+				if (guessedFile.isFile())
+					file = guessedFile;
+			}
+
+			if (file == null && (mCoverLoadMode & COVER_MODE_ANDROID) != 0) {
+				if (key.id < 0 && key.path != null) {
+					// not in MediaStore; use the embedded cover MusicScanner
+					// found, or look for it now if the file changed since
+					File audio = new File(key.path);
+					MusicDatabase.Track track = MusicDatabase.getInstance(mContext).getTrack(key.path);
+					long[] range;
+					if (track != null && track.isCurrent(audio.lastModified(), audio.length()))
+						range = track.coverOffset < 0 ? null : new long[] { track.coverOffset, track.coverLength };
+					else
+						range = MusicScanner.findCover(audio);
+					if (range == null)
+						return null;
+					try {
+						return decodeEmbedded(key.path, range[0], (int)range[1]);
+					} catch (IOException e) {
+						Log.v("OrchidMP", "Loading embedded coverart for "+key+" failed with exception "+e);
+						return null;
 					}
 				}
+				uri = Uri.parse("content://media/external/audio/media/" + key.id + "/albumart");
+			}
 
-				if (inputStream == null && (mCoverLoadMode & COVER_MODE_SHADOW) != 0) {
-					String[] projection = new String [] { MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM };
-					QueryTask query = MediaUtils.buildQuery(UnifiedAdapter.ITEM_TYPE_SONG, key.id, projection, null);
-					Cursor cursor = query.runQuery(mContext.getContentResolver());
-					if (cursor != null) {
-						if (cursor.getCount() > 0) {
-							cursor.moveToNext();
-							String thisArtist = cursor.getString(0);
-							String thisAlbum = cursor.getString(1);
-							String shadowPath = "/sdcard/Music/.vanilla/"+(thisArtist.replaceAll("/", "_"))+"/"+(thisAlbum.replaceAll("/", "_"))+".jpg";
-
-							File guessedFile = new File(shadowPath);
-							if (guessedFile.exists() && !guessedFile.isDirectory()) {
-								inputStream = new FileInputStream(guessedFile);
-								sampleInputStream = new FileInputStream(guessedFile);
+			if (file == null && uri == null)
+				return null;
+
+			try {
+				return decode(file, uri);
+			} catch (IOException e) {
+				// no cover art found
+				Log.v("OrchidMP", "Loading coverart for "+key+" failed with exception "+e);
+				return null;
+			}
+		}
+
+		/**
+		 * Returns the cover file in <code>dir</code>, or null if there is
+		 * none. Only looks at the folder if it changed since the last time.
+		 */
+		private File findCoverFile(File dir)
+		{
+			String path = dir.getPath();
+			long modified = dir.lastModified();
+			synchronized (mFolders) {
+				FolderCover cached = mFolders.get(path);
+				if (cached != null && cached.modified == modified)
+					return cached.file;
+			}
+
+			File found = null;
+			String[] names = dir.list();
+			if (names != null) {
+				search:
+				for (String coverName : coverNames) {
+					for (String name : names) {
+						if (coverName.equals(name)) {
+							File guessedFile = new File(dir, name);
+							if (!guessedFile.isDirectory()) {
+								found = guessedFile;
+								break search;
 							}
 						}
-						cursor.close();
 					}
 				}
+			}
 
-				if (inputStream == null && (mCoverLoadMode & COVER_MODE_ANDROID) != 0) {
-					Uri uri =  Uri.parse("content://media/external/audio/media/" + key.id + "/albumart");
-					ContentResolver res = mContext.getContentResolver();
-					inputStream = res.openInputStream(uri);
-					sampleInputStream = res.openInputStream(uri);
+			synchronized (mFolders) {
+				mFolders.put(path, new FolderCover(modified, found));
+			}
+			return found;
+		}
+
+		/**
+		 * Open a cover, from <code>file</code> if it is not null or from
+		 * <code>uri</code> otherwise.
+		 */
+		private InputStream open(File file, Uri uri) throws IOException
+		{
+			InputStream in;
+			if (file != null) {
+				in = new FileInputStream(file);
+			} else {
+				in = mContext.getContentResolver().openInputStream(uri);
+				if (in == null)
+					throw new IOException("No album art for " + uri);
+			}
+			return new BufferedInputStream(in);
+		}
+
+		/**
+		 * Decode a cover, scaled down if it is large. The stream is read
+		 * once: it is reset after reading the size, unless the decoder read
+		 * too far for that.
+		 */
+		private Bitmap decode(File file, Uri uri) throws IOException
+		{
+			InputStream in = open(file, uri);
+			try {
+				BitmapFactory.Options bopts = new BitmapFactory.Options();
+				bopts.inPreferredConfig  = Bitmap.Config.RGB_565;
+				bopts.inJustDecodeBounds = true;
+
+				in.mark(MARK_LIMIT);
+				BitmapFactory.decodeStream(in, null, bopts);
+				try {
+					in.reset();
+				} catch (IOException e) {
+					in.close();
+					in = open(file, uri);
 				}
 
-				if (inputStream != null) {
-					BitmapFactory.Options bopts = new BitmapFactory.Options();
-					bopts.inPreferredConfig  = Bitmap.Config.RGB_565;
-					bopts.inJustDecodeBounds = true;
+				/* reuse bopts: we are now REALLY going to decode the image */
+				bopts.inJustDecodeBounds = false;
+				bopts.inSampleSize       = getSampleSize(bopts);
+				return BitmapFactory.decodeStream(in, null, bopts);
+			} finally {
+				in.close();
+			}
+		}
 
-					final int inSampleSize   = getSampleSize(sampleInputStream, bopts);
+		/**
+		 * Decode the image of <code>length</code> bytes at
+		 * <code>offset</code> in the audio file at <code>path</code>, scaled
+		 * down if it is large.
+		 */
+		private static Bitmap decodeEmbedded(String path, long offset, int length) throws IOException
+		{
+			if (length <= 0 || length > MAX_EMBEDDED)
+				return null;
 
-					/* reuse bopts: we are now REALLY going to decode the image */
-					bopts.inJustDecodeBounds = false;
-					bopts.inSampleSize       = inSampleSize;
-					return BitmapFactory.decodeStream(inputStream, null, bopts);
-				}
-			} catch (IOException e) {
-				// no cover art found
-				Log.v("OrchidMP", "Loading coverart for "+key+" failed with exception "+e);
+			byte[] data = new byte[length];
+			RandomAccessFile in = new RandomAccessFile(path, "r");
+			try {
+				in.seek(offset);
+				in.readFully(data);
+			} finally {
+				in.close();
 			}
 
-			return null;
+			BitmapFactory.Options bopts = new BitmapFactory.Options();
+			bopts.inPreferredConfig  = Bitmap.Config.RGB_565;
+			bopts.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, length, bopts);
+
+			bopts.inJustDecodeBounds = false;
+			bopts.inSampleSize       = getSampleSize(bopts);
+			return BitmapFactory.decodeByteArray(data, 0, length, bopts);
 		}
 
 		/**
-		 * Guess a good sampleSize value for given inputStream
+		 * Guess a good sampleSize value for an image with the size read
+		 * into <code>bopts</code>
 		 */
-		private static int getSampleSize(InputStream inputStream, BitmapFactory.Options bopts) {
+		private static int getSampleSize(BitmapFactory.Options bopts) {
 			int sampleSize = 1;     /* default sample size                   */
 			long maxVal = 600*600;  /* max number of pixels we are accepting */
 
-			BitmapFactory.decodeStream(inputStream, null, bopts);
 			long hasPixels = bopts.outHeight * bopts.outWidth;
 			if(hasPixels > maxVal) {
 				sampleSize = Math.round((int)Math.sqrt((float) hasPixels / (float) maxVal));
@@ -277,15 +444,13 @@ public class Song implements Comparable<Song> {
 	 * True if the song is a file in Dropbox, false if it's on the local file system.
 	 */
 	public boolean isCloudSong;
-	/**
-	 * Used to determine whether the Dropbox streaming link is still usable (they are valid for 4
-     * hours). This is not preserved in JSON because if a song is being recreated from JSON, the
-     * it's probably a new app session and all links are invalid anyway.
-	 */
-	public Date dropboxLinkCreated;
-	
 	public String cloudRevision;
 	
+	/**
+	 * When the Dropbox streaming link in {@link #path} stops working, or null if there is no
+	 * usable link yet. This is not preserved in JSON because if a song is being recreated from
+	 * JSON, it's probably a new app session and all links are invalid anyway.
+	 */
 	public Date cloudLinkExpires;
 	
 	/**
@@ -512,15 +677,17 @@ public class Song implements Comparable<Song> {
 		if(mCoverLoadMode == 0 || id == -1)
 			return null;
 
-		if (sCoverCache == null)
+		if (sCoverCache == null) {
 			sCoverCache = new CoverCache(context.getApplicationContext());
+			CacheRegistry.getInstance(context).register("covers", CacheRegistry.PRIORITY_DECODED, sCoverCache);
+		}
 
 		if (mFlushCoverCache) {
 			mFlushCoverCache = false;
 			sCoverCache.evictAll();
 		}
 
-		LruCacheKey key = new LruCacheKey(id, artistId, albumId, path);
+		LruCacheKey key = new LruCacheKey(this);
 		Bitmap cover = sCoverCache.get(key);
 
 		if (cover == null)
@@ -0,0 +1,1270 @@
+package mp.teardrop;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact storage for the songs in a {@link SongTimeline}.
+ *
+ * The queue itself holds only int handles, kept in a list of fixed-capacity
+ * chunks so that inserting after the current song or removing a range only
+ * moves the handles of one or two chunks. The Song objects live once per
+ * distinct piece of media in a shared {@link Table}, so a long queue costs a
+ * few bytes per entry instead of a Song with its own strings.
+ *
+ * Not thread-safe for writing; SongTimeline guards all writes with its own
+ * lock. A queue returned by {@link #copy()} shares chunks with its source
+ * and is never written again, so it can be read from any thread; the source
+ * copies a shared chunk before its first write to it.
+ */
+final class SongQueue {
+	/**
+	 * Maximum number of handles per chunk.
+	 */
+	static final int CHUNK_SIZE = 512;
+
+	/**
+	 * Flyweight table of the Songs referenced by queue handles. Local songs
+	 * are shared by MediaStore id and cloud songs by Dropbox path, so every
+	 * queue entry for the same media refers to the same Song. Songs carrying
+	 * per-entry state, i.e. {@link Song#FLAG_RANDOM}, are never shared.
+	 *
+	 * Handles are never reused, since snapshots of older queues may still
+	 * refer to them; see {@link SongQueue#compact()} for getting rid of the
+	 * unused ones.
+	 */
+	static final class Table {
+		/**
+		 * Volatile so that readers of a snapshot see a fully copied array
+		 * when it grows.
+		 */
+		private volatile Song[] mSongs = new Song[64];
+		/**
+		 * Number of entries in the writable queue referring to each handle.
+		 */
+		private int[] mRefCounts = new int[64];
+		/**
+		 * One past the highest handle ever used.
+		 */
+		private int mEnd;
+		/**
+		 * Number of handles with a non-zero reference count.
+		 */
+		private int mLive;
+		/**
+		 * Number of those handles that refer to a random Song, which has a
+		 * handle of its own that {@link #find(long)} does not return.
+		 */
+		private int mLiveRandom;
+
+		/**
+		 * Open-addressed map of MediaStore id to handle. A value of -1 marks
+		 * an empty slot.
+		 */
+		private long[] mIdKeys = new long[64];
+		private int[] mIdValues = newEmptyValues(64);
+		private int mIdCount;
+		/**
+		 * Dropbox path to handle, for cloud songs.
+		 */
+		private final HashMap<String, Integer> mCloudHandles = new HashMap<String, Integer>();
+		/**
+		 * Album and artist names shared between the songs in the table.
+		 */
+		private final HashMap<String, String> mStrings = new HashMap<String, String>();
+
+		private static int[] newEmptyValues(int size)
+		{
+			int[] values = new int[size];
+			Arrays.fill(values, -1);
+			return values;
+		}
+
+		private static int hash(long id)
+		{
+			long h = id * 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h >>> 32));
+		}
+
+		/**
+		 * Returns the handle of the local song with the given MediaStore id,
+		 * or -1 if no such song is in the table.
+		 */
+		int find(long id)
+		{
+			long[] keys = mIdKeys;
+			int[] values = mIdValues;
+			int mask = keys.length - 1;
+			for (int i = hash(id) & mask; values[i] != -1; i = (i + 1) & mask) {
+				if (keys[i] == id)
+					return values[i];
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the handle of the cloud song with the given Dropbox path,
+		 * or -1 if no such song is in the table.
+		 */
+		int findCloud(String dbPath)
+		{
+			Integer handle = mCloudHandles.get(dbPath);
+			return handle == null ? -1 : handle;
+		}
+
+		private void putId(long id, int handle)
+		{
+			if ((mIdCount + 1) * 2 > mIdKeys.length) {
+				long[] oldKeys = mIdKeys;
+				int[] oldValues = mIdValues;
+				mIdKeys = new long[oldKeys.length * 2];
+				mIdValues = newEmptyValues(oldKeys.length * 2);
+				mIdCount = 0;
+				for (int i = oldKeys.length; --i != -1; ) {
+					if (oldValues[i] != -1)
+						putId(oldKeys[i], oldValues[i]);
+				}
+			}
+
+			long[] keys = mIdKeys;
+			int[] values = mIdValues;
+			int mask = keys.length - 1;
+			int i = hash(id) & mask;
+			while (values[i] != -1)
+				i = (i + 1) & mask;
+			keys[i] = id;
+			values[i] = handle;
+			++mIdCount;
+		}
+
+		private String share(String s)
+		{
+			if (s == null)
+				return null;
+			String shared = mStrings.get(s);
+			if (shared == null) {
+				mStrings.put(s, s);
+				shared = s;
+			}
+			return shared;
+		}
+
+		private static boolean equal(Object a, Object b)
+		{
+			return a == null ? b == null : a.equals(b);
+		}
+
+		/**
+		 * Returns true if the two songs for the same media carry the same
+		 * tags. The streaming link of cloud songs is not compared; see
+		 * {@link #hasFresherLink(Song, Song)}.
+		 */
+		private static boolean sameMetadata(Song a, Song b)
+		{
+			return equal(a.title, b.title) && equal(a.album, b.album) && equal(a.artist, b.artist)
+				&& a.albumId == b.albumId && a.artistId == b.artistId && a.trackNumber == b.trackNumber
+				&& equal(a.cloudRevision, b.cloudRevision) && equal(a.rgTrack, b.rgTrack) && equal(a.rgAlbum, b.rgAlbum)
+				&& (a.isCloudSong || equal(a.path, b.path));
+		}
+
+		/**
+		 * Returns true if <code>song</code> has a streaming link that works
+		 * for longer than the one of <code>old</code>.
+		 */
+		private static boolean hasFresherLink(Song song, Song old)
+		{
+			return song.cloudLinkExpires != null
+				&& (old.cloudLinkExpires == null || old.cloudLinkExpires.before(song.cloudLinkExpires));
+		}
+
+		/**
+		 * Returns the handle for the given song, adding it to the table if no
+		 * song for the same media is present. If one is, but its tags differ
+		 * from those of <code>song</code> or its streaming link expires
+		 * sooner, <code>song</code> takes its place. The returned handle has
+		 * not been retained yet.
+		 */
+		int intern(Song song)
+		{
+			long id = song.id;
+			String dbPath = song.isCloudSong ? song.dbPath : null;
+			boolean shared = (song.flags & Song.FLAG_RANDOM) == 0
+				&& (song.isCloudSong ? dbPath != null : id >= 0);
+			int handle = !shared ? -1 : song.isCloudSong ? findCloud(dbPath) : find(id);
+			if (handle != -1) {
+				Song old = mSongs[handle];
+				if (old == song)
+					return handle;
+				boolean fresherLink = hasFresherLink(song, old);
+				if (!fresherLink && sameMetadata(old, song))
+					return handle;
+				if (song.isCloudSong && !fresherLink) {
+					// new tags, but keep the link that works for longer
+					song.path = old.path;
+					song.cloudLinkExpires = old.cloudLinkExpires;
+				}
+				song.album = share(song.album);
+				song.artist = share(song.artist);
+				// older snapshots share this table and see the new tags too
+				mSongs[handle] = song;
+				return handle;
+			}
+
+			song.album = share(song.album);
+			song.artist = share(song.artist);
+
+			handle = mEnd++;
+			Song[] songs = mSongs;
+			if (handle == songs.length) {
+				songs = Arrays.copyOf(songs, handle * 2);
+				songs[handle] = song;
+				mSongs = songs;
+				mRefCounts = Arrays.copyOf(mRefCounts, handle * 2);
+			} else {
+				songs[handle] = song;
+			}
+
+			if (shared) {
+				if (song.isCloudSong)
+					mCloudHandles.put(dbPath, handle);
+				else
+					putId(id, handle);
+			}
+			return handle;
+		}
+
+		/**
+		 * Returns the Song for the given handle.
+		 */
+		Song get(int handle)
+		{
+			return mSongs[handle];
+		}
+
+		/**
+		 * Returns the number of queue entries referring to the given handle.
+		 */
+		int getRefCount(int handle)
+		{
+			return mRefCounts[handle];
+		}
+
+		void retain(int handle)
+		{
+			if (mRefCounts[handle]++ == 0) {
+				++mLive;
+				if (mSongs[handle].isRandom())
+					++mLiveRandom;
+			}
+		}
+
+		void release(int handle)
+		{
+			if (--mRefCounts[handle] == 0) {
+				--mLive;
+				if (mSongs[handle].isRandom())
+					--mLiveRandom;
+			}
+		}
+
+		/**
+		 * Returns true if the writable queue holds any random Songs.
+		 */
+		boolean hasRandom()
+		{
+			return mLiveRandom != 0;
+		}
+
+		/**
+		 * Returns true if most of the handles are no longer used by the
+		 * writable queue.
+		 */
+		boolean isSparse()
+		{
+			return mEnd > 1024 && mEnd > mLive * 4;
+		}
+
+		/**
+		 * Forget all reference counts, before recounting a queue.
+		 */
+		void resetCounts()
+		{
+			Arrays.fill(mRefCounts, 0);
+			mLive = 0;
+			mLiveRandom = 0;
+		}
+	}
+
+	/**
+	 * A seeded pseudo-random permutation of [0, size), computed on demand
+	 * with a small Feistel network and cycle walking. Nothing is stored
+	 * besides the seed, and both directions take constant time.
+	 */
+	static final class Permutation {
+		private static final int ROUNDS = 4;
+
+		private final int mSize;
+		private final long mSeed;
+		private final int mHalfBits;
+		private final int mHalfMask;
+
+		Permutation(int size, long seed)
+		{
+			int bits = 2;
+			while ((1L << bits) < size)
+				bits += 2;
+			mSize = size;
+			mSeed = seed;
+			mHalfBits = bits / 2;
+			mHalfMask = (1 << mHalfBits) - 1;
+		}
+
+		/**
+		 * splitmix64 finalizer.
+		 */
+		static long mix(long z)
+		{
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+
+		private int round(int round, int half)
+		{
+			return (int)mix(mSeed + round * 0x9E3779B97F4A7C15L + half) & mHalfMask;
+		}
+
+		/**
+		 * Returns the image of x, which must be in [0, size).
+		 */
+		int apply(int x)
+		{
+			if (mSize < 2)
+				return x;
+			do {
+				int l = x >>> mHalfBits;
+				int r = x & mHalfMask;
+				for (int i = 0; i != ROUNDS; ++i) {
+					int t = l ^ round(i, r);
+					l = r;
+					r = t;
+				}
+				x = (l << mHalfBits) | r;
+			} while (x >= mSize || x < 0);
+			return x;
+		}
+
+		/**
+		 * Returns the x for which apply(x) == y.
+		 */
+		int invert(int y)
+		{
+			if (mSize < 2)
+				return y;
+			do {
+				int l = y >>> mHalfBits;
+				int r = y & mHalfMask;
+				for (int i = ROUNDS; --i != -1; ) {
+					int t = r ^ round(i, l);
+					r = l;
+					l = t;
+				}
+				y = (l << mHalfBits) | r;
+			} while (y >= mSize || y < 0);
+			return y;
+		}
+	}
+
+	/**
+	 * A range of the queue that is played in a seeded random order. The
+	 * handles stay where they were stored; positions inside the range are
+	 * mapped through a {@link Permutation} when read. For album shuffle the
+	 * stored handles are grouped by album and only the order of the groups
+	 * is permuted, so the range needs one int per album.
+	 */
+	static final class ShuffleRange {
+		/**
+		 * First queue position covered by the range.
+		 */
+		int start;
+		final int length;
+		final long seed;
+		final boolean albums;
+		private final Permutation mPermutation;
+		/**
+		 * Stored offset of the first handle of each album group, followed by
+		 * the length. Null for song shuffle.
+		 */
+		private final int[] mGroupStarts;
+		/**
+		 * Played offset of the first handle of each slot in the permuted
+		 * group order, followed by the length. Null for song shuffle.
+		 */
+		private final int[] mSlotStarts;
+
+		ShuffleRange(int start, int length, long seed, int[] groupStarts)
+		{
+			this.start = start;
+			this.length = length;
+			this.seed = seed;
+			this.albums = groupStarts != null;
+			mGroupStarts = groupStarts;
+			if (groupStarts == null) {
+				mPermutation = new Permutation(length, seed);
+				mSlotStarts = null;
+			} else {
+				int groupCount = groupStarts.length - 1;
+				Permutation permutation = new Permutation(groupCount, seed);
+				int[] slotStarts = new int[groupCount + 1];
+				for (int q = 0; q != groupCount; ++q) {
+					int g = permutation.apply(q);
+					slotStarts[q + 1] = slotStarts[q] + groupStarts[g + 1] - groupStarts[g];
+				}
+				mPermutation = permutation;
+				mSlotStarts = slotStarts;
+			}
+		}
+
+		/**
+		 * Copy a range, so that shifting one does not move the other.
+		 */
+		ShuffleRange(ShuffleRange other)
+		{
+			start = other.start;
+			length = other.length;
+			seed = other.seed;
+			albums = other.albums;
+			mPermutation = other.mPermutation;
+			mGroupStarts = other.mGroupStarts;
+			mSlotStarts = other.mSlotStarts;
+		}
+
+		/**
+		 * Map an offset in play order to the offset it is stored at.
+		 */
+		int toStored(int offset)
+		{
+			if (mGroupStarts == null)
+				return mPermutation.apply(offset);
+			int q = floorIndex(mSlotStarts, offset);
+			int g = mPermutation.apply(q);
+			return mGroupStarts[g] + offset - mSlotStarts[q];
+		}
+
+		/**
+		 * Map a stored offset to its offset in play order.
+		 */
+		int toPlayed(int offset)
+		{
+			if (mGroupStarts == null)
+				return mPermutation.invert(offset);
+			int g = floorIndex(mGroupStarts, offset);
+			int q = mPermutation.invert(g);
+			return mSlotStarts[q] + offset - mGroupStarts[g];
+		}
+
+		/**
+		 * Returns the largest i with starts[i] <= key, ignoring the final
+		 * (length) entry.
+		 */
+		private static int floorIndex(int[] starts, int key)
+		{
+			int lo = 0;
+			int hi = starts.length - 2;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (starts[mid] <= key)
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			return lo;
+		}
+	}
+
+	private final Table mTable;
+	/**
+	 * The chunks, each of capacity CHUNK_SIZE. Only the first mChunkCount
+	 * entries are used, and none of those is empty. Handles are kept in
+	 * stored order; see mRanges for play order.
+	 */
+	private int[][] mChunks = new int[4][];
+	/**
+	 * Number of handles used in each chunk.
+	 */
+	private int[] mLengths = new int[4];
+	/**
+	 * Stored position of the first handle in each chunk.
+	 */
+	private int[] mStarts = new int[4];
+	/**
+	 * Whether each chunk belongs to this queue alone. Chunks shared with a
+	 * copy must be cloned before they are written.
+	 */
+	private boolean[] mOwned = new boolean[4];
+	private int mChunkCount;
+	private int mSize;
+	/**
+	 * Shuffled ranges, sorted by start and not overlapping. Outside of
+	 * these, play order and stored order are the same.
+	 */
+	private ShuffleRange[] mRanges = new ShuffleRange[2];
+	private int mRangeCount;
+	/**
+	 * Incremented on every change to the contents or order of the queue.
+	 */
+	private int mModCount;
+
+	SongQueue(Table table)
+	{
+		mTable = table;
+	}
+
+	/**
+	 * Returns a copy of this queue. The copy shares the chunks and the table
+	 * but not the chunk directory, so it is unaffected by later writes to
+	 * this queue. Costs one reference per chunk.
+	 */
+	SongQueue copy()
+	{
+		SongQueue copy = new SongQueue(mTable);
+		int capacity = mChunks.length;
+		copy.mChunks = mChunks.clone();
+		copy.mLengths = mLengths.clone();
+		copy.mStarts = mStarts.clone();
+		copy.mOwned = new boolean[capacity];
+		copy.mChunkCount = mChunkCount;
+		copy.mSize = mSize;
+		Arrays.fill(mOwned, false);
+
+		copy.mRanges = new ShuffleRange[mRanges.length];
+		for (int i = 0; i != mRangeCount; ++i)
+			copy.mRanges[i] = new ShuffleRange(mRanges[i]);
+		copy.mRangeCount = mRangeCount;
+		return copy;
+	}
+
+	/**
+	 * Returns an equivalent queue backed by a new table that holds only the
+	 * songs this queue refers to. Copies of this queue keep the old table.
+	 */
+	SongQueue compact()
+	{
+		Table old = mTable;
+		Table table = new Table();
+		int[] map = new int[old.mEnd];
+		Arrays.fill(map, -1);
+		int[] handles = new int[mSize];
+		copyOut(0, handles, 0, mSize);
+		for (int i = 0; i != handles.length; ++i) {
+			int h = handles[i];
+			if (map[h] == -1)
+				map[h] = table.intern(old.get(h));
+			handles[i] = map[h];
+		}
+
+		SongQueue queue = new SongQueue(table);
+		queue.insert(0, handles, 0, handles.length);
+		queue.mRanges = new ShuffleRange[mRanges.length];
+		for (int i = 0; i != mRangeCount; ++i)
+			queue.mRanges[i] = new ShuffleRange(mRanges[i]);
+		queue.mRangeCount = mRangeCount;
+		return queue;
+	}
+
+	/**
+	 * Make the table's reference counts match this queue, after it has
+	 * become the writable queue again.
+	 */
+	void recount()
+	{
+		Table table = mTable;
+		table.resetCounts();
+		for (int c = 0; c != mChunkCount; ++c) {
+			int[] chunk = mChunks[c];
+			for (int i = mLengths[c]; --i != -1; )
+				table.retain(chunk[i]);
+		}
+	}
+
+	/**
+	 * Clone chunk <code>c</code> if it is shared with a copy.
+	 */
+	private void ensureOwned(int c)
+	{
+		if (!mOwned[c]) {
+			mChunks[c] = mChunks[c].clone();
+			mOwned[c] = true;
+		}
+	}
+
+	/**
+	 * Returns the table holding the Songs for this queue's handles.
+	 */
+	Table getTable()
+	{
+		return mTable;
+	}
+
+	/**
+	 * Returns a counter that changes whenever the queue does.
+	 */
+	int getModCount()
+	{
+		return mModCount;
+	}
+
+	/**
+	 * Returns the number of entries in the queue.
+	 */
+	int size()
+	{
+		return mSize;
+	}
+
+	boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+
+	/**
+	 * Returns the index of the chunk containing the given stored position,
+	 * which must be less than size().
+	 */
+	private int findChunk(int pos)
+	{
+		int[] starts = mStarts;
+		int lo = 0;
+		int hi = mChunkCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[mid] <= pos)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the index of the shuffled range containing the given
+	 * position, or -1 if it is not in one.
+	 */
+	private int findRange(int pos)
+	{
+		ShuffleRange[] ranges = mRanges;
+		int lo = 0;
+		int hi = mRangeCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			ShuffleRange range = ranges[mid];
+			if (pos < range.start)
+				hi = mid - 1;
+			else if (pos >= range.start + range.length)
+				lo = mid + 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if any shuffled range intersects [start, end).
+	 */
+	private boolean hasRanges(int start, int end)
+	{
+		for (int i = 0; i != mRangeCount; ++i) {
+			ShuffleRange range = mRanges[i];
+			if (range.start < end && range.start + range.length > start)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Map a queue position (play order) to the position its handle is
+	 * stored at.
+	 */
+	private int toStored(int pos)
+	{
+		int r = findRange(pos);
+		if (r == -1)
+			return pos;
+		ShuffleRange range = mRanges[r];
+		return range.start + range.toStored(pos - range.start);
+	}
+
+	/**
+	 * Map a stored position to its queue position (play order).
+	 */
+	private int toPlayed(int stored)
+	{
+		int r = findRange(stored);
+		if (r == -1)
+			return stored;
+		ShuffleRange range = mRanges[r];
+		return range.start + range.toPlayed(stored - range.start);
+	}
+
+	private int getStored(int stored)
+	{
+		int c = findChunk(stored);
+		return mChunks[c][stored - mStarts[c]];
+	}
+
+	/**
+	 * Returns the handle at the given position.
+	 */
+	int getHandle(int pos)
+	{
+		return getStored(toStored(pos));
+	}
+
+	/**
+	 * Returns the Song at the given position.
+	 */
+	Song get(int pos)
+	{
+		return mTable.get(getHandle(pos));
+	}
+
+	/**
+	 * Returns the Song at the given stored position, ignoring the shuffled
+	 * ranges. Used to save the queue in the order the ranges apply to.
+	 */
+	Song getStoredSong(int stored)
+	{
+		return mTable.get(getStored(stored));
+	}
+
+	/**
+	 * Copies <code>count</code> handles starting at stored position
+	 * <code>start</code> into <code>out</code>.
+	 */
+	private void copyOut(int start, int[] out, int offset, int count)
+	{
+		if (count == 0)
+			return;
+		int c = findChunk(start);
+		int at = start - mStarts[c];
+		for (int copied = 0; copied != count; ++c, at = 0) {
+			int n = Math.min(mLengths[c] - at, count - copied);
+			System.arraycopy(mChunks[c], at, out, offset + copied, n);
+			copied += n;
+		}
+	}
+
+	/**
+	 * Overwrites <code>count</code> handles starting at stored position
+	 * <code>start</code> without touching reference counts.
+	 */
+	private void copyIn(int start, int[] handles, int offset, int count)
+	{
+		if (count == 0)
+			return;
+		int c = findChunk(start);
+		int at = start - mStarts[c];
+		for (int copied = 0; copied != count; ++c, at = 0) {
+			int n = Math.min(mLengths[c] - at, count - copied);
+			ensureOwned(c);
+			System.arraycopy(handles, offset + copied, mChunks[c], at, n);
+			copied += n;
+		}
+	}
+
+	/**
+	 * Copies <code>count</code> handles starting at <code>start</code> into
+	 * a new array.
+	 */
+	int[] getHandles(int start, int count)
+	{
+		int[] out = new int[count];
+		if (!hasRanges(start, start + count)) {
+			copyOut(start, out, 0, count);
+		} else {
+			for (int i = 0; i != count; ++i)
+				out[i] = getHandle(start + i);
+		}
+		return out;
+	}
+
+	/**
+	 * Write the played order of a shuffled range back to storage and drop
+	 * the range.
+	 */
+	private void materialize(int r)
+	{
+		ShuffleRange range = mRanges[r];
+		int[] stored = new int[range.length];
+		copyOut(range.start, stored, 0, range.length);
+		int[] played = new int[range.length];
+		for (int i = 0; i != range.length; ++i)
+			played[i] = stored[range.toStored(i)];
+		copyIn(range.start, played, 0, range.length);
+		removeRange(r);
+	}
+
+	/**
+	 * Materialize every shuffled range that intersects [start, end).
+	 */
+	private void materialize(int start, int end)
+	{
+		for (int i = mRangeCount; --i != -1; ) {
+			ShuffleRange range = mRanges[i];
+			if (range.start < end && range.start + range.length > start)
+				materialize(i);
+		}
+	}
+
+	private void removeRange(int r)
+	{
+		System.arraycopy(mRanges, r + 1, mRanges, r, mRangeCount - r - 1);
+		mRanges[--mRangeCount] = null;
+	}
+
+	/**
+	 * Move the start of all shuffled ranges at or after <code>from</code>
+	 * by <code>delta</code>.
+	 */
+	private void shiftRanges(int from, int delta)
+	{
+		for (int i = mRangeCount; --i != -1; ) {
+			ShuffleRange range = mRanges[i];
+			if (range.start < from)
+				break;
+			range.start += delta;
+		}
+	}
+
+	/**
+	 * Overwrites <code>count</code> entries starting at <code>start</code>
+	 * with the given handles.
+	 */
+	void set(int start, int[] handles, int offset, int count)
+	{
+		++mModCount;
+		materialize(start, start + count);
+		Table table = mTable;
+		for (int i = 0; i != count; ++i)
+			table.retain(handles[offset + i]);
+		int[] old = new int[count];
+		copyOut(start, old, 0, count);
+		for (int i = 0; i != count; ++i)
+			table.release(old[i]);
+		copyIn(start, handles, offset, count);
+	}
+
+	/**
+	 * Returns the position of the first entry at or after <code>from</code>
+	 * with the given handle, or -1 if there is none.
+	 */
+	int indexOf(int handle, int from)
+	{
+		if (from >= mSize || mTable.getRefCount(handle) == 0)
+			return -1;
+
+		// in a shuffled range the earliest match may be stored anywhere
+		boolean shuffled = hasRanges(from, mSize);
+		int skip = shuffled ? 0 : from;
+		int found = -1;
+		for (int c = findChunk(skip); c != mChunkCount; ++c) {
+			int[] chunk = mChunks[c];
+			int start = mStarts[c];
+			for (int i = Math.max(0, skip - start), end = mLengths[c]; i != end; ++i) {
+				if (chunk[i] != handle)
+					continue;
+				if (!shuffled)
+					return start + i;
+				// stored order differs from play order; keep the earliest
+				int pos = toPlayed(start + i);
+				if (pos >= from && (found == -1 || pos < found))
+					found = pos;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Make room for <code>insert</code> chunks at index <code>c</code>,
+	 * replacing <code>remove</code> existing chunks.
+	 */
+	private void replaceChunks(int c, int remove, int insert)
+	{
+		int newCount = mChunkCount - remove + insert;
+		if (newCount > mChunks.length) {
+			int capacity = Math.max(newCount, mChunks.length * 2);
+			mChunks = Arrays.copyOf(mChunks, capacity);
+			mLengths = Arrays.copyOf(mLengths, capacity);
+			mStarts = Arrays.copyOf(mStarts, capacity);
+			mOwned = Arrays.copyOf(mOwned, capacity);
+		}
+		int tail = mChunkCount - c - remove;
+		System.arraycopy(mChunks, c + remove, mChunks, c + insert, tail);
+		System.arraycopy(mLengths, c + remove, mLengths, c + insert, tail);
+		System.arraycopy(mOwned, c + remove, mOwned, c + insert, tail);
+		for (int i = newCount; i < mChunkCount; ++i)
+			mChunks[i] = null;
+		mChunkCount = newCount;
+	}
+
+	/**
+	 * Recompute the start positions of all chunks from <code>c</code> on.
+	 */
+	private void updateStarts(int c)
+	{
+		int pos = c == 0 ? 0 : mStarts[c - 1] + mLengths[c - 1];
+		for (int n = mChunkCount; c < n; ++c) {
+			mStarts[c] = pos;
+			pos += mLengths[c];
+		}
+	}
+
+	/**
+	 * Inserts <code>count</code> handles at <code>pos</code>.
+	 */
+	void insert(int pos, int[] handles, int offset, int count)
+	{
+		++mModCount;
+		if (count == 0)
+			return;
+
+		int r = findRange(pos);
+		if (r != -1 && mRanges[r].start != pos)
+			materialize(r);
+		shiftRanges(pos, count);
+
+		Table table = mTable;
+		for (int i = 0; i != count; ++i)
+			table.retain(handles[offset + i]);
+
+		int c;
+		int at;
+		if (mChunkCount == 0) {
+			c = 0;
+			at = 0;
+		} else if (pos == mSize) {
+			c = mChunkCount - 1;
+			at = mLengths[c];
+		} else {
+			c = findChunk(pos);
+			at = pos - mStarts[c];
+		}
+
+		if (mChunkCount != 0 && mLengths[c] + count <= CHUNK_SIZE) {
+			ensureOwned(c);
+			int[] chunk = mChunks[c];
+			System.arraycopy(chunk, at, chunk, at + count, mLengths[c] - at);
+			System.arraycopy(handles, offset, chunk, at, count);
+			mLengths[c] += count;
+		} else {
+			// Splice the new handles into the chunk and spread the result
+			// over as many chunks as needed, leaving some slack in each for
+			// later inserts. Appending to a full last chunk starts a new one.
+			int replace = 1;
+			if (mChunkCount == 0) {
+				replace = 0;
+			} else if (at == CHUNK_SIZE) {
+				++c;
+				at = 0;
+				replace = 0;
+			}
+			int oldLength = replace == 0 ? 0 : mLengths[c];
+			int total = oldLength + count;
+			int[] merged = new int[total];
+			if (oldLength != 0) {
+				int[] chunk = mChunks[c];
+				System.arraycopy(chunk, 0, merged, 0, at);
+				System.arraycopy(chunk, at, merged, at + count, oldLength - at);
+			}
+			System.arraycopy(handles, offset, merged, at, count);
+
+			int pieces = (total + CHUNK_SIZE - 1) / CHUNK_SIZE;
+			replaceChunks(c, replace, pieces);
+			for (int i = 0, from = 0; i != pieces; ++i) {
+				int length = (total - from) / (pieces - i);
+				int[] chunk = new int[CHUNK_SIZE];
+				System.arraycopy(merged, from, chunk, 0, length);
+				mChunks[c + i] = chunk;
+				mLengths[c + i] = length;
+				mOwned[c + i] = true;
+				from += length;
+			}
+		}
+
+		mSize += count;
+		updateStarts(c);
+	}
+
+	/**
+	 * Removes <code>count</code> entries starting at <code>start</code>.
+	 */
+	void remove(int start, int count)
+	{
+		++mModCount;
+		if (count == 0)
+			return;
+
+		int end = start + count;
+		materialize(start, end);
+		shiftRanges(end, -count);
+
+		Table table = mTable;
+		int first = findChunk(start);
+		int c = first;
+		while (c != mChunkCount && mStarts[c] < end) {
+			ensureOwned(c);
+			int[] chunk = mChunks[c];
+			int length = mLengths[c];
+			int from = Math.max(start - mStarts[c], 0);
+			int to = Math.min(end - mStarts[c], length);
+			for (int i = from; i != to; ++i)
+				table.release(chunk[i]);
+			System.arraycopy(chunk, to, chunk, from, length - to);
+			mLengths[c] = length - (to - from);
+			++c;
+		}
+
+		// drop the chunks that were emptied
+		int keep = first;
+		for (int i = first; i != c; ++i) {
+			if (mLengths[i] != 0) {
+				mChunks[keep] = mChunks[i];
+				mLengths[keep] = mLengths[i];
+				mOwned[keep] = mOwned[i];
+				++keep;
+			}
+		}
+		replaceChunks(keep, c - keep, 0);
+
+		// merge a small leftover with its successor to limit fragmentation
+		if (first < mChunkCount - 1 && mLengths[first] + mLengths[first + 1] <= CHUNK_SIZE / 2) {
+			ensureOwned(first);
+			System.arraycopy(mChunks[first + 1], 0, mChunks[first], mLengths[first], mLengths[first + 1]);
+			mLengths[first] += mLengths[first + 1];
+			replaceChunks(first + 1, 1, 0);
+		}
+
+		mSize -= count;
+		if (mChunkCount != 0)
+			updateStarts(Math.min(first, mChunkCount - 1));
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	void clear()
+	{
+		++mModCount;
+		mRangeCount = 0;
+		Arrays.fill(mRanges, null);
+		remove(0, mSize);
+	}
+
+	/**
+	 * Play the given range in a new random order. This only records the
+	 * seed (and, for album shuffle, groups the stored handles by album), so
+	 * it does not depend on the length of the range beyond that grouping.
+	 * Existing shuffled ranges inside the range are replaced.
+	 *
+	 * @param albums If true, shuffle the order of albums but keep the tracks
+	 * of each album together and in track order.
+	 * @param seed The seed for the permutation.
+	 * @param tracked A position to follow, or -1.
+	 * @return The position the entry at <code>tracked</code> moved to, or -1
+	 * if tracked was -1.
+	 */
+	int shuffle(int start, int count, boolean albums, long seed, int tracked)
+	{
+		++mModCount;
+		int end = start + count;
+		// ranges sticking out of this one keep their order
+		for (int i = mRangeCount; --i != -1; ) {
+			ShuffleRange range = mRanges[i];
+			if (range.start < end && range.start + range.length > start
+					&& (range.start < start || range.start + range.length > end))
+				materialize(i);
+		}
+		int trackedStored = tracked == -1 ? -1 : toStored(tracked);
+		for (int i = mRangeCount; --i != -1; ) {
+			ShuffleRange range = mRanges[i];
+			if (range.start >= start && range.start + range.length <= end)
+				removeRange(i);
+		}
+
+		if (count < 2)
+			return trackedStored == -1 ? -1 : toPlayed(trackedStored);
+
+		int[] groupStarts = null;
+		if (albums) {
+			int[] handles = new int[count];
+			copyOut(start, handles, 0, count);
+			int trackedHandle = trackedStored == -1 ? -1 : handles[trackedStored - start];
+			groupStarts = groupAlbums(handles, 0, count);
+			copyIn(start, handles, 0, count);
+			if (trackedHandle != -1) {
+				// entries with the same handle are the same song
+				for (int i = 0; i != count; ++i) {
+					if (handles[i] == trackedHandle) {
+						trackedStored = start + i;
+						break;
+					}
+				}
+			}
+		}
+
+		ShuffleRange range = new ShuffleRange(start, count, seed, groupStarts);
+		addRange(range);
+		return trackedStored == -1 ? -1 : toPlayed(trackedStored);
+	}
+
+	private void addRange(ShuffleRange range)
+	{
+		if (mRangeCount == mRanges.length)
+			mRanges = Arrays.copyOf(mRanges, mRangeCount * 2);
+		int i = mRangeCount;
+		while (i != 0 && mRanges[i - 1].start > range.start) {
+			mRanges[i] = mRanges[i - 1];
+			--i;
+		}
+		mRanges[i] = range;
+		++mRangeCount;
+	}
+
+	/**
+	 * Returns the handle that would be played first after
+	 * <code>shuffle(0, size(), albums, seed, -1)</code>, without shuffling.
+	 */
+	int peekShuffled(boolean albums, long seed)
+	{
+		int size = mSize;
+		if (size == 0)
+			return -1;
+		if (!albums)
+			return getStored(new Permutation(size, seed).apply(0));
+
+		// shuffle() orders the groups by album id, so find the album that
+		// lands first and its lowest track
+		Table table = mTable;
+		int[] handles = new int[size];
+		copyOut(0, handles, 0, size);
+		long[] albumIds = new long[size];
+		for (int i = 0; i != size; ++i)
+			albumIds[i] = table.get(handles[i]).albumId;
+		long[] groups = albumIds.clone();
+		Arrays.sort(groups);
+		int groupCount = 0;
+		for (int i = 0; i != size; ++i) {
+			if (i == 0 || groups[i] != groups[i - 1])
+				groups[groupCount++] = groups[i];
+		}
+		long albumId = groups[new Permutation(groupCount, seed).apply(0)];
+		int best = -1;
+		for (int i = 0; i != size; ++i) {
+			if (albumIds[i] == albumId && (best == -1 || table.get(handles[i]).trackNumber < table.get(best).trackNumber))
+				best = handles[i];
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the number of shuffled ranges.
+	 */
+	int getShuffleRangeCount()
+	{
+		return mRangeCount;
+	}
+
+	/**
+	 * Returns the shuffled range at the given index, for saving. Ranges are
+	 * ordered by start.
+	 */
+	ShuffleRange getShuffleRange(int i)
+	{
+		return mRanges[i];
+	}
+
+	/**
+	 * Restore a shuffled range saved from getShuffleRange(). The handles
+	 * must already be in place in stored order, as saved through
+	 * getStoredSong(); album groups are found again by scanning them.
+	 */
+	void restoreShuffle(int start, int length, boolean albums, long seed)
+	{
+		++mModCount;
+		if (start < 0 || length < 2 || start + length > mSize || hasRanges(start, start + length))
+			return;
+
+		int[] groupStarts = null;
+		if (albums) {
+			int[] handles = new int[length];
+			copyOut(start, handles, 0, length);
+			int[] starts = new int[length + 1];
+			int groupCount = 0;
+			long last = 0;
+			for (int i = 0; i != length; ++i) {
+				long albumId = mTable.get(handles[i]).albumId;
+				if (i == 0 || albumId != last)
+					starts[groupCount++] = i;
+				last = albumId;
+			}
+			starts[groupCount] = length;
+			groupStarts = Arrays.copyOf(starts, groupCount + 1);
+		}
+		addRange(new ShuffleRange(start, length, seed, groupStarts));
+	}
+
+	/**
+	 * Sort the handles in the given range of an array by album (ordered by
+	 * album id) and track number, keeping the stored order of equal
+	 * entries.
+	 *
+	 * @return The offset of each album group relative to
+	 * <code>offset</code>, followed by <code>count</code>.
+	 */
+	private int[] groupAlbums(int[] handles, int offset, int count)
+	{
+		Table table = mTable;
+
+		// Build a table of the distinct albums and the album of each entry.
+		long[] albumIds = new long[count];
+		for (int i = 0; i != count; ++i)
+			albumIds[i] = table.get(handles[offset + i]).albumId;
+		long[] groups = albumIds.clone();
+		Arrays.sort(groups);
+		int groupCount = 0;
+		for (int i = 0; i != count; ++i) {
+			if (i == 0 || groups[i] != groups[i - 1])
+				groups[groupCount++] = groups[i];
+		}
+		int[] groupStarts = new int[groupCount + 1];
+		int[] groupOf = new int[count];
+		for (int i = 0; i != count; ++i) {
+			int g = Arrays.binarySearch(groups, 0, groupCount, albumIds[i]);
+			groupOf[i] = g;
+			++groupStarts[g + 1];
+		}
+		for (int g = 0; g != groupCount; ++g)
+			groupStarts[g + 1] += groupStarts[g];
+
+		// Distribute the entries into their groups, then sort each group by
+		// track number (stable, so equal tracks keep their queue order).
+		int[] fill = Arrays.copyOf(groupStarts, groupCount);
+		int[] out = new int[count];
+		for (int i = 0; i != count; ++i)
+			out[fill[groupOf[i]]++] = handles[offset + i];
+		for (int i = 1; i < count; ++i) {
+			int h = out[i];
+			Song song = table.get(h);
+			int j = i - 1;
+			// groups are contiguous now, so stop at the album boundary
+			while (j >= 0 && table.get(out[j]).albumId == song.albumId && table.get(out[j]).trackNumber > song.trackNumber) {
+				out[j + 1] = out[j];
+				--j;
+			}
+			out[j + 1] = h;
+		}
+		System.arraycopy(out, 0, handles, offset, count);
+		return groupStarts;
+	}
+
+}
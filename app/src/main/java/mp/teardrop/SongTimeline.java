@@ -23,14 +23,13 @@
 package mp.teardrop;
 
 import java.io.DataOutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
-import java.util.ListIterator;
 
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import junit.framework.Assert;
 
@@ -89,19 +88,19 @@ public final class SongTimeline {
 	/**
 	 * Clear the timeline and use only the provided songs.
 	 *
-	 * @see SongTimeline#addSongs(Context, QueryTask)
+	 * @see SongTimeline#readQuery(Context, QueryTask)
 	 */
 	public static final int MODE_PLAY = 0;
 	/**
 	 * Clear the queue and add the songs after the current song.
 	 *
-	 * @see SongTimeline#addSongs(Context, QueryTask)
+	 * @see SongTimeline#readQuery(Context, QueryTask)
 	 */
 	public static final int MODE_PLAY_NEXT = 1;
 	/**
 	 * Add the songs at the end of the timeline, clearing random songs.
 	 *
-	 * @see SongTimeline#addSongs(Context, QueryTask)
+	 * @see SongTimeline#readQuery(Context, QueryTask)
 	 */
 	public static final int MODE_ENQUEUE = 2;
 	/**
@@ -111,7 +110,7 @@ public final class SongTimeline {
 	 *
 	 * Pass the position in QueryTask.data.
 	 *
-	 * @see SongTimeline#addSongs(Context, QueryTask)
+	 * @see SongTimeline#readQuery(Context, QueryTask)
 	 */
 	public static final int MODE_PLAY_POS_FIRST = 3;
 	/**
@@ -122,7 +121,7 @@ public final class SongTimeline {
 	 *
 	 * Pass the id in QueryTask.data.
 	 *
-	 * @see SongTimeline#addSongs(Context, QueryTask)
+	 * @see SongTimeline#readQuery(Context, QueryTask)
 	 */
 	public static final int MODE_PLAY_ID_FIRST = 4;
 	/**
@@ -133,7 +132,7 @@ public final class SongTimeline {
 	 *
 	 * Pass the id in QueryTask.data.
 	 *
-	 * @see SongTimeline#addSongs(Context, QueryTask)
+	 * @see SongTimeline#readQuery(Context, QueryTask)
 	 */
 	public static final int MODE_ENQUEUE_ID_FIRST = 5;
 	/**
@@ -143,7 +142,7 @@ public final class SongTimeline {
 	 *
 	 * Pass the position in QueryTask.data.
 	 *
-	 * @see SongTimeline#addSongs(Context, QueryTask)
+	 * @see SongTimeline#readQuery(Context, QueryTask)
 	 */
 	public static final int MODE_ENQUEUE_POS_FIRST = 6;
 
@@ -200,10 +199,10 @@ public final class SongTimeline {
 
 	private final Context mContext;
 	/**
-	 * All the songs currently contained in the timeline. Each Song object
-	 * should be unique, even if it refers to the same media.
+	 * All the songs currently contained in the timeline. Entries for the
+	 * same media share one Song object through the queue's table.
 	 */
-	private ArrayList<Song> mSongs = new ArrayList<Song>(12);
+	private SongQueue mSongs = new SongQueue(new SongQueue.Table());
 	/**
 	 * The position of the current song (i.e. the playing song).
 	 */
@@ -218,8 +217,296 @@ public final class SongTimeline {
 	 */
 	private int mFinishAction;
 
-	// for shuffleAll()
-	private ArrayList<Song> mShuffledSongs;
+	/**
+	 * Seed for the shuffle applied when the queue wraps around. Picked ahead
+	 * of time so the first song of the next round can be known early.
+	 */
+	private long mNextSeed = MediaUtils.getRandom().nextLong();
+
+	/**
+	 * An immutable view of the timeline. Writers publish a new snapshot at
+	 * the end of every change; readers use the latest one without locking,
+	 * so the queue and position they see always belong together.
+	 */
+	static final class Snapshot {
+		/**
+		 * Increases by one with every published snapshot.
+		 */
+		final long version;
+		/**
+		 * The queue. Shares its chunks with the writable queue and is never
+		 * written itself.
+		 */
+		final SongQueue songs;
+		final int position;
+		final int shuffleMode;
+		final int finishAction;
+		final long nextSeed;
+		/**
+		 * Cached handle of the first song of the next round, or -1. Threads
+		 * racing to fill it in all compute the same value.
+		 */
+		private int mNextFirst = -1;
+
+		Snapshot(long version, SongQueue songs, int position, int shuffleMode, int finishAction, long nextSeed)
+		{
+			this.version = version;
+			this.songs = songs;
+			this.position = position;
+			this.shuffleMode = shuffleMode;
+			this.finishAction = finishAction;
+			this.nextSeed = nextSeed;
+		}
+
+		/**
+		 * Returns the song that will play first when the queue wraps around
+		 * and is shuffled again with nextSeed. Nothing is shuffled until then.
+		 */
+		private Song peekShuffled()
+		{
+			int first = mNextFirst;
+			if (first == -1) {
+				first = songs.peekShuffled(shuffleMode == SHUFFLE_ALBUMS, nextSeed);
+				mNextFirst = first;
+			}
+			return songs.getTable().get(first);
+		}
+
+		/**
+		 * Returns the song <code>delta</code> places away from the current
+		 * position, or null if there is none.
+		 *
+		 * @param delta The offset from the current position. Must be -1, 0,
+		 * or 1.
+		 */
+		Song getSong(int delta)
+		{
+			int pos = position + delta;
+			int size = songs.size();
+
+			if (pos < 0) {
+				if (size == 0)
+					return null;
+				return songs.get(Math.max(0, size - 1));
+			} else if (pos > size) {
+				return null;
+			} else if (pos == size) {
+				if (size == 0)
+					// empty queue
+					return null;
+				else if (shuffleMode != SHUFFLE_NONE)
+					return peekShuffled();
+				else
+					return songs.get(0);
+			} else {
+				return songs.get(pos);
+			}
+		}
+
+		/**
+		 * Returns the song <code>delta</code> positions from the current
+		 * position, or null if that is beyond either end of the queue. Unlike
+		 * getSong(), this does not guess what comes after wrapping around,
+		 * so it is only good for preparing things ahead of time.
+		 */
+		Song peekSong(int delta)
+		{
+			int pos = position + delta;
+			if (pos < 0 || pos >= songs.size())
+				return null;
+			return songs.get(pos);
+		}
+	}
+
+	/**
+	 * The latest published snapshot.
+	 */
+	private volatile Snapshot mSnapshot;
+	/**
+	 * The writable queue and its modification count when mSnapshot was
+	 * published, to tell whether the next snapshot can reuse its songs.
+	 */
+	private SongQueue mPublishedSongs;
+	private int mPublishedModCount;
+
+	/**
+	 * Number of songs of a query read at a time after the first one.
+	 */
+	static final int BATCH_SIZE = 500;
+
+	/**
+	 * The rows of a query being added to the timeline. The query and every
+	 * cursor read run on a background thread, through readQuery() and
+	 * read(); the timeline only takes the songs read so far, through
+	 * addQuerySongs() and addPendingSongs().
+	 *
+	 * Rows are read in the order they are queued: from the row after the
+	 * first song to the end, then from row 0 up to the first song. If songs
+	 * were being shuffled when the query ran, that order is walked through
+	 * a random permutation, so every batch is a random sample of the rows
+	 * left and can simply be appended.
+	 */
+	static final class PendingSongs {
+		/**
+		 * How to add the songs, one of MODE_*.
+		 */
+		final int mode;
+		/**
+		 * Number of rows in the query.
+		 */
+		final int count;
+		private final Cursor mCursor;
+		private final int mFirst;
+		private final Song mFirstSong;
+		/**
+		 * Order the rows after the first song are read in, or null to read
+		 * them in cursor order.
+		 */
+		private final SongQueue.Permutation mOrder;
+		/**
+		 * Batches read and not yet taken. Guarded by this.
+		 */
+		private final ArrayDeque<Song[]> mReady = new ArrayDeque<Song[]>();
+		/**
+		 * Number of rows read so far, counting the first song. Guarded by
+		 * this; only the reading thread writes it.
+		 */
+		private int mRead = 1;
+		private boolean mReading;
+		private boolean mCancelled;
+		/**
+		 * Queue position after the last song of the query added so far.
+		 * Songs queued by imports in the meantime go after it. Guarded by
+		 * the timeline lock.
+		 */
+		int end;
+
+		PendingSongs(int mode, Cursor cursor, int first, Song firstSong, SongQueue.Permutation order)
+		{
+			this.mode = mode;
+			count = cursor.getCount();
+			mCursor = cursor;
+			mFirst = first;
+			mFirstSong = firstSong;
+			mOrder = order;
+		}
+
+		/**
+		 * Read up to <code>max</code> more songs, to be taken by the
+		 * timeline through addPendingSongs(). Closes the cursor after the
+		 * last row. Must only be called on one thread.
+		 *
+		 * @return True if songs were read, false if all of them have been
+		 * or the query was cancelled.
+		 */
+		boolean read(int max)
+		{
+			int read;
+			synchronized (this) {
+				if (mCancelled || mRead == count)
+					return false;
+				mReading = true;
+				read = mRead;
+			}
+
+			Cursor cursor = mCursor;
+			Song[] songs = new Song[Math.min(max, count - read)];
+			for (int i = 0; i != songs.length; ++i) {
+				int offset = read - 1 + i;
+				if (mOrder != null)
+					offset = mOrder.apply(offset);
+				cursor.moveToPosition((mFirst + 1 + offset) % count);
+				Song song = new Song(-1);
+				song.populate(cursor);
+				songs[i] = song;
+			}
+
+			synchronized (this) {
+				mReading = false;
+				if (mCancelled) {
+					cursor.close();
+					return false;
+				}
+				mRead += songs.length;
+				if (mRead == count)
+					cursor.close();
+				mReady.add(songs);
+				return true;
+			}
+		}
+
+		/**
+		 * Returns the oldest batch read and not taken yet, or null.
+		 */
+		synchronized Song[] takeBatch()
+		{
+			return mReady.poll();
+		}
+
+		/**
+		 * Returns true once every row has been read and taken.
+		 */
+		synchronized boolean isDone()
+		{
+			return mRead == count && mReady.isEmpty();
+		}
+
+		/**
+		 * Returns true if the rows are read in random order.
+		 */
+		boolean isShuffled()
+		{
+			return mOrder != null;
+		}
+
+		/**
+		 * Stop reading and close the cursor, or have the read in progress
+		 * close it. Does not wait for that read.
+		 */
+		synchronized void cancel()
+		{
+			mCancelled = true;
+			mReady.clear();
+			if (!mReading && !mCursor.isClosed())
+				mCursor.close();
+		}
+	}
+
+	/**
+	 * The query whose songs are still to be added by addPendingSongs(), or
+	 * null.
+	 */
+	private PendingSongs mPending;
+	/**
+	 * The import whose first songs were added last, one of STREAM_*. While
+	 * it is set, that import may add more songs through appendCloudSongs()
+	 * or appendFileSongs(). Anything else that adds or replaces songs ends
+	 * it.
+	 */
+	private int mOpenStream;
+	/**
+	 * No import may append songs.
+	 */
+	private static final int STREAM_NONE = 0;
+	/**
+	 * The Dropbox import may append songs.
+	 */
+	private static final int STREAM_CLOUD = 1;
+	/**
+	 * The local folder import may append songs.
+	 */
+	private static final int STREAM_FILES = 2;
+
+	/**
+	 * Most undo history kept, in snapshots.
+	 */
+	private static final int MAX_UNDO = 16;
+	/**
+	 * Snapshots from before recent edits of the queue, oldest first. Since
+	 * snapshots share their chunks, each costs little more than its chunk
+	 * directory.
+	 */
+	private final ArrayList<Snapshot> mHistory = new ArrayList<Snapshot>();
 
 	// for saveActiveSongs()
 	private Song mSavedPrevious;
@@ -258,9 +545,73 @@ public final class SongTimeline {
 	 */
 	private Callback mCallback;
 
+	/**
+	 * Interface to receive fine-grained changes to the queue contents, so
+	 * views of the queue can update just the affected rows. Methods are
+	 * called with the timeline lock held, in the order the changes were
+	 * made; implementations must return quickly and must not call back into
+	 * the timeline.
+	 */
+	public interface QueueListener {
+		/**
+		 * Called once when the listener is added and whenever the queue is
+		 * replaced wholesale.
+		 *
+		 * @param length The new number of songs in the queue.
+		 * @param position The new position of the current song.
+		 */
+		public void queueReset(int length, int position);
+
+		/**
+		 * Called after <code>count</code> songs were inserted at
+		 * <code>start</code>.
+		 */
+		public void songsInserted(int start, int count);
+
+		/**
+		 * Called after <code>count</code> songs starting at
+		 * <code>start</code> were removed.
+		 */
+		public void songsRemoved(int start, int count);
+
+		/**
+		 * Called after <code>count</code> songs were moved from
+		 * <code>from</code> to <code>to</code>. Both positions refer to the
+		 * queue as it was before the move.
+		 */
+		public void songsMoved(int from, int to, int count);
+
+		/**
+		 * Called after the songs in the given range were replaced by
+		 * different songs without changing the length of the queue.
+		 */
+		public void songsChanged(int start, int count);
+
+		/**
+		 * Called after the position of the current song changed.
+		 */
+		public void positionChanged(int position);
+
+		/**
+		 * Called after the changes reported since the last call were
+		 * published, with the queue they left behind. The queue is never
+		 * modified afterwards, so it may be read from any thread.
+		 */
+		public void changesPublished(SongQueue songs);
+	}
+	/**
+	 * Listeners for queue changes. Guarded by the timeline lock.
+	 */
+	private final ArrayList<QueueListener> mQueueListeners = new ArrayList<QueueListener>(2);
+	/**
+	 * The position last reported through positionChanged().
+	 */
+	private int mReportedPos;
+
 	public SongTimeline(Context context)
 	{
 		mContext = context;
+		publish();
 	}
 
 	/**
@@ -297,21 +648,43 @@ public final class SongTimeline {
 	{
 		synchronized (this) {
 					
-			ArrayList<Song> songs = new ArrayList<Song>();
+			SongQueue songs = new SongQueue(new SongQueue.Table());
 
 			JSONArray jsonBourneArray = new JSONArray(prefs.getString(PlaybackService.PREFS_SAVED_SONGS, "[]"));
 			
+			int[] handles = new int[jsonBourneArray.length()];
+			int count = 0;
 			for(int i=0; i != jsonBourneArray.length(); i++) {
 				Song song = Song.fromJsonObject(jsonBourneArray.getJSONObject(i));
-				songs.add(song);
+				if(song != null) {
+					handles[count++] = songs.getTable().intern(song);
+				}
+			}
+			songs.insert(0, handles, 0, count);
+
+			// the songs are saved in stored order and the shuffled order as
+			// seeds over it; if a song could not be read the ranges no
+			// longer line up, so play them in stored order instead
+			JSONArray shuffleArray = new JSONArray(prefs.getString(PlaybackService.PREFS_SAVED_SHUFFLE, "[]"));
+			for(int i=0; count == handles.length && i != shuffleArray.length(); i++) {
+				JSONObject range = shuffleArray.getJSONObject(i);
+				songs.restoreShuffle(range.getInt("start"), range.getInt("length"),
+					range.getBoolean("albums"), range.getLong("seed"));
 			}
 			
 			mSongs = songs;
+			mHistory.clear();
+			cancelPending();
 
 			//mCurrentPos = Math.min(mSongs == null ? 0 : mSongs.size(), in.readInt());
 			mCurrentPos = 0;
 			//mFinishAction = in.readInt();
 			//mShuffleMode = in.readInt();
+
+			mReportedPos = 0;
+			for (int i = mQueueListeners.size(); --i != -1; )
+				mQueueListeners.get(i).queueReset(songs.size(), 0);
+			publish();
 		}
 	}
 
@@ -321,21 +694,30 @@ public final class SongTimeline {
 	public void writeState(SharedPreferences prefs) throws JSONException
 	{
 		// Must update PlaybackService.STATE_VERSION when changing behavior here.
-		synchronized (this) {
-			ArrayList<Song> songs = mSongs;
-			
-			JSONArray jsonBourneArray = new JSONArray();
-			
-			for(Song song : songs) {
-				if(song != null) {
-					jsonBourneArray.put(song.toJsonObject());
-				}
-			}
-			
-			SharedPreferences.Editor editor = prefs.edit();
-			editor.putString(PlaybackService.PREFS_SAVED_SONGS, jsonBourneArray.toString());
-			editor.commit();
+		SongQueue songs = mSnapshot.songs;
+		
+		JSONArray jsonBourneArray = new JSONArray();
+		
+		// stored order, which the shuffled ranges below are applied to
+		for(int i = 0, n = songs.size(); i != n; i++) {
+			jsonBourneArray.put(songs.getStoredSong(i).toJsonObject());
+		}
+		
+		JSONArray shuffleArray = new JSONArray();
+		for(int i = 0, n = songs.getShuffleRangeCount(); i != n; i++) {
+			SongQueue.ShuffleRange range = songs.getShuffleRange(i);
+			JSONObject json = new JSONObject();
+			json.put("start", range.start);
+			json.put("length", range.length);
+			json.put("albums", range.albums);
+			json.put("seed", range.seed);
+			shuffleArray.put(json);
 		}
+		
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putString(PlaybackService.PREFS_SAVED_SONGS, jsonBourneArray.toString());
+		editor.putString(PlaybackService.PREFS_SAVED_SHUFFLE, shuffleArray.toString());
+		editor.commit();
 	}
 
 	/**
@@ -346,6 +728,87 @@ public final class SongTimeline {
 		mCallback = callback;
 	}
 
+	/**
+	 * Start reporting queue changes to <code>listener</code>. The listener
+	 * immediately receives a queueReset() with the current state.
+	 */
+	public void addQueueListener(QueueListener listener)
+	{
+		synchronized (this) {
+			mQueueListeners.add(listener);
+			listener.queueReset(mSongs.size(), mCurrentPos);
+			listener.changesPublished(mSnapshot.songs);
+		}
+	}
+
+	/**
+	 * Stop reporting queue changes to <code>listener</code>.
+	 */
+	public void removeQueueListener(QueueListener listener)
+	{
+		synchronized (this) {
+			mQueueListeners.remove(listener);
+		}
+	}
+
+	/**
+	 * Report that songs were inserted. Must be called with the lock held.
+	 */
+	private void reportInserted(int start, int count)
+	{
+		if (count == 0)
+			return;
+		for (int i = mQueueListeners.size(); --i != -1; )
+			mQueueListeners.get(i).songsInserted(start, count);
+	}
+
+	/**
+	 * Report that songs were removed. Must be called with the lock held.
+	 */
+	private void reportRemoved(int start, int count)
+	{
+		if (count == 0)
+			return;
+		for (int i = mQueueListeners.size(); --i != -1; )
+			mQueueListeners.get(i).songsRemoved(start, count);
+	}
+
+	/**
+	 * Report that songs were moved. Must be called with the lock held.
+	 */
+	private void reportMoved(int from, int to, int count)
+	{
+		if (count == 0 || from == to)
+			return;
+		for (int i = mQueueListeners.size(); --i != -1; )
+			mQueueListeners.get(i).songsMoved(from, to, count);
+	}
+
+	/**
+	 * Report that songs were replaced in place. Must be called with the lock
+	 * held.
+	 */
+	private void reportChanged(int start, int count)
+	{
+		if (count == 0)
+			return;
+		for (int i = mQueueListeners.size(); --i != -1; )
+			mQueueListeners.get(i).songsChanged(start, count);
+	}
+
+	/**
+	 * Report the current position if it differs from the one last reported.
+	 * Must be called with the lock held.
+	 */
+	private void reportPosition()
+	{
+		if (mCurrentPos == mReportedPos)
+			return;
+		mReportedPos = mCurrentPos;
+		for (int i = mQueueListeners.size(); --i != -1; )
+			mQueueListeners.get(i).positionChanged(mCurrentPos);
+	}
+
 	/**
 	 * Return the current shuffle mode.
 	 *
@@ -353,7 +816,7 @@ public final class SongTimeline {
 	 */
 	public int getShuffleMode()
 	{
-		return mShuffleMode;
+		return mSnapshot.shuffleMode;
 	}
 
 	/**
@@ -363,7 +826,7 @@ public final class SongTimeline {
 	 */
 	public int getFinishAction()
 	{
-		return mFinishAction;
+		return mSnapshot.finishAction;
 	}
 
 	/**
@@ -379,15 +842,19 @@ public final class SongTimeline {
 
 		synchronized (this) {
 			saveActiveSongs();
-			mShuffledSongs = null;
 			mShuffleMode = mode;
 			if (mode != SHUFFLE_NONE && mFinishAction != FINISH_RANDOM && !mSongs.isEmpty()) {
-				shuffleAll();
-				ArrayList<Song> songs = mShuffledSongs;
-				mShuffledSongs = null;
-				mCurrentPos = songs.indexOf(mSavedCurrent);
-				mSongs = songs;
+				remember();
+				// Only a seed is recorded; songs are placed as they are read.
+				// The current song is tracked rather than searched for.
+				int size = mSongs.size();
+				int current = mCurrentPos < size ? mCurrentPos : -1;
+				current = mSongs.shuffle(0, size, mode == SHUFFLE_ALBUMS, MediaUtils.getRandom().nextLong(), current);
+				mCurrentPos = Math.max(current, 0);
+				reportChanged(0, size);
+				reportPosition();
 			}
+			publish();
 			broadcastChangedSongs();
 		}
 
@@ -400,70 +867,46 @@ public final class SongTimeline {
 	 */
 	public void setFinishAction(int action)
 	{
-		saveActiveSongs();
-		mFinishAction = action;
-		broadcastChangedSongs();
+		synchronized (this) {
+			saveActiveSongs();
+			mFinishAction = action;
+			publish();
+			broadcastChangedSongs();
+		}
 		changed();
 	}
 
-	/**
-	 * Shuffle all the songs in the timeline, storing the result in
-	 * mShuffledSongs.
-	 *
-	 * @return The first song from the shuffled songs.
-	 */
-	private Song shuffleAll()
-	{
-		if (mShuffledSongs != null)
-			return mShuffledSongs.get(0);
-
-		ArrayList<Song> songs = new ArrayList<Song>(mSongs);
-		MediaUtils.shuffle(songs, mShuffleMode == SHUFFLE_ALBUMS);
-		mShuffledSongs = songs;
-		return songs.get(0);
-	}
-
 	/**
 	 * Returns the song <code>delta</code> places away from the current
 	 * position. Returns null if there is a problem retrieving the song.
+	 * Never blocks.
 	 *
 	 * @param delta The offset from the current position. Must be -1, 0, or 1.
 	 */
 	public Song getSong(int delta)
 	{
 		Assert.assertTrue(delta >= -1 && delta <= 1);
+		return mSnapshot.getSong(delta);
+	}
 
-		ArrayList<Song> timeline = mSongs;
-		Song song;
-
-		synchronized (this) {
-			int pos = mCurrentPos + delta;
-			int size = timeline.size();
-
-			if (pos < 0) {
-				if (size == 0)
-					return null;
-				song = timeline.get(Math.max(0, size - 1));
-			} else if (pos > size) {
-				return null;
-			} else if (pos == size) {
-				if (size == 0)
-					// empty queue
-					return null;
-				else if (mShuffleMode != SHUFFLE_NONE)
-					song = shuffleAll();
-				else
-					song = timeline.get(0);
-			} else {
-				song = timeline.get(pos);
-			}
-		}
-
-		if (song == null)
-			// we have no songs in the library
-			return null;
+	/**
+	 * Returns the song <code>delta</code> positions from the current
+	 * position, if it is in the queue, or null. Never blocks.
+	 *
+	 * @see Snapshot#peekSong(int)
+	 */
+	public Song peekSong(int delta)
+	{
+		return mSnapshot.peekSong(delta);
+	}
 
-		return song;
+	/**
+	 * Returns the latest published snapshot, for reading several things
+	 * that must agree with each other without locking.
+	 */
+	Snapshot getSnapshot()
+	{
+		return mSnapshot;
 	}
 
 	/**
@@ -479,9 +922,10 @@ public final class SongTimeline {
 
 		if (/* mFinishAction != FINISH_RANDOM  && */ pos == mSongs.size()) {
 			if (mShuffleMode != SHUFFLE_NONE && !mSongs.isEmpty()) {
-				if (mShuffledSongs == null)
-					shuffleAll();
-				mSongs = mShuffledSongs;
+				// start the next round with the seed peekShuffled() used
+				mSongs.shuffle(0, mSongs.size(), mShuffleMode == SHUFFLE_ALBUMS, mNextSeed, -1);
+				mNextSeed = MediaUtils.getRandom().nextLong();
+				reportChanged(0, mSongs.size());
 			}
 
 			pos = 0;
@@ -493,23 +937,32 @@ public final class SongTimeline {
 		}
 
 		mCurrentPos = pos;
-		mShuffledSongs = null;
+		reportPosition();
+		publish();
 	}
 	
 	/**
 	 * Hard-Jump to given queue position
 	*/
 	public Song setCurrentQueuePosition(int pos) {
-		mCurrentPos = pos;
-		mShuffledSongs = null;
+		synchronized (this) {
+			mCurrentPos = pos;
+			reportPosition();
+			publish();
+		}
 		return getSong(0);
 	}
 	
 	/**
-	 * Returns 'Song' at given position in queue
+	 * Returns 'Song' at given position in queue, or null if the position is
+	 * out of range (e.g. because a queue view has not caught up with a
+	 * removal yet).
 	*/
 	public Song getSongByQueuePosition(int id) {
-		return mSongs.get(id);
+		SongQueue songs = mSnapshot.songs;
+		if (id < 0 || id >= songs.size())
+			return null;
+		return songs.get(id);
 	}
 	
 	/**
@@ -539,109 +992,239 @@ public final class SongTimeline {
 	}
 
 	/**
-	 * Run the given query and add the results to the song timeline.
+	 * Run the given query and read its first song. Nothing is added to the
+	 * timeline yet: pass the result to addQuerySongs() on the thread that
+	 * edits the timeline, and call {@link PendingSongs#read(int)} until it
+	 * returns false to read the rest. Should be called on a background
+	 * thread.
 	 *
 	 * @param context A context to use.
 	 * @param query The query to be run. The mode variable must be initialized
 	 * to one of SongTimeline.MODE_*. The type and data variables may also need
 	 * to be initialized depending on the given mode.
-	 * @return The number of songs that were added.
+	 * @return The rows of the query, or null if there are none.
 	 */
-	public int addSongs(Context context, QueryTask query)
+	public PendingSongs readQuery(Context context, QueryTask query)
 	{
+		int mode = query.mode;
+		switch (mode) {
+		case MODE_PLAY:
+		case MODE_PLAY_NEXT:
+		case MODE_ENQUEUE:
+		case MODE_PLAY_POS_FIRST:
+		case MODE_ENQUEUE_POS_FIRST:
+			break;
+		case MODE_PLAY_ID_FIRST:
+		case MODE_ENQUEUE_ID_FIRST:
+			throw new IllegalArgumentException("Unsupported id type: " + query.type);
+		default:
+			throw new IllegalArgumentException("Invalid mode: " + mode);
+		}
+
 		Cursor cursor = query.runQuery(context.getContentResolver());
 		if (cursor == null) {
-			return 0;
+			return null;
 		}
 
 		int count = cursor.getCount();
 		if (count == 0) {
-			return 0;
+			cursor.close();
+			return null;
 		}
 
-		int mode = query.mode;
-		int type = query.type;
-		long data = query.data;
+		// Only the first song is read now, so that playback can start right
+		// away. The others follow in batches, from the row after the first
+		// song on, wrapping around to row 0.
+		int shuffleMode = getShuffleMode();
+		int first = 0;
+		if (mode == MODE_PLAY_POS_FIRST || mode == MODE_ENQUEUE_POS_FIRST) {
+			if (query.data >= 0 && query.data < count)
+				first = (int)query.data;
+		} else if (shuffleMode != SHUFFLE_NONE) {
+			first = MediaUtils.getRandom().nextInt(count);
+		}
+
+		cursor.moveToPosition(first);
+		Song song = new Song(-1);
+		song.populate(cursor);
+		if (count == 1)
+			cursor.close();
+
+		SongQueue.Permutation order = null;
+		if (shuffleMode == SHUFFLE_SONGS && count > 2)
+			order = new SongQueue.Permutation(count - 1, MediaUtils.getRandom().nextLong());
+		return new PendingSongs(mode, cursor, first, song, order);
+	}
 
-		ArrayList<Song> timeline = mSongs;
+	/**
+	 * Add the first song of a query read by readQuery() to the timeline.
+	 * The others are added by addPendingSongs() as they are read.
+	 *
+	 * @return The number of songs that will be added.
+	 */
+	public int addQuerySongs(PendingSongs pending)
+	{
 		synchronized (this) {
+			SongQueue timeline = mSongs;
 			saveActiveSongs();
+			remember();
+			cancelPending();
 
-			switch (mode) {
+			switch (pending.mode) {
 			case MODE_ENQUEUE:
 			case MODE_ENQUEUE_POS_FIRST:
-			case MODE_ENQUEUE_ID_FIRST:
 				break;
 			case MODE_PLAY_NEXT:
-				timeline.subList(mCurrentPos + 1, timeline.size()).clear();
+				reportRemoved(mCurrentPos + 1, timeline.size() - mCurrentPos - 1);
+				timeline.remove(mCurrentPos + 1, timeline.size() - mCurrentPos - 1);
 				break;
 			case MODE_PLAY:
 			case MODE_PLAY_POS_FIRST:
-			case MODE_PLAY_ID_FIRST:
+				reportRemoved(0, timeline.size());
 				timeline.clear();
 				mCurrentPos = 0;
 				break;
-			default:
-				throw new IllegalArgumentException("Invalid mode: " + mode);
 			}
 
 			int start = timeline.size();
-
-			Song jumpSong = null;
-			for (int j = 0; j != count; ++j) {
-				cursor.moveToPosition(j);
-				Song song = new Song(-1);
-				song.populate(cursor);
-				timeline.add(song);
-
-				if (jumpSong == null) {
-					if ((mode == MODE_PLAY_POS_FIRST || mode == MODE_ENQUEUE_POS_FIRST) && j == data) {
-						jumpSong = song;
-					} else if (mode == MODE_PLAY_ID_FIRST || mode == MODE_ENQUEUE_ID_FIRST) {
-						long id;
-						switch (type) {
-						/* case MediaUtils.TYPE_ARTIST:
-							id = song.artistId;
-							break;
-						case MediaUtils.TYPE_ALBUM:
-							id = song.albumId;
-							break;
-						case MediaUtils.TYPE_SONG:
-							id = song.id;
-							break; */
-						default:
-							throw new IllegalArgumentException("Unsupported id type: " + type);
-						}
-						/* if (id == data)
-							jumpSong = song; */
-					}
-				}
+			int[] handles = { timeline.getTable().intern(pending.mFirstSong) };
+			timeline.insert(start, handles, 0, 1);
+			if (pending.count > 1) {
+				pending.end = start + 1;
+				mPending = pending;
 			}
 
-			if (mShuffleMode != SHUFFLE_NONE)
-				MediaUtils.shuffle(timeline.subList(start, timeline.size()), mShuffleMode == SHUFFLE_ALBUMS);
+			reportInserted(start, 1);
+			reportPosition();
+			publish();
+			broadcastChangedSongs();
+		}
+
+		changed();
 
-			if (jumpSong != null) {
-				int jumpPos = timeline.indexOf(jumpSong);
-				if (jumpPos != start) {
-					// Get the sublist twice to avoid a ConcurrentModificationException.
-					timeline.addAll(timeline.subList(start, jumpPos));
-					timeline.subList(start, jumpPos).clear();
-				}
-			}
+		return pending.count;
+	}
 
+	/**
+	 * Add the next batch of songs read for the given query. Must be called
+	 * on the thread that calls addQuerySongs().
+	 *
+	 * @return False if the songs were dropped because the timeline has
+	 * moved on to other songs since the query was added.
+	 */
+	public boolean addPendingSongs(PendingSongs pending)
+	{
+		synchronized (this) {
+			if (mPending != pending)
+				return false;
+			Song[] added = pending.takeBatch();
+			if (added == null)
+				return true;
+
+			SongQueue timeline = mSongs;
+			saveActiveSongs();
+
+			// ahead of anything enqueued since the query was added
+			int at = Math.min(pending.end, timeline.size());
+			int count = added.length;
+			SongQueue.Table table = timeline.getTable();
+			int[] handles = new int[count];
+			for (int j = 0; j != count; ++j)
+				handles[j] = table.intern(added[j]);
+			timeline.insert(at, handles, 0, count);
+			pending.end = at + count;
+			if (at <= mCurrentPos)
+				mCurrentPos += count;
+
+			// Only the new songs are shuffled. Songs read in random order
+			// already are, unless shuffle was turned on after the query ran;
+			// albums are shuffled as groups of whatever tracks a batch has.
+			if (mShuffleMode == SHUFFLE_ALBUMS || mShuffleMode == SHUFFLE_SONGS && !pending.isShuffled())
+				timeline.shuffle(at, count, mShuffleMode == SHUFFLE_ALBUMS, MediaUtils.getRandom().nextLong(), -1);
+			reportInserted(at, count);
+			reportPosition();
+
+			if (pending.isDone())
+				mPending = null;
+
+			publish();
 			broadcastChangedSongs();
 		}
 
 		changed();
 
-		return count;
+		return true;
+	}
+
+	/**
+	 * Stop adding the songs left over from addQuerySongs(). Must be called with
+	 * the lock held.
+	 */
+	private void cancelPending()
+	{
+		if (mPending != null) {
+			mPending.cancel();
+			mPending = null;
+		}
+		mOpenStream = STREAM_NONE;
 	}
 	
 	int addCloudSongs(ArrayList<CloudSongMetadata> cloudSongs, int mode) {
-		ArrayList<Song> timeline = mSongs;
+		return addSongList(toSongs(cloudSongs), mode, STREAM_CLOUD);
+	}
+
+	/**
+	 * Append the next songs of the cloud import started by the last
+	 * addCloudSongs(), without taking an undo snapshot for each batch.
+	 *
+	 * @return False if the queue has been replaced or added to since, in
+	 * which case the songs are dropped.
+	 */
+	boolean appendCloudSongs(ArrayList<CloudSongMetadata> cloudSongs)
+	{
+		return appendSongList(toSongs(cloudSongs), STREAM_CLOUD);
+	}
+
+	/**
+	 * Add the first songs of a local folder import, read from the files
+	 * rather than from MediaStore.
+	 *
+	 * @param mode One of SongTimeline.MODE_*.
+	 * @return The number of songs added.
+	 */
+	int addFileSongs(ArrayList<Song> songs, int mode)
+	{
+		return addSongList(songs, mode, STREAM_FILES);
+	}
+
+	/**
+	 * Append the next songs of the folder import started by the last
+	 * addFileSongs(), without taking an undo snapshot for each batch.
+	 *
+	 * @return False if the queue has been replaced or added to since, in
+	 * which case the songs are dropped.
+	 */
+	boolean appendFileSongs(ArrayList<Song> songs)
+	{
+		return appendSongList(songs, STREAM_FILES);
+	}
+
+	/**
+	 * Add the first songs of an import, which may be followed by more
+	 * through appendSongList() with the same stream.
+	 *
+	 * @param stream The import, one of STREAM_*.
+	 */
+	private int addSongList(ArrayList<Song> songs, int mode, int stream)
+	{
 		synchronized (this) {
+			SongQueue timeline = mSongs;
 			saveActiveSongs();
+			remember();
+			// songs still coming from an earlier query go in ahead of
+			// enqueued ones
+			if (mode != MODE_ENQUEUE && mode != MODE_ENQUEUE_POS_FIRST && mode != MODE_ENQUEUE_ID_FIRST)
+				cancelPending();
 			
 			switch (mode) {
 			case MODE_ENQUEUE:
@@ -649,11 +1232,13 @@ public final class SongTimeline {
 			case MODE_ENQUEUE_ID_FIRST:
 				break;
 			case MODE_PLAY_NEXT:
-				timeline.subList(mCurrentPos + 1, timeline.size()).clear();
+				reportRemoved(mCurrentPos + 1, timeline.size() - mCurrentPos - 1);
+				timeline.remove(mCurrentPos + 1, timeline.size() - mCurrentPos - 1);
 				break;
 			case MODE_PLAY:
 			case MODE_PLAY_POS_FIRST:
 			case MODE_PLAY_ID_FIRST:
+				reportRemoved(0, timeline.size());
 				timeline.clear();
 				mCurrentPos = 0;
 				break;
@@ -661,29 +1246,88 @@ public final class SongTimeline {
 				throw new IllegalArgumentException("Invalid mode: " + mode);
 			}
 
-			/* int start = timeline.size();
-
-			Song jumpSong = null; */
-			for (CloudSongMetadata cloudSong : cloudSongs) {
-                Song song = new Song(true, cloudSong.path, cloudSong.title, cloudSong.album,
-                        cloudSong.artist, 1);
-                song.dropboxLinkCreated = new Date(); //it was created only seconds ago when the
-                                                      // user picked the songs in the library
-                if(cloudSong.rgTrack != 0f) song.rgTrack = cloudSong.rgTrack;
-				if(cloudSong.rgAlbum != 0f) song.rgAlbum = cloudSong.rgAlbum;
-				song.dbPath = cloudSong.dbPath;
-				timeline.add(song);
-			}
+			int start = timeline.size();
+			int[] handles = internSongs(timeline.getTable(), songs);
+			timeline.insert(start, handles, 0, handles.length);
+			mOpenStream = stream;
 
 			/* if (mShuffleMode != SHUFFLE_NONE)
 				MediaUtils.shuffle(timeline.subList(start, timeline.size()), mShuffleMode == SHUFFLE_ALBUMS); */
 
+			reportInserted(start, songs.size());
+			reportPosition();
+			publish();
+			broadcastChangedSongs();
+		}
+
+		changed();
+
+		return songs.size();
+	}
+
+	/**
+	 * Append songs of the import last started with addSongList(), unless
+	 * something else has changed the queue since.
+	 *
+	 * @param stream The import, one of STREAM_*.
+	 */
+	private boolean appendSongList(ArrayList<Song> songs, int stream)
+	{
+		synchronized (this) {
+			if (mOpenStream != stream)
+				return false;
+
+			SongQueue timeline = mSongs;
+			saveActiveSongs();
+
+			int start = timeline.size();
+			int[] handles = internSongs(timeline.getTable(), songs);
+			timeline.insert(start, handles, 0, handles.length);
+
+			reportInserted(start, handles.length);
+			publish();
 			broadcastChangedSongs();
 		}
 
 		changed();
 
-		return cloudSongs.size();
+		return true;
+	}
+
+	/**
+	 * Prepare Song instances for cloud songs.
+	 */
+	private static ArrayList<Song> toSongs(ArrayList<CloudSongMetadata> cloudSongs)
+	{
+		ArrayList<Song> songs = new ArrayList<Song>(cloudSongs.size());
+		for (CloudSongMetadata cloudSong : cloudSongs) {
+			Song song = new Song(true, cloudSong.path, cloudSong.title, cloudSong.album,
+					cloudSong.artist, 1);
+			//the link may have lapsed since the tags were cached; if so, it is refreshed
+			// just before the song is played
+			song.cloudLinkExpires = cloudSong.expires;
+			song.cloudRevision = cloudSong.revision;
+			if(cloudSong.rgTrack != 0f) song.rgTrack = cloudSong.rgTrack;
+			if(cloudSong.rgAlbum != 0f) song.rgAlbum = cloudSong.rgAlbum;
+			song.dbPath = cloudSong.dbPath;
+			songs.add(song);
+		}
+		return songs;
+	}
+
+	/**
+	 * Intern <code>songs</code> in <code>table</code>. Must be called with
+	 * the lock held.
+	 *
+	 * @return The handles of the songs, in order.
+	 */
+	private static int[] internSongs(SongQueue.Table table, ArrayList<Song> songs)
+	{
+		int[] handles = new int[songs.size()];
+		int count = 0;
+		for (Song song : songs)
+			handles[count++] = table.intern(song);
+		return handles;
 	}
 
 	/**
@@ -708,8 +1352,13 @@ public final class SongTimeline {
 	public void clearQueue()
 	{
 		synchronized (this) {
-			if (mCurrentPos + 1 < mSongs.size())
-				mSongs.subList(mCurrentPos + 1, mSongs.size()).clear();
+			cancelPending();
+			if (mCurrentPos + 1 < mSongs.size()) {
+				remember();
+				reportRemoved(mCurrentPos + 1, mSongs.size() - mCurrentPos - 1);
+				mSongs.remove(mCurrentPos + 1, mSongs.size() - mCurrentPos - 1);
+				publish();
+			}
 		}
 
 		if (mCallback != null) {
@@ -727,10 +1376,18 @@ public final class SongTimeline {
 	public void clearQueue(Callback callback)
 	{
 		synchronized (this) {
-			if (mCurrentPos + 1 < mSongs.size())
-				mSongs.subList(mCurrentPos + 1, mSongs.size()).clear();
-			mSongs.subList(0, mCurrentPos).clear();
+			cancelPending();
+			if (mSongs.size() > 1)
+				remember();
+			if (mCurrentPos + 1 < mSongs.size()) {
+				reportRemoved(mCurrentPos + 1, mSongs.size() - mCurrentPos - 1);
+				mSongs.remove(mCurrentPos + 1, mSongs.size() - mCurrentPos - 1);
+			}
+			reportRemoved(0, mCurrentPos);
+			mSongs.remove(0, mCurrentPos);
 			mCurrentPos = 0;
+			reportPosition();
+			publish();
 		}
 
 		if (mCallback != null) {
@@ -747,20 +1404,28 @@ public final class SongTimeline {
 	public void randomlyReorderQueue(Callback callback)
 	{
 		synchronized (this) { 
-			ArrayList<Song> randomizeThis = new ArrayList<Song>();
-			
-			if (mCurrentPos + 1 < mSongs.size()) {
-				randomizeThis.addAll(mSongs.subList(mCurrentPos + 1, mSongs.size()));
-				mSongs.subList(mCurrentPos + 1, mSongs.size()).clear();
-			}
-			randomizeThis.addAll(mSongs.subList(0, mCurrentPos));
-			mSongs.subList(0, mCurrentPos).clear();
+			SongQueue songs = mSongs;
+			int size = songs.size();
+			if (mCurrentPos >= size)
+				return;
+			remember();
 			
-			Collections.shuffle(randomizeThis);
-			
-			mSongs.addAll(randomizeThis);
+			// current song first, then the rest in a random order
+			int[] handles = new int[size];
+			handles[0] = songs.getHandle(mCurrentPos);
+			int[] after = songs.getHandles(mCurrentPos + 1, size - mCurrentPos - 1);
+			int[] before = songs.getHandles(0, mCurrentPos);
+			System.arraycopy(after, 0, handles, 1, after.length);
+			System.arraycopy(before, 0, handles, 1 + after.length, before.length);
+			songs.set(0, handles, 0, size);
+			songs.shuffle(1, size - 1, false, MediaUtils.getRandom().nextLong(), -1);
 			
+			// the current song moved to the front; everything after it is new
+			reportMoved(mCurrentPos, 0, 1);
+			reportChanged(1, size - 1);
 			mCurrentPos = 0;
+			reportPosition();
+			publish();
 		}
 
 		if (mCallback != null) {
@@ -820,16 +1485,34 @@ public final class SongTimeline {
 		synchronized (this) {
 			saveActiveSongs();
 
-			ArrayList<Song> songs = mSongs;
-			ListIterator<Song> it = songs.listIterator();
-			while (it.hasNext()) {
-				int i = it.nextIndex();
-				if (Song.getId(it.next()) == id) {
-					if (i < mCurrentPos)
-						--mCurrentPos;
-					it.remove();
+			SongQueue songs = mSongs;
+			// All entries for the same song share a handle, so a song that is
+			// not queued is rejected without looking at the queue at all.
+			// Random songs are the exception, with a handle per entry.
+			int handle = songs.getTable().find(id);
+			int pos = handle == -1 ? -1 : songs.indexOf(handle, 0);
+			while (pos != -1) {
+				int end = pos + 1;
+				while (end < songs.size() && songs.getHandle(end) == handle)
+					++end;
+				if (pos < mCurrentPos)
+					mCurrentPos -= Math.min(end, mCurrentPos) - pos;
+				if (mPending != null && pos < mPending.end)
+					mPending.end -= Math.min(end, mPending.end) - pos;
+				reportRemoved(pos, end - pos);
+				songs.remove(pos, end - pos);
+				// indexOf() returns -1 at once when the last entry is gone
+				pos = songs.indexOf(handle, pos);
+			}
+			if (songs.getTable().hasRandom()) {
+				for (int i = songs.size(); --i != -1; ) {
+					Song song = songs.get(i);
+					if (song.isRandom() && !song.isCloudSong && song.id == id)
+						removeEntry(i);
 				}
 			}
+			reportPosition();
+			publish();
 
 			broadcastChangedSongs();
 		}
@@ -837,6 +1520,20 @@ public final class SongTimeline {
 		changed();
 	}
 
+	/**
+	 * Remove the single entry at the given position, keeping the current
+	 * position and the pending query's insertion point on their songs.
+	 */
+	private void removeEntry(int pos)
+	{
+		if (pos < mCurrentPos)
+			--mCurrentPos;
+		if (mPending != null && pos < mPending.end)
+			--mPending.end;
+		reportRemoved(pos, 1);
+		mSongs.remove(pos, 1);
+	}
+
 	/**
 	 * Broadcasts that the timeline state has changed.
 	 */
@@ -852,9 +1549,8 @@ public final class SongTimeline {
 	 */
 	public boolean isEndOfQueue()
 	{
-		synchronized (this) {
-			return mFinishAction == FINISH_STOP && mCurrentPos == mSongs.size() - 1;
-		}
+		Snapshot snapshot = mSnapshot;
+		return snapshot.finishAction == FINISH_STOP && snapshot.position == snapshot.songs.size() - 1;
 	}
 
 	/**
@@ -862,7 +1558,7 @@ public final class SongTimeline {
 	 */
 	public int getPosition()
 	{
-		return mCurrentPos;
+		return mSnapshot.position;
 	}
 
 	/**
@@ -870,6 +1566,85 @@ public final class SongTimeline {
 	 */
 	public int getLength()
 	{
-		return mSongs.size();
+		return mSnapshot.songs.size();
+	}
+
+	/**
+	 * Publish the current state as a new snapshot and hand its queue to the
+	 * queue listeners. Must be called with the lock held at the end of every
+	 * change, before anything is broadcast.
+	 * The queue is only copied if it changed since the last snapshot.
+	 */
+	private void publish()
+	{
+		Snapshot old = mSnapshot;
+		SongQueue songs;
+		if (old != null && mPublishedSongs == mSongs && mPublishedModCount == mSongs.getModCount()) {
+			songs = old.songs;
+		} else {
+			// Handles are not reused, so drop the dead ones now and then.
+			if (mSongs.getTable().isSparse())
+				mSongs = mSongs.compact();
+			songs = mSongs.copy();
+			mPublishedSongs = mSongs;
+			mPublishedModCount = mSongs.getModCount();
+		}
+		mSnapshot = new Snapshot(old == null ? 0 : old.version + 1, songs, mCurrentPos,
+			mShuffleMode, mFinishAction, mNextSeed);
+		for (int i = mQueueListeners.size(); --i != -1; )
+			mQueueListeners.get(i).changesPublished(songs);
+	}
+
+	/**
+	 * Keep the current snapshot so the edit about to be made can be undone.
+	 * Must be called with the lock held.
+	 */
+	private void remember()
+	{
+		if (mHistory.size() == MAX_UNDO)
+			mHistory.remove(0);
+		mHistory.add(mSnapshot);
+	}
+
+	/**
+	 * Returns true if there is a queue edit that can be undone.
+	 */
+	public boolean canUndo()
+	{
+		synchronized (this) {
+			return !mHistory.isEmpty();
+		}
+	}
+
+	/**
+	 * Restore the queue and position from before the last edit of the queue
+	 * (adding, clearing or shuffling songs).
+	 *
+	 * @return False if there was nothing to undo.
+	 */
+	public boolean undo()
+	{
+		synchronized (this) {
+			int last = mHistory.size() - 1;
+			if (last == -1)
+				return false;
+
+			saveActiveSongs();
+			cancelPending();
+			Snapshot snapshot = mHistory.remove(last);
+			SongQueue songs = snapshot.songs.copy();
+			songs.recount();
+			mSongs = songs;
+			mCurrentPos = snapshot.position;
+
+			mReportedPos = mCurrentPos;
+			for (int i = mQueueListeners.size(); --i != -1; )
+				mQueueListeners.get(i).queueReset(songs.size(), mCurrentPos);
+			publish();
+			broadcastChangedSongs();
+		}
+
+		changed();
+		return true;
 	}
 }
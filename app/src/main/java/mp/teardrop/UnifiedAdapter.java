@@ -3,6 +3,8 @@ package mp.teardrop;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -12,17 +14,20 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Message;
 import android.provider.MediaStore;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.style.ForegroundColorSpan;
-import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
-import android.widget.LinearLayout;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 /**
@@ -31,12 +36,38 @@ import android.widget.TextView;
  */
 public class UnifiedAdapter
 	extends BaseAdapter
-	implements LibraryAdapter
+	implements LibraryAdapter, Handler.Callback, SectionIndexer
 	         //, View.OnClickListener
 {
 	static final int ID_LINK_TO_PARENT_DIR = -10;
 
     private final LayoutInflater mInflater;
+	/**
+	 * Shared row icons, so binding a row allocates no drawables.
+	 */
+	private final Drawable mArtistIcon;
+	private final Drawable mAlbumIcon;
+	private final Drawable mSongIcon;
+	/**
+	 * Size in pixels of the album covers shown next to album rows.
+	 */
+	private final int mCoverSize;
+	/**
+	 * Loads album covers, so that searching never waits for them.
+	 */
+	private final Handler mWorkerHandler;
+	/**
+	 * Shows loaded covers.
+	 */
+	private final Handler mUiHandler;
+	/**
+	 * Load the cover of the AlbumInfo in obj. Sent to the worker thread.
+	 */
+	private static final int MSG_LOAD_COVER = 1;
+	/**
+	 * Show a cover that finished loading. Sent to the UI thread.
+	 */
+	private static final int MSG_COVER_LOADED = 2;
 	
 	/**
 	 * The owner LibraryActivity.
@@ -50,11 +81,21 @@ public class UnifiedAdapter
 	 * The currently displayed artists, albums, songs, etc.
 	 */
 	private MediaInfoHolder mMih;
+	/**
+	 * The currently active filter, entered by the user from the search box.
+	 */
+	private String mFilter;
 	
 	/** 
 	 * Variables to indicate which section (artists, albums etc.) starts and ends where.
 	 * A value of -1 means the section is absent.
 	 */
+	/**
+	 * Position of the first row the fast-scroll sections count from.
+	 */
+	private int mSectionOffset;
+	private static final Object[] NO_SECTIONS = new Object[0];
+
 	private int mPosArtistHeading = -1, mPosArtistFirst = -1, mPosArtistLast = -1,
 		mPosAlbumHeading = -1, mPosAlbumFirst = -1, mPosAlbumLast = -1,
 		mPosSongHeading = -1, mPosSongFirst = -1, mPosSongLast = -1,
@@ -85,12 +126,40 @@ public class UnifiedAdapter
         mActivity = activity;
         mLimiter = limiter;
         mInflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        mArtistIcon = activity.getResources().getDrawable(R.drawable.artist_24);
+        mAlbumIcon = activity.getResources().getDrawable(R.drawable.album_24);
+        mSongIcon = activity.getResources().getDrawable(R.drawable.eighth_note);
+        mCoverSize = (int) Math.floor(24 * activity.getResources().getDisplayMetrics().density);
+        mWorkerHandler = new Handler(activity.mLooper, this);
+        mUiHandler = new Handler(this);
 
         setLimiter(limiter);
     }
 
 	@Override
-	public Object query()
+	public boolean handleMessage(Message message)
+	{
+		switch(message.what) {
+		case MSG_LOAD_COVER: {
+			MediaInfoHolder.AlbumInfo album = (MediaInfoHolder.AlbumInfo) message.obj;
+			Bitmap cover = getAlbumCover(mActivity, album.databaseId);
+			if(cover != null) {
+				album.cover = cover;
+				mUiHandler.sendEmptyMessage(MSG_COVER_LOADED);
+			}
+			break;
+		}
+		case MSG_COVER_LOADED:
+			notifyDataSetChanged();
+			break;
+		default:
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Object query(CancellationSignal signal)
 	{
 		MediaInfoHolder mih = new MediaInfoHolder();
 
@@ -101,7 +170,9 @@ public class UnifiedAdapter
         }
 
 		
-		if(mLimiter == null) {
+		if(mFilter != null && mLimiter == null) {
+			searchLibrary(mih, signal);
+		} else if(mLimiter == null) {
 			/* get top artists */
 			PlayCountsHelper pch = new PlayCountsHelper(mActivity);
 			ArrayList<Long> ids = pch.getTopMedia(ITEM_TYPE_ARTIST, 3);
@@ -109,7 +180,7 @@ public class UnifiedAdapter
 			idsString = '(' + idsString.substring(1, idsString.length()-1) + ')';
 			if(idsString.length() > 2) {
 				Uri uri = android.provider.MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI;
-				Cursor cursor = mActivity.getContentResolver().query(uri, null, MediaStore.Audio.Artists._ID + " IN " + idsString, null, null);
+				Cursor cursor = mActivity.getContentResolver().query(uri, null, MediaStore.Audio.Artists._ID + " IN " + idsString, null, null, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Artists.ARTIST);
 					int idColumn = cursor.getColumnIndex(MediaStore.Audio.Artists._ID);
@@ -121,7 +192,7 @@ public class UnifiedAdapter
 			//check if we got all artists: if so, don't include the more link
 			Uri uri1 = android.provider.MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI;
 			String[] projection1 = { MediaStore.Audio.Artists._ID };
-			Cursor cursor1 = mActivity.getContentResolver().query(uri1, projection1, null, null, null);
+			Cursor cursor1 = mActivity.getContentResolver().query(uri1, projection1, null, null, null, signal);
 			if(cursor1.getCount() > mih.artists.size()) mih.artists.add(mih.new ArtistInfo(null, 0)); //null name = more link
 			
 			/* get top albums */
@@ -130,21 +201,20 @@ public class UnifiedAdapter
 			idsString = '(' + idsString.substring(1, idsString.length()-1) + ')';
 			if(idsString.length() > 2) {
 				Uri uri = android.provider.MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI;
-				Cursor cursor = mActivity.getContentResolver().query(uri, null, MediaStore.Audio.Albums._ID + " IN " + idsString, null, null);
+				Cursor cursor = mActivity.getContentResolver().query(uri, null, MediaStore.Audio.Albums._ID + " IN " + idsString, null, null, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM);
 					int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ARTIST);
 					int idColumn = cursor.getColumnIndex(MediaStore.Audio.Albums._ID);
 					do {
-						long albumId = cursor.getLong(idColumn);
-						mih.albums.add(mih.new AlbumInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),albumId,getAlbumCover(mActivity, albumId)));
+						mih.albums.add(mih.new AlbumInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),cursor.getLong(idColumn)));
 					} while (cursor.moveToNext());
 				}
 			}
 			uri1 = android.provider.MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI;
 			String[] projection2 = { MediaStore.Audio.Albums._ID };
-			cursor1 = mActivity.getContentResolver().query(uri1, projection2, null, null, null);
-			if(cursor1.getCount() > mih.albums.size()) mih.albums.add(mih.new AlbumInfo(null, null, 0, null));
+			cursor1 = mActivity.getContentResolver().query(uri1, projection2, null, null, null, signal);
+			if(cursor1.getCount() > mih.albums.size()) mih.albums.add(mih.new AlbumInfo(null, null, 0));
 			
 			ids = pch.getTopMedia(ITEM_TYPE_SONG, 5);
 			idsString = ids.toString();
@@ -153,7 +223,7 @@ public class UnifiedAdapter
 				Uri uri = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
 				Cursor cursor = mActivity.getContentResolver().query(uri, null,
 					MediaStore.Audio.Media._ID + " IN " + idsString + " AND " + MediaStore.Audio.Media.IS_MUSIC + " != 0"
-					, null, null);
+					, null, null, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
 					int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
@@ -165,7 +235,7 @@ public class UnifiedAdapter
 			}
 			uri1 = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
 			String[] projection3 = { MediaStore.Audio.Media._ID };
-			cursor1 = mActivity.getContentResolver().query(uri1, projection3, null, null, null);
+			cursor1 = mActivity.getContentResolver().query(uri1, projection3, null, null, null, signal);
 			if(cursor1.getCount() > mih.albums.size()) mih.songs.add(mih.new SongInfo(null, null, 0));
 			
 			/* add a link to all playlists */
@@ -179,26 +249,31 @@ public class UnifiedAdapter
 			case ITEM_TYPE_MORE_ARTISTS:
 				/* get all artists */
 				uri = android.provider.MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI;
-				cursor = mActivity.getContentResolver().query(uri, null, null, null, null);
+				cursor = mActivity.getContentResolver().query(uri, null, null, null, MediaStore.Audio.Artists.ARTIST_KEY, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Artists.ARTIST);
 					int idColumn = cursor.getColumnIndex(MediaStore.Audio.Artists._ID);
+					int keyColumn = cursor.getColumnIndex(MediaStore.Audio.Artists.ARTIST_KEY);
 					do {
-						mih.artists.add(mih.new ArtistInfo(cursor.getString(nameColumn), cursor.getLong(idColumn)));
+						MediaInfoHolder.ArtistInfo artist = mih.new ArtistInfo(cursor.getString(nameColumn), cursor.getLong(idColumn));
+						artist.key = cursor.getString(keyColumn);
+						mih.artists.add(artist);
 					} while (cursor.moveToNext());
 				}
 				break;
 			case ITEM_TYPE_MORE_ALBUMS:
 				/* get all albums */
 				uri = android.provider.MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI;
-				cursor = mActivity.getContentResolver().query(uri, null, null, null, null);
+				cursor = mActivity.getContentResolver().query(uri, null, null, null, MediaStore.Audio.Albums.ALBUM_KEY, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM);
 					int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ARTIST);
 					int idColumn = cursor.getColumnIndex(MediaStore.Audio.Albums._ID);
+					int keyColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM_KEY);
 					do {
-						long albumId = cursor.getLong(idColumn);
-						mih.albums.add(mih.new AlbumInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),albumId,getAlbumCover(mActivity, albumId)));
+						MediaInfoHolder.AlbumInfo album = mih.new AlbumInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),cursor.getLong(idColumn));
+						album.key = cursor.getString(keyColumn);
+						mih.albums.add(album);
 					} while (cursor.moveToNext());
 				}
 				break;
@@ -206,20 +281,23 @@ public class UnifiedAdapter
 				/* get all songs */
 				uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
 				cursor = mActivity.getContentResolver().query(
-					uri, null, MediaStore.Audio.Media.IS_MUSIC + " != 0", null, MediaStore.Audio.Media.TITLE);
+					uri, null, MediaStore.Audio.Media.IS_MUSIC + " != 0", null, MediaStore.Audio.Media.TITLE_KEY, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
 					int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
 					int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+					int keyColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE_KEY);
 					do {
-						mih.songs.add(mih.new SongInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),cursor.getLong(idColumn)));
+						MediaInfoHolder.SongInfo song = mih.new SongInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),cursor.getLong(idColumn));
+						song.key = cursor.getString(keyColumn);
+						mih.songs.add(song);
 					} while (cursor.moveToNext());
 				}
 				break;
 			case ITEM_TYPE_MORE_PLAYLISTS:
 				/* get all playlists */
 				uri = MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI;
-				cursor = mActivity.getContentResolver().query(uri, null, null, null, MediaStore.Audio.Playlists.NAME);
+				cursor = mActivity.getContentResolver().query(uri, null, null, null, MediaStore.Audio.Playlists.NAME, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Playlists.NAME);
 					int idColumn = cursor.getColumnIndex(MediaStore.Audio.Playlists._ID);
@@ -236,10 +314,18 @@ public class UnifiedAdapter
 			Cursor cursor;
 			switch(mLimiter.type) {
 			case ITEM_TYPE_ALBUM:	
-				/* get all songs in the album */
+				/* get all songs in the album, in the order they are played,
+				 * from the library index once it is built */
+				LibraryIndex.Snapshot index = LibraryIndex.getInstance().getSnapshot();
+				if(index != null) {
+					for(int row : index.findRows(ITEM_TYPE_ALBUM, (Long) mLimiter.data)) {
+						mih.songs.add(mih.new SongInfo(index.getTitle(row), index.getArtist(row), index.getId(row)));
+					}
+					break;
+				}
 				uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
 				cursor = mActivity.getContentResolver().query(
-					uri, null, MediaStore.Audio.Media.ALBUM_ID + " = " + mLimiter.data.toString(), null, MediaStore.Audio.Media.TRACK);
+					uri, null, MediaStore.Audio.Media.ALBUM_ID + " = " + mLimiter.data.toString(), null, MediaStore.Audio.Media.TRACK, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
 					int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
@@ -256,14 +342,13 @@ public class UnifiedAdapter
 				 * the containing folder as the album name. As such, getting
 				 * all of an artist's albums will always cover all their songs. */
 				uri = MediaStore.Audio.Artists.Albums.getContentUri("external", (Long) mLimiter.data);
-				cursor = mActivity.getContentResolver().query(uri, null, null, null, null);
+				cursor = mActivity.getContentResolver().query(uri, null, null, null, null, signal);
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM);
 					int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ARTIST);
 					int idColumn = cursor.getColumnIndex(MediaStore.Audio.Albums._ID);
 					do {
-						long albumId = cursor.getLong(idColumn);
-						mih.albums.add(mih.new AlbumInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),albumId,getAlbumCover(mActivity, albumId)));
+						mih.albums.add(mih.new AlbumInfo(cursor.getString(nameColumn),cursor.getString(artistColumn),cursor.getLong(idColumn)));
 					} while (cursor.moveToNext());
 				}
 				break;
@@ -275,7 +360,7 @@ public class UnifiedAdapter
 					MediaStore.Audio.Playlists.Members.TITLE,
 					MediaStore.Audio.Playlists.Members._ID };
 				uri = MediaStore.Audio.Playlists.Members.getContentUri("external", (Long) mLimiter.data);
-				cursor = mActivity.getContentResolver().query(uri, projection1, null, null, MediaStore.Audio.Playlists.Members.PLAY_ORDER);
+				cursor = mActivity.getContentResolver().query(uri, projection1, null, null, MediaStore.Audio.Playlists.Members.PLAY_ORDER, signal);
 
 				if(cursor != null && cursor.moveToFirst()) {
 					int nameColumn = cursor.getColumnIndex(MediaStore.Audio.Playlists.Members.TITLE);
@@ -289,10 +374,133 @@ public class UnifiedAdapter
 			}
 			
 		}
+
+		if(mFilter != null && mLimiter != null) {
+			filterResults(mih);
+		}
+		if(mLimiter != null) {
+			buildSections(mih, mLimiter.type, signal);
+		}
 		
 		return mih;
 	}
 
+	/**
+	 * Compute the fast-scroll sections of the list of all artists, albums
+	 * or songs from the keys they were sorted by. Does nothing for other
+	 * lists.
+	 */
+	private static void buildSections(MediaInfoHolder mih, int type, CancellationSignal signal)
+	{
+		ArrayList<String> keys = new ArrayList<String>();
+		switch(type) {
+		case ITEM_TYPE_MORE_ARTISTS:
+			for(MediaInfoHolder.ArtistInfo artist : mih.artists) keys.add(artist.key);
+			break;
+		case ITEM_TYPE_MORE_ALBUMS:
+			for(MediaInfoHolder.AlbumInfo album : mih.albums) keys.add(album.key);
+			break;
+		case ITEM_TYPE_MORE_SONGS:
+			for(MediaInfoHolder.SongInfo song : mih.songs) keys.add(song.key);
+			break;
+		default:
+			return;
+		}
+		mih.sections = MusicAlphabetIndexer.buildSections(keys, signal);
+		mih.sectionsType = type;
+	}
+
+	/**
+	 * Fill mih with the artists, albums and songs matching the current
+	 * filter, using the in-memory search and library indexes. Does nothing
+	 * if the library index hasn't been built yet.
+	 */
+	private void searchLibrary(MediaInfoHolder mih, CancellationSignal signal)
+	{
+		LibraryIndex.Snapshot index = LibraryIndex.getInstance().getSnapshot();
+		SearchIndex.Hits hits = SearchIndex.getInstance().search(mFilter);
+		String[] terms = SearchIndex.parseTerms(mFilter);
+		if(index == null || hits == null || terms == null) {
+			return;
+		}
+
+		HashSet<Long> seenArtists = new HashSet<Long>();
+		HashSet<Long> seenAlbums = new HashSet<Long>();
+		for(long id : hits.mediaIds) {
+			int row = index.indexOf(id);
+			if(row == -1) {
+				continue;
+			}
+			String artist = index.getArtist(row);
+			String album = index.getAlbum(row);
+			long artistId = index.getArtistId(row);
+			long albumId = index.getAlbumId(row);
+
+			if(seenArtists.add(artistId) && SearchIndex.matches(artist, terms)) {
+				mih.artists.add(mih.new ArtistInfo(artist, artistId));
+			}
+			if(seenAlbums.add(albumId) && SearchIndex.matches(album, terms)) {
+				mih.albums.add(mih.new AlbumInfo(album, artist, albumId));
+			}
+			mih.songs.add(mih.new SongInfo(index.getTitle(row), artist, id));
+		}
+
+		for(int i = 0; i != hits.cloudPaths.length; ++i) {
+			String path = hits.cloudPaths[i];
+			String title = hits.cloudTitles[i];
+			if(title == null) {
+				title = path.substring(path.lastIndexOf('/') + 1);
+			}
+			String artist = hits.cloudArtists[i];
+			if(artist == null) {
+				artist = mActivity.getString(R.string.unknown);
+			}
+			MediaInfoHolder.SongInfo song = mih.new SongInfo(title, artist, cloudId(path));
+			song.cloudPath = path;
+			mih.songs.add(song);
+		}
+	}
+
+	/**
+	 * Returns the row id of the cached cloud song at <code>path</code>:
+	 * a negative number made from the path, so that it does not clash with
+	 * MediaStore ids or {@link LibraryAdapter#INVALID_ID}.
+	 */
+	private static long cloudId(String path)
+	{
+		return -3L - (path.hashCode() & 0xffffffffL);
+	}
+
+	/**
+	 * Remove everything not matching the current filter from mih.
+	 */
+	private void filterResults(MediaInfoHolder mih)
+	{
+		String[] terms = SearchIndex.parseTerms(mFilter);
+		if(terms == null) {
+			return;
+		}
+
+		Iterator<MediaInfoHolder.ArtistInfo> artists = mih.artists.iterator();
+		while(artists.hasNext()) {
+			if(!SearchIndex.matches(artists.next().name, terms)) artists.remove();
+		}
+		Iterator<MediaInfoHolder.AlbumInfo> albums = mih.albums.iterator();
+		while(albums.hasNext()) {
+			MediaInfoHolder.AlbumInfo album = albums.next();
+			if(!SearchIndex.matches(album.name + ' ' + album.artistName, terms)) albums.remove();
+		}
+		Iterator<MediaInfoHolder.SongInfo> songs = mih.songs.iterator();
+		while(songs.hasNext()) {
+			MediaInfoHolder.SongInfo song = songs.next();
+			if(!SearchIndex.matches(song.name + ' ' + song.artistName, terms)) songs.remove();
+		}
+		Iterator<MediaInfoHolder.PlaylistInfo> playlists = mih.playlists.iterator();
+		while(playlists.hasNext()) {
+			if(!SearchIndex.matches(playlists.next().name, terms)) playlists.remove();
+		}
+	}
+
 	@Override
 	public void commitQuery(Object data)
 	{
@@ -322,6 +530,13 @@ public class UnifiedAdapter
 			mPosPlaylistFirst= mMih.playlists.isEmpty() ? -1 : mPosPlaylistHeading + 1;
 			mPosPlaylistLast = mMih.playlists.isEmpty() ? -1 : mPosPlaylistHeading + mMih.playlists.size();
 		}
+
+		switch(mMih.sectionsType) {
+		case ITEM_TYPE_MORE_ARTISTS: mSectionOffset = mPosArtistFirst; break;
+		case ITEM_TYPE_MORE_ALBUMS: mSectionOffset = mPosAlbumFirst; break;
+		case ITEM_TYPE_MORE_SONGS: mSectionOffset = mPosSongFirst; break;
+		default: mSectionOffset = 0; break;
+		}
 		
 		notifyDataSetInvalidated();
 	}
@@ -356,6 +571,33 @@ public class UnifiedAdapter
 		return count + 1;
 	}
 
+	@Override
+	public Object[] getSections()
+	{
+		if(mMih == null || mMih.sections == null) {
+			return NO_SECTIONS;
+		}
+		return MusicAlphabetIndexer.getSections();
+	}
+
+	@Override
+	public int getPositionForSection(int section)
+	{
+		if(mMih == null || mMih.sections == null) {
+			return 0;
+		}
+		return mSectionOffset + mMih.sections.getPositionForSection(section);
+	}
+
+	@Override
+	public int getSectionForPosition(int position)
+	{
+		if(mMih == null || mMih.sections == null) {
+			return 0;
+		}
+		return mMih.sections.getSectionForPosition(position - mSectionOffset);
+	}
+
 	@Override
 	public Object getItem(int pos)
 	{
@@ -371,189 +613,255 @@ public class UnifiedAdapter
 	private static class ViewHolder {
 		public long id;
 		public String title;
+		/**
+		 * Dropbox path of the cached cloud song in the row, or null.
+		 */
+		public String cloudPath;
 		public int type;
 		public TextView text;
 	}
 
+	/**
+	 * Row layouts, as returned by {@link #getItemViewType(int)}.
+	 */
+	private static final int VIEW_TYPE_HIDDEN = 0;
+	private static final int VIEW_TYPE_HEADING_FIRST = 1;
+	private static final int VIEW_TYPE_EMPTY_SECTION_FIRST = 2;
+	private static final int VIEW_TYPE_HEADING = 3;
+	private static final int VIEW_TYPE_EMPTY_SECTION = 4;
+	private static final int VIEW_TYPE_HEADING_LINK = 5;
+	private static final int VIEW_TYPE_MORE_LINK = 6;
+	private static final int VIEW_TYPE_ARTIST = 7;
+	private static final int VIEW_TYPE_ALBUM = 8;
+	private static final int VIEW_TYPE_SONG = 9;
+	private static final int VIEW_TYPE_NO_PERMISSION = 10;
+	private static final int VIEW_TYPE_COUNT = 11;
+
 	@Override
-	public View getView(int pos, View convertView, ViewGroup parent) //TODO: optimize this a little
+	public int getViewTypeCount()
 	{
-        if(mMih.permissionToReadStorageWasDenied) {
-            return getNoPermissionView();
-        }
+		return VIEW_TYPE_COUNT;
+	}
+
+	@Override
+	public int getItemViewType(int pos)
+	{
+		if(mMih.permissionToReadStorageWasDenied) {
+			return VIEW_TYPE_NO_PERMISSION;
+		}
 
-		// always create a new view to get rid of old touch feedback
-		View view = null;
-		ViewHolder holder = new ViewHolder();
-		
 		if(pos == mPosArtistHeading) {
-			
-			if(mLimiter != null) {
-				view = new View(mActivity);
-				view.setVisibility(View.GONE);
-			} else {
-				
-				if(mLimiter == null && mPosArtistFirst == mPosArtistLast) { //there are no artists, just the more link
-					view = mActivity.getLayoutInflater().inflate(R.layout.local_library_empty_section_first, null);
-					TextView textView = (TextView) (view.findViewById(R.id.empty_section_heading));
-					textView.setText(R.string.artists);
-					textView = (TextView) (view.findViewById(R.id.empty_section_content));
-					textView.setText(R.string.empty_artists_section);
-					textView.setCompoundDrawablesWithIntrinsicBounds(mActivity.getResources().getDrawable(R.drawable.artist_24), null, null, null);
-				} else {
-					view = mActivity.getLayoutInflater().inflate(R.layout.local_library_heading_first, null);
-					((TextView) view).setText(R.string.artists);
-				}
-				holder.type = ITEM_TYPE_HEADING;
-			
-			}
-			
+			if(mLimiter != null) return VIEW_TYPE_HIDDEN;
+			return isEmptySection(mMih.artists, mPosArtistFirst, mPosArtistLast) ? VIEW_TYPE_EMPTY_SECTION_FIRST : VIEW_TYPE_HEADING_FIRST;
 		} else if(pos >= mPosArtistFirst && pos <= mPosArtistLast) {
-			
-			view = mActivity.getLayoutInflater().inflate(
-				(mMih.artists.get(pos - mPosArtistFirst).name == null) ? R.layout.local_library_more_link : R.layout.local_library_artist,
-				null);
-			TextView textView = (TextView) view.findViewById(R.id.text);
-			if(mMih.artists.get(pos - mPosArtistFirst).name == null) {
-				textView.setText((mPosArtistFirst == mPosArtistLast) ? R.string.all_artists_ellipsis : R.string.more_link_ellipsis);
-				holder.type = ITEM_TYPE_MORE_ARTISTS;
-			} else {
-				textView.setText(mMih.artists.get(pos - mPosArtistFirst).name);
-				holder.title = mMih.artists.get(pos - mPosArtistFirst).name;
-				holder.id = mMih.artists.get(pos - mPosArtistFirst).databaseId;
-				holder.type = ITEM_TYPE_ARTIST;
-			}
-			
-		} else if (pos == mPosAlbumHeading) {
+			return mMih.artists.get(pos - mPosArtistFirst).name == null ? VIEW_TYPE_MORE_LINK : VIEW_TYPE_ARTIST;
+		} else if(pos == mPosAlbumHeading) {
+			if(mLimiter != null) return VIEW_TYPE_HIDDEN;
+			return isEmptySection(mMih.albums, mPosAlbumFirst, mPosAlbumLast) ? VIEW_TYPE_EMPTY_SECTION : VIEW_TYPE_HEADING;
+		} else if(pos >= mPosAlbumFirst && pos <= mPosAlbumLast) {
+			return mMih.albums.get(pos - mPosAlbumFirst).name == null ? VIEW_TYPE_MORE_LINK : VIEW_TYPE_ALBUM;
+		} else if(pos == mPosSongHeading) {
+			if(mLimiter != null) return VIEW_TYPE_HIDDEN;
+			return isEmptySection(mMih.songs, mPosSongFirst, mPosSongLast) ? VIEW_TYPE_EMPTY_SECTION : VIEW_TYPE_HEADING;
+		} else if(pos >= mPosSongFirst && pos <= mPosSongLast) {
+			return mMih.songs.get(pos - mPosSongFirst).name == null ? VIEW_TYPE_MORE_LINK : VIEW_TYPE_SONG;
+		} else if(pos == mPosPlaylistHeading) {
+			return mLimiter != null ? VIEW_TYPE_HIDDEN : VIEW_TYPE_HEADING_LINK;
+		} else {
+			// playlists use the song layout
+			return VIEW_TYPE_SONG;
+		}
+	}
+
+	/**
+	 * Returns true if a section holds nothing but the link to all its items.
+	 */
+	private boolean isEmptySection(ArrayList<?> items, int first, int last)
+	{
+		if(mLimiter != null || first != last) {
+			return false;
+		}
+		Object item = items.get(0);
+		if(item instanceof MediaInfoHolder.ArtistInfo) return ((MediaInfoHolder.ArtistInfo) item).name == null;
+		if(item instanceof MediaInfoHolder.AlbumInfo) return ((MediaInfoHolder.AlbumInfo) item).name == null;
+		return ((MediaInfoHolder.SongInfo) item).name == null;
+	}
+
+	/**
+	 * Inflate the layout for the given view type, attaching a ViewHolder to
+	 * it. Only called when there is no view to recycle.
+	 */
+	private View newView(int viewType, ViewGroup parent)
+	{
+		View view;
+		switch(viewType) {
+		case VIEW_TYPE_HIDDEN:
+			view = new View(mActivity);
+			view.setVisibility(View.GONE);
+			break;
+		case VIEW_TYPE_HEADING_FIRST:
+			view = mInflater.inflate(R.layout.local_library_heading_first, parent, false);
+			break;
+		case VIEW_TYPE_EMPTY_SECTION_FIRST:
+			view = mInflater.inflate(R.layout.local_library_empty_section_first, parent, false);
+			break;
+		case VIEW_TYPE_HEADING:
+			view = mInflater.inflate(R.layout.local_library_heading, parent, false);
+			break;
+		case VIEW_TYPE_EMPTY_SECTION:
+			view = mInflater.inflate(R.layout.local_library_empty_section, parent, false);
+			break;
+		case VIEW_TYPE_HEADING_LINK:
+			view = mInflater.inflate(R.layout.local_library_heading_link, parent, false);
+			break;
+		case VIEW_TYPE_MORE_LINK:
+			view = mInflater.inflate(R.layout.local_library_more_link, parent, false);
+			break;
+		case VIEW_TYPE_ARTIST:
+			view = mInflater.inflate(R.layout.local_library_artist, parent, false);
+			break;
+		case VIEW_TYPE_ALBUM:
+			view = mInflater.inflate(R.layout.local_library_album, parent, false);
+			break;
+		case VIEW_TYPE_SONG:
+			view = mInflater.inflate(R.layout.local_library_song, parent, false);
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid view type: " + viewType);
+		}
+
+		ViewHolder holder = new ViewHolder();
+		holder.text = (TextView) view.findViewById(R.id.text);
+		view.setTag(holder);
+		return view;
+	}
+
+	@Override
+	public View getView(int pos, View convertView, ViewGroup parent)
+	{
+        if(mMih.permissionToReadStorageWasDenied) {
+            return convertView != null ? convertView : getNoPermissionView();
+        }
+
+		int viewType = getItemViewType(pos);
+		View view = convertView != null ? convertView : newView(viewType, parent);
+		ViewHolder holder = (ViewHolder) view.getTag();
+		holder.id = 0;
+		holder.title = null;
+		holder.cloudPath = null;
+
+		if(holder.text != null) {
+			// clear pressed/focused state left over from the row's previous use
+			holder.text.setPressed(false);
+			holder.text.jumpDrawablesToCurrentState();
+		}
 
-			if(mLimiter != null) {
-				view = new View(mActivity);
-				view.setVisibility(View.GONE);
+		switch(viewType) {
+		case VIEW_TYPE_HIDDEN:
+			holder.type = ITEM_TYPE_HEADING;
+			break;
+		case VIEW_TYPE_HEADING_FIRST:
+		case VIEW_TYPE_HEADING:
+			((TextView) view).setText(getSectionTitle(pos));
+			holder.type = ITEM_TYPE_HEADING;
+			break;
+		case VIEW_TYPE_EMPTY_SECTION_FIRST:
+		case VIEW_TYPE_EMPTY_SECTION: {
+			TextView textView = (TextView) view.findViewById(R.id.empty_section_heading);
+			textView.setText(getSectionTitle(pos));
+			textView = (TextView) view.findViewById(R.id.empty_section_content);
+			if(pos == mPosArtistHeading) {
+				textView.setText(R.string.empty_artists_section);
+				textView.setCompoundDrawablesWithIntrinsicBounds(mArtistIcon, null, null, null);
+			} else if(pos == mPosAlbumHeading) {
+				textView.setText(R.string.empty_albums_section);
+				textView.setCompoundDrawablesWithIntrinsicBounds(mAlbumIcon, null, null, null);
 			} else {
-				if(mLimiter == null && mPosAlbumFirst == mPosAlbumLast) {
-					view = mActivity.getLayoutInflater().inflate(R.layout.local_library_empty_section, null);
-					TextView textView = (TextView) (((LinearLayout) view).findViewById(R.id.empty_section_heading));
-					textView.setText(R.string.albums);
-					textView = (TextView) (((LinearLayout) view).findViewById(R.id.empty_section_content));
-					textView.setText(R.string.empty_albums_section);
-					textView.setCompoundDrawablesWithIntrinsicBounds(mActivity.getResources().getDrawable(R.drawable.album_24), null, null, null);
-				} else {
-					view = mActivity.getLayoutInflater().inflate(R.layout.local_library_heading, null);
-					((TextView) view).setText(R.string.albums);
-				}
-				holder.type = ITEM_TYPE_HEADING;
+				textView.setText(R.string.empty_songs_section);
+				textView.setCompoundDrawablesWithIntrinsicBounds(mSongIcon, null, null, null);
 			}
-			
-		} else if (pos >= mPosAlbumFirst && pos <= mPosAlbumLast) {
-			
-			view = mActivity.getLayoutInflater().inflate(
-				(mMih.albums.get(pos - mPosAlbumFirst).name == null) ? R.layout.local_library_more_link : R.layout.local_library_album,
-				null);
-			TextView textView = (TextView) view.findViewById(R.id.text);
-			if(mMih.albums.get(pos - mPosAlbumFirst).name == null) {
-				textView.setText((mPosAlbumFirst == mPosAlbumLast) ? R.string.all_albums_ellipsis : R.string.more_link_ellipsis);
+			holder.type = ITEM_TYPE_HEADING;
+			break;
+		}
+		case VIEW_TYPE_HEADING_LINK:
+			((TextView) view).setText(R.string.all_playlists_ellipsis);
+			holder.type = ITEM_TYPE_MORE_PLAYLISTS;
+			break;
+		case VIEW_TYPE_MORE_LINK:
+			if(pos >= mPosArtistFirst && pos <= mPosArtistLast) {
+				holder.text.setText((mPosArtistFirst == mPosArtistLast) ? R.string.all_artists_ellipsis : R.string.more_link_ellipsis);
+				holder.type = ITEM_TYPE_MORE_ARTISTS;
+			} else if(pos >= mPosAlbumFirst && pos <= mPosAlbumLast) {
+				holder.text.setText((mPosAlbumFirst == mPosAlbumLast) ? R.string.all_albums_ellipsis : R.string.more_link_ellipsis);
 				holder.type = ITEM_TYPE_MORE_ALBUMS;
 			} else {
-				
-				Spannable s = new SpannableString(
-						mMih.albums.get(pos - mPosAlbumFirst).name + " \u2013 " + mMih.albums.get(pos - mPosAlbumFirst).artistName);
-				s.setSpan(new ForegroundColorSpan(0x8affffff),
-					mMih.albums.get(pos - mPosAlbumFirst).name.length(),
-					s.length(),
-					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				textView.setText(s);
-				
-				if(mMih.albums.get(pos - mPosAlbumFirst).cover != null) {
-					BitmapDrawable cover = new BitmapDrawable(mActivity.getResources(), mMih.albums.get(pos - mPosAlbumFirst).cover);
-					DisplayMetrics metrics = new DisplayMetrics();
-					mActivity.getWindowManager().getDefaultDisplay().getMetrics(metrics);
-					float logicalDensity = metrics.density;
-					int desiredSizeRawPixels = (int) Math.floor(24 * logicalDensity);
-					cover.setBounds(0, 0, desiredSizeRawPixels, desiredSizeRawPixels);
-					textView.setCompoundDrawables(cover, null, null, null);
-				}
-				
-				holder.title = mMih.albums.get(pos - mPosAlbumFirst).name;
-				holder.id = mMih.albums.get(pos - mPosAlbumFirst).databaseId;
-				holder.type = ITEM_TYPE_ALBUM;
+				holder.text.setText((mPosSongFirst == mPosSongLast) ? R.string.all_songs_ellipsis : R.string.more_link_ellipsis);
+				holder.type = ITEM_TYPE_MORE_SONGS;
 			}
-			
-		} else if (pos == mPosSongHeading) {
-			
-			if(mLimiter != null) {
-				view = new View(mActivity);
-				view.setVisibility(View.GONE);
+			break;
+		case VIEW_TYPE_ARTIST: {
+			MediaInfoHolder.ArtistInfo artist = mMih.artists.get(pos - mPosArtistFirst);
+			holder.text.setText(artist.name);
+			holder.title = artist.name;
+			holder.id = artist.databaseId;
+			holder.type = ITEM_TYPE_ARTIST;
+			break;
+		}
+		case VIEW_TYPE_ALBUM: {
+			MediaInfoHolder.AlbumInfo album = mMih.albums.get(pos - mPosAlbumFirst);
+			Spannable s = new SpannableString(album.name + " \u2013 " + album.artistName);
+			s.setSpan(new ForegroundColorSpan(0x8affffff), album.name.length(), s.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			holder.text.setText(s);
+
+			if(album.cover != null) {
+				if(album.coverDrawable == null) {
+					album.coverDrawable = new BitmapDrawable(mActivity.getResources(), album.cover);
+					album.coverDrawable.setBounds(0, 0, mCoverSize, mCoverSize);
+				}
+				holder.text.setCompoundDrawables(album.coverDrawable, null, null, null);
 			} else {
-			
-				if(mLimiter == null && mPosSongFirst == mPosSongLast) {
-					view = mActivity.getLayoutInflater().inflate(R.layout.local_library_empty_section, null);
-					TextView textView = (TextView) (((LinearLayout) view).findViewById(R.id.empty_section_heading));
-					textView.setText(R.string.songs);
-					textView = (TextView) (((LinearLayout) view).findViewById(R.id.empty_section_content));
-					textView.setText(R.string.empty_songs_section);
-					textView.setCompoundDrawablesWithIntrinsicBounds(mActivity.getResources().getDrawable(R.drawable.eighth_note), null, null, null);
-				} else {
-					view = mActivity.getLayoutInflater().inflate(R.layout.local_library_heading, null);
-					((TextView) view).setText(R.string.songs);
+				holder.text.setCompoundDrawablesWithIntrinsicBounds(mAlbumIcon, null, null, null);
+				if(!album.coverRequested) {
+					album.coverRequested = true;
+					mWorkerHandler.sendMessage(mWorkerHandler.obtainMessage(MSG_LOAD_COVER, album));
 				}
-			
 			}
-			
-			holder.type = ITEM_TYPE_HEADING;
-			
-		} else if (pos >= mPosSongFirst && pos <= mPosSongLast) {
-			
-			view = mActivity.getLayoutInflater().inflate(
-				(mMih.songs.get(pos - mPosSongFirst).name == null) ? R.layout.local_library_more_link : R.layout.local_library_song,
-				null);
-			TextView textView = (TextView) view.findViewById(R.id.text);
-			if(mMih.songs.get(pos - mPosSongFirst).name == null) {
-				textView.setText((mPosSongFirst == mPosSongLast) ? R.string.all_songs_ellipsis : R.string.more_link_ellipsis);
-				holder.type = ITEM_TYPE_MORE_SONGS;
-			} else {
-				
-				Spannable s = new SpannableString(
-					mMih.songs.get(pos - mPosSongFirst).name + " \u2013 " + mMih.songs.get(pos - mPosSongFirst).artistName);
-				s.setSpan(new ForegroundColorSpan(0x8affffff),
-					mMih.songs.get(pos - mPosSongFirst).name.length(),
-					s.length(),
-					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-				textView.setText(s);
-	
-				holder.id = mMih.songs.get(pos - mPosSongFirst).databaseId;
+
+			holder.title = album.name;
+			holder.id = album.databaseId;
+			holder.type = ITEM_TYPE_ALBUM;
+			break;
+		}
+		case VIEW_TYPE_SONG:
+			if(pos >= mPosSongFirst && pos <= mPosSongLast) {
+				MediaInfoHolder.SongInfo song = mMih.songs.get(pos - mPosSongFirst);
+				Spannable s = new SpannableString(song.name + " \u2013 " + song.artistName);
+				s.setSpan(new ForegroundColorSpan(0x8affffff), song.name.length(), s.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+				holder.text.setText(s);
+				holder.id = song.databaseId;
+				holder.cloudPath = song.cloudPath;
 				holder.type = ITEM_TYPE_SONG;
-				
-			}
-		} else if (pos == mPosPlaylistHeading) {
-			
-			if(mLimiter != null) {
-				view = new View(mActivity);
-				view.setVisibility(View.GONE);
-				holder.type = ITEM_TYPE_HEADING;
 			} else {
-				view = mActivity.getLayoutInflater().inflate(R.layout.local_library_heading_link, null);
-				((TextView) view).setText(R.string.all_playlists_ellipsis);
-				holder.type = ITEM_TYPE_MORE_PLAYLISTS;
+				MediaInfoHolder.PlaylistInfo playlist = mMih.playlists.get(pos - mPosPlaylistFirst);
+				holder.text.setText(playlist.name);
+				holder.title = playlist.name;
+				holder.id = playlist.databaseId;
+				holder.type = ITEM_TYPE_PLAYLIST;
 			}
-			
-		} else if (pos >= mPosPlaylistFirst && pos <= mPosPlaylistLast) {
-			
-			view = mActivity.getLayoutInflater().inflate(R.layout.local_library_song, null);
-			TextView textView = (TextView) view.findViewById(R.id.text);
-
-			textView.setText(mMih.playlists.get(pos - mPosPlaylistFirst).name);
-
-			holder.title = mMih.playlists.get(pos - mPosPlaylistFirst).name;
-			holder.id = mMih.playlists.get(pos - mPosPlaylistFirst).databaseId;
-			holder.type = ITEM_TYPE_PLAYLIST;
-			
+			break;
 		}
-		
-		holder.text = (TextView)view.findViewById(R.id.text);
-		view.setTag(holder);
-		
+
 		return view;
+	}
 
+	/**
+	 * Returns the title of the section whose heading is at the given position.
+	 */
+	private int getSectionTitle(int pos)
+	{
+		if(pos == mPosArtistHeading) return R.string.artists;
+		if(pos == mPosAlbumHeading) return R.string.albums;
+		return R.string.songs;
 	}
 
 	private View getNoPermissionView() {
@@ -608,6 +916,15 @@ public class UnifiedAdapter
 		ViewHolder holder = (ViewHolder)view.getTag();
 		
 		if(holder.type == ITEM_TYPE_HEADING) return null;
+
+		if(holder.cloudPath != null) {
+			// played like a song picked in the Dropbox tab
+			intent.putExtra(LibraryAdapter.DATA_TYPE, MediaUtils.TYPE_DROPBOX);
+			intent.putExtra(LibraryAdapter.DATA_ID, holder.id);
+			intent.putExtra(LibraryAdapter.DATA_FILE, holder.cloudPath);
+			intent.putExtra(LibraryAdapter.DATA_EXPANDABLE, false);
+			return intent;
+		}
 		
 		if(holder.id == ID_LINK_TO_PARENT_DIR) { //TODO: rework this to use type and not id!
 			intent.putExtra(LibraryAdapter.DATA_GO_UP, true);
@@ -655,7 +972,7 @@ public class UnifiedAdapter
     
 	@Override
 	public void setFilter(String filter) {
-		//not implemented, TODO: remove from superclass
+		mFilter = filter;
 	}
 
 }